@@ -15,6 +15,10 @@ api.interceptors.request.use(
     if (token) {
       config.headers.Authorization = `Bearer ${token}`
     }
+    // 告诉后端我们最多等多久，超时放弃后后端会终止仍在执行的分析查询
+    if (config.timeout) {
+      config.headers['X-Request-Timeout-Ms'] = config.timeout
+    }
     return config
   },
   (error) => Promise.reject(error)
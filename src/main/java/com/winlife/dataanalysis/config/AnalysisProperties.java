@@ -0,0 +1,107 @@
+package com.winlife.dataanalysis.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 事件分析相关配置，对应 application.properties 中的 analysis.* 配置项。
+ */
+@Data
+@ConfigurationProperties(prefix = "analysis")
+public class AnalysisProperties {
+
+    // Zone of the time.* groupings evaluated outside MySQL; must match the MySQL session time zone
+    private String timeZone = "UTC";
+    private DbConcurrency dbConcurrency = new DbConcurrency();
+    private Tiering tiering = new Tiering();
+    private Promotion promotion = new Promotion();
+    private MemoryStore memoryStore = new MemoryStore();
+    private Rollups rollups = new Rollups();
+    private ResultCache resultCache = new ResultCache();
+
+    @Data
+    public static class DbConcurrency {
+        // Analysis queries running against MySQL at the same time; keep ingestion.db-concurrency.max-writes
+        // plus this below spring.datasource.hikari.maximum-pool-size
+        private int maxQueries = 3;
+        // How long a query waits for a free slot before answering 503; dashboard tiles are admitted first,
+        // then users take turns
+        private long acquireTimeoutMs = 5000;
+        // Longest a single analysis statement runs before MySQL is told to stop it (KILL QUERY); a client
+        // sending X-Request-Timeout-Ms gets its statements stopped when it gives up; 0 or less for no limit
+        private long queryTimeoutMs = 60000;
+    }
+
+    @Data
+    public static class Tiering {
+        // Move closed game_events partitions older than hot-days from MySQL to local columnar segment files
+        private boolean enabled = false;
+        private int hotDays = 90;
+        private String directory = "data/cold";
+        // Rows per row group; a query decodes whole row groups
+        private int rowGroupSize = 65536;
+        // Partitions exported per run, each one is a full read of the partition
+        private int maxPartitionsPerRun = 4;
+        private long checkIntervalMs = 3600000;
+    }
+
+    @Data
+    public static class Promotion {
+        // Turn the JSON fields filtered and grouped on most into indexed generated columns of game_events
+        private boolean enabled = true;
+        // Queries using a field within about one check interval before it is promoted (usage halves every check)
+        private int minUses = 20;
+        // Upper bound of promoted columns; each index costs insert time and space
+        private int maxColumns = 16;
+        // Columns added per check, each one builds an index over the whole table
+        private int maxPerRun = 1;
+        private long checkIntervalMs = 600000;
+    }
+
+    @Data
+    public static class MemoryStore {
+        // Keep the last retention-days of game_events in memory as columns and answer event analysis over
+        // them without MySQL; only answers while this node runs alone (see ingestion.id leases)
+        private boolean enabled = false;
+        private int retentionDays = 3;
+        // Estimated heap use above which chunks of past hours move to direct memory (bounded by -XX:MaxDirectMemorySize)
+        private long offHeapThresholdMb = 512;
+        // Loads the store from MySQL until it succeeded, then expires hours and moves chunks off-heap
+        private long maintenanceIntervalMs = 60000;
+    }
+
+    @Data
+    public static class Rollups {
+        // Hourly and daily event counts updated with every stored batch; the same on every ingesting node.
+        // Disabling clears the coverage, so enabling again rebuilds the rollups from game_events
+        private boolean enabled = true;
+        // parameter.* / userProperty.* fields also counted per value; keep to low-cardinality fields
+        private List<String> dimensions = new ArrayList<>();
+        // Days before enabling (or adding a dimension) rebuilt from game_events
+        private int backfillDays = 30;
+        // Days rebuilt per run, each one a locking read of a day of game_events per dimension
+        private int maxBackfillDaysPerRun = 2;
+        // Closed hours given a sketch of their user ids per run, for approximate uniqueUserCount over the rollups
+        private int sketchHoursPerRun = 48;
+        // Closed hours compared with game_events per run, to restore counts a crash lost before they were flushed; 0 to disable
+        private int reconcileHours = 2;
+        private long maintenanceIntervalMs = 60000;
+        // Counts of stored batches are buffered and added to the rollups at this interval
+        private long flushIntervalMs = 1000;
+    }
+
+    @Data
+    public static class ResultCache {
+        // Cache event analysis results; late data is only noticed when it is ingested through this node
+        private boolean enabled = true;
+        // Result rows kept over all cached queries, least recently used evicted first
+        private long maxRows = 200000;
+        // Results whose range ended before they were computed; dropped earlier when an event of the range arrives
+        private long closedTtlMs = 3600000;
+        // Results whose range reaches now
+        private long openTtlMs = 30000;
+    }
+}
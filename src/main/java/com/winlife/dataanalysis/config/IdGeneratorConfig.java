@@ -0,0 +1,28 @@
+package com.winlife.dataanalysis.config;
+
+import com.winlife.dataanalysis.model.EventIdGenerator;
+import com.winlife.dataanalysis.service.LeasedIdGenerator;
+import com.winlife.dataanalysis.service.NodeRegistry;
+import com.winlife.dataanalysis.util.IdGenerator;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 事件表主键生成器配置。节点号（ingestion.id.node-id）在 MySQL 中租用，运行中的节点不会共用同一个节点号。
+ */
+@Configuration
+public class IdGeneratorConfig {
+
+    @Bean
+    @ConditionalOnMissingBean(IdGenerator.class)
+    public IdGenerator snowflakeIdGenerator(IngestionProperties ingestionProperties, NodeRegistry nodeRegistry) {
+        return new LeasedIdGenerator(nodeRegistry, ingestionProperties.getId().getEpochMillis());
+    }
+
+    @Bean
+    public InitializingBean eventIdGeneratorInstaller(IdGenerator idGenerator) {
+        return () -> EventIdGenerator.install(idGenerator);
+    }
+}
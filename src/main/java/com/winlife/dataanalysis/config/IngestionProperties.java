@@ -0,0 +1,183 @@
+package com.winlife.dataanalysis.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * 数据采集相关配置，对应 application.properties 中的 ingestion.* 配置项。
+ */
+@Data
+@ConfigurationProperties(prefix = "ingestion")
+public class IngestionProperties {
+
+    private Batch batch = new Batch();
+    private Async async = new Async();
+    private Schema schema = new Schema();
+    private PlayerData playerData = new PlayerData();
+    private Id id = new Id();
+    private Stream stream = new Stream();
+    private Binary binary = new Binary();
+    private Wal wal = new Wal();
+    private Dedup dedup = new Dedup();
+    private RateLimit rateLimit = new RateLimit();
+    private LoadShedding loadShedding = new LoadShedding();
+    private DbConcurrency dbConcurrency = new DbConcurrency();
+    private Partitioning partitioning = new Partitioning();
+
+    @Data
+    public static class Batch {
+        // Maximum number of events accepted by a single POST /api/data/events call
+        private int maxEvents = 1000;
+        // Rows per JDBC batch; with rewriteBatchedStatements=true each batch becomes one multi-row INSERT
+        private int jdbcBatchSize = 500;
+    }
+
+    @Data
+    public static class Schema {
+        // Interval of the full schema registry reload that picks up edits made on other nodes
+        private long refreshIntervalMs = 60000;
+    }
+
+    @Data
+    public static class PlayerData {
+        // Coalesce player_data updates in memory and upsert them periodically; false upserts on every event
+        private boolean writeBehind = true;
+        // Interval between write-behind flushes
+        private long flushIntervalMs = 1000;
+        // Number of users whose last written properties hash is remembered to skip unchanged writes
+        private int hashCacheSize = 100000;
+    }
+
+    @Data
+    public static class Binary {
+        // Largest accepted binary event frame (POST /api/data/event, Content-Type application/x-winlife-events)
+        private int maxFrameBytes = 1024 * 1024;
+    }
+
+    @Data
+    public static class Stream {
+        // Events per chunk handed to validation and persistence by POST /api/data/events/stream (capped by batch.max-events)
+        private int chunkSize = 1000;
+        // Upper bound of per-event failures listed in the progress lines and the summary
+        private int maxReportedFailures = 1000;
+        // Longest accepted line (one event); longer lines are reported as invalid and skipped
+        private int maxLineBytes = 1024 * 1024;
+    }
+
+    @Data
+    public static class RateLimit {
+        // Token buckets per deviceId and per eventName on the ingest endpoints; rejected events answer 429
+        private boolean enabled = true;
+        private double devicePerSecond = 20;
+        private double deviceBurst = 200;
+        private double eventNamePerSecond = 5000;
+        private double eventNameBurst = 20000;
+        // Buckets kept in memory per limiter (least recently used are evicted) and their lock stripes
+        private int maxKeys = 100000;
+        private int stripes = 64;
+    }
+
+    @Data
+    public static class LoadShedding {
+        // Refuse debug events (503) above a threshold and all events above twice the threshold
+        private boolean enabled = true;
+        // Events buffered in the async pipeline
+        private int backlogThreshold = 50000;
+        // Moving average of game_events batch insert latency
+        private long dbLatencyThresholdMs = 1000;
+        private long checkIntervalMs = 500;
+        private long retryAfterSeconds = 5;
+    }
+
+    @Data
+    public static class DbConcurrency {
+        // Event writes running against MySQL at the same time, whatever the number of request threads
+        private int maxWrites = 5;
+        // How long a write waits for a free slot; request threads then answer 503, background writers retry
+        private long acquireTimeoutMs = 2000;
+    }
+
+    @Data
+    public static class Partitioning {
+        public enum Granularity { DAY, MONTH }
+
+        // RANGE partition game_events, errored_game_events and debug_game_events by timestamp
+        private boolean enabled = true;
+        private Granularity granularity = Granularity.DAY;
+        // Partition boundaries are midnights in this zone
+        private String zone = "UTC";
+        // Partitions kept created ahead of the current one
+        private int futurePartitions = 7;
+        // A partition is dropped once all of its range is older than this; 0 keeps it forever, so dropping is opt-in
+        private int gameEventsRetentionDays = 0;
+        private int erroredEventsRetentionDays = 0;
+        private int debugEventsRetentionDays = 0;
+        // Existing tables above this row estimate are not rebuilt automatically (the conversion copies the table)
+        private long maxConvertRows = 5000000;
+        private long checkIntervalMs = 3600000;
+    }
+
+    @Data
+    public static class Dedup {
+        // Drop events whose client eventId was already stored
+        private boolean enabled = true;
+        // How long an eventId is remembered by the in-memory filter
+        private long windowMs = 3600000;
+        // Filter generations; one is dropped every window-ms / (generations - 1)
+        private int generations = 4;
+        // Events with an eventId expected per window, sizes the filter (about 1.2 MB per million at 1%)
+        private long expectedEventsPerWindow = 3000000;
+        // False positive rate per generation; false positives cost one indexed lookup, never an event
+        private double falsePositiveRate = 0.01;
+    }
+
+    @Data
+    public static class Wal {
+        // Opt-in: acknowledge events once they are on local disk and replay them into MySQL in the background
+        private boolean enabled = false;
+        private String directory = "data/wal";
+        // Size of each memory-mapped segment file
+        private int segmentSizeBytes = 64 * 1024 * 1024;
+        // Force appended records to disk before acknowledging; false only waits for the page cache
+        private boolean fsync = true;
+        // Records written to MySQL per replay batch
+        private int replayBatchSize = 500;
+        // Poll interval of the replay thread when the log is fully replayed
+        private long replayIdleMs = 50;
+        // Backoff between replay retries while MySQL is unavailable, doubled up to the maximum
+        private long retryBackoffMs = 500;
+        private long maxRetryBackoffMs = 30000;
+        // How long shutdown lets the replay catch up; the rest is replayed on the next start
+        private long shutdownTimeoutMs = 30000;
+    }
+
+    @Data
+    public static class Id {
+        // Node id (0-1023) embedded in event ids, leased in MySQL so no two running nodes share one;
+        // -1 leases the first free id from a hash of the host name on
+        private long nodeId = -1;
+        // A node that could not renew its lease for this long stops generating ids, another node may take it over
+        private long leaseTtlMs = 60000;
+        private long leaseRenewIntervalMs = 10000;
+        // Start of the id time range, 2024-01-01T00:00:00Z
+        private long epochMillis = 1704067200000L;
+    }
+
+    @Data
+    public static class Async {
+        // Opt-in: when enabled /api/data/event and /api/data/events only enqueue and answer 202
+        private boolean enabled = false;
+        // Worker threads per stage; events are routed to a partition by userId hash
+        private int partitions = Runtime.getRuntime().availableProcessors();
+        // Ring buffer slots per partition for newly accepted events, full buffers answer 503
+        private int queueCapacity = 8192;
+        // Ring buffer slots per partition between the validate, serialize and persist stages
+        private int stageCapacity = 1024;
+        // The persist stage flushes when this many rows are pending ...
+        private int flushSize = 500;
+        // ... or when the oldest pending row has waited this long
+        private long flushIntervalMs = 200;
+        // How long shutdown waits for the buffers to drain
+        private long shutdownTimeoutMs = 30000;
+    }
+}
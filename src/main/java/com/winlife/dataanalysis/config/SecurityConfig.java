@@ -3,6 +3,7 @@ package com.winlife.dataanalysis.config;
 import com.winlife.dataanalysis.security.JwtAuthenticationFilter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpMethod;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.ProviderManager;
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
@@ -32,6 +33,8 @@ public class SecurityConfig {
                 .authorizeHttpRequests(auth -> auth
                         .requestMatchers("/api/auth/**").permitAll()
                         .requestMatchers("/api/data/event").permitAll()
+                        .requestMatchers(HttpMethod.POST, "/api/data/events", "/api/data/events/stream").permitAll()
+                        .requestMatchers(HttpMethod.GET, "/api/data/schema-ids").permitAll()
                         .anyRequest().authenticated()
                 )
                 .addFilterBefore(jwtFilter, UsernamePasswordAuthenticationFilter.class)
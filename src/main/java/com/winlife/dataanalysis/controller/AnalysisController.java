@@ -1,15 +1,30 @@
 package com.winlife.dataanalysis.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.dto.DashboardTileResult;
 import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.service.DashboardAnalysisService;
 import com.winlife.dataanalysis.service.DataIngestionService;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import com.winlife.dataanalysis.service.analysis.ColumnarResult;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
 import java.util.List;
 import java.util.Map;
 
@@ -19,18 +34,128 @@ import java.util.Map;
 public class AnalysisController {
 
     private static final Logger logger = LoggerFactory.getLogger(DataCollectionController.class);
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    private static final int STREAM_FLUSH_ROWS = 256;
+    // How long the client waits for the answer; its queries are killed once it has given up
+    private static final String REQUEST_TIMEOUT_HEADER = "X-Request-Timeout-Ms";
 
     private final DataIngestionService dataIngestionService;
+    private final DashboardAnalysisService dashboardAnalysisService;
+    private final ObjectMapper objectMapper;
     /**
      * Executes an event analysis query based on the provided definition.
      * @param query The analysis query definition.
+     * @param timeoutMs How long the client waits (X-Request-Timeout-Ms); the query is killed after that.
      * @return The analysis results (structure depends on the query).
      */
     @PostMapping("/event") // New endpoint path
-    public List<Map<String, Object>> runEventAnalysis(@RequestBody EventAnalysisQuery query) { // Return dynamic structure
+    public List<Map<String, Object>> runEventAnalysis(@RequestBody EventAnalysisQuery query, Principal principal,
+                                                      @RequestHeader(value = REQUEST_TIMEOUT_HEADER, required = false) Long timeoutMs) { // Return dynamic structure
         logger.info("Received event analysis query: {}", query);
         // Service layer handles the complex parsing, SQL generation, and execution
-        return dataIngestionService.runEventAnalysis(query); // Call the new service method
+        return dataIngestionService.runEventAnalysis(query, adHoc(principal, timeoutMs)); // Call the new service method
     }
 
+    /**
+     * 按列返回事件分析结果：先是列名和类型，再是每列一个数组，不再每行重复列名。
+     * 适合数据点很多的时间序列；内容与 POST /api/analysis/event 相同，同样经过结果缓存。
+     * @param query The analysis query definition.
+     */
+    @PostMapping("/event/columns")
+    public ColumnarResult runEventAnalysisColumns(@RequestBody EventAnalysisQuery query, Principal principal,
+                                                  @RequestHeader(value = REQUEST_TIMEOUT_HEADER, required = false) Long timeoutMs) {
+        logger.info("Received columnar event analysis query: {}", query);
+        return dataIngestionService.runEventAnalysisColumns(query, adHoc(principal, timeoutMs));
+    }
+
+    /**
+     * 流式执行事件分析，适合按 userId、deviceId 等高基数属性分组的查询。
+     * 响应为 NDJSON：每个分组一行，行内容与 POST /api/analysis/event 返回的每一项相同；不经过结果缓存。
+     * 客户端断开后正在执行的查询会被终止。
+     * @param query The analysis query definition.
+     */
+    @PostMapping("/event/stream")
+    public void streamEventAnalysis(@RequestBody EventAnalysisQuery query, Principal principal,
+                                    @RequestHeader(value = REQUEST_TIMEOUT_HEADER, required = false) Long timeoutMs,
+                                    HttpServletResponse response) throws IOException {
+        logger.info("Received streaming event analysis query: {}", query);
+        AnalysisRequest request = adHoc(principal, timeoutMs);
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream());
+        generator.setRootValueSeparator(null); // Lines end with '\n' alone, not with the default space before the next row
+        int[] pending = {0};
+        dataIngestionService.streamEventAnalysis(query, request, (aliases, values) -> {
+            try {
+                generator.writeStartObject();
+                for (int i = 0; i < aliases.size(); i++) {
+                    generator.writeFieldName(aliases.get(i));
+                    generator.writeObject(values[i]);
+                }
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+                if (++pending[0] == STREAM_FLUSH_ROWS) {
+                    generator.flush(); // Hands the rows to the client instead of buffering the whole result
+                    pending[0] = 0;
+                }
+            } catch (IOException e) {
+                request.cancel("client disconnected");
+                throw new UncheckedIOException("Failed to write analysis row", e);
+            }
+        });
+        generator.flush();
+    }
+
+    /**
+     * 一次请求计算看板的所有图表：事件、时间范围、过滤条件和分组相同的图表合并为一次查询，各组并行执行。
+     * 响应为 NDJSON：每个图表算完立即输出一行 DashboardTileResult（按完成顺序，用 id 对应图表）。
+     * 看板图表的查询优先于临时查询执行；客户端断开后尚在执行的查询会被终止。
+     * @param id 看板 id
+     */
+    @PostMapping("/dashboard/{id}")
+    public void runDashboardAnalysis(@PathVariable Long id, Principal principal,
+                                     @RequestHeader(value = REQUEST_TIMEOUT_HEADER, required = false) Long timeoutMs,
+                                     HttpServletResponse response) throws IOException {
+        streamDashboard(id, false, AnalysisRequest.of(userName(principal), AnalysisRequest.Priority.DASHBOARD, timeoutMs), response);
+    }
+
+    /**
+     * 同 POST /api/analysis/dashboard/{id}，但每个图表的结果按列返回（DashboardTileResult.columns，格式同 /event/columns）。
+     * @param id 看板 id
+     */
+    @PostMapping("/dashboard/{id}/columns")
+    public void runDashboardAnalysisColumns(@PathVariable Long id, Principal principal,
+                                            @RequestHeader(value = REQUEST_TIMEOUT_HEADER, required = false) Long timeoutMs,
+                                            HttpServletResponse response) throws IOException {
+        streamDashboard(id, true, AnalysisRequest.of(userName(principal), AnalysisRequest.Priority.DASHBOARD, timeoutMs), response);
+    }
+
+    private void streamDashboard(Long id, boolean columnar, AnalysisRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        OutputStream out = response.getOutputStream();
+        dashboardAnalysisService.run(id, columnar, request, tile -> writeLine(out, tile, request));
+    }
+
+    private void writeLine(OutputStream out, DashboardTileResult tile, AnalysisRequest request) {
+        try {
+            out.write(objectMapper.writeValueAsBytes(tile));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            // The other tiles' queries would run for nobody
+            request.cancel("client disconnected");
+            throw new UncheckedIOException("Failed to write dashboard tile " + tile.getId(), e);
+        }
+    }
+
+    private static AnalysisRequest adHoc(Principal principal, Long timeoutMs) {
+        return AnalysisRequest.of(userName(principal), AnalysisRequest.Priority.AD_HOC, timeoutMs);
+    }
+
+    private static String userName(Principal principal) {
+        return principal == null ? null : principal.getName();
+    }
 }
@@ -1,21 +1,44 @@
 package com.winlife.dataanalysis.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.dto.EventIngestResult;
 import com.winlife.dataanalysis.dto.EventReportStatistic;
+import com.winlife.dataanalysis.config.IngestionProperties;
 import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.dto.SchemaIdMapDTO;
+import com.winlife.dataanalysis.dto.StreamIngestProgress;
 import com.winlife.dataanalysis.model.*;
+import com.winlife.dataanalysis.service.AsyncIngestionPipeline;
+import com.winlife.dataanalysis.service.BinaryEventCodec;
 import com.winlife.dataanalysis.service.DataIngestionService;
+import com.winlife.dataanalysis.service.IngestionGuard;
+import com.winlife.dataanalysis.service.IngestionWal;
+import com.winlife.dataanalysis.service.SchemaRegistry;
+import com.winlife.dataanalysis.service.StreamingIngestionService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Page;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 @RestController
 @RequestMapping("/api/data")
@@ -24,7 +47,18 @@ public class DataCollectionController {
 
     private static final Logger logger = LoggerFactory.getLogger(DataCollectionController.class);
 
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private final DataIngestionService dataIngestionService;
+    private final AsyncIngestionPipeline asyncIngestionPipeline;
+    private final IngestionWal ingestionWal;
+    private final IngestionGuard ingestionGuard;
+    private final StreamingIngestionService streamingIngestionService;
+    private final BinaryEventCodec binaryEventCodec;
+    private final SchemaRegistry schemaRegistry;
+    private final IngestionProperties ingestionProperties;
+    private final ObjectMapper objectMapper;
 
     /**
      * 接收来自游戏客户端的事件数据，并根据处理结果返回不同状态码。
@@ -34,6 +68,26 @@ public class DataCollectionController {
     @PostMapping("/event")
     public ResponseEntity<Void> collectEvent(@RequestBody GameEventDTO event) {
         logger.error("Received game event: {}", event);
+        IngestionGuard.Admission admission = ingestionGuard.admit(Collections.singletonList(event));
+        if (!admission.isAllAdmitted()) {
+            // Rate limited (429) or shed under load (503)
+            return ResponseEntity.status(admission.getRejectionStatus())
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(admission.getRetryAfterSeconds())).build();
+        }
+        if (ingestionWal.isEnabled()) {
+            // WAL mode: acknowledged once durable on local disk, replayed into MySQL in the background
+            if (ingestionWal.append(event)) {
+                return ResponseEntity.accepted().build(); // Return 202 Accepted
+            }
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
+        if (asyncIngestionPipeline.isEnabled()) {
+            // Async mode: only enqueue, validation and persistence happen in the pipeline
+            if (asyncIngestionPipeline.submit(event)) {
+                return ResponseEntity.accepted().build(); // Return 202 Accepted
+            }
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
         // processGameEvent now handles debug mode internally
         boolean success = dataIngestionService.processGameEvent(event);
 
@@ -51,6 +105,127 @@ public class DataCollectionController {
         }
     }
 
+    /**
+     * 批量接收游戏客户端缓冲的事件数据，一次请求、批量入库。
+     * @param events GameEventDTO 数组
+     * @return 与请求数组下标一一对应的处理结果
+     */
+    @PostMapping("/events")
+    public ResponseEntity<List<EventIngestResult>> collectEvents(@RequestBody List<GameEventDTO> events) {
+        logger.debug("Received batch of {} game events", events.size());
+        return ingestBatch(events);
+    }
+
+    /**
+     * 接收二进制格式（application/x-winlife-events）的事件帧，一帧可包含多个事件。
+     * 参数与用户属性的 key 以 /api/data/schema-ids 发布的数字 ID 编码，直接解码入库，不经过 JSON。
+     * @return 与帧内事件顺序一一对应的处理结果；无法解码的事件为 INVALID
+     */
+    @PostMapping(value = "/event", consumes = BinaryEventCodec.CONTENT_TYPE)
+    public ResponseEntity<List<EventIngestResult>> collectBinaryEvents(HttpServletRequest request) throws IOException {
+        int maxFrameBytes = ingestionProperties.getBinary().getMaxFrameBytes();
+        byte[] frame = decode(request.getInputStream(), request.getHeader(HttpHeaders.CONTENT_ENCODING)).readNBytes(maxFrameBytes + 1);
+        if (frame.length > maxFrameBytes) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Binary event frames are limited to " + maxFrameBytes + " bytes.");
+        }
+        BinaryEventCodec.DecodedFrame decoded = binaryEventCodec.decode(frame, frame.length, ingestionProperties.getBatch().getMaxEvents());
+        logger.debug("Received binary frame of {} bytes with {} game events", frame.length, decoded.size());
+        if (decoded.getEvents().isEmpty()) {
+            return ResponseEntity.status(decoded.size() == 0 ? HttpStatus.OK : HttpStatus.BAD_REQUEST)
+                    .body(decoded.mergeResults(Collections.emptyList()));
+        }
+        ResponseEntity<List<EventIngestResult>> response = ingestBatch(decoded.getEvents());
+        return ResponseEntity.status(response.getStatusCode()).headers(response.getHeaders())
+                .body(decoded.mergeResults(response.getBody()));
+    }
+
+    /**
+     * 发布二进制上报协议使用的 schema ID 映射（事件名、参数 key、用户属性 key 对应的数字 ID）。
+     */
+    @GetMapping("/schema-ids")
+    public SchemaIdMapDTO getSchemaIds() {
+        return schemaRegistry.getSchemaIdMap().toDTO();
+    }
+
+    /**
+     * Admission, then WAL / async / synchronous processing of a batch, shared by the JSON and binary endpoints.
+     */
+    private ResponseEntity<List<EventIngestResult>> ingestBatch(List<GameEventDTO> events) {
+        IngestionGuard.Admission admission = ingestionGuard.admit(events);
+        if (admission.isNoneAdmitted()) {
+            return ResponseEntity.status(admission.getRejectionStatus())
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(admission.getRetryAfterSeconds()))
+                    .body(admission.mergeResults(Collections.emptyList()));
+        }
+
+        List<EventIngestResult> results;
+        boolean queued = ingestionWal.isEnabled() || asyncIngestionPipeline.isEnabled();
+        if (ingestionWal.isEnabled()) {
+            results = admission.mergeResults(ingestionWal.appendAll(admission.getAdmitted()));
+        } else if (asyncIngestionPipeline.isEnabled()) {
+            results = admission.mergeResults(asyncIngestionPipeline.submitAll(admission.getAdmitted()));
+        } else {
+            results = admission.mergeResults(dataIngestionService.processGameEvents(admission.getAdmitted()));
+        }
+
+        // 202 in WAL / async mode with QUEUED per event; Retry-After when anything was rejected
+        boolean anyRejected = results.stream().anyMatch(r -> r.getStatus() == EventIngestResult.Status.REJECTED);
+        boolean allRejected = results.stream().allMatch(r -> r.getStatus() == EventIngestResult.Status.REJECTED);
+        HttpStatus status = allRejected && !results.isEmpty() ? HttpStatus.SERVICE_UNAVAILABLE : queued ? HttpStatus.ACCEPTED : HttpStatus.OK;
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(status);
+        if (anyRejected) {
+            response.header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, admission.getRetryAfterSeconds())));
+        }
+        return response.body(results);
+    }
+
+    /**
+     * 流式接收大批量事件（NDJSON，每行一个事件），支持 Content-Encoding: gzip / deflate。
+     * 事件按分块校验、入库，内存占用与上传大小无关。
+     * 响应为 NDJSON：每处理完一个分块输出一行 progress，最后输出一行 summary。
+     */
+    @PostMapping("/events/stream")
+    public void collectEventStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (ingestionGuard.getShedLevel() == IngestionGuard.ShedLevel.ALL) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ingestionGuard.getShedRetryAfterSeconds()));
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Ingestion is shedding load, retry later.");
+        }
+        InputStream body = decode(request.getInputStream(), request.getHeader(HttpHeaders.CONTENT_ENCODING));
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        OutputStream out = response.getOutputStream();
+
+        StreamIngestProgress summary = streamingIngestionService.ingest(body, progress -> writeLine(out, progress));
+        writeLine(out, summary);
+        logger.debug("Event stream finished: {} received, {} accepted, completed={}", summary.getReceived(), summary.getAccepted(), summary.isCompleted());
+    }
+
+    private InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if (!StringUtils.hasText(contentEncoding) || "identity".equalsIgnoreCase(contentEncoding.trim())) {
+            return in;
+        }
+        switch (contentEncoding.trim().toLowerCase()) {
+            case "gzip", "x-gzip" -> {
+                return new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+            }
+            case "deflate" -> {
+                return new InflaterInputStream(in, new Inflater(), STREAM_BUFFER_SIZE);
+            }
+            default -> throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Unsupported Content-Encoding: " + contentEncoding);
+        }
+    }
+
+    private void writeLine(OutputStream out, StreamIngestProgress progress) {
+        try {
+            out.write(objectMapper.writeValueAsBytes(progress));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write ingestion progress", e);
+        }
+    }
+
     /**
      * 获取最近的正常入库游戏事件数据（分页）
      * @param page 页码 (从0开始)
@@ -4,6 +4,7 @@ package com.winlife.dataanalysis.controller;
 import com.winlife.dataanalysis.model.EventSchema;
 import com.winlife.dataanalysis.repository.EventSchemaRepository;
 import com.winlife.dataanalysis.service.DataIngestionService;
+import com.winlife.dataanalysis.service.SchemaRegistry;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +25,7 @@ public class EventSchemaController {
     private static final Logger logger = LoggerFactory.getLogger(DataCollectionController.class);
 
     private final DataIngestionService dataIngestionService;
+    private final SchemaRegistry schemaRegistry;
 
     /**
      * 获取所有事件结构
@@ -64,6 +66,7 @@ public class EventSchemaController {
         // TODO: 可以根据需要在这里添加对 parameterSchema JSON 格式的更详细验证
 
         EventSchema savedSchema = eventSchemaRepository.save(eventSchema);
+        schemaRegistry.putEventSchema(savedSchema);
         return ResponseEntity.status(HttpStatus.CREATED).body(savedSchema);
     }
 
@@ -81,6 +84,7 @@ public class EventSchemaController {
             return ResponseEntity.notFound().build();
         }
         EventSchema existingSchema = existingSchemaOptional.get();
+        String previousEventName = existingSchema.getEventName();
 
         // 检查更新后的事件名称是否与现有其他事件名称冲突
         if (!existingSchema.getEventName().equals(updatedSchema.getEventName())) {
@@ -98,6 +102,10 @@ public class EventSchemaController {
         // TODO: 可以根据需要在这里添加对 parameterSchema JSON 格式的更详细验证
 
         EventSchema savedSchema = eventSchemaRepository.save(existingSchema);
+        if (!previousEventName.equals(savedSchema.getEventName())) {
+            schemaRegistry.removeEventSchema(previousEventName);
+        }
+        schemaRegistry.putEventSchema(savedSchema);
         return ResponseEntity.ok(savedSchema);
     }
 
@@ -108,11 +116,13 @@ public class EventSchemaController {
      */
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteEventSchema(@PathVariable Long id) {
-        if (!eventSchemaRepository.existsById(id)) {
+        Optional<EventSchema> existingSchema = eventSchemaRepository.findById(id);
+        if (existingSchema.isEmpty()) {
             // 找不到要删除的事件结构，返回 404 Not Found
             return ResponseEntity.notFound().build();
         }
         eventSchemaRepository.deleteById(id);
+        schemaRegistry.removeEventSchema(existingSchema.get().getEventName());
         // 返回 204 No Content
         return ResponseEntity.noContent().build();
     }
@@ -0,0 +1,33 @@
+package com.winlife.dataanalysis.controller;
+
+import com.winlife.dataanalysis.dto.IndexRecommendation;
+import com.winlife.dataanalysis.service.IndexAdvisor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/admin/indexes")
+@RequiredArgsConstructor
+public class IndexAdvisorController {
+
+    private final IndexAdvisor indexAdvisor;
+
+    /**
+     * 根据应用实际执行过的查询形态（EXPLAIN）给出索引建议，按预估收益降序。
+     */
+    @GetMapping("/recommendations")
+    public List<IndexRecommendation> listRecommendations() {
+        return indexAdvisor.recommend();
+    }
+
+    /**
+     * 在线创建一条当前仍有效的索引建议（ALGORITHM=INPLACE, LOCK=NONE），建议已失效时返回 404。
+     */
+    @PostMapping("/recommendations/{indexName}/apply")
+    public ResponseEntity<IndexRecommendation> applyRecommendation(@PathVariable String indexName) {
+        return ResponseEntity.ok(indexAdvisor.apply(indexName));
+    }
+}
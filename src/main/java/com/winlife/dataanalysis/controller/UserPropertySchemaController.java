@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.winlife.dataanalysis.model.UserPropertySchema;
 import com.winlife.dataanalysis.repository.UserPropertySchemaRepository;
+import com.winlife.dataanalysis.service.SchemaRegistry;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +26,7 @@ public class UserPropertySchemaController {
     private static final Logger logger = LoggerFactory.getLogger(UserPropertySchemaController.class);
     private final UserPropertySchemaRepository userPropertySchemaRepository;
     private final ObjectMapper objectMapper; // Inject ObjectMapper for validation
+    private final SchemaRegistry schemaRegistry;
 
     /**
      * Get the user property schema.
@@ -72,6 +74,7 @@ public class UserPropertySchemaController {
 
         try {
             UserPropertySchema savedSchema = userPropertySchemaRepository.save(schemaToSave);
+            schemaRegistry.putUserPropertySchema(savedSchema);
             return ResponseEntity.ok(savedSchema); // Return 200 OK
         } catch (Exception e) {
             logger.error("Failed to save user property schema", e);
@@ -117,6 +120,8 @@ public class UserPropertySchemaController {
             return ResponseEntity.notFound().build();
         }
         userPropertySchemaRepository.deleteById(id);
+        // Another row may still exist and become the active schema
+        schemaRegistry.putUserPropertySchema(userPropertySchemaRepository.findFirstByOrderByIdAsc().orElse(null));
         return ResponseEntity.noContent().build();
     }
 }
\ No newline at end of file
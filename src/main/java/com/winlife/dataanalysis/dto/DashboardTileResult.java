@@ -0,0 +1,25 @@
+package com.winlife.dataanalysis.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.winlife.dataanalysis.service.analysis.ColumnarResult;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 看板批量分析接口中一个图表（DashboardConfig）的结果，每算完一个图表输出一行。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DashboardTileResult {
+    private Long id; // DashboardConfig id
+    private String title;
+    private List<Map<String, Object>> data; // Same rows as POST /api/analysis/event, null on error or when columnar
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private ColumnarResult columns; // Same result as POST /api/analysis/event/columns, only when requested
+    private String error;
+}
@@ -16,6 +16,8 @@ public class EventAnalysisQuery {
     private List<String> calculationAttributes; // e.g., ["eventCount", "parameter.level", "userProperty.vip_status"]
     private String groupingAttribute; // e.g., "time.day", "parameter.level", "userProperty.vip_status"
     private List<FilterCondition> globalFilters; // List of filter rules
+    // 为 true 时去重计数（uniqueUserCount、distinctCount 等）用 HyperLogLog 估算，每个去重计数另返回 <别名>ErrorBound（约 95% 置信的误差范围）
+    private Boolean approx;
     // Optional: add chartType here if backend needs to know for result formatting
     // private String chartType; // e.g., "bar", "line", "table"
 }
\ No newline at end of file
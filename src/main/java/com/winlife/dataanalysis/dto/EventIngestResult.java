@@ -0,0 +1,31 @@
+package com.winlife.dataanalysis.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量上报接口中单条事件的处理结果，按请求数组中的下标一一对应返回给 SDK。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EventIngestResult {
+    private int index; // Position of the event in the submitted array
+    private Status status;
+    private String message; // Validation / failure reason, null when accepted
+
+    public enum Status {
+        ACCEPTED, // Valid and written to game_events
+        DEBUG,    // Debug mode event, written to debug_game_events
+        INVALID,  // Failed schema validation, written to errored_game_events
+        FAILED,   // Valid but could not be persisted, written to errored_game_events
+        QUEUED,   // Accepted into the async ingestion pipeline, persisted later
+        REJECTED, // Not accepted because the ingestion pipeline is full, retry later
+        DUPLICATE // Same eventId as an event already stored, dropped
+    }
+
+    public static EventIngestResult of(int index, Status status, String message) {
+        return new EventIngestResult(index, status, message);
+    }
+}
@@ -1,11 +1,13 @@
 package com.winlife.dataanalysis.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 
 import java.util.Map;
 
 @Data
 public class GameEventDTO {
+    private String eventId; // Optional client-generated unique ID; retries with the same ID are stored once
     private String userId;
     private String deviceId;
     private long timestamp; // Unix timestamp
@@ -13,4 +15,12 @@ public class GameEventDTO {
     private Map<String, Object> parameters;
     private int isDebug;
     private Map<String, Object> userProperties; // Add userProperties map
+
+    // Set only by the streaming NDJSON parser: the verbatim JSON of parameters / userProperties,
+    // stored as is instead of serializing the maps above, which stay null. Not serialized, so such
+    // events must not go through the async pipeline or the write-ahead log.
+    @JsonIgnore
+    private String rawParameters;
+    @JsonIgnore
+    private String rawUserProperties;
 }
\ No newline at end of file
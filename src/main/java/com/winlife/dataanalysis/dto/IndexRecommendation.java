@@ -0,0 +1,24 @@
+package com.winlife.dataanalysis.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 索引建议，由 GET /api/admin/indexes/recommendations 返回，
+ * 通过 POST /api/admin/indexes/recommendations/{indexName}/apply 在线创建。
+ */
+@Data
+public class IndexRecommendation {
+    private String table;
+    private String indexName;
+    private List<String> columns = new ArrayList<>();
+    private String ddl;
+    private List<String> queryShapes = new ArrayList<>(); // Names of the recorded query shapes the index serves
+    private long calls; // Recorded executions of those shapes
+    private long examinedRows; // EXPLAIN rows per execution with the current indexes
+    private long estimatedRows; // Rows per execution with the index: examinedRows * EXPLAIN filtered
+    private long estimatedBenefit; // calls * (examinedRows - estimatedRows), rows not read any more
+    private String currentPlan; // EXPLAIN type/key/Extra of the most costly shape
+}
@@ -0,0 +1,23 @@
+package com.winlife.dataanalysis.dto;
+
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 二进制上报协议使用的 schema ID 映射，由 GET /api/data/schema-ids 发布给 SDK。
+ * SDK 在每个二进制帧中带上 version，版本不一致时服务端返回 409，SDK 需重新拉取。
+ */
+@Data
+public class SchemaIdMapDTO {
+    private int version;
+    private Map<String, EventIds> events = new LinkedHashMap<>(); // Keyed by event name
+    private Map<String, Integer> userProperties = new LinkedHashMap<>(); // User property key -> id
+
+    @Data
+    public static class EventIds {
+        private int id;
+        private Map<String, Integer> parameters = new LinkedHashMap<>(); // Parameter key -> id, scoped to the event
+    }
+}
@@ -0,0 +1,26 @@
+package com.winlife.dataanalysis.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式上报接口的进度/汇总信息。每处理完一个分块输出一行 progress，结束时输出一行 summary。
+ */
+@Data
+@NoArgsConstructor
+public class StreamIngestProgress {
+    private String type; // "progress" after each chunk, "summary" at the end
+    private long received; // Events read from the stream so far
+    private long accepted;
+    private long debug;
+    private long invalid;
+    private long failed;
+    // Non-accepted events of the current chunk (progress) or all reported ones (summary);
+    // index is the 0-based position of the event in the stream
+    private List<EventIngestResult> failures = new ArrayList<>();
+    private boolean completed; // False when the stream was aborted, see error
+    private String error;
+}
@@ -11,7 +11,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 public class DebugGameEvent {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @EventId
     private Long id;
 
     private String userId;
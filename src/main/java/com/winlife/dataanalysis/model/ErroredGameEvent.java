@@ -12,7 +12,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 public class ErroredGameEvent {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @EventId
     private Long id;
 
     private String userId;
@@ -0,0 +1,18 @@
+package com.winlife.dataanalysis.model;
+
+import org.hibernate.annotations.IdGeneratorType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an id that is assigned by the application's {@link com.winlife.dataanalysis.util.IdGenerator}
+ * before the insert, instead of by a database AUTO_INCREMENT column.
+ */
+@IdGeneratorType(EventIdGenerator.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface EventId {
+}
@@ -0,0 +1,37 @@
+package com.winlife.dataanalysis.model;
+
+import com.winlife.dataanalysis.util.IdGenerator;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.generator.EventTypeSets;
+
+import java.util.EnumSet;
+
+/**
+ * Hibernate side of {@link EventId}. Hibernate instantiates generators itself, so the
+ * Spring managed {@link IdGenerator} is handed over through {@link #install(IdGenerator)}
+ * at startup (see IdGeneratorConfig).
+ */
+public class EventIdGenerator implements BeforeExecutionGenerator {
+
+    private static volatile IdGenerator delegate;
+
+    public static void install(IdGenerator idGenerator) {
+        delegate = idGenerator;
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object owner, Object currentValue, EventType eventType) {
+        IdGenerator idGenerator = delegate;
+        if (idGenerator == null) {
+            throw new IllegalStateException("No IdGenerator installed for event ids");
+        }
+        return idGenerator.nextId();
+    }
+
+    @Override
+    public EnumSet<EventType> getEventTypes() {
+        return EventTypeSets.INSERT_ONLY;
+    }
+}
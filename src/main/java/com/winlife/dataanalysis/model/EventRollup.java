@@ -0,0 +1,53 @@
+package com.winlife.dataanalysis.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Events of one event name stored in one hour or day, optionally per value of a configured dimension.
+ * Written with plain SQL by EventRollupRepository; the entity defines the table.
+ */
+@Entity
+@Table(name = "event_rollups",
+        uniqueConstraints = @UniqueConstraint(name = "uk_event_rollups_bucket",
+                columnNames = {"granularity", "dimension", "event_name", "bucket_start", "value_hash"}),
+        indexes = @Index(name = "idx_event_rollups_time", columnList = "granularity, dimension, bucket_start"))
+@Data
+@NoArgsConstructor
+public class EventRollup {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "granularity", length = 8, nullable = false)
+    private Granularity granularity;
+
+    // A configured dimension such as parameter.channel, empty for the counts per event name only
+    @Column(name = "dimension", length = 128, nullable = false)
+    private String dimension;
+
+    @Column(name = "event_name", nullable = false)
+    private String eventName;
+
+    @Column(name = "bucket_start")
+    private long bucketStart; // Start of the hour or day in analysis.time-zone
+
+    @Column(name = "value_hash")
+    private long valueHash; // Hash of dimensionValue, 0 without one; keys the row instead of the unbounded text
+
+    @Column(columnDefinition = "TEXT")
+    private String dimensionValue; // As JSON_UNQUOTE returns it, null when the event lacks the field
+
+    private long eventCount;
+    private long identifiedCount; // Events with a user id, the only ones event analysis counts
+
+    @Column(columnDefinition = "MEDIUMBLOB")
+    private byte[] userSketch; // HyperLogLog of the user ids once the bucket closed; every later write clears it
+
+    public enum Granularity {
+        HOUR, DAY
+    }
+}
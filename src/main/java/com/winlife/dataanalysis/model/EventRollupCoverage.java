@@ -0,0 +1,21 @@
+package com.winlife.dataanalysis.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * From when on the rollups of a dimension count every stored event.
+ */
+@Entity
+@Table(name = "event_rollup_coverage")
+@Data
+@NoArgsConstructor
+public class EventRollupCoverage {
+
+    @Id
+    @Column(length = 128)
+    private String dimension; // As in event_rollups, empty for the counts per event name only
+
+    private long coveredFrom; // A local day start; earlier days are rebuilt from game_events one by one
+}
@@ -7,14 +7,17 @@ import lombok.NoArgsConstructor;
 import java.time.Instant;
 
 @Entity
-@Table(name = "game_events") // Define the table name
+@Table(name = "game_events", indexes = @Index(name = "idx_game_events_event_id", columnList = "event_id")) // Define the table name
 @Data
 @NoArgsConstructor
 public class GameEvent {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @EventId
     private Long id;
 
+    @Column(name = "event_id", length = 64)
+    private String eventId; // Client-supplied event ID used for deduplication, may be null
+
     private String userId;
     private String deviceId;
     private long timestamp; // Using long to match the DTO for now
@@ -0,0 +1,115 @@
+package com.winlife.dataanalysis.repository;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementCreatorFactory;
+import org.springframework.jdbc.core.SqlParameter;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+import org.springframework.stereotype.Repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Runs the analysis queries built by {@link com.winlife.dataanalysis.service.analysis.AnalysisSql} on behalf of
+ * an {@link AnalysisRequest}: every statement gets a query timeout of at most analysis.db-concurrency.query-timeout-ms
+ * (none if it is not positive) and the request's remaining time, and is registered with the request while it runs, so cancelling the request
+ * stops it.
+ * <p>
+ * {@link #forEachRow} streams the rows instead of collecting them: with fetch size Integer.MIN_VALUE MySQL
+ * Connector/J reads the result set from the server row by row, so the client holds one row however many groups
+ * the query returns. The connection stays busy until the last row is read.
+ */
+@Repository
+public class AnalysisQueryRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate streaming;
+    private final long queryTimeoutMs;
+
+    public AnalysisQueryRepository(JdbcTemplate jdbcTemplate, AnalysisProperties analysisProperties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.streaming = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.streaming.setFetchSize(Integer.MIN_VALUE);
+        this.queryTimeoutMs = analysisProperties.getDbConcurrency().getQueryTimeoutMs();
+    }
+
+    /**
+     * @return all rows, each one an array of the selected columns
+     */
+    public List<Object[]> query(String sql, Map<String, Object> parameters, AnalysisRequest request) {
+        List<Object[]> rows = new ArrayList<>();
+        execute(jdbcTemplate, sql, parameters, request, rs -> {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                Object[] row = new Object[columns];
+                for (int i = 0; i < columns; i++) {
+                    row[i] = rs.getObject(i + 1);
+                }
+                rows.add(row);
+            }
+        });
+        return rows;
+    }
+
+    /**
+     * @param columns  number of selected columns
+     * @param consumer gets the same array for every row, overwritten with the next row after it returns
+     */
+    public void forEachRow(String sql, Map<String, Object> parameters, int columns, AnalysisRequest request,
+                           Consumer<Object[]> consumer) {
+        Object[] row = new Object[columns];
+        execute(streaming, sql, parameters, request, rs -> {
+            while (rs.next()) {
+                for (int i = 0; i < columns; i++) {
+                    row[i] = rs.getObject(i + 1);
+                }
+                try {
+                    consumer.accept(row);
+                } catch (RuntimeException e) {
+                    // Closing a streamed result set reads it to the end; stop the query first
+                    rs.getStatement().cancel();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private void execute(JdbcTemplate template, String sql, Map<String, Object> parameters, AnalysisRequest request,
+                         ResultSetHandler handler) {
+        // What NamedParameterJdbcTemplate does, but keeping hold of the statement
+        MapSqlParameterSource source = new MapSqlParameterSource(parameters);
+        ParsedSql parsed = NamedParameterUtils.parseSqlStatement(sql);
+        List<SqlParameter> declared = NamedParameterUtils.buildSqlParameterList(parsed, source);
+        PreparedStatementCreator creator = new PreparedStatementCreatorFactory(
+                NamedParameterUtils.substituteNamedParameters(parsed, source), declared)
+                .newPreparedStatementCreator(NamedParameterUtils.buildValueArray(parsed, source, null));
+        template.execute(creator, (PreparedStatementCallback<Void>) statement -> {
+            int timeoutSeconds = request.statementTimeoutSeconds(queryTimeoutMs);
+            if (timeoutSeconds > 0) {
+                statement.setQueryTimeout(timeoutSeconds);
+            }
+            request.register(statement);
+            try (ResultSet rs = statement.executeQuery()) {
+                handler.handle(rs);
+            } finally {
+                request.unregister(statement);
+            }
+            return null;
+        });
+    }
+
+    @FunctionalInterface
+    private interface ResultSetHandler {
+        void handle(ResultSet rs) throws SQLException;
+    }
+}
@@ -0,0 +1,208 @@
+package com.winlife.dataanalysis.repository;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.DebugGameEvent;
+import com.winlife.dataanalysis.model.ErroredGameEvent;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.util.IdGenerator;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * JDBC batch writer for the event tables.
+ * Ids come from the {@link IdGenerator} (the same one Hibernate uses for these entities),
+ * so rows are inserted without a key round trip. Together with
+ * rewriteBatchedStatements=true on the datasource URL the MySQL driver sends each
+ * JDBC batch as a single multi-row INSERT. Rows replayed from the write-ahead log keep the id
+ * recorded there and are inserted idempotently: a row whose id already exists is left as is.
+ * Other rows are inserted plainly, so an id that exists already fails the insert instead of
+ * silently dropping a different event.
+ */
+@Repository
+@RequiredArgsConstructor
+public class EventBatchRepository {
+
+    private static final String INSERT_GAME_EVENT =
+            "INSERT INTO game_events (id, event_id, user_id, device_id, timestamp, event_name, parameters, user_properties) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_ERRORED_EVENT =
+            "INSERT INTO errored_game_events (id, user_id, device_id, timestamp, event_name, raw_parameters, error_reason, received_timestamp) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_DEBUG_EVENT =
+            "INSERT INTO debug_game_events (id, user_id, device_id, timestamp, event_name, raw_parameters, raw_user_properties, is_valid, validation_error, received_timestamp) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String IGNORE_EXISTING = " ON DUPLICATE KEY UPDATE id = id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final IngestionProperties ingestionProperties;
+    private final IdGenerator idGenerator;
+
+    /**
+     * Inserts all events in one transaction: either every row is written or none is.
+     *
+     * @param replayed whether the rows carry the ids recorded in the write-ahead log; then rows whose id
+     *                 already exists are skipped, otherwise they fail the insert
+     */
+    @Transactional
+    public void insertGameEvents(List<GameEvent> events, boolean replayed) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (GameEvent event : events) {
+            if (event.getId() == null) {
+                event.setId(idGenerator.nextId());
+            }
+        }
+        jdbcTemplate.batchUpdate(insert(INSERT_GAME_EVENT, replayed), events, batchSize(), (ps, event) -> {
+            ps.setLong(1, event.getId());
+            ps.setString(2, event.getEventId());
+            ps.setString(3, event.getUserId());
+            ps.setString(4, event.getDeviceId());
+            ps.setLong(5, event.getTimestamp());
+            ps.setString(6, event.getEventName());
+            ps.setString(7, event.getParameters());
+            ps.setString(8, event.getUserProperties());
+        });
+    }
+
+    @Transactional
+    public void insertErroredEvents(List<ErroredGameEvent> events, boolean replayed) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (ErroredGameEvent event : events) {
+            if (event.getId() == null) {
+                event.setId(idGenerator.nextId());
+            }
+        }
+        jdbcTemplate.batchUpdate(insert(INSERT_ERRORED_EVENT, replayed), events, batchSize(), (ps, event) -> {
+            ps.setLong(1, event.getId());
+            ps.setString(2, event.getUserId());
+            ps.setString(3, event.getDeviceId());
+            ps.setLong(4, event.getTimestamp());
+            ps.setString(5, event.getEventName());
+            ps.setString(6, event.getRawParameters());
+            ps.setString(7, event.getErrorReason());
+            ps.setLong(8, event.getReceivedTimestamp());
+        });
+    }
+
+    @Transactional
+    public void insertDebugEvents(List<DebugGameEvent> events, boolean replayed) {
+        if (events.isEmpty()) {
+            return;
+        }
+        for (DebugGameEvent event : events) {
+            if (event.getId() == null) {
+                event.setId(idGenerator.nextId());
+            }
+        }
+        jdbcTemplate.batchUpdate(insert(INSERT_DEBUG_EVENT, replayed), events, batchSize(), (ps, event) -> {
+            ps.setLong(1, event.getId());
+            ps.setString(2, event.getUserId());
+            ps.setString(3, event.getDeviceId());
+            ps.setLong(4, event.getTimestamp());
+            ps.setString(5, event.getEventName());
+            ps.setString(6, event.getRawParameters());
+            ps.setString(7, event.getRawUserProperties());
+            ps.setBoolean(8, event.isValid());
+            ps.setString(9, event.getValidationError());
+            ps.setLong(10, event.getReceivedTimestamp());
+        });
+    }
+
+    /**
+     * @return the given client event ids that already exist in game_events
+     */
+    public Set<String> findExistingEventIds(Collection<String> eventIds) {
+        Set<String> existing = new HashSet<>();
+        List<String> ids = new ArrayList<>(eventIds);
+        for (int from = 0; from < ids.size(); from += batchSize()) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + batchSize()));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            existing.addAll(jdbcTemplate.queryForList(
+                    "SELECT event_id FROM game_events WHERE event_id IN (" + placeholders + ")", String.class, chunk.toArray()));
+        }
+        return existing;
+    }
+
+    /**
+     * @return the ids of the events that already exist in game_events, e.g. from an earlier attempt at the same
+     * write-ahead log batch; events without an id are not looked up
+     */
+    public Set<Long> findStoredIds(List<GameEvent> events) {
+        List<GameEvent> withIds = events.stream().filter(event -> event.getId() != null).toList();
+        Set<Long> stored = new HashSet<>();
+        for (int from = 0; from < withIds.size(); from += batchSize()) {
+            List<GameEvent> chunk = withIds.subList(from, Math.min(withIds.size(), from + batchSize()));
+            List<Object> args = new ArrayList<>();
+            // The timestamp range limits the lookup to the partitions the events belong to
+            args.add(chunk.stream().mapToLong(GameEvent::getTimestamp).min().getAsLong());
+            args.add(chunk.stream().mapToLong(GameEvent::getTimestamp).max().getAsLong());
+            chunk.forEach(event -> args.add(event.getId()));
+            String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            stored.addAll(jdbcTemplate.queryForList("SELECT id FROM game_events WHERE timestamp BETWEEN ? AND ? AND id IN ("
+                    + placeholders + ")", Long.class, args.toArray()));
+        }
+        return stored;
+    }
+
+    /**
+     * Streams the rows of a game_events shaped table (optionally of one partition) to the consumer
+     * without holding them in memory.
+     */
+    public void forEachGameEvent(String table, String partition, Consumer<GameEvent> consumer) {
+        JdbcTemplate streaming = new JdbcTemplate(jdbcTemplate.getDataSource());
+        streaming.setFetchSize(Integer.MIN_VALUE); // MySQL Connector/J streams the result set row by row
+        streaming.query("SELECT id, event_id, user_id, device_id, timestamp, event_name, parameters, user_properties FROM " + table
+                + (partition == null ? "" : " PARTITION (" + partition + ")"), (RowCallbackHandler) rs -> consumer.accept(mapGameEvent(rs)));
+    }
+
+    /**
+     * Streams the game_events rows with a timestamp at or after {@code fromTimestamp} to the consumer
+     * without holding them in memory.
+     */
+    public void forEachGameEventSince(long fromTimestamp, Consumer<GameEvent> consumer) {
+        JdbcTemplate streaming = new JdbcTemplate(jdbcTemplate.getDataSource());
+        streaming.setFetchSize(Integer.MIN_VALUE);
+        streaming.query("SELECT id, event_id, user_id, device_id, timestamp, event_name, parameters, user_properties " +
+                "FROM game_events WHERE timestamp >= ?", (RowCallbackHandler) rs -> consumer.accept(mapGameEvent(rs)), fromTimestamp);
+    }
+
+    private static GameEvent mapGameEvent(ResultSet rs) throws SQLException {
+        GameEvent event = new GameEvent();
+        event.setId(rs.getLong("id"));
+        event.setEventId(rs.getString("event_id"));
+        event.setUserId(rs.getString("user_id"));
+        event.setDeviceId(rs.getString("device_id"));
+        event.setTimestamp(rs.getLong("timestamp"));
+        event.setEventName(rs.getString("event_name"));
+        event.setParameters(rs.getString("parameters"));
+        event.setUserProperties(rs.getString("user_properties"));
+        return event;
+    }
+
+    private static String insert(String sql, boolean replayed) {
+        return replayed ? sql + IGNORE_EXISTING : sql;
+    }
+
+    private int batchSize() {
+        return Math.max(1, ingestionProperties.getBatch().getJdbcBatchSize());
+    }
+}
@@ -0,0 +1,194 @@
+package com.winlife.dataanalysis.repository;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.EventRollup;
+import com.winlife.dataanalysis.util.HashUtils;
+import com.winlife.dataanalysis.util.HyperLogLog;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes event_rollups and event_rollup_coverage. The writes run in the caller's transaction:
+ * rollups only stay exact when each count is added exactly once after, or together with, the events it counts.
+ * Value expressions are built by {@link com.winlife.dataanalysis.service.EventRollupService} from
+ * validated field names only.
+ */
+@Repository
+@RequiredArgsConstructor
+public class EventRollupRepository {
+
+    private static final String ADD_COUNTS =
+            "INSERT INTO event_rollups (granularity, dimension, event_name, bucket_start, value_hash, dimension_value, event_count, identified_count) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE event_count = event_count + VALUES(event_count), " +
+            "identified_count = identified_count + VALUES(identified_count), user_sketch = NULL";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final IngestionProperties ingestionProperties;
+
+    /**
+     * Adds the counts onto the existing rows. Callers pass them in one global order (see
+     * {@link RollupCount#ORDER}), so concurrent batches lock the rows in the same order and do not deadlock.
+     */
+    public void addCounts(List<RollupCount> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(ADD_COUNTS, counts, Math.max(1, ingestionProperties.getBatch().getJdbcBatchSize()), (ps, count) -> {
+            ps.setString(1, count.granularity().name());
+            ps.setString(2, count.dimension());
+            ps.setString(3, count.eventName());
+            ps.setLong(4, count.bucketStart());
+            ps.setLong(5, valueHash(count.value()));
+            ps.setString(6, count.value());
+            ps.setLong(7, count.eventCount());
+            ps.setLong(8, count.identifiedCount());
+        });
+    }
+
+    /**
+     * Deletes the hourly and daily rows of the dimension in [from, to).
+     */
+    public void deleteCounts(String dimension, long from, long to) {
+        jdbcTemplate.update("DELETE FROM event_rollups WHERE granularity IN ('HOUR', 'DAY') AND dimension = ? " +
+                "AND bucket_start >= ? AND bucket_start < ?", dimension, from, to);
+    }
+
+    /**
+     * Counts the stored events of [dayStart, dayEnd) per event name, hour and value, with a locking read:
+     * events of the day inserted meanwhile wait until the caller's transaction ends.
+     *
+     * @param valueExpression text of the dimension over game_events ge, null for the counts per event name only
+     */
+    public List<RollupCount> countHours(String dimension, String valueExpression, long dayStart, long dayEnd) {
+        // JSON_UNQUOTE returns utf8mb4_bin text, so values that differ in case stay apart as they do in the deltas
+        String value = valueExpression == null ? "NULL" : valueExpression;
+        return jdbcTemplate.query(
+                "SELECT ge.event_name, (ge.timestamp - ?) DIV 3600000 AS hour_index, " + value + " AS dimension_value, " +
+                "COUNT(*) AS event_count, COUNT(ge.user_id) AS identified_count FROM game_events ge " +
+                "WHERE ge.timestamp >= ? AND ge.timestamp < ? GROUP BY ge.event_name, hour_index, dimension_value FOR SHARE",
+                (rs, rowNum) -> new RollupCount(EventRollup.Granularity.HOUR, dimension, rs.getString("event_name"),
+                        dayStart + rs.getLong("hour_index") * 3_600_000L, rs.getString("dimension_value"),
+                        rs.getLong("event_count"), rs.getLong("identified_count"), null),
+                dayStart, dayStart, dayEnd);
+    }
+
+    /**
+     * @param eventName    null for every event name
+     * @param withSketches whether to read user_sketch too
+     * @return the rows of the dimension whose bucket starts in [from, to)
+     */
+    public List<RollupCount> findCounts(EventRollup.Granularity granularity, String dimension, String eventName, long from, long to,
+                                        boolean withSketches) {
+        List<Object> args = new ArrayList<>(List.of(granularity.name(), dimension, from, to));
+        String sql = "SELECT event_name, bucket_start, dimension_value, event_count, identified_count"
+                + (withSketches ? ", user_sketch" : "") + " FROM event_rollups "
+                + "WHERE granularity = ? AND dimension = ? AND bucket_start >= ? AND bucket_start < ?";
+        if (eventName != null) {
+            sql += " AND event_name = ?";
+            args.add(eventName);
+        }
+        return jdbcTemplate.query(sql,
+                (rs, rowNum) -> new RollupCount(granularity, dimension, rs.getString("event_name"), rs.getLong("bucket_start"),
+                        rs.getString("dimension_value"), rs.getLong("event_count"), rs.getLong("identified_count"),
+                        withSketches ? rs.getBytes("user_sketch") : null),
+                args.toArray());
+    }
+
+    /**
+     * @return the starts of the buckets in [from, to) with a row that counts users but has no user_sketch, oldest first
+     */
+    public List<Long> findUnsketchedBuckets(EventRollup.Granularity granularity, String dimension, long from, long to, int limit) {
+        return jdbcTemplate.queryForList("SELECT DISTINCT bucket_start FROM event_rollups WHERE granularity = ? AND dimension = ? " +
+                "AND bucket_start >= ? AND bucket_start < ? AND identified_count > 0 AND user_sketch IS NULL " +
+                "ORDER BY bucket_start LIMIT ?", Long.class, granularity.name(), dimension, from, to, limit);
+    }
+
+    /**
+     * Streams the distinct user id hashes (see {@link HyperLogLog#sqlHash}) in [from, to) per event name and value
+     * of the dimension. Hashes rather than registers keep the sketches of rows with few users small.
+     *
+     * @param valueExpression as for {@link #countHours}
+     */
+    public void forEachUserHash(String valueExpression, long from, long to, UserHashConsumer consumer) {
+        String value = valueExpression == null ? "NULL" : valueExpression;
+        jdbcTemplate.query("SELECT DISTINCT ge.event_name, " + value + " AS dimension_value, " + HyperLogLog.sqlHash("ge.user_id") +
+                        " AS user_hash FROM game_events ge WHERE ge.timestamp >= ? AND ge.timestamp < ? AND ge.user_id IS NOT NULL",
+                // The hash is an unsigned BIGINT; its low 64 bits are the signed long HyperLogLog works with
+                (RowCallbackHandler) rs -> consumer.accept(rs.getString("event_name"), rs.getString("dimension_value"),
+                        ((Number) rs.getObject("user_hash")).longValue()),
+                from, to);
+    }
+
+    /**
+     * Stores the row's user sketch, unless events were added to the row since it was read with the given count.
+     */
+    public void updateSketch(RollupCount count, byte[] sketch) {
+        jdbcTemplate.update("UPDATE event_rollups SET user_sketch = ? WHERE granularity = ? AND dimension = ? AND event_name = ? " +
+                        "AND bucket_start = ? AND value_hash = ? AND event_count = ?",
+                sketch, count.granularity().name(), count.dimension(), count.eventName(), count.bucketStart(),
+                valueHash(count.value()), count.eventCount());
+    }
+
+    /**
+     * @return covered_from per dimension
+     */
+    public Map<String, Long> findCoverage() {
+        Map<String, Long> coverage = new HashMap<>();
+        jdbcTemplate.query("SELECT dimension, covered_from FROM event_rollup_coverage",
+                (RowCallbackHandler) rs -> coverage.put(rs.getString("dimension"), rs.getLong("covered_from")));
+        return coverage;
+    }
+
+    /**
+     * Starts the coverage of a dimension, unless another node already did.
+     */
+    public void insertCoverage(String dimension, long coveredFrom) {
+        jdbcTemplate.update("INSERT IGNORE INTO event_rollup_coverage (dimension, covered_from) VALUES (?, ?)", dimension, coveredFrom);
+    }
+
+    /**
+     * @return the number of dimensions whose coverage was deleted
+     */
+    public int deleteCoverage() {
+        return jdbcTemplate.update("DELETE FROM event_rollup_coverage");
+    }
+
+    public void extendCoverage(String dimension, long coveredFrom) {
+        jdbcTemplate.update("UPDATE event_rollup_coverage SET covered_from = LEAST(covered_from, ?) WHERE dimension = ?",
+                coveredFrom, dimension);
+    }
+
+    private static long valueHash(String value) {
+        return value == null ? 0 : HashUtils.hash64(value);
+    }
+
+    @FunctionalInterface
+    public interface UserHashConsumer {
+        void accept(String eventName, String value, long hash);
+    }
+
+    /**
+     * Events of one rollup row; value is null for a missing field and for the counts per event name only,
+     * userSketch null unless read.
+     */
+    public record RollupCount(EventRollup.Granularity granularity, String dimension, String eventName, long bucketStart,
+                              String value, long eventCount, long identifiedCount, byte[] userSketch) {
+
+        /**
+         * The order of the unique key, with the value itself standing in for its hash.
+         */
+        public static final Comparator<RollupCount> ORDER = Comparator.comparing(RollupCount::granularity)
+                .thenComparing(RollupCount::dimension)
+                .thenComparing(RollupCount::eventName)
+                .thenComparingLong(RollupCount::bucketStart)
+                .thenComparing(RollupCount::value, Comparator.nullsFirst(Comparator.naturalOrder()));
+    }
+}
@@ -0,0 +1,53 @@
+package com.winlife.dataanalysis.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Reads and adds the indexed generated columns that hold promoted JSON fields.
+ * Column names, types and expressions are built by
+ * {@link com.winlife.dataanalysis.service.JsonPathPromoter} from validated field names only.
+ */
+@Repository
+@RequiredArgsConstructor
+public class GeneratedColumnRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * @return the generated columns of the table whose name starts with the prefix
+     */
+    public List<GeneratedColumn> findGeneratedColumns(String table, String prefix) {
+        return jdbcTemplate.query(
+                "SELECT COLUMN_NAME, DATA_TYPE, COLUMN_COMMENT FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND GENERATION_EXPRESSION <> '' ORDER BY ORDINAL_POSITION",
+                (rs, rowNum) -> new GeneratedColumn(rs.getString("COLUMN_NAME"), rs.getString("DATA_TYPE"), rs.getString("COLUMN_COMMENT")),
+                table)
+                .stream().filter(column -> column.name().startsWith(prefix)).toList();
+    }
+
+    /**
+     * Adds a VIRTUAL generated column and a secondary index on it. Adding a virtual column does not
+     * rewrite the table; the index is built online.
+     *
+     * @param definition   column type, e.g. BIGINT
+     * @param expression   generation expression
+     * @param comment      stored as the column comment, must not contain quotes
+     * @param indexColumns columns of the index, in order
+     */
+    public void addIndexedColumn(String table, String column, String definition, String expression, String comment,
+                                 String index, List<String> indexColumns) {
+        jdbcTemplate.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition
+                + " GENERATED ALWAYS AS (" + expression + ") VIRTUAL COMMENT '" + comment + "', ADD INDEX " + index
+                + " (" + String.join(", ", indexColumns) + ")");
+    }
+
+    /**
+     * One generated column; the comment holds what it was generated from.
+     */
+    public record GeneratedColumn(String name, String dataType, String comment) {
+    }
+}
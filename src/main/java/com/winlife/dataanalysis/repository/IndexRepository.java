@@ -0,0 +1,74 @@
+package com.winlife.dataanalysis.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Reads the secondary indexes of a table, explains queries and adds indexes, for
+ * {@link com.winlife.dataanalysis.service.IndexAdvisor}. Table, index and column names come from the
+ * advisor's fixed query shapes, never from a request.
+ */
+@Repository
+public class IndexRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+    public IndexRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    /**
+     * @return index name -> its columns in order, including PRIMARY
+     */
+    public Map<String, List<String>> findIndexes(String table) {
+        Map<String, List<String>> indexes = new LinkedHashMap<>();
+        jdbcTemplate.query(
+                "SELECT INDEX_NAME, COLUMN_NAME FROM information_schema.STATISTICS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? ORDER BY INDEX_NAME, SEQ_IN_INDEX",
+                rs -> {
+                    indexes.computeIfAbsent(rs.getString("INDEX_NAME"), name -> new ArrayList<>()).add(rs.getString("COLUMN_NAME"));
+                },
+                table);
+        return indexes;
+    }
+
+    /**
+     * Runs EXPLAIN for a query with named parameters.
+     *
+     * @return the plan of the first table the query reads, null if EXPLAIN returned nothing
+     */
+    public Explain explain(String sql, Map<String, ?> parameters) {
+        List<Explain> rows = namedParameterJdbcTemplate.query("EXPLAIN " + sql, parameters,
+                (rs, rowNum) -> new Explain(rs.getString("type"), rs.getString("key"), rs.getLong("rows"), rs.getDouble("filtered"),
+                        rs.getString("Extra")));
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * Builds the index in place while the table stays readable and writable.
+     */
+    public void addIndex(String table, String index, List<String> columns) {
+        jdbcTemplate.execute(addIndexSql(table, index, columns));
+    }
+
+    public static String addIndexSql(String table, String index, List<String> columns) {
+        return "ALTER TABLE " + table + " ADD INDEX " + index + " ("
+                + columns.stream().map(column -> "`" + column + "`").collect(Collectors.joining(", ")) + "), ALGORITHM=INPLACE, LOCK=NONE";
+    }
+
+    /**
+     * One row of EXPLAIN: rows is the estimate of rows examined, filtered the estimated percentage of
+     * them that match the WHERE clause.
+     */
+    public record Explain(String type, String key, long rows, double filtered, String extra) {
+    }
+}
@@ -0,0 +1,69 @@
+package com.winlife.dataanalysis.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Leases of the node ids embedded in event ids, in ingestion_node_leases. Expiry times are taken from the
+ * MySQL clock, so clock skew between nodes cannot make two of them hold the same id.
+ */
+@Repository
+@RequiredArgsConstructor
+public class NodeLeaseRepository {
+
+    private static final String DB_NOW = "ROUND(UNIX_TIMESTAMP(NOW(3)) * 1000)";
+
+    // MySQL applies the assignments left to right: expires_at only moves if owner is (now) ours
+    private static final String ACQUIRE =
+            "INSERT INTO ingestion_node_leases (node_id, owner, expires_at) VALUES (?, ?, " + DB_NOW + " + ?) " +
+            "ON DUPLICATE KEY UPDATE owner = IF(expires_at < " + DB_NOW + " OR owner = VALUES(owner), VALUES(owner), owner), " +
+            "expires_at = IF(owner = VALUES(owner), VALUES(expires_at), expires_at)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public void createTableIfMissing() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS ingestion_node_leases (node_id INT NOT NULL PRIMARY KEY, " +
+                "owner VARCHAR(255) NOT NULL, expires_at BIGINT NOT NULL)");
+    }
+
+    /**
+     * Takes the node id if it is free, expired or already held by the owner.
+     *
+     * @return whether the owner holds the lease for ttlMs from now
+     */
+    public boolean tryAcquire(long nodeId, String owner, long ttlMs) {
+        jdbcTemplate.update(ACQUIRE, nodeId, owner, ttlMs);
+        return owner.equals(findOwner(nodeId));
+    }
+
+    /**
+     * @return whether the owner still held the lease, which now lasts ttlMs from now
+     */
+    public boolean renew(long nodeId, String owner, long ttlMs) {
+        return jdbcTemplate.update("UPDATE ingestion_node_leases SET expires_at = " + DB_NOW + " + ? WHERE node_id = ? AND owner = ?",
+                ttlMs, nodeId, owner) == 1;
+    }
+
+    public void release(long nodeId, String owner) {
+        jdbcTemplate.update("DELETE FROM ingestion_node_leases WHERE node_id = ? AND owner = ?", nodeId, owner);
+    }
+
+    /**
+     * @return the owner of the node id's lease, expired or not; null if there is none
+     */
+    public String findOwner(long nodeId) {
+        List<String> owners = jdbcTemplate.queryForList("SELECT owner FROM ingestion_node_leases WHERE node_id = ?", String.class, nodeId);
+        return owners.isEmpty() ? null : owners.get(0);
+    }
+
+    /**
+     * @return the number of nodes holding an unexpired lease
+     */
+    public int countLive() {
+        Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ingestion_node_leases WHERE expires_at > " + DB_NOW, Integer.class);
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,163 @@
+package com.winlife.dataanalysis.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Reads and changes the RANGE partitioning of the event tables.
+ * Table and partition names are never taken from user input: the tables are fixed and the
+ * partition names are generated by {@link com.winlife.dataanalysis.service.PartitionManager}.
+ */
+@Repository
+@RequiredArgsConstructor
+public class PartitionRepository {
+
+    private static final String MAX_PARTITION = "pmax";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * @return the table's partitions in order; a single partition with a null name if the table is
+     * not partitioned, and an empty list if the table does not exist
+     */
+    public List<Partition> findPartitions(String table) {
+        return jdbcTemplate.query(
+                "SELECT PARTITION_NAME, PARTITION_METHOD, PARTITION_EXPRESSION, PARTITION_DESCRIPTION, TABLE_ROWS " +
+                "FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? " +
+                "ORDER BY PARTITION_ORDINAL_POSITION",
+                (rs, rowNum) -> {
+                    String description = rs.getString("PARTITION_DESCRIPTION");
+                    Long lessThan = description == null || "MAXVALUE".equalsIgnoreCase(description) ? null : Long.valueOf(description);
+                    return new Partition(rs.getString("PARTITION_NAME"), rs.getString("PARTITION_METHOD"),
+                            rs.getString("PARTITION_EXPRESSION"), lessThan, rs.getLong("TABLE_ROWS"));
+                },
+                table);
+    }
+
+    public List<String> findPrimaryKeyColumns(String table) {
+        return jdbcTemplate.queryForList(
+                "SELECT COLUMN_NAME FROM information_schema.KEY_COLUMN_USAGE " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND CONSTRAINT_NAME = 'PRIMARY' ORDER BY ORDINAL_POSITION",
+                String.class, table);
+    }
+
+    /**
+     * @return the smallest value of the column, null if the table is empty
+     */
+    public Long findMinValue(String table, String column) {
+        return jdbcTemplate.queryForObject("SELECT MIN(`" + column + "`) FROM " + table, Long.class);
+    }
+
+    /**
+     * Rebuilds an unpartitioned table as RANGE partitions on the column, plus a MAXVALUE partition.
+     * MySQL requires the partitioning column in every unique key, so with rekey the primary key
+     * (id) becomes (id, column). This copies the table.
+     */
+    public void partitionByRange(String table, String column, List<Bound> bounds, boolean rekey) {
+        StringBuilder sql = new StringBuilder("ALTER TABLE ").append(table);
+        if (rekey) {
+            sql.append(" DROP PRIMARY KEY, ADD PRIMARY KEY (id, `").append(column).append("`)");
+        }
+        sql.append(" PARTITION BY RANGE (`").append(column).append("`) (")
+                .append(definitions(bounds)).append(", PARTITION ").append(MAX_PARTITION).append(" VALUES LESS THAN MAXVALUE)");
+        jdbcTemplate.execute(sql.toString());
+    }
+
+    /**
+     * Appends partitions after the last one. If the table ends with a MAXVALUE partition, that one is
+     * split instead, which only moves rows when events from the future were already stored.
+     */
+    public void addPartitions(String table, String maxPartition, List<Bound> bounds) {
+        if (maxPartition == null) {
+            jdbcTemplate.execute("ALTER TABLE " + table + " ADD PARTITION (" + definitions(bounds) + ")");
+        } else {
+            jdbcTemplate.execute("ALTER TABLE " + table + " REORGANIZE PARTITION " + maxPartition + " INTO ("
+                    + definitions(bounds) + ", PARTITION " + maxPartition + " VALUES LESS THAN MAXVALUE)");
+        }
+    }
+
+    /**
+     * Drops whole partitions; unlike a DELETE this takes no longer for a full partition than for an empty one.
+     */
+    public void dropPartitions(String table, List<String> partitions) {
+        jdbcTemplate.execute("ALTER TABLE " + table + " DROP PARTITION " + String.join(", ", partitions));
+    }
+
+    /**
+     * Merges adjacent partitions into one covering their range, keeping their rows. Copies the rows,
+     * so it is only cheap for partitions that are (nearly) empty.
+     */
+    public void mergePartitions(String table, List<String> partitions, Bound into) {
+        jdbcTemplate.execute("ALTER TABLE " + table + " REORGANIZE PARTITION " + String.join(", ", partitions)
+                + " INTO (" + definitions(List.of(into)) + ")");
+    }
+
+    /**
+     * Creates an empty, unpartitioned copy of the table's structure, as EXCHANGE PARTITION requires.
+     */
+    public void createExchangeTable(String table, String exchangeTable) {
+        jdbcTemplate.execute("CREATE TABLE " + exchangeTable + " LIKE " + table);
+        jdbcTemplate.execute("ALTER TABLE " + exchangeTable + " REMOVE PARTITIONING");
+    }
+
+    /**
+     * Swaps the rows of the partition with those of the (empty) exchange table; a metadata change, the rows are not copied.
+     */
+    public void exchangePartition(String table, String partition, String exchangeTable) {
+        jdbcTemplate.execute("ALTER TABLE " + table + " EXCHANGE PARTITION " + partition + " WITH TABLE " + exchangeTable);
+    }
+
+    /**
+     * @param partition the partition to count, null for the whole table
+     */
+    public long countRows(String table, String partition) {
+        Long count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table + (partition == null ? "" : " PARTITION (" + partition + ")"), Long.class);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the row count and the sum (wrapped around to 64 bits, like long addition) and XOR of the ids of the table
+     */
+    public IdChecksum checksumIds(String table) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*), COALESCE(SUM(id), 0), COALESCE(BIT_XOR(id), 0) FROM " + table,
+                (rs, rowNum) -> new IdChecksum(rs.getLong(1), rs.getBigDecimal(2).toBigInteger().longValue(),
+                        rs.getBigDecimal(3).toBigInteger().longValue()));
+    }
+
+    public List<String> findTablesStartingWith(String prefix) {
+        return jdbcTemplate.queryForList("SELECT TABLE_NAME FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE()", String.class)
+                .stream().filter(name -> name.startsWith(prefix)).toList();
+    }
+
+    public void dropTable(String table) {
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + table);
+    }
+
+    private static String definitions(List<Bound> bounds) {
+        return bounds.stream()
+                .map(bound -> "PARTITION " + bound.name() + " VALUES LESS THAN (" + bound.lessThan() + ")")
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * One existing partition; lessThan is null for the MAXVALUE partition.
+     */
+    public record Partition(String name, String method, String expression, Long lessThan, long rows) {
+    }
+
+    /**
+     * A partition to create, holding the rows below lessThan.
+     */
+    public record Bound(String name, long lessThan) {
+    }
+
+    /**
+     * Order-independent fingerprint of the rows of a table by id.
+     */
+    public record IdChecksum(long rows, long idSum, long idXor) {
+    }
+}
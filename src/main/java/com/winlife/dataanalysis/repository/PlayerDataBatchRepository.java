@@ -0,0 +1,46 @@
+package com.winlife.dataanalysis.repository;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.PlayerData;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+
+/**
+ * Bulk upsert of player_data. With rewriteBatchedStatements=true the MySQL driver turns
+ * each JDBC batch into one multi-row INSERT ... ON DUPLICATE KEY UPDATE.
+ * <p>
+ * A row is only overwritten by an update that is at least as recent, so a delayed write (a
+ * retried flush, or a direct upsert racing a flush) cannot replace newer properties.
+ */
+@Repository
+@RequiredArgsConstructor
+public class PlayerDataBatchRepository {
+
+    private static final String UPSERT_PLAYER_DATA =
+            "INSERT INTO player_data (user_id, device_id, user_properties, last_updated_timestamp) VALUES (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE " +
+            // Assignments run left to right: last_updated_timestamp must stay the old value until the last one
+            "device_id = IF(VALUES(last_updated_timestamp) >= last_updated_timestamp, VALUES(device_id), device_id), " +
+            "user_properties = IF(VALUES(last_updated_timestamp) >= last_updated_timestamp, VALUES(user_properties), user_properties), " +
+            "last_updated_timestamp = GREATEST(last_updated_timestamp, VALUES(last_updated_timestamp))";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final IngestionProperties ingestionProperties;
+
+    @Transactional
+    public void upsertAll(Collection<PlayerData> players) {
+        if (players.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPSERT_PLAYER_DATA, players, Math.max(1, ingestionProperties.getBatch().getJdbcBatchSize()), (ps, player) -> {
+            ps.setString(1, player.getUserId());
+            ps.setString(2, player.getDeviceId());
+            ps.setString(3, player.getUserProperties());
+            ps.setLong(4, player.getLastUpdatedTimestamp());
+        });
+    }
+}
@@ -0,0 +1,14 @@
+package com.winlife.dataanalysis.service;
+
+/**
+ * 分析请求被取消（客户端已断开）或超过了截止时间 / 语句超时，正在执行的 SQL 已被终止（KILL QUERY）。
+ */
+public class AnalysisCancelledException extends RuntimeException {
+    public AnalysisCancelledException(String message) {
+        super(message);
+    }
+
+    public AnalysisCancelledException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
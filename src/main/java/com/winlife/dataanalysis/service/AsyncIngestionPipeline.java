@@ -0,0 +1,394 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.service.impl.EventBatchWriter;
+import com.winlife.dataanalysis.util.BoundedRingBuffer;
+import com.winlife.dataanalysis.util.WorkerThreads;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in asynchronous ingestion (ingestion.async.enabled=true).
+ * <p>
+ * Accepted events go into a bounded ring buffer per partition and the HTTP request returns
+ * immediately. Three stages, each with its own worker pool, then move the events along:
+ * validate -> serialize -> persist. An event is routed to partition {@code hash(userId) % partitions}
+ * in every stage and each partition is served by exactly one thread per stage, so events of
+ * the same user are persisted in the order they were accepted. When a stage falls behind,
+ * its upstream blocks, the accept buffer fills and new events are rejected (backpressure).
+ * The persist stage writes through {@link EventBatchWriter} and flushes by size or time.
+ * <p>
+ * Accepted events are never dropped: while no database write slot is free a partition keeps
+ * retrying its batch and stalls, which the ingestion.async.stalled-partitions and
+ * ingestion.async.stalled-ms gauges show, and its buffers fill until new events are rejected.
+ */
+@Service
+@RequiredArgsConstructor
+public class AsyncIngestionPipeline implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncIngestionPipeline.class);
+
+    private static final int DRAIN_CHUNK = 256;
+    private static final long POLL_MILLIS = 50;
+
+    private final DataIngestionService dataIngestionService;
+    private final EventBatchWriter eventBatchWriter;
+    private final IngestionProperties ingestionProperties;
+    private final MeterRegistry meterRegistry;
+    private final Environment environment;
+
+    private final List<BoundedRingBuffer<GameEventDTO>> acceptQueues = new ArrayList<>();
+    private final List<BoundedRingBuffer<ValidatedEvent>> serializeQueues = new ArrayList<>();
+    private final List<BoundedRingBuffer<EventBatchWriter.PreparedEvent>> persistQueues = new ArrayList<>();
+    private final AtomicInteger inFlightSubmits = new AtomicInteger();
+
+    // Per partition: when its persist stage started waiting for a write slot, 0 while it is not stalled
+    private AtomicLongArray stalledSince = new AtomicLongArray(0);
+
+    private ExecutorService validateWorkers;
+    private ExecutorService serializeWorkers;
+    private ExecutorService persistWorkers;
+
+    private volatile boolean running;
+    private volatile boolean accepting;
+    // Set once the upstream of a stage has finished, so the stage exits when its buffer is empty
+    private volatile boolean validateUpstreamDone;
+    private volatile boolean serializeUpstreamDone;
+    private volatile boolean persistUpstreamDone;
+
+    public boolean isEnabled() {
+        return running;
+    }
+
+    /**
+     * Enqueues an event for asynchronous processing.
+     *
+     * @return false if the pipeline is not accepting or the partition buffer is full
+     */
+    public boolean submit(GameEventDTO event) {
+        inFlightSubmits.incrementAndGet();
+        try {
+            if (!accepting) {
+                return false;
+            }
+            boolean queued = acceptQueues.get(partitionOf(event)).offer(event);
+            if (!queued) {
+                meterRegistry.counter("ingestion.async.rejected").increment();
+            }
+            return queued;
+        } finally {
+            inFlightSubmits.decrementAndGet();
+        }
+    }
+
+    /**
+     * Enqueues a batch of events.
+     *
+     * @return one QUEUED / REJECTED / INVALID result per event, in request order
+     */
+    public List<EventIngestResult> submitAll(List<GameEventDTO> events) {
+        List<EventIngestResult> results = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            GameEventDTO event = events.get(i);
+            if (event == null) {
+                results.add(EventIngestResult.of(i, EventIngestResult.Status.INVALID, "Received null event."));
+            } else if (submit(event)) {
+                results.add(EventIngestResult.of(i, EventIngestResult.Status.QUEUED, null));
+            } else {
+                results.add(EventIngestResult.of(i, EventIngestResult.Status.REJECTED, "Ingestion pipeline is full."));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Number of events accepted but not yet handed to the persist stage's writer.
+     */
+    public int getBacklog() {
+        int backlog = 0;
+        for (int p = 0; p < acceptQueues.size(); p++) {
+            backlog += acceptQueues.get(p).size() + serializeQueues.get(p).size() + persistQueues.get(p).size();
+        }
+        return backlog;
+    }
+
+    /**
+     * Number of partitions whose persist stage is waiting for a database write slot.
+     */
+    public int getStalledPartitions() {
+        int stalled = 0;
+        for (int p = 0; p < stalledSince.length(); p++) {
+            if (stalledSince.get(p) != 0) {
+                stalled++;
+            }
+        }
+        return stalled;
+    }
+
+    /**
+     * How long the longest stalled partition has been waiting for a database write slot, 0 if none is.
+     */
+    public long getLongestStallMillis() {
+        long now = System.currentTimeMillis();
+        long longest = 0;
+        for (int p = 0; p < stalledSince.length(); p++) {
+            long since = stalledSince.get(p);
+            if (since != 0) {
+                longest = Math.max(longest, now - since);
+            }
+        }
+        return longest;
+    }
+
+    @Override
+    public void start() {
+        IngestionProperties.Async config = ingestionProperties.getAsync();
+        if (!config.isEnabled() || running) {
+            return;
+        }
+        int partitions = Math.max(1, config.getPartitions());
+        for (int p = 0; p < partitions; p++) {
+            acceptQueues.add(new BoundedRingBuffer<>(config.getQueueCapacity()));
+            serializeQueues.add(new BoundedRingBuffer<>(config.getStageCapacity()));
+            persistQueues.add(new BoundedRingBuffer<>(config.getStageCapacity()));
+        }
+        stalledSince = new AtomicLongArray(partitions);
+
+        validateWorkers = newStagePool("validate", partitions);
+        serializeWorkers = newStagePool("serialize", partitions);
+        persistWorkers = newStagePool("persist", partitions);
+        for (int p = 0; p < partitions; p++) {
+            int partition = p;
+            validateWorkers.execute(() -> runValidateStage(partition));
+            serializeWorkers.execute(() -> runSerializeStage(partition));
+            persistWorkers.execute(() -> runPersistStage(partition));
+        }
+
+        Gauge.builder("ingestion.async.backlog", this, AsyncIngestionPipeline::getBacklog).register(meterRegistry);
+        Gauge.builder("ingestion.async.stalled-partitions", this, AsyncIngestionPipeline::getStalledPartitions).register(meterRegistry);
+        Gauge.builder("ingestion.async.stalled-ms", this, AsyncIngestionPipeline::getLongestStallMillis).register(meterRegistry);
+        running = true;
+        accepting = true;
+        logger.info("Async ingestion pipeline started with {} partitions", partitions);
+    }
+
+    /**
+     * Stops accepting events and drains the stages in order, waiting at most
+     * ingestion.async.shutdown-timeout-ms in total.
+     */
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        accepting = false;
+        long deadline = System.currentTimeMillis() + ingestionProperties.getAsync().getShutdownTimeoutMs();
+        while (inFlightSubmits.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+
+        validateUpstreamDone = true;
+        awaitStage(validateWorkers, deadline);
+        serializeUpstreamDone = true;
+        awaitStage(serializeWorkers, deadline);
+        persistUpstreamDone = true;
+        awaitStage(persistWorkers, deadline);
+
+        int remaining = getBacklog();
+        if (remaining > 0) {
+            logger.warn("Async ingestion pipeline stopped with {} events still buffered", remaining);
+        } else {
+            logger.info("Async ingestion pipeline drained and stopped");
+        }
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start before and stop after the embedded web server, so no request can enqueue into a stopped pipeline.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE - 4096;
+    }
+
+    private void runValidateStage(int partition) {
+        BoundedRingBuffer<GameEventDTO> in = acceptQueues.get(partition);
+        BoundedRingBuffer<ValidatedEvent> out = serializeQueues.get(partition);
+        List<GameEventDTO> drained = new ArrayList<>(DRAIN_CHUNK);
+        try {
+            while (true) {
+                if (in.drainTo(drained, DRAIN_CHUNK, POLL_MILLIS, TimeUnit.MILLISECONDS) == 0) {
+                    if (validateUpstreamDone && in.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                for (GameEventDTO event : drained) {
+                    String validationError;
+                    try {
+                        validationError = dataIngestionService.validateGameEvent(event);
+                    } catch (Exception e) {
+                        logger.error("Validation of event {} failed unexpectedly", event.getEventName(), e);
+                        validationError = "Validation failed: " + e.getMessage();
+                    }
+                    forward(out, new ValidatedEvent(event, validationError));
+                }
+                drained.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSerializeStage(int partition) {
+        BoundedRingBuffer<ValidatedEvent> in = serializeQueues.get(partition);
+        BoundedRingBuffer<EventBatchWriter.PreparedEvent> out = persistQueues.get(partition);
+        List<ValidatedEvent> drained = new ArrayList<>(DRAIN_CHUNK);
+        try {
+            while (true) {
+                if (in.drainTo(drained, DRAIN_CHUNK, POLL_MILLIS, TimeUnit.MILLISECONDS) == 0) {
+                    if (serializeUpstreamDone && in.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                for (ValidatedEvent validated : drained) {
+                    forward(out, eventBatchWriter.prepare(validated.event, validated.validationError));
+                }
+                drained.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runPersistStage(int partition) {
+        BoundedRingBuffer<EventBatchWriter.PreparedEvent> in = persistQueues.get(partition);
+        int flushSize = Math.max(1, ingestionProperties.getAsync().getFlushSize());
+        long flushIntervalMs = ingestionProperties.getAsync().getFlushIntervalMs();
+
+        List<EventBatchWriter.PreparedEvent> drained = new ArrayList<>(flushSize);
+        EventBatchWriter.Batch batch = new EventBatchWriter.Batch();
+        long flushDeadline = 0;
+        try {
+            while (true) {
+                // Never longer than a poll, so a stop is noticed even when the flush interval is long
+                long wait = batch.isEmpty() ? POLL_MILLIS : Math.min(POLL_MILLIS, Math.max(0, flushDeadline - System.currentTimeMillis()));
+                int n = in.drainTo(drained, flushSize - batch.size(), wait, TimeUnit.MILLISECONDS);
+                if (n > 0) {
+                    if (batch.isEmpty()) {
+                        flushDeadline = System.currentTimeMillis() + flushIntervalMs;
+                    }
+                    for (EventBatchWriter.PreparedEvent prepared : drained) {
+                        prepared.addTo(batch);
+                    }
+                    drained.clear();
+                }
+
+                boolean upstreamFinished = persistUpstreamDone && in.isEmpty();
+                if (!batch.isEmpty() && (batch.size() >= flushSize || System.currentTimeMillis() >= flushDeadline || upstreamFinished)) {
+                    persist(partition, batch);
+                    batch = new EventBatchWriter.Batch();
+                }
+                if (upstreamFinished && batch.isEmpty()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Persist stage {} interrupted with {} rows pending", partition, batch.size());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands an item to the next stage, blocking while that stage's buffer is full.
+     */
+    private <T> void forward(BoundedRingBuffer<T> queue, T item) throws InterruptedException {
+        while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            // Downstream is saturated; waiting here is what propagates backpressure to the accept buffers
+        }
+    }
+
+    /**
+     * Writes a batch, waiting as long as it takes for a database write slot; the partition counts
+     * as stalled meanwhile. Only shutdown (an interrupt once its timeout ran out) ends the wait.
+     */
+    private void persist(int partition, EventBatchWriter.Batch batch) throws InterruptedException {
+        while (true) {
+            try {
+                eventBatchWriter.write(batch);
+                long since = stalledSince.getAndSet(partition, 0);
+                if (since != 0) {
+                    logger.info("Persist stage {} resumed after waiting {} ms for a database write slot",
+                            partition, System.currentTimeMillis() - since);
+                }
+                return;
+            } catch (DatabaseBusyException e) {
+                // All write slots are taken; the acquire timeout already paced this retry
+                meterRegistry.counter("ingestion.async.persist.busy").increment();
+                if (stalledSince.compareAndSet(partition, 0, System.currentTimeMillis())) {
+                    logger.warn("Persist stage {} is waiting for a database write slot with {} rows: {}",
+                            partition, batch.size(), e.getMessage());
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    private int partitionOf(GameEventDTO event) {
+        return Math.floorMod(Objects.hashCode(event.getUserId()), acceptQueues.size());
+    }
+
+    private ExecutorService newStagePool(String stage, int size) {
+        // One long-lived worker per partition either way; virtual workers just do not occupy a carrier while blocked
+        return Executors.newFixedThreadPool(size, WorkerThreads.factory("ingest-" + stage + "-", Threading.VIRTUAL.isActive(environment)));
+    }
+
+    private void awaitStage(ExecutorService workers, long deadline) {
+        workers.shutdown();
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (!workers.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class ValidatedEvent {
+        private final GameEventDTO event;
+        private final String validationError;
+
+        private ValidatedEvent(GameEventDTO event, String validationError) {
+            this.event = event;
+            this.validationError = validationError;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.util.VarintReader;
+import com.winlife.dataanalysis.util.VarintWriter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary wire format for game SDKs, decoded straight into GameEventDTOs without any JSON.
+ * <pre>
+ * frame    := 'W' 'E' formatVersion(=1) varint(schemaVersion) varint(eventCount) record*
+ * record   := varint(recordLength) body
+ * body     := varint(eventId) [string(eventName) if eventId = 0]
+ *             byte(flags: 1 isDebug, 2 clientEventId, 4 userId, 8 deviceId)
+ *             varint(timestamp) [string(clientEventId)] [string(userId)] [string(deviceId)]
+ *             properties(parameters) properties(userProperties)
+ * properties := varint(count + 1, 0 = absent) (varint(keyId) [string(key) if keyId = 0] value)*
+ * value    := byte(tag) payload; tags: 0 null, 1 false, 2 true, 3 zigzag varint integer,
+ *             4 double (8 bytes, big-endian), 5 string
+ * string   := varint(byteLength) UTF-8 bytes
+ * </pre>
+ * Ids come from {@link SchemaIdMap} (GET /api/data/schema-ids). A frame whose schemaVersion is not
+ * the current one is refused with 409 so the SDK refetches the map; schemaVersion 0 declares that the
+ * frame only carries inline names. Because every record is length-prefixed, an undecodable record only
+ * invalidates itself.
+ */
+@Service
+@RequiredArgsConstructor
+public class BinaryEventCodec {
+
+    public static final String CONTENT_TYPE = "application/x-winlife-events";
+
+    private static final int MAGIC_0 = 'W';
+    private static final int MAGIC_1 = 'E';
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_DEBUG = 1;
+    private static final int FLAG_EVENT_ID = 2;
+    private static final int FLAG_USER_ID = 4;
+    private static final int FLAG_DEVICE_ID = 8;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+
+    private final SchemaRegistry schemaRegistry;
+
+    /**
+     * Decodes a frame.
+     *
+     * @param maxEvents Upper bound of events per frame.
+     * @throws ResponseStatusException 400 for a malformed frame header, 409 for an outdated schema id map,
+     *                                 413 for too many events
+     */
+    public DecodedFrame decode(byte[] frame, int length, int maxEvents) {
+        VarintReader reader = new VarintReader(frame, 0, length);
+        SchemaIdMap ids = schemaRegistry.getSchemaIdMap();
+        int eventCount;
+        int schemaVersion;
+        try {
+            if (reader.readByte() != MAGIC_0 || reader.readByte() != MAGIC_1) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Not a binary event frame.");
+            }
+            int formatVersion = reader.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported binary event format version " + formatVersion + ".");
+            }
+            schemaVersion = reader.readVarint32();
+            if (schemaVersion != 0 && schemaVersion != ids.getVersion()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        "Schema id map version " + schemaVersion + " is outdated, current is " + ids.getVersion() + ". Fetch /api/data/schema-ids.");
+            }
+            eventCount = reader.readVarint32();
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed binary event frame: " + e.getMessage());
+        }
+        if (eventCount > maxEvents) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "At most " + maxEvents + " events are accepted per batch.");
+        }
+
+        if (schemaVersion == 0) {
+            ids = SchemaIdMap.NONE;
+        }
+
+        DecodedFrame decoded = new DecodedFrame(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            int recordEnd;
+            try {
+                int recordLength = reader.readVarint32();
+                if (recordLength > length - reader.getPosition()) {
+                    throw new IOException("record of " + recordLength + " bytes exceeds the frame");
+                }
+                recordEnd = reader.getPosition() + recordLength;
+            } catch (IOException e) {
+                // Without a valid length prefix the following records cannot be found either
+                for (int j = i; j < eventCount; j++) {
+                    decoded.fail(j, "Unreadable event: truncated frame (" + e.getMessage() + ")");
+                }
+                break;
+            }
+            reader.setLimit(recordEnd);
+            try {
+                GameEventDTO event = readRecord(reader, ids);
+                if (reader.hasRemaining()) {
+                    throw new IOException((recordEnd - reader.getPosition()) + " unread bytes at the end of the record");
+                }
+                decoded.add(i, event);
+            } catch (IOException e) {
+                decoded.fail(i, "Unreadable event: " + e.getMessage());
+            }
+            reader.setLimit(length);
+            reader.seek(recordEnd);
+        }
+        return decoded;
+    }
+
+    /**
+     * Encodes events with the current schema id map. Reference implementation for SDKs; keys and
+     * event names without an id are sent inline. Nested objects and arrays are not supported.
+     */
+    public byte[] encode(List<GameEventDTO> events) {
+        SchemaIdMap ids = schemaRegistry.getSchemaIdMap();
+        VarintWriter writer = new VarintWriter(64 * events.size());
+        writer.writeByte(MAGIC_0).writeByte(MAGIC_1).writeByte(FORMAT_VERSION)
+                .writeVarint(ids.getVersion()).writeVarint(events.size());
+        for (GameEventDTO event : events) {
+            VarintWriter record = new VarintWriter(256);
+            int eventId = ids.getEventId(event.getEventName());
+            record.writeVarint(eventId);
+            if (eventId == 0) {
+                record.writeString(event.getEventName());
+            }
+            int flags = (event.getIsDebug() == 1 ? FLAG_DEBUG : 0)
+                    | (event.getEventId() != null ? FLAG_EVENT_ID : 0)
+                    | (event.getUserId() != null ? FLAG_USER_ID : 0)
+                    | (event.getDeviceId() != null ? FLAG_DEVICE_ID : 0);
+            record.writeByte(flags).writeVarint(event.getTimestamp());
+            if (event.getEventId() != null) {
+                record.writeString(event.getEventId());
+            }
+            if (event.getUserId() != null) {
+                record.writeString(event.getUserId());
+            }
+            if (event.getDeviceId() != null) {
+                record.writeString(event.getDeviceId());
+            }
+            writeProperties(record, event.getParameters(), key -> keyId(ids, eventId, key));
+            writeProperties(record, event.getUserProperties(), key -> userPropertyKeyId(ids, key));
+            writer.writeVarint(record.size()).writeBytes(record.toByteArray(), 0, record.size());
+        }
+        return writer.toByteArray();
+    }
+
+    private GameEventDTO readRecord(VarintReader reader, SchemaIdMap ids) throws IOException {
+        GameEventDTO event = new GameEventDTO();
+        int eventId = reader.readVarint32();
+        String eventName = eventId == 0 ? reader.readString() : ids.getEventName(eventId);
+        if (eventName == null) {
+            throw new UnknownIdException("unknown event id " + eventId);
+        }
+        event.setEventName(eventName);
+        int flags = reader.readByte();
+        event.setIsDebug((flags & FLAG_DEBUG) != 0 ? 1 : 0);
+        event.setTimestamp(reader.readVarint());
+        if ((flags & FLAG_EVENT_ID) != 0) {
+            event.setEventId(reader.readString());
+        }
+        if ((flags & FLAG_USER_ID) != 0) {
+            event.setUserId(reader.readString());
+        }
+        if ((flags & FLAG_DEVICE_ID) != 0) {
+            event.setDeviceId(reader.readString());
+        }
+        event.setParameters(readProperties(reader, keyId -> ids.getParameterKey(eventId, keyId), "parameter"));
+        event.setUserProperties(readProperties(reader, ids::getUserPropertyKey, "user property"));
+        return event;
+    }
+
+    private Map<String, Object> readProperties(VarintReader reader, KeyLookup keys, String kind) throws IOException {
+        int countPlusOne = reader.readVarint32();
+        if (countPlusOne == 0) {
+            return null;
+        }
+        Map<String, Object> properties = new LinkedHashMap<>(Math.max(4, (countPlusOne - 1) * 4 / 3 + 1));
+        for (int i = 0; i < countPlusOne - 1; i++) {
+            int keyId = reader.readVarint32();
+            String key = keyId == 0 ? reader.readString() : keys.keyOf(keyId);
+            if (key == null) {
+                throw new UnknownIdException("unknown " + kind + " key id " + keyId);
+            }
+            properties.put(key, readValue(reader));
+        }
+        return properties;
+    }
+
+    /**
+     * Reads a value as the Java type Jackson would bind the equivalent JSON to.
+     */
+    private Object readValue(VarintReader reader) throws IOException {
+        int tag = reader.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_INTEGER:
+                long value = reader.readZigZag();
+                if (value == (int) value) {
+                    return (int) value; // Not a conditional expression, which would widen it to Long
+                }
+                return value;
+            case TAG_DOUBLE:
+                return reader.readDouble();
+            case TAG_STRING:
+                return reader.readString();
+            default:
+                throw new IOException("unknown value tag " + tag);
+        }
+    }
+
+    private void writeProperties(VarintWriter writer, Map<String, Object> properties, KeyIdLookup keyIds) {
+        if (properties == null) {
+            writer.writeVarint(0);
+            return;
+        }
+        writer.writeVarint(properties.size() + 1L);
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            int keyId = keyIds.idOf(entry.getKey());
+            writer.writeVarint(keyId);
+            if (keyId == 0) {
+                writer.writeString(entry.getKey());
+            }
+            writeValue(writer, entry.getValue());
+        }
+    }
+
+    private void writeValue(VarintWriter writer, Object value) {
+        if (value == null) {
+            writer.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean b) {
+            writer.writeByte(b ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writer.writeByte(TAG_INTEGER).writeZigZag(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writer.writeByte(TAG_DOUBLE).writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String s) {
+            writer.writeByte(TAG_STRING).writeString(s);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type for the binary format: " + value.getClass().getSimpleName());
+        }
+    }
+
+    private static int keyId(SchemaIdMap ids, int eventId, String key) {
+        // Linear in the number of declared keys; the encoder is a reference, not the hot path
+        for (int keyId = 1; ; keyId++) {
+            String declared = ids.getParameterKey(eventId, keyId);
+            if (declared == null) {
+                return 0;
+            }
+            if (declared.equals(key)) {
+                return keyId;
+            }
+        }
+    }
+
+    private static int userPropertyKeyId(SchemaIdMap ids, String key) {
+        for (int keyId = 1; ; keyId++) {
+            String declared = ids.getUserPropertyKey(keyId);
+            if (declared == null) {
+                return 0;
+            }
+            if (declared.equals(key)) {
+                return keyId;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface KeyLookup {
+        String keyOf(int keyId);
+    }
+
+    @FunctionalInterface
+    private interface KeyIdLookup {
+        int idOf(String key);
+    }
+
+    private static final class UnknownIdException extends IOException {
+        private UnknownIdException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Outcome of {@link #decode}: the decoded events and the results of the records that could not be decoded.
+     */
+    public static final class DecodedFrame {
+        private final EventIngestResult[] failures;
+        private final List<GameEventDTO> events = new ArrayList<>();
+        private final List<Integer> eventIndexes = new ArrayList<>();
+
+        private DecodedFrame(int size) {
+            this.failures = new EventIngestResult[size];
+        }
+
+        public List<GameEventDTO> getEvents() {
+            return events;
+        }
+
+        public int size() {
+            return failures.length;
+        }
+
+        /**
+         * Combines the results of processing the decoded events with the decoding failures, in frame order.
+         */
+        public List<EventIngestResult> mergeResults(List<EventIngestResult> eventResults) {
+            EventIngestResult[] results = Arrays.copyOf(failures, failures.length);
+            for (int i = 0; i < eventResults.size(); i++) {
+                EventIngestResult result = eventResults.get(i);
+                int index = eventIndexes.get(i);
+                results[index] = EventIngestResult.of(index, result.getStatus(), result.getMessage());
+            }
+            return Arrays.asList(results);
+        }
+
+        private void add(int index, GameEventDTO event) {
+            events.add(event);
+            eventIndexes.add(index);
+        }
+
+        private void fail(int index, String message) {
+            failures[index] = EventIngestResult.of(index, EventIngestResult.Status.INVALID, message);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable validator compiled once from an EventSchema.parameterSchema or
+ * UserPropertySchema.propertySchema JSON string.
+ * <p>
+ * Schema format: {"param1": "string", "param2": {"type": "integer", "required": true}}.
+ * Problems in the schema itself are kept and reported with the same messages the
+ * per-event validation used to produce, only when they are actually hit.
+ */
+public final class CompiledSchema {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledSchema.class);
+
+    /**
+     * Supported value types and the Java types Jackson binds them to.
+     */
+    public enum ValueType {
+        STRING,
+        INTEGER,
+        FLOAT,
+        BOOLEAN;
+
+        public boolean accepts(Object value) {
+            switch (this) {
+                case STRING:
+                    return value instanceof String;
+                case INTEGER:
+                    return value instanceof Integer || value instanceof Long;
+                case FLOAT:
+                    return value instanceof Float || value instanceof Double;
+                case BOOLEAN:
+                    return value instanceof Boolean;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Token stream counterpart of {@link #accepts(Object)}: whether the current value token
+         * would bind to an accepted Java type.
+         */
+        public boolean accepts(JsonToken token, JsonParser parser) throws IOException {
+            switch (this) {
+                case STRING:
+                    return token == JsonToken.VALUE_STRING;
+                case INTEGER:
+                    return token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER;
+                case FLOAT:
+                    return token == JsonToken.VALUE_NUMBER_FLOAT;
+                case BOOLEAN:
+                    return token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @return the type for a schema type name, or null if the name is unknown
+         */
+        static ValueType fromName(String typeName) {
+            switch (typeName) {
+                case "string":
+                    return STRING;
+                case "integer":
+                    return INTEGER;
+                case "float":
+                case "double":
+                    return FLOAT;
+                case "boolean":
+                    return BOOLEAN;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Compiled definition of a single property.
+     */
+    public static final class Field {
+        private final String name;
+        private final String typeName; // As written in the schema, lower-cased, for error messages
+        private final ValueType type;  // Null if the type name is unknown
+        private final boolean required;
+        private final String definitionError; // Non-null if the definition itself is malformed
+        private int requiredIndex = -1; // Position in requiredFields, -1 if optional
+
+        private Field(String name, String typeName, ValueType type, boolean required, String definitionError) {
+            this.name = name;
+            this.typeName = typeName;
+            this.type = type;
+            this.required = required;
+            this.definitionError = definitionError;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        public ValueType getType() {
+            return type;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        public String getDefinitionError() {
+            return definitionError;
+        }
+    }
+
+    private final String label; // e.g. "Event Parameter", "User Property"
+    private final boolean expectsNone;
+    private final String schemaError;
+    private final Map<String, Field> fields;
+    private final List<String> requiredFields;
+
+    private CompiledSchema(String label, boolean expectsNone, String schemaError, Map<String, Field> fields, List<String> requiredFields) {
+        this.label = label;
+        this.expectsNone = expectsNone;
+        this.schemaError = schemaError;
+        this.fields = fields;
+        this.requiredFields = requiredFields;
+    }
+
+    /**
+     * Compiles a schema JSON string.
+     *
+     * @param schemaJson        The JSON string defining the schema.
+     * @param propertyTypeLabel Label used in error messages (e.g., "Event Parameter", "User Property").
+     */
+    public static CompiledSchema compile(String schemaJson, String propertyTypeLabel, ObjectMapper objectMapper) {
+        if (schemaJson == null || schemaJson.trim().isEmpty() || "{}".equals(schemaJson.trim())) {
+            return new CompiledSchema(propertyTypeLabel, true, null, Collections.emptyMap(), Collections.emptyList());
+        }
+
+        JsonNode schemaNode;
+        try {
+            schemaNode = objectMapper.readTree(schemaJson);
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to parse " + propertyTypeLabel + " schema JSON: {}", schemaJson, e);
+            return broken(propertyTypeLabel, "Failed to parse " + propertyTypeLabel + " schema JSON.");
+        }
+        if (!schemaNode.isObject()) {
+            return broken(propertyTypeLabel, propertyTypeLabel + " schema is not a valid JSON object: " + schemaJson);
+        }
+
+        Map<String, Field> fields = new LinkedHashMap<>();
+        List<String> requiredFields = new ArrayList<>();
+        Iterator<Map.Entry<String, JsonNode>> iterator = schemaNode.fields();
+        while (iterator.hasNext()) {
+            Map.Entry<String, JsonNode> entry = iterator.next();
+            Field field = compileField(entry.getKey(), entry.getValue(), propertyTypeLabel);
+            fields.put(field.name, field);
+            if (field.required) {
+                requiredFields.add(field.name);
+            }
+        }
+        for (int i = 0; i < requiredFields.size(); i++) {
+            fields.get(requiredFields.get(i)).requiredIndex = i;
+        }
+        return new CompiledSchema(propertyTypeLabel, false, null,
+                Collections.unmodifiableMap(fields), Collections.unmodifiableList(requiredFields));
+    }
+
+    private static CompiledSchema broken(String propertyTypeLabel, String schemaError) {
+        return new CompiledSchema(propertyTypeLabel, false, schemaError, Collections.emptyMap(), Collections.emptyList());
+    }
+
+    private static Field compileField(String name, JsonNode definition, String propertyTypeLabel) {
+        if (definition.isTextual()) {
+            String typeName = definition.asText().toLowerCase(Locale.ROOT);
+            return new Field(name, typeName, ValueType.fromName(typeName), false, null);
+        }
+        if (definition.isObject()) {
+            // Still required without a type: a missing property is reported as missing, a present one as the broken definition
+            boolean required = definition.has("required") && definition.get("required").asBoolean();
+            if (!definition.has("type")) {
+                return new Field(name, null, null, required,
+                        propertyTypeLabel + " '" + name + "' schema is object but missing 'type'.");
+            }
+            String typeName = definition.get("type").asText().toLowerCase(Locale.ROOT);
+            return new Field(name, typeName, ValueType.fromName(typeName), required, null);
+        }
+        return new Field(name, null, null, false, propertyTypeLabel + " '" + name + "' schema is not text or object.");
+    }
+
+    /**
+     * Validates a properties map (event parameters or user properties).
+     *
+     * @return Null if valid, or error reason string.
+     */
+    public String validate(Map<String, Object> properties) {
+        if (expectsNone) {
+            if (properties != null && !properties.isEmpty()) {
+                return label + "s received but schema expects none. Received: " + properties;
+            }
+            return null;
+        }
+        if (schemaError != null) {
+            return schemaError;
+        }
+
+        // Validate properties present in the received map
+        if (properties != null) {
+            for (Map.Entry<String, Object> received : properties.entrySet()) {
+                String error = validateValue(received.getKey(), received.getValue());
+                if (error != null) {
+                    return error;
+                }
+            }
+        }
+
+        // Validate that all required properties are present
+        for (String requiredField : requiredFields) {
+            if (properties == null || !properties.containsKey(requiredField)) {
+                return label + " '" + requiredField + "' is missing and required.";
+            }
+        }
+        return null;
+    }
+
+    private String validateValue(String name, Object value) {
+        Field field = fields.get(name);
+        if (field == null) {
+            return label + " '" + name + "' is unexpected.";
+        }
+        if (field.definitionError != null) {
+            return field.definitionError;
+        }
+        if (value == null) {
+            return field.required ? label + " '" + name + "' is required but value is null." : null;
+        }
+        if (field.type == null) {
+            return "Unknown expected type '" + field.typeName + "' for " + label + " '" + name + "'.";
+        }
+        if (!field.type.accepts(value)) {
+            return label + " '" + name + "' has incorrect type. Expected: " + field.typeName + ", Received: " + value.getClass().getSimpleName();
+        }
+        return null;
+    }
+
+    /**
+     * Validates a properties object straight from the token stream, without binding it to a map.
+     * The parser must be on the object's START_OBJECT or on VALUE_NULL; it is left on the
+     * matching END_OBJECT even when the object is invalid. Messages are the same as
+     * {@link #validate(Map)}.
+     *
+     * @return Null if valid, or error reason string.
+     */
+    public String validate(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return validate((Map<String, Object>) null);
+        }
+        if (expectsNone) {
+            if (parser.nextToken() == JsonToken.END_OBJECT) {
+                return null;
+            }
+            // Error path only: bind the rest so the message shows the received properties as before
+            Map<String, Object> received = new LinkedHashMap<>();
+            for (JsonToken token = parser.currentToken(); token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+                String name = parser.currentName();
+                parser.nextToken();
+                received.put(name, parser.readValueAs(Object.class));
+            }
+            return label + "s received but schema expects none. Received: " + received;
+        }
+        if (schemaError != null) {
+            parser.skipChildren();
+            return schemaError;
+        }
+
+        String error = null;
+        boolean[] requiredSeen = new boolean[requiredFields.size()];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (error == null) {
+                Field field = fields.get(name);
+                error = validateToken(name, field, value, parser);
+                if (field != null && field.requiredIndex >= 0) {
+                    requiredSeen[field.requiredIndex] = true;
+                }
+            }
+            parser.skipChildren();
+        }
+        if (error != null) {
+            return error;
+        }
+        for (int i = 0; i < requiredSeen.length; i++) {
+            if (!requiredSeen[i]) {
+                return label + " '" + requiredFields.get(i) + "' is missing and required.";
+            }
+        }
+        return null;
+    }
+
+    private String validateToken(String name, Field field, JsonToken value, JsonParser parser) throws IOException {
+        if (field == null) {
+            return label + " '" + name + "' is unexpected.";
+        }
+        if (field.definitionError != null) {
+            return field.definitionError;
+        }
+        if (value == JsonToken.VALUE_NULL) {
+            return field.required ? label + " '" + name + "' is required but value is null." : null;
+        }
+        if (field.type == null) {
+            return "Unknown expected type '" + field.typeName + "' for " + label + " '" + name + "'.";
+        }
+        if (!field.type.accepts(value, parser)) {
+            return label + " '" + name + "' has incorrect type. Expected: " + field.typeName + ", Received: " + boundTypeName(value, parser);
+        }
+        return null;
+    }
+
+    /**
+     * @return the simple name of the Java type Jackson binds the value to inside a Map&lt;String, Object&gt;
+     */
+    private static String boundTypeName(JsonToken value, JsonParser parser) throws IOException {
+        switch (value) {
+            case VALUE_STRING:
+                return "String";
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return "Integer";
+                    case LONG:
+                        return "Long";
+                    default:
+                        return "BigInteger";
+                }
+            case VALUE_NUMBER_FLOAT:
+                return "Double";
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return "Boolean";
+            case START_OBJECT:
+                return "LinkedHashMap";
+            case START_ARRAY:
+                return "ArrayList";
+            default:
+                return "Object";
+        }
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public boolean isExpectsNone() {
+        return expectsNone;
+    }
+
+    public String getSchemaError() {
+        return schemaError;
+    }
+
+    /**
+     * @return the compiled field definition, or null if the schema does not declare the property
+     */
+    public Field getField(String name) {
+        return fields.get(name);
+    }
+
+    public List<String> getRequiredFields() {
+        return requiredFields;
+    }
+
+    /**
+     * @return the declared property names in schema order
+     */
+    public List<String> getFieldNames() {
+        return List.copyOf(fields.keySet());
+    }
+}
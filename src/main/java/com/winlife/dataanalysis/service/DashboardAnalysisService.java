@@ -0,0 +1,186 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.dto.DashboardTileResult;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.model.DashboardConfig;
+import com.winlife.dataanalysis.service.analysis.AnalysisPlan;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import com.winlife.dataanalysis.service.analysis.ColumnarResult;
+import com.winlife.dataanalysis.service.analysis.GroupedAggregation;
+import com.winlife.dataanalysis.util.WorkerThreads;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Runs all analysis tiles of a dashboard in one request.
+ * <p>
+ * Tiles of the same event, time range, filters and grouping are fused into one query calculating every
+ * attribute any of them asks for; each tile then gets its own columns of the shared result. Tiles that only
+ * differ in grouping stay separate queries, MySQL has no GROUPING SETS to compute several groupings in one
+ * scan. The fused queries run in parallel, up to analysis.db-concurrency.max-queries at a time, through
+ * {@link DataIngestionService#runEventAnalysisColumns}, so they share its result cache and rollups, and are admitted
+ * with the priority of the given {@link AnalysisRequest}.
+ */
+@Service
+@RequiredArgsConstructor
+public class DashboardAnalysisService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DashboardAnalysisService.class);
+
+    private final MenuService menuService;
+    private final DataIngestionService dataIngestionService;
+    private final AnalysisProperties analysisProperties;
+    private final ObjectMapper objectMapper;
+    private final Environment environment;
+
+    /**
+     * Hands each tile's result to the consumer as soon as it is ready, on the calling thread, in completion
+     * order. A tile whose query fails gets an error, the other tiles still run. If the consumer throws (the
+     * client went away), the queries that have not started are dropped and the exception propagates; cancel
+     * the request to stop the running ones.
+     *
+     * @param columnar whether the results are {@link DashboardTileResult#getColumns()} instead of rows
+     */
+    public void run(Long dashboardId, boolean columnar, AnalysisRequest request, Consumer<DashboardTileResult> consumer) {
+        Map<List<Object>, List<Tile>> groups = new LinkedHashMap<>();
+        for (DashboardConfig config : menuService.getDashboardConfigByDashboardId(dashboardId)) {
+            EventAnalysisQuery query;
+            try {
+                query = objectMapper.readValue(config.getConfig(), EventAnalysisQuery.class);
+            } catch (JsonProcessingException | IllegalArgumentException e) {
+                consumer.accept(new DashboardTileResult(config.getId(), config.getTitle(), null, null, "Invalid tile config: " + e.getMessage()));
+                continue;
+            }
+            groups.computeIfAbsent(fusionKey(query), key -> new ArrayList<>()).add(new Tile(config, query));
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(groups.size(), Math.max(1, analysisProperties.getDbConcurrency().getMaxQueries()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                WorkerThreads.factory("dashboard-" + dashboardId + "-", Threading.VIRTUAL.isActive(environment)));
+        try {
+            CompletionService<List<DashboardTileResult>> completion = new ExecutorCompletionService<>(executor);
+            for (List<Tile> tiles : groups.values()) {
+                completion.submit(() -> runGroup(tiles, columnar, request));
+            }
+            for (int i = 0; i < groups.size(); i++) {
+                completion.take().get().forEach(consumer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running dashboard " + dashboardId, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Dashboard " + dashboardId + " failed", e.getCause()); // runGroup catches per tile
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return what tiles have to share to be answered by one query: everything but the calculation attributes
+     */
+    private static List<Object> fusionKey(EventAnalysisQuery query) {
+        // Filters are ANDed, their order does not matter
+        Set<Object> filters = query.getGlobalFilters() == null ? Set.of() : new HashSet<>(query.getGlobalFilters());
+        return Arrays.asList(query.getEventName(), query.getStartTime(), query.getEndTime(), query.getGroupingAttribute(),
+                filters, Boolean.TRUE.equals(query.getApprox()));
+    }
+
+    private List<DashboardTileResult> runGroup(List<Tile> tiles, boolean columnar, AnalysisRequest request) {
+        if (tiles.size() > 1) {
+            EventAnalysisQuery first = tiles.get(0).query();
+            Set<String> calculations = new LinkedHashSet<>();
+            for (Tile tile : tiles) {
+                if (tile.query().getCalculationAttributes() != null) {
+                    calculations.addAll(tile.query().getCalculationAttributes());
+                }
+            }
+            EventAnalysisQuery fused = new EventAnalysisQuery(first.getStartTime(), first.getEndTime(), first.getEventName(),
+                    new ArrayList<>(calculations), first.getGroupingAttribute(), first.getGlobalFilters(), first.getApprox());
+            try {
+                ColumnarResult result = dataIngestionService.runEventAnalysisColumns(fused, request);
+                List<DashboardTileResult> results = new ArrayList<>();
+                for (Tile tile : tiles) {
+                    results.add(success(tile, project(result, fused, tile.query()), columnar));
+                }
+                return results;
+            } catch (RuntimeException e) {
+                if (e instanceof ResponseStatusException status && (status.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE
+                        || status.getStatusCode() == HttpStatus.GATEWAY_TIMEOUT)) {
+                    // Busy, timed out or cancelled: running the tiles one by one would only take longer
+                    return failed(tiles, status.getReason());
+                }
+                // One tile's invalid attribute fails the fused query; run them one by one so only that tile reports it
+                logger.debug("Fused query of {} tiles failed, running them separately: {}", tiles.size(), e.getMessage());
+            }
+        }
+        List<DashboardTileResult> results = new ArrayList<>();
+        for (Tile tile : tiles) {
+            try {
+                results.add(success(tile, dataIngestionService.runEventAnalysisColumns(tile.query(), request), columnar));
+            } catch (RuntimeException e) {
+                String message = e instanceof ResponseStatusException status ? status.getReason() : e.getMessage();
+                logger.warn("Dashboard tile {} failed: {}", tile.config().getId(), message);
+                results.add(new DashboardTileResult(tile.config().getId(), tile.config().getTitle(), null, null, message));
+            }
+        }
+        return results;
+    }
+
+    private static List<DashboardTileResult> failed(List<Tile> tiles, String message) {
+        logger.warn("Dashboard tiles {} failed: {}", tiles.stream().map(tile -> tile.config().getId()).toList(), message);
+        return tiles.stream().map(tile -> new DashboardTileResult(tile.config().getId(), tile.config().getTitle(), null, null, message)).toList();
+    }
+
+    private static DashboardTileResult success(Tile tile, ColumnarResult result, boolean columnar) {
+        return new DashboardTileResult(tile.config().getId(), tile.config().getTitle(),
+                columnar ? null : result.toRows(), columnar ? result : null, null);
+    }
+
+    /**
+     * @return the fused result without the columns only other tiles asked for
+     */
+    private static ColumnarResult project(ColumnarResult result, EventAnalysisQuery fused, EventAnalysisQuery tile) {
+        AnalysisPlan fusedPlan = AnalysisPlan.parse(fused);
+        AnalysisPlan tilePlan = AnalysisPlan.parse(tile);
+        Set<String> dropped = new HashSet<>();
+        for (AnalysisPlan.Measure measure : fusedPlan.getMeasures()) {
+            if (!tilePlan.getMeasures().contains(measure)) {
+                dropped.add(measure.alias());
+                dropped.add(measure.alias() + GroupedAggregation.ERROR_BOUND_SUFFIX);
+            }
+        }
+        if (fusedPlan.isAverageCountPerUser() && !tilePlan.isAverageCountPerUser()) {
+            dropped.add(AnalysisPlan.AVERAGE_COUNT_PER_USER);
+        }
+        return result.withoutColumns(dropped);
+    }
+
+    private record Tile(DashboardConfig config, EventAnalysisQuery query) {
+    }
+}
@@ -1,9 +1,13 @@
 package com.winlife.dataanalysis.service;
 
 import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.EventIngestResult;
 import com.winlife.dataanalysis.dto.EventReportStatistic;
 import com.winlife.dataanalysis.dto.GameEventDTO;
 import com.winlife.dataanalysis.model.*;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import com.winlife.dataanalysis.service.analysis.AnalysisRowWriter;
+import com.winlife.dataanalysis.service.analysis.ColumnarResult;
 import org.springframework.data.domain.Page;
 
 import java.util.List;
@@ -12,6 +16,28 @@ import java.util.Optional;
 
 public interface DataIngestionService {
     boolean processGameEvent(GameEventDTO event);
+
+    /**
+     * 批量处理一组事件：并行校验，然后按正常/错误/Debug 三类分别以 JDBC 批量写入。
+     * @param events SDK 端缓冲的一批事件
+     * @return 与请求数组下标一一对应的处理结果
+     */
+    List<EventIngestResult> processGameEvents(List<GameEventDTO> events);
+
+    /**
+     * 批量处理一组已校验过的事件（例如流式解析时已按 token 校验），不再重复校验。
+     * @param events 事件
+     * @param validationErrors 与 events 一一对应的校验结果，null 表示校验通过
+     * @return 与 events 下标一一对应的处理结果
+     */
+    List<EventIngestResult> processValidatedGameEvents(List<GameEventDTO> events, List<String> validationErrors);
+
+    /**
+     * 按事件结构和用户属性结构校验单个事件。
+     * @param event 待校验的事件
+     * @return 校验通过返回 null，否则返回合并后的失败原因
+     */
+    String validateGameEvent(GameEventDTO event);
     Page<GameEvent> getRecentGameEvents(int page, int size);
     Page<ErroredGameEvent> getRecentErroredEvents(int page, int size);
     Page<DebugGameEvent> getRecentDebugEvents(int page, int size, String deviceId); // Add new method with deviceId filter
@@ -60,7 +86,26 @@ public interface DataIngestionService {
      * This involves parsing the query definition, building dynamic SQL,
      * executing it, and formatting the results.
      * @param query The analysis query definition.
+     * @param request The client request the query runs for: its admission priority, deadline and cancellation.
      * @return The analysis results as a list of maps (column_name -> value).
      */
-    List<Map<String, Object>> runEventAnalysis(EventAnalysisQuery query); // Add this method signature
+    List<Map<String, Object>> runEventAnalysis(EventAnalysisQuery query, AnalysisRequest request); // Add this method signature
+
+    /**
+     * Executes an event analysis query like {@link #runEventAnalysis}, keeping the result by column.
+     * @param query The analysis query definition.
+     * @param request The client request the query runs for.
+     * @return The analysis results, one array per column.
+     */
+    ColumnarResult runEventAnalysisColumns(EventAnalysisQuery query, AnalysisRequest request);
+
+    /**
+     * Executes an event analysis query and hands its rows to the writer one at a time, without the
+     * result cache. A query MySQL answers alone is streamed from the database, so memory use does not
+     * grow with the number of groups.
+     * @param query The analysis query definition.
+     * @param request The client request the query runs for; cancel it when the client goes away.
+     * @param writer Receives the rows in result order.
+     */
+    void streamEventAnalysis(EventAnalysisQuery query, AnalysisRequest request, AnalysisRowWriter writer);
 }
\ No newline at end of file
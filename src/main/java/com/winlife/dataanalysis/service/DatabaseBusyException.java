@@ -0,0 +1,12 @@
+package com.winlife.dataanalysis.service;
+
+import org.springframework.dao.TransientDataAccessResourceException;
+
+/**
+ * 等待数据库并发许可超时。属于暂时性错误：请求线程返回 503，后台写入稍后重试。
+ */
+public class DatabaseBusyException extends TransientDataAccessResourceException {
+    public DatabaseBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,615 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventReportStatistic;
+import com.winlife.dataanalysis.model.EventRollup;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventRollupRepository;
+import com.winlife.dataanalysis.repository.GameEventRepository;
+import com.winlife.dataanalysis.service.analysis.AnalysisPlan;
+import com.winlife.dataanalysis.service.analysis.AnalysisSql;
+import com.winlife.dataanalysis.service.analysis.GroupedAggregation;
+import com.winlife.dataanalysis.service.analysis.RollupDeltas;
+import com.winlife.dataanalysis.service.analysis.RollupPlan;
+import com.winlife.dataanalysis.service.analysis.RollupRange;
+import com.winlife.dataanalysis.util.HyperLogLog;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Hourly and daily event counts in event_rollups, per event name and optionally per value of the
+ * configured analysis.rollups.dimensions.
+ * <p>
+ * Every stored batch counts its events once committed, so the rollups count exactly the stored rows, late
+ * events included. The days before a dimension was first counted are rebuilt from game_events one day per
+ * step, back to analysis.rollups.backfill-days; event_rollup_coverage records from when on each dimension is
+ * complete. Reporting statistics and count-only event analysis read the complete hours and days from the
+ * rollups and only the partial hours at the edges of their range from the events.
+ * <p>
+ * Counts of covered buckets are buffered in memory after the batch commits and added every
+ * analysis.rollups.flush-interval-ms in one transaction, so ingestion does not contend on the hot rows of the
+ * current hour; the rollups lag the events by that interval. A crash loses the buffered counts, so every maintenance
+ * run compares the last analysis.rollups.reconcile-hours closed hours with game_events and adds a difference that
+ * stayed the same since the previous run: counts still buffered on some node are flushed by then, lost ones are not.
+ * Counts of buckets before the coverage still commit with their events: only those days are rebuilt, and the
+ * rebuild's locking read must see each event either counted or not. Coverage only moves back in time, so a
+ * buffered bucket is never rebuilt.
+ * <p>
+ * Nothing is counted while rollups are disabled, so the coverage is cleared then and rebuilt from scratch once
+ * they are enabled again.
+ */
+@Service
+public class EventRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventRollupService.class);
+
+    private static final long HOUR_MILLIS = 3_600_000L;
+
+    // Dimensions become part of SQL text in the rebuild
+    private static final Pattern DIMENSION_NAME = Pattern.compile("[A-Za-z0-9_]{1,64}");
+
+    private final EventRollupRepository eventRollupRepository;
+    private final GameEventRepository gameEventRepository;
+    private final AnalysisProperties analysisProperties;
+    private final IngestionProperties ingestionProperties;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final Map<String, AnalysisPlan.Field> dimensions = new LinkedHashMap<>();
+
+    // covered_from per dimension as of the last maintenance run; it only moves back in time
+    private volatile Map<String, Long> coverage = Map.of();
+    private boolean coverageCleared;
+    // Committed counts not yet added to event_rollups, {events, events with a user id} per row
+    private final Map<RowKey, long[]> buffered = new HashMap<>();
+    private final Object flushLock = new Object();
+    // Per granularity and dimension: where the next search for buckets without user sketch starts
+    private final Map<String, Long> sketchCursors = new HashMap<>();
+    // Hour rows that differed from game_events in the last maintenance run, {events, events with a user id} missing
+    private Map<RowKey, long[]> mismatches = Map.of();
+
+    public EventRollupService(EventRollupRepository eventRollupRepository, GameEventRepository gameEventRepository,
+                              AnalysisProperties analysisProperties, IngestionProperties ingestionProperties,
+                              ObjectMapper objectMapper, TransactionTemplate transactionTemplate) {
+        this.eventRollupRepository = eventRollupRepository;
+        this.gameEventRepository = gameEventRepository;
+        this.analysisProperties = analysisProperties;
+        this.ingestionProperties = ingestionProperties;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = transactionTemplate;
+        for (String attribute : analysisProperties.getRollups().getDimensions()) {
+            AnalysisPlan.Field field = AnalysisPlan.Field.parse(attribute.trim());
+            if (field == null || field.kind() == AnalysisPlan.FieldKind.USER_ID || field.kind() == AnalysisPlan.FieldKind.DEVICE_ID
+                    || !DIMENSION_NAME.matcher(field.name()).matches()) {
+                logger.warn("Ignoring rollup dimension '{}': expected parameter.<name> or userProperty.<name>", attribute);
+                continue;
+            }
+            dimensions.put(field.attribute(), field);
+        }
+    }
+
+    public boolean isEnabled() {
+        return analysisProperties.getRollups().isEnabled();
+    }
+
+    /**
+     * Adds stored events to the rollups. Must run in the transaction that inserts them.
+     *
+     * @param alreadyStored ids of events an earlier attempt already stored, and counted
+     */
+    public void add(Collection<GameEvent> events, Set<Long> alreadyStored) {
+        if (!isEnabled()) {
+            return;
+        }
+        RollupDeltas deltas = new RollupDeltas(List.copyOf(dimensions.values()), zone(), objectMapper.getFactory());
+        for (GameEvent event : events) {
+            if (event.getId() == null || !alreadyStored.contains(event.getId())) {
+                deltas.add(event);
+            }
+        }
+        Map<String, Long> covered = coverage;
+        List<EventRollupRepository.RollupCount> uncovered = new ArrayList<>();
+        List<EventRollupRepository.RollupCount> bufferable = new ArrayList<>();
+        for (EventRollupRepository.RollupCount count : deltas.toCounts()) {
+            Long coveredFrom = covered.get(count.dimension());
+            (coveredFrom != null && count.bucketStart() >= coveredFrom ? bufferable : uncovered).add(count);
+        }
+        eventRollupRepository.addCounts(uncovered);
+        if (bufferable.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            buffer(bufferable);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                buffer(bufferable);
+            }
+        });
+    }
+
+    /**
+     * Adds the buffered counts to event_rollups; they stay buffered if that fails.
+     */
+    @Scheduled(fixedDelayString = "${analysis.rollups.flush-interval-ms:1000}")
+    public void flush() {
+        synchronized (flushLock) {
+            List<EventRollupRepository.RollupCount> counts = drain();
+            if (counts.isEmpty()) {
+                return;
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> eventRollupRepository.addCounts(counts));
+            } catch (DataAccessException e) {
+                logger.warn("Failed to flush {} rollup counts, retrying with the next flush: {}", counts.size(),
+                        e.getMostSpecificCause().getMessage());
+                buffer(counts);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+
+    private void buffer(List<EventRollupRepository.RollupCount> counts) {
+        synchronized (buffered) {
+            for (EventRollupRepository.RollupCount count : counts) {
+                long[] total = buffered.computeIfAbsent(RowKey.of(count), k -> new long[2]);
+                total[0] += count.eventCount();
+                total[1] += count.identifiedCount();
+            }
+        }
+    }
+
+    /**
+     * @return the buffered counts in {@link EventRollupRepository.RollupCount#ORDER}, removed from the buffer
+     */
+    private List<EventRollupRepository.RollupCount> drain() {
+        List<EventRollupRepository.RollupCount> counts;
+        synchronized (buffered) {
+            counts = new ArrayList<>(buffered.size());
+            buffered.forEach((key, total) -> counts.add(new EventRollupRepository.RollupCount(key.granularity(), key.dimension(),
+                    key.eventName(), key.bucketStart(), key.value(), total[0], total[1], null)));
+            buffered.clear();
+        }
+        counts.sort(EventRollupRepository.RollupCount.ORDER);
+        return counts;
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.rollups.maintenance-interval-ms:60000}")
+    public void maintain() {
+        if (!isEnabled()) {
+            clearCoverage();
+            return;
+        }
+        coverageCleared = false;
+        try {
+            // Counting starts now; the current day is complete once it has been rebuilt after it ended
+            long tomorrow = LocalDate.now(zone()).plusDays(1).atStartOfDay(zone()).toInstant().toEpochMilli();
+            Map<String, Long> stored = eventRollupRepository.findCoverage();
+            for (String dimension : dimensionNames()) {
+                if (!stored.containsKey(dimension)) {
+                    eventRollupRepository.insertCoverage(dimension, tomorrow);
+                }
+            }
+            coverage = eventRollupRepository.findCoverage();
+            backfill();
+            reconcile();
+            sketchClosedBuckets();
+        } catch (DataAccessException e) {
+            logger.warn("Rollup maintenance failed: {}", e.getMostSpecificCause().getMessage());
+        }
+    }
+
+    /**
+     * Events stored while rollups are disabled are not counted, so no day may stay covered.
+     */
+    private void clearCoverage() {
+        if (coverageCleared) {
+            return;
+        }
+        try {
+            int cleared = eventRollupRepository.deleteCoverage();
+            if (cleared > 0) {
+                logger.info("Rollups are disabled, cleared their coverage; they are rebuilt once enabled again");
+            }
+            coverage = Map.of();
+            coverageCleared = true;
+        } catch (DataAccessException e) {
+            logger.warn("Failed to clear the rollup coverage: {}", e.getMostSpecificCause().getMessage());
+        }
+    }
+
+    /**
+     * Answers a plan from the rollups, aggregating the edges of its range through {@code events}. When user
+     * sketches are needed, a day without them is read from its hours, and an hour without them from the events.
+     *
+     * @return null if the rollups cannot answer the plan, see {@link RollupPlan#of}
+     */
+    public GroupedAggregation aggregate(AnalysisPlan plan, Function<AnalysisPlan, GroupedAggregation> events) {
+        if (!isEnabled()) {
+            return null;
+        }
+        RollupPlan rollupPlan = RollupPlan.of(plan, dimensions.keySet(), coverage, zone());
+        if (rollupPlan == null) {
+            return null;
+        }
+        GroupedAggregation aggregation = new GroupedAggregation(plan);
+        List<RollupRange.Edge> edges = new ArrayList<>(rollupPlan.getEdges());
+        for (RollupRange.Part part : rollupPlan.getParts()) {
+            addRows(rollupPlan, part, aggregation, edges);
+        }
+        for (RollupRange.Edge edge : coalesce(edges)) {
+            aggregation.merge(events.apply(plan.withTimeRange(edge.start(), edge.end())));
+        }
+        return aggregation;
+    }
+
+    private void addRows(RollupPlan rollupPlan, RollupRange.Part part, GroupedAggregation aggregation, List<RollupRange.Edge> edges) {
+        boolean sketches = rollupPlan.needsSketches();
+        List<EventRollupRepository.RollupCount> counts = eventRollupRepository.findCounts(part.granularity(),
+                rollupPlan.getDimension(), rollupPlan.getPlan().getEventName(), part.from(), part.to(), sketches);
+        Set<Long> unsketched = new TreeSet<>();
+        if (sketches) {
+            for (EventRollupRepository.RollupCount count : counts) {
+                if (count.identifiedCount() > 0 && count.userSketch() == null) {
+                    unsketched.add(count.bucketStart());
+                }
+            }
+        }
+        for (EventRollupRepository.RollupCount count : counts) {
+            if (!unsketched.contains(count.bucketStart())) {
+                rollupPlan.add(aggregation, count);
+            }
+        }
+        for (long bucketStart : unsketched) {
+            if (part.granularity() == EventRollup.Granularity.DAY) {
+                long dayEnd = nextDay(bucketStart);
+                addRows(rollupPlan, new RollupRange.Part(EventRollup.Granularity.HOUR, bucketStart, dayEnd), aggregation, edges);
+            } else {
+                edges.add(new RollupRange.Edge(bucketStart, bucketStart + HOUR_MILLIS - 1));
+            }
+        }
+    }
+
+    /**
+     * @return the edges sorted, adjacent ones joined, so each range of events is read with one query
+     */
+    private static List<RollupRange.Edge> coalesce(List<RollupRange.Edge> edges) {
+        List<RollupRange.Edge> sorted = new ArrayList<>(edges);
+        sorted.sort(Comparator.comparingLong(RollupRange.Edge::start));
+        List<RollupRange.Edge> joined = new ArrayList<>();
+        for (RollupRange.Edge edge : sorted) {
+            RollupRange.Edge last = joined.isEmpty() ? null : joined.get(joined.size() - 1);
+            if (last != null && last.end() + 1 == edge.start()) {
+                joined.set(joined.size() - 1, new RollupRange.Edge(last.start(), edge.end()));
+            } else {
+                joined.add(edge);
+            }
+        }
+        return joined;
+    }
+
+    /**
+     * Stored events per event name in [startTime, endTime], most first, like
+     * {@link GameEventRepository#countEventsByEventNameAndTimeRange}.
+     *
+     * @return null if the rollups do not cover a whole hour of the range
+     */
+    public List<EventReportStatistic> countEventsByEventName(long startTime, long endTime) {
+        Long coveredFrom = coverage.get(RollupPlan.NO_DIMENSION);
+        if (!isEnabled() || coveredFrom == null) {
+            return null;
+        }
+        RollupRange range = RollupRange.split(startTime, endTime, coveredFrom, zone(), true);
+        if (range == null) {
+            return null;
+        }
+        Map<String, Long> counts = new HashMap<>();
+        for (RollupRange.Part part : range.parts()) {
+            for (EventRollupRepository.RollupCount count : eventRollupRepository.findCounts(part.granularity(),
+                    RollupPlan.NO_DIMENSION, null, part.from(), part.to(), false)) {
+                counts.merge(count.eventName(), count.eventCount(), Long::sum);
+            }
+        }
+        for (RollupRange.Edge edge : range.edges()) {
+            for (EventReportStatistic statistic : gameEventRepository.countEventsByEventNameAndTimeRange(edge.start(), edge.end())) {
+                counts.merge(statistic.getEventName(), statistic.getCount(), Long::sum);
+            }
+        }
+        List<EventReportStatistic> statistics = new ArrayList<>(counts.size());
+        counts.forEach((eventName, count) -> statistics.add(new EventReportStatistic(eventName, count)));
+        statistics.sort(Comparator.comparingLong(EventReportStatistic::getCount).reversed());
+        return statistics;
+    }
+
+    /**
+     * Rebuilds the day before each dimension's coverage from game_events, up to
+     * analysis.rollups.max-backfill-days-per-run days, and moves the coverage back over it.
+     */
+    private void backfill() {
+        AnalysisProperties.Rollups config = analysisProperties.getRollups();
+        long oldest = oldestBackfillDay(config);
+        int rebuilt = 0;
+        for (String dimension : dimensionNames()) {
+            Long coveredFrom = coverage.get(dimension);
+            while (coveredFrom != null && rebuilt < config.getMaxBackfillDaysPerRun()) {
+                long dayEnd = coveredFrom;
+                long dayStart = Instant.ofEpochMilli(dayEnd).atZone(zone()).toLocalDate().minusDays(1)
+                        .atStartOfDay(zone()).toInstant().toEpochMilli();
+                if (dayStart < oldest || dayEnd > System.currentTimeMillis()) {
+                    break;
+                }
+                long started = System.currentTimeMillis();
+                rebuildDay(dimension, dayStart, dayEnd);
+                logger.info("Rebuilt the {} rollups of the day starting at {} in {} ms",
+                        dimension.isEmpty() ? "event name" : dimension, dayStart, System.currentTimeMillis() - started);
+                coveredFrom = dayStart;
+                rebuilt++;
+            }
+        }
+        if (rebuilt > 0) {
+            coverage = eventRollupRepository.findCoverage();
+        }
+    }
+
+    /**
+     * Replaces the day's rows of the dimension with counts of the stored events. The old rows are deleted
+     * first and the events read with a locking read, so a batch stored meanwhile either is counted here or
+     * adds its counts after this transaction.
+     */
+    private void rebuildDay(String dimension, long dayStart, long dayEnd) {
+        AnalysisPlan.Field field = dimensions.get(dimension);
+        String valueExpression = field == null ? null : AnalysisSql.textExpression(field);
+        transactionTemplate.executeWithoutResult(status -> {
+            eventRollupRepository.deleteCounts(dimension, dayStart, dayEnd);
+            List<EventRollupRepository.RollupCount> hours = eventRollupRepository.countHours(dimension, valueExpression, dayStart, dayEnd);
+            Map<List<Object>, long[]> days = new HashMap<>();
+            for (EventRollupRepository.RollupCount hour : hours) {
+                long[] day = days.computeIfAbsent(Arrays.asList(hour.eventName(), hour.value()), k -> new long[2]);
+                day[0] += hour.eventCount();
+                day[1] += hour.identifiedCount();
+            }
+            List<EventRollupRepository.RollupCount> counts = new ArrayList<>(hours);
+            days.forEach((key, day) -> counts.add(new EventRollupRepository.RollupCount(EventRollup.Granularity.DAY, dimension,
+                    (String) key.get(0), dayStart, (String) key.get(1), day[0], day[1], null)));
+            counts.sort(EventRollupRepository.RollupCount.ORDER);
+            eventRollupRepository.addCounts(counts);
+            eventRollupRepository.extendCoverage(dimension, dayStart);
+        });
+    }
+
+    /**
+     * Adds to each covered hour row of the recently closed hours what it misses of game_events, once the same
+     * difference was seen by two runs in a row. A row that changed in between is left to the next run: a batch
+     * committed meanwhile adds its buffered counts within analysis.rollups.flush-interval-ms.
+     */
+    private void reconcile() {
+        int hours = analysisProperties.getRollups().getReconcileHours();
+        if (hours <= 0) {
+            mismatches = Map.of();
+            return;
+        }
+        ZonedDateTime currentHour = ZonedDateTime.now(zone()).truncatedTo(ChronoUnit.HOURS);
+        long to = currentHour.toInstant().toEpochMilli();
+        long windowStart = currentHour.minusHours(hours).toInstant().toEpochMilli();
+        Map<RowKey, long[]> found = new HashMap<>();
+        for (String dimension : dimensionNames()) {
+            Long coveredFrom = coverage.get(dimension);
+            long from = coveredFrom == null ? to : Math.max(windowStart, coveredFrom);
+            if (from >= to) {
+                continue;
+            }
+            AnalysisPlan.Field field = dimensions.get(dimension);
+            String valueExpression = field == null ? null : AnalysisSql.textExpression(field);
+            Map<RowKey, long[]> missing = new HashMap<>();
+            for (EventRollupRepository.RollupCount events : eventRollupRepository.countHours(dimension, valueExpression, from, to)) {
+                missing.put(RowKey.of(events), new long[]{events.eventCount(), events.identifiedCount()});
+            }
+            for (EventRollupRepository.RollupCount row : eventRollupRepository.findCounts(EventRollup.Granularity.HOUR,
+                    dimension, null, from, to, false)) {
+                long[] difference = missing.computeIfAbsent(RowKey.of(row), k -> new long[2]);
+                difference[0] -= row.eventCount();
+                difference[1] -= row.identifiedCount();
+            }
+            missing.forEach((key, difference) -> {
+                if (difference[0] != 0 || difference[1] != 0) {
+                    found.put(key, difference);
+                }
+            });
+        }
+        List<EventRollupRepository.RollupCount> repairs = new ArrayList<>();
+        found.entrySet().removeIf(mismatch -> {
+            long[] previous = mismatches.get(mismatch.getKey());
+            if (!Arrays.equals(previous, mismatch.getValue())) {
+                return false;
+            }
+            RowKey hour = mismatch.getKey();
+            long[] difference = mismatch.getValue();
+            long dayStart = Instant.ofEpochMilli(hour.bucketStart()).atZone(zone()).toLocalDate().atStartOfDay(zone())
+                    .toInstant().toEpochMilli();
+            repairs.add(new EventRollupRepository.RollupCount(EventRollup.Granularity.HOUR, hour.dimension(), hour.eventName(),
+                    hour.bucketStart(), hour.value(), difference[0], difference[1], null));
+            repairs.add(new EventRollupRepository.RollupCount(EventRollup.Granularity.DAY, hour.dimension(), hour.eventName(),
+                    dayStart, hour.value(), difference[0], difference[1], null));
+            return true;
+        });
+        mismatches = found;
+        if (repairs.isEmpty()) {
+            return;
+        }
+        repairs.sort(EventRollupRepository.RollupCount.ORDER);
+        transactionTemplate.executeWithoutResult(status -> eventRollupRepository.addCounts(repairs));
+        logger.warn("Reconciled {} rollup hour rows with game_events; their counts were lost before they were flushed",
+                repairs.size() / 2);
+    }
+
+    /**
+     * Stores the user sketches of closed hours that lack one, up to analysis.rollups.sketch-hours-per-run,
+     * then those of closed days whose hours all have theirs. Only buckets still in MySQL are sketched.
+     */
+    private void sketchClosedBuckets() {
+        AnalysisProperties.Rollups config = analysisProperties.getRollups();
+        long now = System.currentTimeMillis();
+        long oldest = oldestBackfillDay(config);
+        int sketched = 0;
+        for (String dimension : dimensionNames()) {
+            Long coveredFrom = coverage.get(dimension);
+            if (coveredFrom == null || sketched >= config.getSketchHoursPerRun()) {
+                continue;
+            }
+            long from = Math.max(coveredFrom, oldest);
+            for (long hour : nextUnsketched(EventRollup.Granularity.HOUR, dimension, from, now - HOUR_MILLIS,
+                    config.getSketchHoursPerRun() - sketched)) {
+                sketchHour(dimension, hour);
+                sketched++;
+            }
+            long today = LocalDate.now(zone()).atStartOfDay(zone()).toInstant().toEpochMilli();
+            for (long day : nextUnsketched(EventRollup.Granularity.DAY, dimension, from, today, config.getSketchHoursPerRun())) {
+                sketchDay(dimension, day);
+            }
+        }
+    }
+
+    /**
+     * @return up to limit buckets lacking a sketch, continuing after those of the previous call, so a bucket
+     * that cannot be sketched (its hours are not, or its events are gone) does not hold up the later ones
+     */
+    private List<Long> nextUnsketched(EventRollup.Granularity granularity, String dimension, long from, long to, int limit) {
+        String cursorKey = granularity + ":" + dimension;
+        long cursor = Math.max(from, sketchCursors.getOrDefault(cursorKey, from));
+        List<Long> buckets = eventRollupRepository.findUnsketchedBuckets(granularity, dimension, cursor, to, limit);
+        if (buckets.size() < limit) {
+            sketchCursors.remove(cursorKey); // Reached the end: start over, late events may have cleared older sketches
+        } else {
+            sketchCursors.put(cursorKey, buckets.get(buckets.size() - 1) + 1);
+        }
+        return buckets;
+    }
+
+    /**
+     * Sketches the user ids of the hour per row. The rows are read first, so a row that gains events before
+     * its sketch is stored keeps none.
+     */
+    private void sketchHour(String dimension, long hourStart) {
+        AnalysisPlan.Field field = dimensions.get(dimension);
+        String valueExpression = field == null ? null : AnalysisSql.textExpression(field);
+        transactionTemplate.executeWithoutResult(status -> {
+            List<EventRollupRepository.RollupCount> rows = eventRollupRepository.findCounts(EventRollup.Granularity.HOUR,
+                    dimension, null, hourStart, hourStart + 1, false);
+            Map<List<String>, HyperLogLog> sketches = new HashMap<>();
+            eventRollupRepository.forEachUserHash(valueExpression, hourStart, hourStart + HOUR_MILLIS,
+                    (eventName, value, hash) -> sketches.computeIfAbsent(Arrays.asList(eventName, value),
+                            k -> new HyperLogLog()).addHash(hash));
+            for (EventRollupRepository.RollupCount row : rows) {
+                HyperLogLog sketch = sketches.get(Arrays.asList(row.eventName(), row.value()));
+                if (row.identifiedCount() > 0 && sketch != null) {
+                    eventRollupRepository.updateSketch(row, sketch.toBytes());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores the union of the hour sketches as the day's, for the rows whose hours are all sketched.
+     */
+    private void sketchDay(String dimension, long dayStart) {
+        transactionTemplate.executeWithoutResult(status -> {
+            List<EventRollupRepository.RollupCount> days = eventRollupRepository.findCounts(EventRollup.Granularity.DAY,
+                    dimension, null, dayStart, dayStart + 1, false);
+            Map<List<String>, HyperLogLog> sketches = new HashMap<>();
+            Map<List<String>, Long> hourCounts = new HashMap<>();
+            Set<List<String>> incomplete = new HashSet<>();
+            for (EventRollupRepository.RollupCount hour : eventRollupRepository.findCounts(EventRollup.Granularity.HOUR,
+                    dimension, null, dayStart, nextDay(dayStart), true)) {
+                List<String> key = Arrays.asList(hour.eventName(), hour.value());
+                hourCounts.merge(key, hour.eventCount(), Long::sum);
+                if (hour.userSketch() != null) {
+                    sketches.computeIfAbsent(key, k -> new HyperLogLog()).merge(HyperLogLog.fromBytes(hour.userSketch()));
+                } else if (hour.identifiedCount() > 0) {
+                    incomplete.add(key);
+                }
+            }
+            for (EventRollupRepository.RollupCount day : days) {
+                List<String> key = Arrays.asList(day.eventName(), day.value());
+                // Equal counts: no event reached the day after its hours were read
+                if (day.identifiedCount() > 0 && !incomplete.contains(key) && sketches.containsKey(key)
+                        && hourCounts.get(key) == day.eventCount()) {
+                    eventRollupRepository.updateSketch(day, sketches.get(key).toBytes());
+                }
+            }
+        });
+    }
+
+    private long nextDay(long dayStart) {
+        return Instant.ofEpochMilli(dayStart).atZone(zone()).toLocalDate().plusDays(1).atStartOfDay(zone()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return the start of the oldest day to rebuild: within backfill-days, and only days whose events are
+     * all still in MySQL (not dropped by retention, not archived by tiering)
+     */
+    private long oldestBackfillDay(AnalysisProperties.Rollups config) {
+        // Expired and archived partitions end before now minus their days; the local day overlapping that point may be partly gone
+        int days = config.getBackfillDays();
+        int retentionDays = ingestionProperties.getPartitioning().getGameEventsRetentionDays();
+        if (retentionDays > 0) {
+            days = Math.min(days, retentionDays - 1);
+        }
+        if (analysisProperties.getTiering().isEnabled()) {
+            days = Math.min(days, analysisProperties.getTiering().getHotDays() - 1);
+        }
+        return LocalDate.now(zone()).minusDays(Math.max(0, days)).atStartOfDay(zone()).toInstant().toEpochMilli();
+    }
+
+    private List<String> dimensionNames() {
+        List<String> names = new ArrayList<>();
+        names.add(RollupPlan.NO_DIMENSION);
+        names.addAll(dimensions.keySet());
+        return names;
+    }
+
+    private ZoneId zone() {
+        return ZoneId.of(analysisProperties.getTimeZone());
+    }
+
+    /**
+     * The unique key of an event_rollups row.
+     */
+    private record RowKey(EventRollup.Granularity granularity, String dimension, String eventName, long bucketStart, String value) {
+        private static RowKey of(EventRollupRepository.RollupCount count) {
+            return new RowKey(count.granularity(), count.dimension(), count.eventName(), count.bucketStart(), count.value());
+        }
+    }
+}
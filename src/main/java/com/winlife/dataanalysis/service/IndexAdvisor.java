@@ -0,0 +1,241 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.dto.IndexRecommendation;
+import com.winlife.dataanalysis.repository.IndexRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recommends composite indexes for the queries the application actually runs.
+ * <p>
+ * Call sites record the {@link QueryShape} of each query they run, with its latest parameters. On
+ * request, every shape not served by an existing index is explained; the index it needs is its
+ * equality columns, then its range column, then its ORDER BY / GROUP BY columns. The estimated
+ * benefit of an index is the rows its shapes would no longer examine: EXPLAIN rows minus the rows
+ * EXPLAIN expects to match (rows * filtered), times the recorded executions. An index whose
+ * columns start with another candidate's columns serves both.
+ */
+@Service
+public class IndexAdvisor {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexAdvisor.class);
+
+    private static final int MAX_IDENTIFIER_LENGTH = 64;
+
+    public static final QueryShape EVENT_REPORTING = new QueryShape("eventReportingStatistics", "game_events",
+            List.of(), "timestamp", List.of("event_name"),
+            "SELECT event_name, COUNT(*) FROM game_events WHERE timestamp >= :startTime AND timestamp <= :endTime GROUP BY event_name");
+    public static final QueryShape USER_EVENT_STATISTICS = new QueryShape("userEventStatistics", "game_events",
+            List.of("user_id"), "timestamp", List.of("event_name"),
+            "SELECT event_name, COUNT(*) FROM game_events WHERE user_id = :userId AND timestamp >= :startTime AND timestamp <= :endTime GROUP BY event_name");
+    public static final QueryShape USER_EVENT_SEQUENCE = new QueryShape("userEventSequence", "game_events",
+            List.of("user_id"), null, List.of("timestamp"),
+            "SELECT * FROM game_events WHERE user_id = :userId ORDER BY timestamp DESC LIMIT 20");
+    public static final QueryShape PLAYER_DATA_BY_DEVICE = new QueryShape("playerDataByDeviceId", "player_data",
+            List.of("device_id"), null, List.of(),
+            "SELECT * FROM player_data WHERE device_id = :deviceId");
+    public static final QueryShape DEBUG_EVENTS_BY_DEVICE = new QueryShape("debugEventsByDeviceId", "debug_game_events",
+            List.of("device_id"), null, List.of("received_timestamp"),
+            "SELECT * FROM debug_game_events WHERE device_id = :deviceId ORDER BY received_timestamp DESC LIMIT 20");
+
+    private final IndexRepository indexRepository;
+    private final MeterRegistry meterRegistry;
+
+    // Shape signature -> executions and the latest query of that shape
+    private final Map<String, Recorded> recorded = new ConcurrentHashMap<>();
+
+    public IndexAdvisor(IndexRepository indexRepository, MeterRegistry meterRegistry) {
+        this.indexRepository = indexRepository;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * The shape of an event analysis query: generated SQL, always filtered by event_name and a timestamp range.
+     */
+    public static QueryShape eventAnalysis(String sql) {
+        return new QueryShape("eventAnalysis", "game_events", List.of("event_name"), "timestamp", List.of(), sql);
+    }
+
+    /**
+     * Records one execution of a query; cheap enough for every call.
+     */
+    public void record(QueryShape shape, Map<String, ?> parameters) {
+        Recorded entry = recorded.computeIfAbsent(shape.signature(), signature -> new Recorded());
+        entry.calls.incrementAndGet();
+        entry.latest = new Sample(shape, Collections.unmodifiableMap(new HashMap<>(parameters))); // Filter values may be null
+    }
+
+    /**
+     * @return the indexes worth adding, most beneficial first
+     */
+    public List<IndexRecommendation> recommend() {
+        Map<String, Map<String, List<String>>> indexesByTable = new HashMap<>();
+        List<Candidate> candidates = new ArrayList<>();
+        for (Recorded entry : recorded.values()) {
+            Sample sample = entry.latest;
+            QueryShape shape = sample.shape();
+            Map<String, List<String>> existing = indexesByTable.computeIfAbsent(shape.table(), indexRepository::findIndexes);
+            if (existing.isEmpty() || isServed(shape, existing)) {
+                continue; // Table not created yet, or already indexed for the shape
+            }
+            IndexRepository.Explain explain;
+            try {
+                explain = indexRepository.explain(shape.sql(), sample.parameters());
+            } catch (DataAccessException e) {
+                logger.warn("EXPLAIN of {} failed: {}", shape.name(), e.getMostSpecificCause().getMessage());
+                continue;
+            }
+            if (explain == null) {
+                continue;
+            }
+            long estimatedRows = (long) Math.ceil(explain.rows() * explain.filtered() / 100);
+            candidates.add(new Candidate(shape, entry.calls.get(), explain, estimatedRows));
+        }
+        return merge(candidates);
+    }
+
+    /**
+     * Adds a currently recommended index online.
+     *
+     * @throws ResponseStatusException 404 if the index is not (or no longer) recommended
+     */
+    public IndexRecommendation apply(String indexName) {
+        IndexRecommendation recommendation = recommend().stream()
+                .filter(candidate -> candidate.getIndexName().equals(indexName))
+                .findFirst()
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No current recommendation for index " + indexName));
+        long started = System.currentTimeMillis();
+        try {
+            indexRepository.addIndex(recommendation.getTable(), recommendation.getIndexName(), recommendation.getColumns());
+        } catch (DataAccessException e) {
+            logger.error("Adding index {} failed", indexName, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Failed to add index " + indexName + ": " + e.getMostSpecificCause().getMessage(), e);
+        }
+        meterRegistry.counter("index.advisor.applied", "table", recommendation.getTable()).increment();
+        logger.info("Added index {} on {} {} in {} ms", indexName, recommendation.getTable(), recommendation.getColumns(),
+                System.currentTimeMillis() - started);
+        return recommendation;
+    }
+
+    /**
+     * Whether an index starts with the columns the shape seeks on: its equality columns and then its range
+     * column, or its ORDER BY columns without a range.
+     */
+    private static boolean isServed(QueryShape shape, Map<String, List<String>> indexes) {
+        List<String> seek = new ArrayList<>(shape.equalityColumns());
+        if (shape.rangeColumn() != null) {
+            seek.add(shape.rangeColumn());
+        } else {
+            seek.addAll(shape.orderColumns());
+        }
+        return indexes.values().stream().anyMatch(columns -> startsWith(columns, seek));
+    }
+
+    /**
+     * Folds each candidate into a longer one on the same table that starts with its columns, then ranks.
+     */
+    private static List<IndexRecommendation> merge(List<Candidate> candidates) {
+        candidates.sort(Comparator.comparingInt((Candidate candidate) -> candidate.shape().indexColumns().size()).reversed());
+        List<IndexRecommendation> recommendations = new ArrayList<>();
+        Map<IndexRecommendation, Long> worstRows = new IdentityHashMap<>(); // Recommendations are mutable beans
+        for (Candidate candidate : candidates) {
+            QueryShape shape = candidate.shape();
+            IndexRecommendation target = recommendations.stream()
+                    .filter(recommendation -> recommendation.getTable().equals(shape.table())
+                            && startsWith(recommendation.getColumns(), shape.indexColumns()))
+                    .findFirst()
+                    .orElse(null);
+            if (target == null) {
+                target = new IndexRecommendation();
+                target.setTable(shape.table());
+                target.setColumns(shape.indexColumns());
+                target.setIndexName(indexName(shape.table(), shape.indexColumns()));
+                target.setDdl(IndexRepository.addIndexSql(shape.table(), target.getIndexName(), shape.indexColumns()));
+                recommendations.add(target);
+            }
+            long saved = Math.max(0, candidate.explain().rows() - candidate.estimatedRows());
+            target.getQueryShapes().add(shape.name());
+            target.setCalls(target.getCalls() + candidate.calls());
+            target.setEstimatedBenefit(target.getEstimatedBenefit() + candidate.calls() * saved);
+            if (candidate.explain().rows() >= worstRows.getOrDefault(target, -1L)) {
+                worstRows.put(target, candidate.explain().rows());
+                target.setExaminedRows(candidate.explain().rows());
+                target.setEstimatedRows(candidate.estimatedRows());
+                IndexRepository.Explain explain = candidate.explain();
+                target.setCurrentPlan("type=" + explain.type() + ", key=" + explain.key() + ", extra=" + explain.extra());
+            }
+        }
+        recommendations.sort(Comparator.comparingLong(IndexRecommendation::getEstimatedBenefit).reversed());
+        return recommendations;
+    }
+
+    private static boolean startsWith(List<String> columns, List<String> prefix) {
+        if (prefix.isEmpty() || columns.size() < prefix.size()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.size(); i++) {
+            if (!columns.get(i).equalsIgnoreCase(prefix.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String indexName(String table, List<String> columns) {
+        String name = "idx_" + table + "_" + String.join("_", columns);
+        return name.length() <= MAX_IDENTIFIER_LENGTH ? name : name.substring(0, MAX_IDENTIFIER_LENGTH);
+    }
+
+    /**
+     * A query pattern and the index columns that serve it.
+     *
+     * @param equalityColumns columns compared with =, in any order
+     * @param rangeColumn     column compared with a range, null if none
+     * @param orderColumns    ORDER BY / GROUP BY columns, appended so the index also orders or covers
+     * @param sql             a query of the shape with named parameters, for EXPLAIN
+     */
+    public record QueryShape(String name, String table, List<String> equalityColumns, String rangeColumn,
+                             List<String> orderColumns, String sql) {
+
+        public List<String> indexColumns() {
+            LinkedHashSet<String> columns = new LinkedHashSet<>(equalityColumns);
+            if (rangeColumn != null) {
+                columns.add(rangeColumn);
+            }
+            columns.addAll(orderColumns);
+            return List.copyOf(columns);
+        }
+
+        String signature() {
+            return table + ":" + name + ":" + indexColumns();
+        }
+    }
+
+    private record Sample(QueryShape shape, Map<String, ?> parameters) {
+    }
+
+    private record Candidate(QueryShape shape, long calls, IndexRepository.Explain explain, long estimatedRows) {
+    }
+
+    private static final class Recorded {
+        private final AtomicLong calls = new AtomicLong();
+        private volatile Sample latest;
+    }
+}
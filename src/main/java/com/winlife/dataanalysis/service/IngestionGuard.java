@@ -0,0 +1,236 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.service.impl.DatabaseLatencyTracker;
+import com.winlife.dataanalysis.util.TokenBucketLimiter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protects the public ingest endpoints, including every chunk of /events/stream.
+ * <p>
+ * Rate limiting: a token bucket per deviceId and one per eventName, so a client build stuck in
+ * a loop only exhausts its own budget. Rejected events answer 429 with a Retry-After hint.
+ * <p>
+ * Load shedding: when the async backlog or the average MySQL write latency crosses its
+ * threshold, debug events are refused first (503); at twice the threshold all events are.
+ * The level is re-evaluated every ingestion.load-shedding.check-interval-ms.
+ */
+@Service
+public class IngestionGuard {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestionGuard.class);
+
+    public enum ShedLevel {
+        NONE,       // Everything is admitted
+        DEBUG,      // Debug events are refused
+        ALL         // All events are refused
+    }
+
+    private final IngestionProperties ingestionProperties;
+    private final AsyncIngestionPipeline asyncIngestionPipeline;
+    private final DatabaseLatencyTracker databaseLatencyTracker;
+    private final MeterRegistry meterRegistry;
+    private final TokenBucketLimiter deviceLimiter;
+    private final TokenBucketLimiter eventNameLimiter;
+
+    private volatile ShedLevel shedLevel = ShedLevel.NONE;
+
+    public IngestionGuard(IngestionProperties ingestionProperties, AsyncIngestionPipeline asyncIngestionPipeline,
+                          DatabaseLatencyTracker databaseLatencyTracker, MeterRegistry meterRegistry) {
+        this.ingestionProperties = ingestionProperties;
+        this.asyncIngestionPipeline = asyncIngestionPipeline;
+        this.databaseLatencyTracker = databaseLatencyTracker;
+        this.meterRegistry = meterRegistry;
+        IngestionProperties.RateLimit rateLimit = ingestionProperties.getRateLimit();
+        this.deviceLimiter = new TokenBucketLimiter(rateLimit.getDevicePerSecond(), rateLimit.getDeviceBurst(),
+                rateLimit.getMaxKeys(), rateLimit.getStripes());
+        this.eventNameLimiter = new TokenBucketLimiter(rateLimit.getEventNamePerSecond(), rateLimit.getEventNameBurst(),
+                rateLimit.getMaxKeys(), rateLimit.getStripes());
+        Gauge.builder("ingestion.shedding.level", this, guard -> guard.shedLevel.ordinal()).register(meterRegistry);
+    }
+
+    /**
+     * Decides for each event whether it may be processed.
+     */
+    public Admission admit(List<GameEventDTO> events) {
+        Admission admission = new Admission(events.size());
+        ShedLevel level = shedLevel;
+        for (int i = 0; i < events.size(); i++) {
+            GameEventDTO event = events.get(i);
+            if (event == null) {
+                admission.admit(i, null); // Reported as invalid by the normal processing
+                continue;
+            }
+            if (level == ShedLevel.ALL || (level == ShedLevel.DEBUG && event.getIsDebug() == 1)) {
+                meterRegistry.counter("ingestion.shed", "type", event.getIsDebug() == 1 ? "debug" : "event").increment();
+                admission.reject(i, HttpStatus.SERVICE_UNAVAILABLE, "Ingestion is shedding load, retry later.", getShedRetryAfterSeconds());
+                continue;
+            }
+            RateLimited limited = acquire(event);
+            if (limited != null) {
+                admission.reject(i, HttpStatus.TOO_MANY_REQUESTS, "Rate limit exceeded for " + limited.key + ".",
+                        TimeUnit.NANOSECONDS.toSeconds(limited.waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+                continue;
+            }
+            admission.admit(i, event);
+        }
+        return admission;
+    }
+
+    public ShedLevel getShedLevel() {
+        return shedLevel;
+    }
+
+    public long getShedRetryAfterSeconds() {
+        return Math.max(1, ingestionProperties.getLoadShedding().getRetryAfterSeconds());
+    }
+
+    @Scheduled(fixedDelayString = "${ingestion.load-shedding.check-interval-ms:500}")
+    public void updateShedLevel() {
+        IngestionProperties.LoadShedding config = ingestionProperties.getLoadShedding();
+        if (!config.isEnabled()) {
+            shedLevel = ShedLevel.NONE;
+            return;
+        }
+        // Pressure relative to the thresholds: 1 means at the threshold
+        double backlogPressure = asyncIngestionPipeline.isEnabled()
+                ? (double) asyncIngestionPipeline.getBacklog() / Math.max(1, config.getBacklogThreshold()) : 0;
+        double latencyPressure = databaseLatencyTracker.getAverageMillis() / Math.max(1, config.getDbLatencyThresholdMs());
+        double pressure = Math.max(backlogPressure, latencyPressure);
+        ShedLevel level = pressure >= 2 ? ShedLevel.ALL : pressure >= 1 ? ShedLevel.DEBUG : ShedLevel.NONE;
+        if (level != shedLevel) {
+            logger.warn("Ingestion load shedding changed from {} to {} (backlog pressure {}, db latency pressure {})",
+                    shedLevel, level, String.format("%.2f", backlogPressure), String.format("%.2f", latencyPressure));
+            shedLevel = level;
+        }
+    }
+
+    /**
+     * Takes a permit from both buckets or from neither, so an event refused by one bucket does not
+     * use up the other's budget.
+     *
+     * @return null if both buckets had a permit, otherwise which key ran out and how long until it refills
+     */
+    private RateLimited acquire(GameEventDTO event) {
+        IngestionProperties.RateLimit config = ingestionProperties.getRateLimit();
+        if (!config.isEnabled()) {
+            return null;
+        }
+        String deviceId = StringUtils.hasText(event.getDeviceId()) ? event.getDeviceId() : null;
+        String eventName = StringUtils.hasText(event.getEventName()) ? event.getEventName() : null;
+        long deviceWait = deviceId == null ? 0 : deviceLimiter.check(deviceId);
+        if (deviceWait > 0) {
+            return deviceLimited(deviceWait);
+        }
+        long eventNameWait = eventName == null ? 0 : eventNameLimiter.check(eventName);
+        if (eventNameWait > 0) {
+            return eventNameLimited(eventName, eventNameWait);
+        }
+        // Both had a permit; another request may still have taken the last one since the check
+        if (deviceId != null && (deviceWait = deviceLimiter.tryAcquire(deviceId)) > 0) {
+            return deviceLimited(deviceWait);
+        }
+        if (eventName != null && (eventNameWait = eventNameLimiter.tryAcquire(eventName)) > 0) {
+            if (deviceId != null) {
+                deviceLimiter.release(deviceId);
+            }
+            return eventNameLimited(eventName, eventNameWait);
+        }
+        return null;
+    }
+
+    private RateLimited deviceLimited(long waitNanos) {
+        meterRegistry.counter("ingestion.ratelimit.rejected", "key", "deviceId").increment();
+        return new RateLimited("device", waitNanos);
+    }
+
+    private RateLimited eventNameLimited(String eventName, long waitNanos) {
+        meterRegistry.counter("ingestion.ratelimit.rejected", "key", "eventName").increment();
+        return new RateLimited("event " + eventName, waitNanos);
+    }
+
+    private record RateLimited(String key, long waitNanos) {
+    }
+
+    /**
+     * Outcome of {@link #admit(List)}: the admitted events and the rejected ones' results.
+     */
+    public static class Admission {
+        private final EventIngestResult[] rejected;
+        private final List<GameEventDTO> admitted = new ArrayList<>();
+        private final List<Integer> admittedIndexes = new ArrayList<>();
+        @Getter
+        private HttpStatus rejectionStatus;
+        @Getter
+        private long retryAfterSeconds;
+
+        private Admission(int size) {
+            this.rejected = new EventIngestResult[size];
+        }
+
+        public List<GameEventDTO> getAdmitted() {
+            return admitted;
+        }
+
+        public boolean isAllAdmitted() {
+            return rejectionStatus == null;
+        }
+
+        public boolean isNoneAdmitted() {
+            return admitted.isEmpty() && rejected.length > 0;
+        }
+
+        /**
+         * @return the elements of a list parallel to the request that belong to the admitted events
+         */
+        public <T> List<T> selectAdmitted(List<T> values) {
+            List<T> selected = new ArrayList<>(admittedIndexes.size());
+            for (int index : admittedIndexes) {
+                selected.add(values.get(index));
+            }
+            return selected;
+        }
+
+        /**
+         * Combines the results of processing the admitted events with the rejections, in request order.
+         */
+        public List<EventIngestResult> mergeResults(List<EventIngestResult> admittedResults) {
+            EventIngestResult[] results = Arrays.copyOf(rejected, rejected.length);
+            for (int i = 0; i < admittedResults.size(); i++) {
+                EventIngestResult result = admittedResults.get(i);
+                int index = admittedIndexes.get(i);
+                results[index] = EventIngestResult.of(index, result.getStatus(), result.getMessage());
+            }
+            return Arrays.asList(results);
+        }
+
+        private void admit(int index, GameEventDTO event) {
+            admitted.add(event);
+            admittedIndexes.add(index);
+        }
+
+        private void reject(int index, HttpStatus status, String message, long retryAfter) {
+            rejected[index] = EventIngestResult.of(index, EventIngestResult.Status.REJECTED, message);
+            // Shedding outranks rate limiting: the client should back off entirely
+            if (rejectionStatus == null || status == HttpStatus.SERVICE_UNAVAILABLE) {
+                rejectionStatus = status;
+            }
+            retryAfterSeconds = Math.max(retryAfterSeconds, Math.max(1, retryAfter));
+        }
+    }
+}
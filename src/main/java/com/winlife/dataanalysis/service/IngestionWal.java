@@ -0,0 +1,273 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.service.impl.EventBatchWriter;
+import com.winlife.dataanalysis.util.IdGenerator;
+import com.winlife.dataanalysis.util.WorkerThreads;
+import com.winlife.dataanalysis.util.WriteAheadLog;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in durable ingestion (ingestion.wal.enabled=true).
+ * <p>
+ * Events are appended to a local {@link WriteAheadLog} and acknowledged as soon as the log is
+ * forced to disk (group commit), independent of MySQL. A single replay thread reads the log
+ * from the checkpoint, validates and writes the events through {@link EventBatchWriter}, and
+ * advances the checkpoint after each written batch. While MySQL is unreachable the replay
+ * retries the same batch with backoff instead of moving events to errored_game_events, and
+ * whatever was not replayed before a shutdown is replayed after the restart.
+ * <p>
+ * Every record carries the event id assigned on append, so a batch that is written again
+ * after a crash or a retry does not create duplicate rows.
+ */
+@Service
+@RequiredArgsConstructor
+public class IngestionWal implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestionWal.class);
+
+    private final DataIngestionService dataIngestionService;
+    private final EventBatchWriter eventBatchWriter;
+    private final IdGenerator idGenerator;
+    private final ObjectMapper objectMapper;
+    private final IngestionProperties ingestionProperties;
+    private final MeterRegistry meterRegistry;
+    private final Environment environment;
+
+    private final AtomicInteger inFlightAppends = new AtomicInteger();
+
+    private WriteAheadLog log;
+    private Thread replayThread;
+    private volatile long checkpoint;
+    private volatile long replayDeadline = Long.MAX_VALUE;
+    private volatile boolean running;
+    private volatile boolean accepting;
+
+    public boolean isEnabled() {
+        return running;
+    }
+
+    /**
+     * Appends the event and waits until it is durable.
+     *
+     * @return false if the log is not accepting or could not be written
+     */
+    public boolean append(GameEventDTO event) {
+        return appendAll(List.of(event)).get(0).getStatus() == EventIngestResult.Status.QUEUED;
+    }
+
+    /**
+     * Appends the events and waits once until all of them are durable.
+     *
+     * @return one QUEUED / REJECTED / INVALID result per event, in request order
+     */
+    public List<EventIngestResult> appendAll(List<GameEventDTO> events) {
+        EventIngestResult[] results = new EventIngestResult[events.size()];
+        inFlightAppends.incrementAndGet();
+        try {
+            long lastLsn = -1;
+            for (int i = 0; i < events.size(); i++) {
+                GameEventDTO event = events.get(i);
+                if (event == null) {
+                    results[i] = EventIngestResult.of(i, EventIngestResult.Status.INVALID, "Received null event.");
+                    continue;
+                }
+                if (!accepting) {
+                    results[i] = EventIngestResult.of(i, EventIngestResult.Status.REJECTED, "Write-ahead log is not accepting events.");
+                    continue;
+                }
+                try {
+                    lastLsn = log.append(encode(idGenerator.nextId(), event));
+                    results[i] = EventIngestResult.of(i, EventIngestResult.Status.QUEUED, null);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Failed to append event {} to the write-ahead log: {}", event.getEventName(), e.getMessage());
+                    results[i] = EventIngestResult.of(i, EventIngestResult.Status.REJECTED, "Failed to write event to the write-ahead log.");
+                }
+            }
+            if (lastLsn >= 0) {
+                awaitDurable(lastLsn, results);
+            }
+        } finally {
+            inFlightAppends.decrementAndGet();
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Number of log bytes durable but not yet replayed into MySQL.
+     */
+    public long getLagBytes() {
+        WriteAheadLog current = log;
+        return current == null ? 0 : current.bytesBetween(checkpoint, current.getDurableLsn());
+    }
+
+    @Override
+    public void start() {
+        IngestionProperties.Wal config = ingestionProperties.getWal();
+        if (!config.isEnabled() || running) {
+            return;
+        }
+        try {
+            log = new WriteAheadLog(Path.of(config.getDirectory()), config.getSegmentSizeBytes(), config.isFsync());
+            checkpoint = log.readCheckpoint();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open the write-ahead log in " + config.getDirectory(), e);
+        }
+        long pending = log.bytesBetween(checkpoint, log.getDurableLsn());
+        if (pending > 0) {
+            logger.info("Write-ahead log has {} bytes left from the previous run, replaying them", pending);
+        }
+
+        // Accepting before the replay starts, or it finds an empty log not accepting and exits
+        running = true;
+        accepting = true;
+        Gauge.builder("ingestion.wal.lag.bytes", this, IngestionWal::getLagBytes).register(meterRegistry);
+        replayThread = WorkerThreads.factory("wal-replay-", Threading.VIRTUAL.isActive(environment)).newThread(this::runReplay);
+        replayThread.start();
+        logger.info("Write-ahead log ingestion started in {}", config.getDirectory());
+    }
+
+    /**
+     * Stops accepting events and lets the replay catch up for at most
+     * ingestion.wal.shutdown-timeout-ms; the rest is replayed on the next start.
+     */
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        accepting = false;
+        long deadline = System.currentTimeMillis() + ingestionProperties.getWal().getShutdownTimeoutMs();
+        while (inFlightAppends.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        replayDeadline = deadline;
+        try {
+            replayThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (replayThread.isAlive()) {
+            replayThread.interrupt();
+        }
+        long remaining = getLagBytes();
+        log.close();
+        if (remaining > 0) {
+            logger.warn("Write-ahead log stopped with {} bytes not yet replayed, they are replayed on the next start", remaining);
+        } else {
+            logger.info("Write-ahead log fully replayed and stopped");
+        }
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Same phase as the async pipeline: start before and stop after the embedded web server.
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE - 4096;
+    }
+
+    private void awaitDurable(long lsn, EventIngestResult[] results) {
+        try {
+            log.awaitDurable(lsn);
+        } catch (InterruptedException | RuntimeException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.error("Failed to force the write-ahead log to disk: {}", e.getMessage());
+            // Not acknowledged; the records may still be replayed, which the client's retry makes a duplicate at worst
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].getStatus() == EventIngestResult.Status.QUEUED) {
+                    results[i] = EventIngestResult.of(i, EventIngestResult.Status.REJECTED, "Failed to write event to the write-ahead log.");
+                }
+            }
+        }
+    }
+
+    private void runReplay() {
+        IngestionProperties.Wal config = ingestionProperties.getWal();
+        long backoff = config.getRetryBackoffMs();
+        try {
+            while (true) {
+                List<WriteAheadLog.Record> records = log.read(checkpoint, Math.max(1, config.getReplayBatchSize()));
+                if (records.isEmpty()) {
+                    if (!accepting) {
+                        return; // Fully replayed and nothing new can arrive
+                    }
+                    TimeUnit.MILLISECONDS.sleep(config.getReplayIdleMs());
+                    continue;
+                }
+                try {
+                    replay(records);
+                    backoff = config.getRetryBackoffMs();
+                } catch (IOException | RuntimeException e) {
+                    // The writer only rethrows transient database failures; checkpoint IO errors are retried the same way
+                    meterRegistry.counter("ingestion.wal.replay.retries").increment();
+                    logger.warn("Failed to replay the write-ahead log, retrying in {} ms: {}", backoff, e.getMessage());
+                    if (System.currentTimeMillis() + backoff > replayDeadline) {
+                        return; // Shutting down: leave the rest for the next start
+                    }
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                    backoff = Math.min(backoff * 2, config.getMaxRetryBackoffMs());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void replay(List<WriteAheadLog.Record> records) throws IOException {
+        EventBatchWriter.Batch batch = new EventBatchWriter.Batch();
+        for (WriteAheadLog.Record record : records) {
+            ByteBuffer payload = ByteBuffer.wrap(record.payload());
+            long id = payload.getLong();
+            GameEventDTO event;
+            try {
+                event = objectMapper.readValue(record.payload(), Long.BYTES, record.payload().length - Long.BYTES, GameEventDTO.class);
+            } catch (IOException e) {
+                logger.error("Skipping unreadable write-ahead log record {} (event id {}): {}", record.lsn(), id, e.getMessage());
+                continue;
+            }
+            EventBatchWriter.PreparedEvent prepared = eventBatchWriter.prepare(event, dataIngestionService.validateGameEvent(event));
+            prepared.assignId(id);
+            prepared.addTo(batch);
+        }
+        eventBatchWriter.writeOrThrowTransient(batch);
+
+        long next = records.get(records.size() - 1).nextLsn();
+        log.writeCheckpoint(next);
+        checkpoint = next;
+        log.deleteSegmentsBefore(next);
+        logger.debug("Replayed {} write-ahead log records", records.size());
+    }
+
+    private byte[] encode(long id, GameEventDTO event) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(event);
+        return ByteBuffer.allocate(Long.BYTES + json.length).putLong(id).put(json).array();
+    }
+}
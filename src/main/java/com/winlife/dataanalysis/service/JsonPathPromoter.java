@@ -0,0 +1,227 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.repository.GeneratedColumnRepository;
+import com.winlife.dataanalysis.service.analysis.AnalysisPlan;
+import com.winlife.dataanalysis.service.analysis.PromotedColumns;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Promotes the parameter.* and userProperty.* fields that event analysis filters and groups on most
+ * to indexed generated columns of game_events, and tells {@link com.winlife.dataanalysis.service.analysis.AnalysisSql}
+ * which of them a query may use.
+ * <p>
+ * Only fields typed string or integer by the schemas are promoted:
+ * <ul>
+ *     <li>string: VARCHAR(255) with utf8mb4_bin (the collation of JSON_UNQUOTE)</li>
+ *     <li>integer: BIGINT</li>
+ * </ul>
+ * The column is NULL where the JSON value does not fit it: JSON null, a string longer than 255 characters,
+ * a value that is not a number. AnalysisSql therefore only uses a column where it gives the JSON expression's
+ * result, and falls back to the JSON expression for the rows where the column is NULL; null checks and the
+ * grouping by an integer field keep reading the JSON.
+ * The columns are VIRTUAL (adding one does not copy the table) and indexed on (event_name, column, timestamp).
+ * A column is only used while the schema of the queried event still gives the field the column's type.
+ * Promotions are never reverted automatically; drop a column to demote it.
+ */
+@Service
+public class JsonPathPromoter {
+
+    private static final Logger logger = LoggerFactory.getLogger(JsonPathPromoter.class);
+
+    private static final String TABLE = "game_events";
+    private static final String COLUMN_PREFIX = "jp_";
+    // Field names that are safe in a column name, a JSON path and a comment without quoting
+    private static final Pattern PROMOTABLE_NAME = Pattern.compile("[A-Za-z0-9_]{1,48}");
+    private static final int MAX_STRING_LENGTH = 255;
+
+    private final GeneratedColumnRepository generatedColumnRepository;
+    private final SchemaRegistry schemaRegistry;
+    private final AnalysisProperties analysisProperties;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<AnalysisPlan.Field, AtomicLong> usage = new ConcurrentHashMap<>();
+    private volatile Map<AnalysisPlan.Field, PromotedColumns.Column> promoted = Collections.emptyMap();
+
+    public JsonPathPromoter(GeneratedColumnRepository generatedColumnRepository, SchemaRegistry schemaRegistry,
+                            AnalysisProperties analysisProperties, MeterRegistry meterRegistry) {
+        this.generatedColumnRepository = generatedColumnRepository;
+        this.schemaRegistry = schemaRegistry;
+        this.analysisProperties = analysisProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Counts the JSON fields the plan filters or groups on.
+     */
+    public void recordUsage(AnalysisPlan plan) {
+        for (AnalysisPlan.Field field : indexableFields(plan)) {
+            usage.computeIfAbsent(field, f -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the promoted columns the plan's SQL can read instead of its JSON fields
+     */
+    public PromotedColumns columnsFor(AnalysisPlan plan) {
+        Map<AnalysisPlan.Field, PromotedColumns.Column> current = promoted;
+        if (current.isEmpty()) {
+            return PromotedColumns.NONE;
+        }
+        Map<AnalysisPlan.Field, PromotedColumns.Column> usable = new HashMap<>();
+        for (AnalysisPlan.Field field : indexableFields(plan)) {
+            PromotedColumns.Column column = current.get(field);
+            if (column != null && column.type() == schemaType(field, plan.getEventName())) {
+                usable.put(field, column);
+            }
+        }
+        return usable.isEmpty() ? PromotedColumns.NONE : new PromotedColumns(usable);
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.promotion.check-interval-ms:600000}")
+    public void promoteHotPaths() {
+        AnalysisProperties.Promotion config = analysisProperties.getPromotion();
+        if (!config.isEnabled()) {
+            return;
+        }
+        try {
+            refresh();
+            promote(config);
+        } catch (DataAccessException e) {
+            logger.warn("Promoting JSON fields of {} failed: {}", TABLE, e.getMostSpecificCause().getMessage());
+        }
+        // Halve the counts, so the ranking follows what dashboards use now
+        usage.entrySet().removeIf(entry -> entry.getValue().updateAndGet(count -> count / 2) == 0);
+    }
+
+    /**
+     * Reloads the promoted columns, including those added by other nodes.
+     */
+    private void refresh() {
+        Map<AnalysisPlan.Field, PromotedColumns.Column> columns = new HashMap<>();
+        for (GeneratedColumnRepository.GeneratedColumn column : generatedColumnRepository.findGeneratedColumns(TABLE, COLUMN_PREFIX)) {
+            AnalysisPlan.Field field = column.comment() == null ? null : AnalysisPlan.Field.parse(column.comment());
+            CompiledSchema.ValueType type = switch (column.dataType().toLowerCase(Locale.ROOT)) {
+                case "bigint" -> CompiledSchema.ValueType.INTEGER;
+                case "varchar" -> CompiledSchema.ValueType.STRING;
+                default -> null;
+            };
+            if (field != null && type != null) {
+                columns.put(field, new PromotedColumns.Column(column.name(), type));
+            }
+        }
+        promoted = Collections.unmodifiableMap(columns);
+    }
+
+    private void promote(AnalysisProperties.Promotion config) {
+        List<Map.Entry<AnalysisPlan.Field, AtomicLong>> candidates = new ArrayList<>(usage.entrySet());
+        candidates.sort((a, b) -> Long.compare(b.getValue().get(), a.getValue().get()));
+        Map<AnalysisPlan.Field, PromotedColumns.Column> columns = new HashMap<>(promoted);
+        int added = 0;
+        for (Map.Entry<AnalysisPlan.Field, AtomicLong> candidate : candidates) {
+            if (candidate.getValue().get() < config.getMinUses() || added >= config.getMaxPerRun()
+                    || columns.size() >= config.getMaxColumns()) {
+                break;
+            }
+            AnalysisPlan.Field field = candidate.getKey();
+            if (columns.containsKey(field) || !PROMOTABLE_NAME.matcher(field.name()).matches()) {
+                continue;
+            }
+            CompiledSchema.ValueType type = agreedSchemaType(field);
+            String column = columnName(field);
+            if (type == null || columns.values().stream().anyMatch(existing -> existing.name().equalsIgnoreCase(column))) {
+                continue; // Untyped, typed differently by different events, or a name clash (column names ignore case)
+            }
+            long started = System.currentTimeMillis();
+            generatedColumnRepository.addIndexedColumn(TABLE, column, definition(type), expression(field, type),
+                    field.attribute(), "idx_" + column, List.of("event_name", column, "`timestamp`"));
+            columns.put(field, new PromotedColumns.Column(column, type));
+            promoted = Collections.unmodifiableMap(new HashMap<>(columns));
+            added++;
+            meterRegistry.counter("promotion.columns.created").increment();
+            logger.info("Promoted {} ({} uses) to indexed column {} {} in {} ms", field.attribute(), candidate.getValue().get(),
+                    column, type, System.currentTimeMillis() - started);
+        }
+    }
+
+    private static Set<AnalysisPlan.Field> indexableFields(AnalysisPlan plan) {
+        Set<AnalysisPlan.Field> fields = new LinkedHashSet<>();
+        if (plan.getGrouping() != null && isJson(plan.getGrouping().field())) {
+            fields.add(plan.getGrouping().field());
+        }
+        for (AnalysisPlan.Filter filter : plan.getFilters()) {
+            if (isJson(filter.field())) {
+                fields.add(filter.field());
+            }
+        }
+        return fields;
+    }
+
+    private static boolean isJson(AnalysisPlan.Field field) {
+        return field != null && (field.kind() == AnalysisPlan.FieldKind.PARAMETER || field.kind() == AnalysisPlan.FieldKind.USER_PROPERTY);
+    }
+
+    /**
+     * @return the field's type in the event's parameter schema or the user property schema, null if untyped
+     */
+    private CompiledSchema.ValueType schemaType(AnalysisPlan.Field field, String eventName) {
+        CompiledSchema schema = field.kind() == AnalysisPlan.FieldKind.PARAMETER
+                ? schemaRegistry.getEventSchema(eventName) : schemaRegistry.getUserPropertySchema();
+        CompiledSchema.Field definition = schema == null ? null : schema.getField(field.name());
+        return definition == null ? null : definition.getType();
+    }
+
+    /**
+     * @return the promotable type all schemas defining the field agree on, null if there is none
+     */
+    private CompiledSchema.ValueType agreedSchemaType(AnalysisPlan.Field field) {
+        Set<CompiledSchema.ValueType> types = new LinkedHashSet<>();
+        if (field.kind() == AnalysisPlan.FieldKind.PARAMETER) {
+            for (CompiledSchema schema : schemaRegistry.getEventSchemas().values()) {
+                CompiledSchema.Field definition = schema.getField(field.name());
+                if (definition != null) {
+                    types.add(definition.getType());
+                }
+            }
+        } else {
+            types.add(schemaType(field, null));
+        }
+        CompiledSchema.ValueType type = types.size() == 1 ? types.iterator().next() : null;
+        return type == CompiledSchema.ValueType.STRING || type == CompiledSchema.ValueType.INTEGER ? type : null;
+    }
+
+    private static String columnName(AnalysisPlan.Field field) {
+        return COLUMN_PREFIX + (field.kind() == AnalysisPlan.FieldKind.PARAMETER ? "p_" : "u_") + field.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String definition(CompiledSchema.ValueType type) {
+        return type == CompiledSchema.ValueType.INTEGER
+                ? "BIGINT" : "VARCHAR(" + MAX_STRING_LENGTH + ") CHARACTER SET utf8mb4 COLLATE utf8mb4_bin";
+    }
+
+    /**
+     * JSON_VALUE with NULL ON ERROR, so a value that does not fit never fails an insert.
+     */
+    private static String expression(AnalysisPlan.Field field, CompiledSchema.ValueType type) {
+        String document = field.kind() == AnalysisPlan.FieldKind.PARAMETER ? "parameters" : "user_properties";
+        String returning = type == CompiledSchema.ValueType.INTEGER ? "SIGNED" : "CHAR(" + MAX_STRING_LENGTH + ")";
+        return "JSON_VALUE(" + document + ", '$.\"" + field.name() + "\"' RETURNING " + returning + " NULL ON ERROR)";
+    }
+}
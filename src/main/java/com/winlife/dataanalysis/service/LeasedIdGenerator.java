@@ -0,0 +1,29 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.util.IdGenerator;
+import com.winlife.dataanalysis.util.SnowflakeIdGenerator;
+
+/**
+ * {@link SnowflakeIdGenerator} on the node id leased by {@link NodeRegistry}; throws instead of handing out
+ * an id while the lease is not held.
+ */
+public class LeasedIdGenerator implements IdGenerator {
+
+    private final NodeRegistry nodeRegistry;
+    private final long epochMillis;
+    private SnowflakeIdGenerator generator;
+
+    public LeasedIdGenerator(NodeRegistry nodeRegistry, long epochMillis) {
+        this.nodeRegistry = nodeRegistry;
+        this.epochMillis = epochMillis;
+    }
+
+    @Override
+    public synchronized long nextId() {
+        long nodeId = nodeRegistry.getLeasedNodeId();
+        if (generator == null || generator.getNodeId() != nodeId) {
+            generator = new SnowflakeIdGenerator(epochMillis, nodeId);
+        }
+        return generator.nextId();
+    }
+}
@@ -0,0 +1,168 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.repository.NodeLeaseRepository;
+import com.winlife.dataanalysis.util.HashUtils;
+import com.winlife.dataanalysis.util.SnowflakeIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.UUID;
+
+/**
+ * Leases the node id embedded in event ids from MySQL, so no two running nodes generate ids with the same
+ * node id: ingestion.id.node-id if it is set (startup fails while another node holds it), otherwise the first
+ * free id from a hash of the host name on.
+ * <p>
+ * The lease lasts ingestion.id.lease-ttl-ms from when it was last renewed and is renewed every
+ * lease-renew-interval-ms. Once it ran out without a renewal, or another node took it over, no ids are handed
+ * out until it is renewed or another id is leased: ingestion fails rather than storing two events under one id.
+ * The leases also tell whether this node is the only one running, see {@link #isSingleNode()}; a node
+ * that starts later is seen at the next renewal, as it takes its lease before it ingests anything.
+ */
+@Service
+public class NodeRegistry implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeRegistry.class);
+
+    private final NodeLeaseRepository nodeLeaseRepository;
+    private final IngestionProperties ingestionProperties;
+    private final String owner;
+
+    // -1 while no lease is held
+    private volatile long nodeId = -1;
+    // System.nanoTime() the lease ends at by the local clock, before it ends in MySQL
+    private volatile long validUntilNanos;
+    private volatile int liveNodes;
+    // Counts the periods in which this node was the only one running, see getSingleNodeTerm
+    private volatile long singleNodeTerm;
+
+    public NodeRegistry(NodeLeaseRepository nodeLeaseRepository, IngestionProperties ingestionProperties) {
+        this.nodeLeaseRepository = nodeLeaseRepository;
+        this.ingestionProperties = ingestionProperties;
+        this.owner = hostName() + "/" + ProcessHandle.current().pid() + "/" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        nodeLeaseRepository.createTableIfMissing();
+        acquire();
+        updateLiveNodes(nodeLeaseRepository.countLive());
+        logger.info("Leased node id {} for event ids, {} nodes running", nodeId, liveNodes);
+    }
+
+    /**
+     * @return the leased node id
+     * @throws IllegalStateException if the lease is not held
+     */
+    public long getLeasedNodeId() {
+        long leased = nodeId;
+        if (leased < 0 || System.nanoTime() - validUntilNanos >= 0) {
+            throw new IllegalStateException("No lease of a node id is held, not generating event ids until it is renewed");
+        }
+        return leased;
+    }
+
+    /**
+     * @return whether this node holds its lease and no other node held one at the last renewal
+     */
+    public boolean isSingleNode() {
+        return nodeId >= 0 && System.nanoTime() - validUntilNanos < 0 && liveNodes == 1;
+    }
+
+    /**
+     * @return a number that stays the same as long as this node remains the only one running, -1 while it is not:
+     *         a different number means other nodes may have ingested events in between
+     */
+    public long getSingleNodeTerm() {
+        return isSingleNode() ? singleNodeTerm : -1;
+    }
+
+    @Scheduled(fixedDelayString = "${ingestion.id.lease-renew-interval-ms:10000}")
+    public void renew() {
+        IngestionProperties.Id config = ingestionProperties.getId();
+        try {
+            long started = System.nanoTime();
+            long current = nodeId;
+            if (current >= 0 && started - validUntilNanos >= 0) {
+                liveNodes = 0; // Other nodes may have come and gone unseen
+            }
+            if (current >= 0 && nodeLeaseRepository.renew(current, owner, config.getLeaseTtlMs())) {
+                validUntilNanos = started + config.getLeaseTtlMs() * 1_000_000;
+            } else {
+                nodeId = -1;
+                liveNodes = 0;
+                logger.error("The lease of node id {} was taken over, leasing one again", current);
+                acquire();
+            }
+            updateLiveNodes(nodeLeaseRepository.countLive());
+        } catch (DataAccessException | IllegalStateException e) {
+            logger.warn("Failed to renew the lease of node id {}: {}", nodeId, e.getMessage());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        long current = nodeId;
+        nodeId = -1;
+        if (current >= 0) {
+            try {
+                nodeLeaseRepository.release(current, owner);
+            } catch (DataAccessException e) {
+                logger.warn("Failed to release the lease of node id {}, it expires by itself: {}", current, e.getMessage());
+            }
+        }
+    }
+
+    private void updateLiveNodes(int count) {
+        if (count == 1 && liveNodes != 1) {
+            singleNodeTerm++;
+        }
+        liveNodes = count;
+    }
+
+    private synchronized void acquire() {
+        IngestionProperties.Id config = ingestionProperties.getId();
+        long configured = config.getNodeId();
+        if (configured >= 0) {
+            if (!tryAcquire(configured)) {
+                throw new IllegalStateException("ingestion.id.node-id " + configured + " is leased by "
+                        + nodeLeaseRepository.findOwner(configured) + ", give every node its own node id");
+            }
+            return;
+        }
+        long first = HashUtils.hash64(hostName()) & SnowflakeIdGenerator.MAX_NODE_ID;
+        for (long i = 0; i <= SnowflakeIdGenerator.MAX_NODE_ID; i++) {
+            if (tryAcquire((first + i) & SnowflakeIdGenerator.MAX_NODE_ID)) {
+                return;
+            }
+        }
+        throw new IllegalStateException("All " + (SnowflakeIdGenerator.MAX_NODE_ID + 1) + " node ids are leased");
+    }
+
+    private boolean tryAcquire(long candidate) {
+        long ttlMs = ingestionProperties.getId().getLeaseTtlMs();
+        long started = System.nanoTime();
+        if (!nodeLeaseRepository.tryAcquire(candidate, owner, ttlMs)) {
+            return false;
+        }
+        validUntilNanos = started + ttlMs * 1_000_000;
+        nodeId = candidate;
+        return true;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.repository.PartitionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Keeps game_events, errored_game_events and debug_game_events RANGE partitioned by timestamp.
+ * <p>
+ * Every check (ingestion.partitioning.check-interval-ms, and once at startup):
+ * <ul>
+ *     <li>a table Hibernate created unpartitioned is rebuilt as daily or monthly partitions; tables
+ *     above ingestion.partitioning.max-convert-rows are left for an operator, since the rebuild copies them</li>
+ *     <li>partitions are created ingestion.partitioning.future-partitions periods ahead, so inserts never
+ *     land in the trailing MAXVALUE partition</li>
+ *     <li>partitions entirely older than the table's retention are dropped, which is a metadata change
+ *     instead of a long DELETE</li>
+ * </ul>
+ * Queries that bound timestamp by plain values (ge.timestamp >= ? AND ge.timestamp <= ?) are pruned
+ * by MySQL to the partitions of that range.
+ */
+@Service
+public class PartitionManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionManager.class);
+
+    static final String PARTITION_COLUMN = "timestamp";
+    // Oldest partition created when converting a table; older rows all go into that first partition
+    private static final int MAX_INITIAL_PARTITIONS = 1024;
+    // Safety bound for a single maintenance run
+    private static final int MAX_PARTITIONS_PER_RUN = 2048;
+
+    private static final List<ManagedTable> TABLES = List.of(
+            new ManagedTable("game_events", IngestionProperties.Partitioning::getGameEventsRetentionDays),
+            new ManagedTable("errored_game_events", IngestionProperties.Partitioning::getErroredEventsRetentionDays),
+            new ManagedTable("debug_game_events", IngestionProperties.Partitioning::getDebugEventsRetentionDays));
+
+    private final PartitionRepository partitionRepository;
+    private final IngestionProperties ingestionProperties;
+    private final MeterRegistry meterRegistry;
+
+    public PartitionManager(PartitionRepository partitionRepository, IngestionProperties ingestionProperties,
+                            MeterRegistry meterRegistry) {
+        this.partitionRepository = partitionRepository;
+        this.ingestionProperties = ingestionProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Scheduled(fixedDelayString = "${ingestion.partitioning.check-interval-ms:3600000}")
+    public void maintainPartitions() {
+        IngestionProperties.Partitioning config = ingestionProperties.getPartitioning();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (ManagedTable table : TABLES) {
+            try {
+                maintain(table, config, now);
+            } catch (DataAccessException e) {
+                // e.g. another node changed the partitions at the same time; the next check catches up
+                logger.warn("Partition maintenance of {} failed: {}", table.name(), e.getMostSpecificCause().getMessage());
+            }
+        }
+    }
+
+    private void maintain(ManagedTable table, IngestionProperties.Partitioning config, long now) {
+        List<PartitionRepository.Partition> partitions = partitionRepository.findPartitions(table.name());
+        if (partitions.isEmpty()) {
+            return; // Not created yet
+        }
+        PartitionCalendar calendar = new PartitionCalendar(config);
+        if (partitions.get(0).name() == null) {
+            convert(table, partitions.get(0).rows(), calendar, config, now);
+            return;
+        }
+        PartitionRepository.Partition first = partitions.get(0);
+        if (!"RANGE".equalsIgnoreCase(first.method()) || !PARTITION_COLUMN.equals(unquote(first.expression()))) {
+            logger.warn("{} is partitioned by {} {}, not by RANGE ({}); leaving it alone",
+                    table.name(), first.method(), first.expression(), PARTITION_COLUMN);
+            return;
+        }
+        addFuturePartitions(table, partitions, calendar, config, now);
+        dropExpiredPartitions(table, partitions, table.retentionDays().applyAsInt(config), now);
+    }
+
+    private void convert(ManagedTable table, long rows, PartitionCalendar calendar, IngestionProperties.Partitioning config, long now) {
+        if (rows > config.getMaxConvertRows()) {
+            logger.warn("{} is not partitioned and holds about {} rows (more than ingestion.partitioning.max-convert-rows); "
+                    + "partition it during a maintenance window, the next check will then manage its partitions", table.name(), rows);
+            return;
+        }
+        ZonedDateTime start = calendar.periodStart(now).minus(MAX_INITIAL_PARTITIONS, calendar.unit);
+        int retentionDays = table.retentionDays().applyAsInt(config);
+        if (retentionDays > 0) {
+            start = later(start, calendar.periodStart(now - retentionDays * 86_400_000L));
+        }
+        Long min = rows > 0 ? partitionRepository.findMinValue(table.name(), PARTITION_COLUMN) : null;
+        start = later(start, calendar.periodStart(min == null ? now : min));
+        List<PartitionRepository.Bound> bounds = calendar.bounds(start.toInstant().toEpochMilli(), calendar.horizon(now));
+        boolean rekey = !List.of("id", PARTITION_COLUMN).equals(partitionRepository.findPrimaryKeyColumns(table.name()));
+
+        long started = System.currentTimeMillis();
+        partitionRepository.partitionByRange(table.name(), PARTITION_COLUMN, bounds, rekey);
+        meterRegistry.counter("partitions.created", "table", table.name()).increment(bounds.size() + 1);
+        logger.info("Partitioned {} into {} {} partitions from {} in {} ms", table.name(), bounds.size(),
+                config.getGranularity(), bounds.get(0).name(), System.currentTimeMillis() - started);
+    }
+
+    private void addFuturePartitions(ManagedTable table, List<PartitionRepository.Partition> partitions, PartitionCalendar calendar,
+                                     IngestionProperties.Partitioning config, long now) {
+        Long lastBound = null;
+        String maxPartition = null;
+        for (PartitionRepository.Partition partition : partitions) {
+            if (partition.lessThan() == null) {
+                maxPartition = partition.name();
+            } else if (lastBound == null || partition.lessThan() > lastBound) {
+                lastBound = partition.lessThan();
+            }
+        }
+        long from = lastBound != null ? lastBound : calendar.periodStart(now).toInstant().toEpochMilli();
+        List<PartitionRepository.Bound> bounds = calendar.bounds(from, calendar.horizon(now));
+        if (bounds.isEmpty()) {
+            return;
+        }
+        partitionRepository.addPartitions(table.name(), maxPartition, bounds);
+        meterRegistry.counter("partitions.created", "table", table.name()).increment(bounds.size());
+        logger.info("Created {} {} partitions of {} up to {}", bounds.size(), config.getGranularity(),
+                table.name(), bounds.get(bounds.size() - 1).name());
+    }
+
+    private void dropExpiredPartitions(ManagedTable table, List<PartitionRepository.Partition> partitions, int retentionDays, long now) {
+        if (retentionDays <= 0) {
+            return;
+        }
+        long cutoff = now - retentionDays * 86_400_000L;
+        List<String> expired = new ArrayList<>();
+        for (PartitionRepository.Partition partition : partitions) {
+            if (partition.lessThan() != null && partition.lessThan() <= cutoff) {
+                expired.add(partition.name());
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        partitionRepository.dropPartitions(table.name(), expired);
+        meterRegistry.counter("partitions.dropped", "table", table.name()).increment(expired.size());
+        logger.info("Dropped {} expired partitions of {}: {}", expired.size(), table.name(), expired);
+    }
+
+    private static ZonedDateTime later(ZonedDateTime a, ZonedDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static String unquote(String expression) {
+        return expression == null ? null : expression.replace("`", "").trim();
+    }
+
+    private record ManagedTable(String name, ToIntFunction<IngestionProperties.Partitioning> retentionDays) {
+    }
+
+    /**
+     * Partition periods: boundaries are midnights (DAY) or first days of the month (MONTH) in the
+     * configured zone, a partition is named after the start of its period (p20250131, p202501).
+     */
+    static final class PartitionCalendar {
+        private final ZoneId zone;
+        private final ChronoUnit unit;
+        private final DateTimeFormatter nameFormat;
+        private final int futurePartitions;
+
+        PartitionCalendar(IngestionProperties.Partitioning config) {
+            this.zone = ZoneId.of(config.getZone());
+            boolean monthly = config.getGranularity() == IngestionProperties.Partitioning.Granularity.MONTH;
+            this.unit = monthly ? ChronoUnit.MONTHS : ChronoUnit.DAYS;
+            this.nameFormat = DateTimeFormatter.ofPattern(monthly ? "'p'yyyyMM" : "'p'yyyyMMdd");
+            this.futurePartitions = Math.max(1, config.getFuturePartitions());
+        }
+
+        ZonedDateTime periodStart(long epochMillis) {
+            ZonedDateTime time = Instant.ofEpochMilli(epochMillis).atZone(zone);
+            ZonedDateTime day = time.toLocalDate().atStartOfDay(zone);
+            return unit == ChronoUnit.MONTHS ? day.withDayOfMonth(1) : day;
+        }
+
+        /**
+         * @return the upper bound of the last partition that should exist now
+         */
+        long horizon(long now) {
+            return periodStart(now).plus(futurePartitions + 1L, unit).toInstant().toEpochMilli();
+        }
+
+        /**
+         * Consecutive partitions covering [from, to). The first one ends at the period boundary after
+         * from, so a from that is not on a boundary (e.g. after a granularity change) is caught up.
+         */
+        List<PartitionRepository.Bound> bounds(long from, long to) {
+            List<PartitionRepository.Bound> bounds = new ArrayList<>();
+            long cursor = from;
+            while (cursor < to && bounds.size() < MAX_PARTITIONS_PER_RUN) {
+                ZonedDateTime start = periodStart(cursor);
+                long end = start.plus(1, unit).toInstant().toEpochMilli();
+                bounds.add(new PartitionRepository.Bound(nameFormat.format(start), end));
+                cursor = end;
+            }
+            return bounds;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.repository.EventBatchRepository;
+import com.winlife.dataanalysis.service.analysis.RecentEventStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps {@link RecentEventStore} filled: loads the last analysis.memory-store.retention-days of game_events
+ * from MySQL right after startup (and again after a failed load), then drops the hours that expired and
+ * moves past hours off-heap on every run. While other nodes run the store would miss their events: it is
+ * emptied, and loaded again once this node runs alone.
+ */
+@Service
+public class RecentEventLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecentEventLoader.class);
+
+    private static final long DAY_MILLIS = 86_400_000L;
+    private static final long HOUR_MILLIS = 3_600_000L;
+    // Rows loaded between two checks of the off-heap threshold
+    private static final long OFF_HEAP_CHECK_ROWS = 1_000_000;
+
+    private final RecentEventStore recentEventStore;
+    private final EventBatchRepository eventBatchRepository;
+    private final AnalysisProperties analysisProperties;
+    private final IngestionProperties ingestionProperties;
+    private final NodeRegistry nodeRegistry;
+    private boolean warnedMultiNode;
+
+    public RecentEventLoader(RecentEventStore recentEventStore, EventBatchRepository eventBatchRepository,
+                             AnalysisProperties analysisProperties, IngestionProperties ingestionProperties,
+                             NodeRegistry nodeRegistry) {
+        this.recentEventStore = recentEventStore;
+        this.eventBatchRepository = eventBatchRepository;
+        this.analysisProperties = analysisProperties;
+        this.ingestionProperties = ingestionProperties;
+        this.nodeRegistry = nodeRegistry;
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.memory-store.maintenance-interval-ms:60000}")
+    public void maintain() {
+        if (!recentEventStore.isEnabled()) {
+            return;
+        }
+        if (!nodeRegistry.isSingleNode()) {
+            if (!warnedMultiNode) {
+                recentEventStore.clear();
+                logger.warn("Other ingestion nodes are running, the memory store is off until this node runs alone");
+                warnedMultiNode = true;
+            }
+            return;
+        }
+        warnedMultiNode = false;
+        long now = System.currentTimeMillis();
+        long from = now - retentionDays() * DAY_MILLIS;
+        if (recentEventStore.getCoverageStart() == Long.MAX_VALUE) {
+            load(from);
+            return;
+        }
+        int dropped = recentEventStore.evictBefore(from);
+        // Late events mostly arrive within the hour after the one they belong to
+        int moved = recentEventStore.moveOffHeap(now - HOUR_MILLIS);
+        if (dropped > 0 || moved > 0) {
+            logger.info("Memory store: dropped {} expired and moved {} chunks off-heap, {} events kept",
+                    dropped, moved, recentEventStore.getRowCount());
+        }
+    }
+
+    private void load(long from) {
+        long started = System.currentTimeMillis();
+        long start = recentEventStore.startLoading(from);
+        long[] loaded = new long[1];
+        try {
+            // Events ingested meanwhile are added by the ingestion path; the store drops the second copy
+            eventBatchRepository.forEachGameEventSince(start, event -> {
+                if (recentEventStore.add(event) && ++loaded[0] % OFF_HEAP_CHECK_ROWS == 0) {
+                    recentEventStore.moveOffHeap(started - HOUR_MILLIS);
+                }
+            });
+            recentEventStore.finishLoading(start);
+            logger.info("Loaded {} events since {} into the memory store in {} ms", loaded[0], start,
+                    System.currentTimeMillis() - started);
+        } catch (DataAccessException e) {
+            recentEventStore.clear();
+            logger.warn("Loading the memory store failed, retrying on the next run: {}", e.getMostSpecificCause().getMessage());
+        }
+    }
+
+    /**
+     * @return the configured days, but not more than MySQL keeps, so both answer for the same events
+     */
+    private int retentionDays() {
+        int days = Math.max(1, analysisProperties.getMemoryStore().getRetentionDays());
+        int kept = ingestionProperties.getPartitioning().getGameEventsRetentionDays();
+        return kept > 0 ? Math.min(days, kept) : days;
+    }
+}
@@ -0,0 +1,112 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.dto.SchemaIdMapDTO;
+import com.winlife.dataanalysis.util.HashUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numeric ids of event names, parameter keys and user property keys for the binary ingestion protocol.
+ * <p>
+ * Event ids follow the sorted event names, key ids the declaration order in the schema; all ids start
+ * at 1 because 0 means "name sent inline". The version is a hash of the whole assignment, so an SDK
+ * holding an outdated map is detected instead of having its ids silently decoded to the wrong names.
+ */
+public final class SchemaIdMap {
+
+    // Assigns no ids; used for frames that declare schema version 0 and carry names only
+    static final SchemaIdMap NONE = build(Collections.emptyMap(), null);
+
+    private final int version;
+    private final Map<String, Integer> eventIds;
+    private final String[] eventNames;       // [id - 1]
+    private final String[][] parameterKeys;  // [event id - 1][key id - 1]
+    private final String[] userPropertyKeys; // [key id - 1]
+
+    private SchemaIdMap(int version, Map<String, Integer> eventIds, String[] eventNames, String[][] parameterKeys, String[] userPropertyKeys) {
+        this.version = version;
+        this.eventIds = eventIds;
+        this.eventNames = eventNames;
+        this.parameterKeys = parameterKeys;
+        this.userPropertyKeys = userPropertyKeys;
+    }
+
+    static SchemaIdMap build(Map<String, CompiledSchema> eventSchemas, CompiledSchema userPropertySchema) {
+        List<String> names = new ArrayList<>(eventSchemas.keySet());
+        names.sort(null);
+        StringBuilder canonical = new StringBuilder();
+        Map<String, Integer> eventIds = new HashMap<>();
+        String[][] parameterKeys = new String[names.size()][];
+        for (int i = 0; i < names.size(); i++) {
+            eventIds.put(names.get(i), i + 1);
+            parameterKeys[i] = eventSchemas.get(names.get(i)).getFieldNames().toArray(new String[0]);
+            canonical.append(names.get(i)).append('\u0000').append(String.join("\u0001", parameterKeys[i])).append('\u0002');
+        }
+        String[] userPropertyKeys = userPropertySchema == null ? new String[0] : userPropertySchema.getFieldNames().toArray(new String[0]);
+        canonical.append('\u0003').append(String.join("\u0001", userPropertyKeys));
+
+        long hash = HashUtils.hash64(canonical);
+        int version = (int) (hash ^ (hash >>> 32)) & Integer.MAX_VALUE;
+        return new SchemaIdMap(version == 0 ? 1 : version, eventIds, names.toArray(new String[0]), parameterKeys, userPropertyKeys);
+    }
+
+    /**
+     * @return a positive version; 0 never occurs, frames use it to declare they carry names only
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the event name, or null if the id is not assigned
+     */
+    public String getEventName(int eventId) {
+        return eventId >= 1 && eventId <= eventNames.length ? eventNames[eventId - 1] : null;
+    }
+
+    /**
+     * @return the event id, or 0 if the event has no schema
+     */
+    public int getEventId(String eventName) {
+        return eventIds.getOrDefault(eventName, 0);
+    }
+
+    /**
+     * @return the parameter key of the event, or null if the id is not assigned
+     */
+    public String getParameterKey(int eventId, int keyId) {
+        if (eventId < 1 || eventId > parameterKeys.length) {
+            return null;
+        }
+        String[] keys = parameterKeys[eventId - 1];
+        return keyId >= 1 && keyId <= keys.length ? keys[keyId - 1] : null;
+    }
+
+    /**
+     * @return the user property key, or null if the id is not assigned
+     */
+    public String getUserPropertyKey(int keyId) {
+        return keyId >= 1 && keyId <= userPropertyKeys.length ? userPropertyKeys[keyId - 1] : null;
+    }
+
+    public SchemaIdMapDTO toDTO() {
+        SchemaIdMapDTO dto = new SchemaIdMapDTO();
+        dto.setVersion(version);
+        for (int i = 0; i < eventNames.length; i++) {
+            SchemaIdMapDTO.EventIds ids = new SchemaIdMapDTO.EventIds();
+            ids.setId(i + 1);
+            for (int k = 0; k < parameterKeys[i].length; k++) {
+                ids.getParameters().put(parameterKeys[i][k], k + 1);
+            }
+            dto.getEvents().put(eventNames[i], ids);
+        }
+        for (int k = 0; k < userPropertyKeys.length; k++) {
+            dto.getUserProperties().put(userPropertyKeys[k], k + 1);
+        }
+        return dto;
+    }
+}
@@ -0,0 +1,181 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.model.EventSchema;
+import com.winlife.dataanalysis.model.UserPropertySchema;
+import com.winlife.dataanalysis.repository.EventSchemaRepository;
+import com.winlife.dataanalysis.repository.UserPropertySchemaRepository;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory registry of compiled event and user property schemas, so that ingestion
+ * validates without touching the database or re-parsing schema JSON.
+ * <p>
+ * Readers see an immutable snapshot; every change builds a new snapshot and swaps it in
+ * (copy-on-write). The schema controllers push their changes here, and a periodic reload
+ * picks up changes made through other application nodes.
+ */
+@Service
+@RequiredArgsConstructor
+public class SchemaRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchemaRegistry.class);
+
+    static final String EVENT_PARAMETER_LABEL = "Event Parameter";
+    static final String USER_PROPERTY_LABEL = "User Property";
+
+    private final EventSchemaRepository eventSchemaRepository;
+    private final UserPropertySchemaRepository userPropertySchemaRepository;
+    private final ObjectMapper objectMapper;
+
+    // Not synchronized: reload queries the database, which would pin a virtual thread to its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Snapshot snapshot;
+
+    /**
+     * @return the compiled parameter schema of the event, or null if no schema is defined for it
+     */
+    public CompiledSchema getEventSchema(String eventName) {
+        return eventName == null ? null : current().eventSchemas.get(eventName);
+    }
+
+    /**
+     * @return the compiled parameter schemas of all events, by event name
+     */
+    public Map<String, CompiledSchema> getEventSchemas() {
+        return current().eventSchemas;
+    }
+
+    /**
+     * @return the compiled user property schema, or null if none is defined
+     */
+    public CompiledSchema getUserPropertySchema() {
+        return current().userPropertySchema;
+    }
+
+    /**
+     * @return the numeric ids of the current schemas used by the binary ingestion protocol
+     */
+    public SchemaIdMap getSchemaIdMap() {
+        return current().schemaIdMap;
+    }
+
+    /**
+     * Reloads and recompiles all schemas from the database.
+     */
+    public void reload() {
+        lock.lock();
+        try {
+            Map<String, CompiledSchema> eventSchemas = new HashMap<>();
+            for (EventSchema eventSchema : eventSchemaRepository.findAll()) {
+                eventSchemas.put(eventSchema.getEventName(), compileEventSchema(eventSchema));
+            }
+            CompiledSchema userPropertySchema = userPropertySchemaRepository.findFirstByOrderByIdAsc()
+                    .map(this::compileUserPropertySchema)
+                    .orElse(null);
+            snapshot = new Snapshot(eventSchemas, userPropertySchema);
+            logger.debug("Schema registry loaded {} event schemas", eventSchemas.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${ingestion.schema.refresh-interval-ms:60000}",
+            initialDelayString = "${ingestion.schema.refresh-interval-ms:60000}")
+    public void scheduledReload() {
+        try {
+            reload();
+        } catch (Exception e) {
+            logger.warn("Periodic schema registry reload failed, keeping the current snapshot: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Adds or replaces the compiled schema of an event after it was saved.
+     */
+    public void putEventSchema(EventSchema eventSchema) {
+        lock.lock();
+        try {
+            Snapshot current = current();
+            Map<String, CompiledSchema> eventSchemas = new HashMap<>(current.eventSchemas);
+            eventSchemas.put(eventSchema.getEventName(), compileEventSchema(eventSchema));
+            snapshot = new Snapshot(eventSchemas, current.userPropertySchema);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the compiled schema of an event after it was deleted or renamed.
+     */
+    public void removeEventSchema(String eventName) {
+        lock.lock();
+        try {
+            Snapshot current = current();
+            Map<String, CompiledSchema> eventSchemas = new HashMap<>(current.eventSchemas);
+            eventSchemas.remove(eventName);
+            snapshot = new Snapshot(eventSchemas, current.userPropertySchema);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the compiled user property schema; null means no schema is defined any more.
+     */
+    public void putUserPropertySchema(UserPropertySchema userPropertySchema) {
+        lock.lock();
+        try {
+            Snapshot current = current();
+            snapshot = new Snapshot(current.eventSchemas,
+                    userPropertySchema == null ? null : compileUserPropertySchema(userPropertySchema));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            lock.lock();
+            try {
+                if (snapshot == null) {
+                    reload();
+                }
+                current = snapshot;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return current;
+    }
+
+    private CompiledSchema compileEventSchema(EventSchema eventSchema) {
+        return CompiledSchema.compile(eventSchema.getParameterSchema(), EVENT_PARAMETER_LABEL, objectMapper);
+    }
+
+    private CompiledSchema compileUserPropertySchema(UserPropertySchema userPropertySchema) {
+        return CompiledSchema.compile(userPropertySchema.getPropertySchema(), USER_PROPERTY_LABEL, objectMapper);
+    }
+
+    private static final class Snapshot {
+        private final Map<String, CompiledSchema> eventSchemas;
+        private final CompiledSchema userPropertySchema;
+        private final SchemaIdMap schemaIdMap;
+
+        private Snapshot(Map<String, CompiledSchema> eventSchemas, CompiledSchema userPropertySchema) {
+            this.eventSchemas = Collections.unmodifiableMap(eventSchemas);
+            this.userPropertySchema = userPropertySchema;
+            this.schemaIdMap = SchemaIdMap.build(eventSchemas, userPropertySchema);
+        }
+    }
+}
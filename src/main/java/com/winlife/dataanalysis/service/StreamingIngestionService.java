@@ -0,0 +1,189 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.dto.StreamIngestProgress;
+import com.winlife.dataanalysis.service.impl.EventStreamParser;
+import com.winlife.dataanalysis.util.BoundedLineReader;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Ingests newline-delimited JSON events of any size with bounded memory.
+ * <p>
+ * Every line holds one event. Lines are read into a reused buffer and parsed, validated and
+ * re-serialized in one pass by {@link EventStreamParser}, then handed to
+ * {@link DataIngestionService#processValidatedGameEvents(List, List)} in fixed-size chunks, so at
+ * most one chunk is held in heap. The next chunk is only read once the previous one is persisted,
+ * which paces the upload to the speed of the database. A malformed line only invalidates itself.
+ * <p>
+ * Every chunk passes {@link IngestionGuard} like a batch request does: events over their device's
+ * or event name's rate limit, and events refused by load shedding, are reported as REJECTED.
+ */
+@Service
+@RequiredArgsConstructor
+public class StreamingIngestionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingIngestionService.class);
+
+    private final DataIngestionService dataIngestionService;
+    private final EventStreamParser eventStreamParser;
+    private final IngestionProperties ingestionProperties;
+    private final IngestionGuard ingestionGuard;
+
+    /**
+     * Reads and ingests all events of the stream.
+     *
+     * @param in               The decompressed NDJSON body.
+     * @param progressListener Called after every chunk with the running totals and that chunk's failures.
+     * @return the final summary; completed is false if the stream could not be read to the end
+     */
+    public StreamIngestProgress ingest(InputStream in, Consumer<StreamIngestProgress> progressListener) {
+        IngestionProperties.Stream config = ingestionProperties.getStream();
+        int chunkSize = Math.max(1, Math.min(config.getChunkSize(), ingestionProperties.getBatch().getMaxEvents()));
+        int maxReportedFailures = config.getMaxReportedFailures();
+
+        StreamIngestProgress summary = new StreamIngestProgress();
+        summary.setType("summary");
+        Chunk chunk = new Chunk(chunkSize);
+        BoundedLineReader lines = new BoundedLineReader(in, Math.max(1, config.getMaxLineBytes()));
+        long position = 0; // 0-based position of the next event in the stream
+
+        try (in) {
+            while (lines.next()) {
+                if (lines.getLineLength() == 0 && !lines.isOversized()) {
+                    continue; // Blank lines separate nothing and are not events
+                }
+                String readError = null;
+                if (lines.isOversized()) {
+                    readError = "Event exceeds " + config.getMaxLineBytes() + " bytes.";
+                } else {
+                    try {
+                        EventStreamParser.ParsedEvent parsed = eventStreamParser.parse(lines.getLine(), lines.getLineLength());
+                        GameEventDTO event = parsed.getEvent();
+                        String validationError = parsed.isValidated() ? parsed.getValidationError() : dataIngestionService.validateGameEvent(event);
+                        chunk.add(event, validationError, position);
+                    } catch (JsonProcessingException e) {
+                        readError = "Unreadable event: " + e.getOriginalMessage();
+                    }
+                }
+                if (readError != null) {
+                    recordFailure(summary, EventIngestResult.of(toIndex(position), EventIngestResult.Status.INVALID, readError), maxReportedFailures);
+                    summary.setInvalid(summary.getInvalid() + 1);
+                }
+                position++;
+                if (chunk.events.size() >= chunkSize) {
+                    processChunk(chunk, position, summary, maxReportedFailures, progressListener);
+                }
+            }
+            if (!chunk.events.isEmpty()) {
+                processChunk(chunk, position, summary, maxReportedFailures, progressListener);
+            }
+            summary.setReceived(position);
+            summary.setCompleted(true);
+        } catch (IOException e) {
+            logger.warn("Event stream aborted after {} events: {}", position, e.getMessage());
+            // Events already read are still worth keeping
+            if (!chunk.events.isEmpty()) {
+                processChunk(chunk, position, summary, maxReportedFailures, progressListener);
+            }
+            summary.setReceived(position);
+            summary.setCompleted(false);
+            summary.setError("Stream aborted after " + position + " events: " + e.getMessage());
+        }
+        return summary;
+    }
+
+    private void processChunk(Chunk chunk, long position, StreamIngestProgress summary, int maxReportedFailures,
+                              Consumer<StreamIngestProgress> progressListener) {
+        IngestionGuard.Admission admission = ingestionGuard.admit(chunk.events);
+        List<GameEventDTO> admitted = admission.getAdmitted();
+        List<EventIngestResult> admittedResults;
+        try {
+            admittedResults = admitted.isEmpty() ? List.of()
+                    : dataIngestionService.processValidatedGameEvents(admitted, admission.selectAdmitted(chunk.validationErrors));
+        } catch (ResponseStatusException e) {
+            // No database write slot became free: nothing of this chunk was stored, report it and go on
+            admittedResults = new ArrayList<>(admitted.size());
+            for (int i = 0; i < admitted.size(); i++) {
+                admittedResults.add(EventIngestResult.of(i, EventIngestResult.Status.FAILED, e.getReason()));
+            }
+        }
+        List<EventIngestResult> results = admission.mergeResults(admittedResults);
+
+        StreamIngestProgress progress = new StreamIngestProgress();
+        progress.setType("progress");
+        for (EventIngestResult result : results) {
+            switch (result.getStatus()) {
+                case ACCEPTED -> summary.setAccepted(summary.getAccepted() + 1);
+                case DEBUG -> summary.setDebug(summary.getDebug() + 1);
+                case INVALID -> summary.setInvalid(summary.getInvalid() + 1);
+                default -> summary.setFailed(summary.getFailed() + 1);
+            }
+            if (result.getStatus() != EventIngestResult.Status.ACCEPTED && result.getStatus() != EventIngestResult.Status.DEBUG) {
+                // Re-base the index from the chunk onto the whole stream
+                EventIngestResult failure = EventIngestResult.of(toIndex(chunk.positions[result.getIndex()]), result.getStatus(), result.getMessage());
+                if (progress.getFailures().size() < maxReportedFailures) {
+                    progress.getFailures().add(failure);
+                }
+                recordFailure(summary, failure, maxReportedFailures);
+            }
+        }
+        chunk.clear();
+        summary.setReceived(position);
+
+        progress.setReceived(summary.getReceived());
+        progress.setAccepted(summary.getAccepted());
+        progress.setDebug(summary.getDebug());
+        progress.setInvalid(summary.getInvalid());
+        progress.setFailed(summary.getFailed());
+        progressListener.accept(progress);
+    }
+
+    private void recordFailure(StreamIngestProgress summary, EventIngestResult failure, int maxReportedFailures) {
+        if (summary.getFailures().size() < maxReportedFailures) {
+            summary.getFailures().add(failure);
+        }
+    }
+
+    private static int toIndex(long position) {
+        return (int) Math.min(position, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Events of the current chunk together with their validation results and positions in the stream.
+     */
+    private static final class Chunk {
+        private final List<GameEventDTO> events;
+        private final List<String> validationErrors;
+        private final long[] positions;
+
+        private Chunk(int capacity) {
+            this.events = new ArrayList<>(capacity);
+            this.validationErrors = new ArrayList<>(capacity);
+            this.positions = new long[capacity];
+        }
+
+        private void add(GameEventDTO event, String validationError, long position) {
+            positions[events.size()] = position;
+            events.add(event);
+            validationErrors.add(validationError);
+        }
+
+        private void clear() {
+            events.clear();
+            validationErrors.clear();
+        }
+    }
+}
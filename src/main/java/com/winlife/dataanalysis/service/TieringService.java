@@ -0,0 +1,191 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventBatchRepository;
+import com.winlife.dataanalysis.repository.PartitionRepository;
+import com.winlife.dataanalysis.service.analysis.ColdEventStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves game_events partitions older than analysis.tiering.hot-days out of MySQL into
+ * {@link ColdEventStore} segments, which event analysis merges with the remaining rows.
+ * <p>
+ * Per partition:
+ * <ol>
+ *     <li>its rows are streamed into a pending segment</li>
+ *     <li>the partition is swapped with an empty table game_events_archive_&lt;partition&gt;_&lt;round&gt;
+ *     (EXCHANGE PARTITION, a metadata change), so late inserts go to the now empty partition</li>
+ *     <li>if the swapped out table does not hold exactly the exported rows (by count, sum and XOR of the
+ *     ids), it is exported again</li>
+ *     <li>the segment is committed, then the swapped out table is dropped</li>
+ *     <li>the emptied partition is merged with the archived partition before it (REORGANIZE PARTITION),
+ *     so the table keeps one leading partition for the archived range; late events that arrived in
+ *     either are kept and archived by the next run</li>
+ * </ol>
+ * Each step can fail without losing or duplicating events: an archive table left behind is exported
+ * (or, if its segment was already committed, dropped) at the start of the next run.
+ * <p>
+ * Between the exchange and the segment commit the partition's rows are in neither game_events nor a
+ * committed segment, so event analysis running in that window does not see them. The window is the
+ * checksum of the swapped out table plus the segment sync, unless the table changed since the export
+ * and is exported again; that happens only when events of the partition arrived during the export.
+ */
+@Service
+public class TieringService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TieringService.class);
+
+    private static final String TABLE = "game_events";
+    private static final String ARCHIVE_TABLE_PREFIX = TABLE + "_archive_";
+
+    private final PartitionRepository partitionRepository;
+    private final EventBatchRepository eventBatchRepository;
+    private final ColdEventStore coldEventStore;
+    private final IngestionProperties ingestionProperties;
+    private final AnalysisProperties analysisProperties;
+    private final MeterRegistry meterRegistry;
+
+    public TieringService(PartitionRepository partitionRepository, EventBatchRepository eventBatchRepository,
+                          ColdEventStore coldEventStore, IngestionProperties ingestionProperties,
+                          AnalysisProperties analysisProperties, MeterRegistry meterRegistry) {
+        this.partitionRepository = partitionRepository;
+        this.eventBatchRepository = eventBatchRepository;
+        this.coldEventStore = coldEventStore;
+        this.ingestionProperties = ingestionProperties;
+        this.analysisProperties = analysisProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.tiering.check-interval-ms:3600000}")
+    public void archiveColdPartitions() {
+        AnalysisProperties.Tiering config = analysisProperties.getTiering();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            recoverArchiveTables();
+            archivePartitions(config, now);
+        } catch (DataAccessException e) {
+            logger.warn("Archiving {} partitions failed: {}", TABLE, e.getMostSpecificCause().getMessage());
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Writing cold segments to {} failed", config.getDirectory(), e);
+        }
+        int retentionDays = ingestionProperties.getPartitioning().getGameEventsRetentionDays();
+        if (retentionDays > 0) {
+            int deleted = coldEventStore.deleteSegmentsBefore(now - retentionDays * 86_400_000L);
+            if (deleted > 0) {
+                meterRegistry.counter("tiering.segments.deleted").increment(deleted);
+                logger.info("Deleted {} cold segments older than {} days", deleted, retentionDays);
+            }
+        }
+    }
+
+    /**
+     * Finishes the runs that stopped between swapping a partition out and dropping its table.
+     */
+    private void recoverArchiveTables() throws IOException {
+        for (String table : partitionRepository.findTablesStartingWith(ARCHIVE_TABLE_PREFIX)) {
+            String suffix = table.substring(ARCHIVE_TABLE_PREFIX.length());
+            int separator = suffix.lastIndexOf('_');
+            if (separator < 0) {
+                continue; // Not one of ours
+            }
+            String segmentName = segmentName(suffix.substring(0, separator), suffix.substring(separator + 1));
+            if (!coldEventStore.hasSegment(segmentName)) {
+                long rows = export(segmentName, table, null, Map.of("source", table));
+                logger.info("Recovered {} rows of {} into segment {}", rows, table, segmentName);
+            }
+            partitionRepository.dropTable(table);
+        }
+    }
+
+    private void archivePartitions(AnalysisProperties.Tiering config, long now) throws IOException {
+        List<PartitionRepository.Partition> partitions = partitionRepository.findPartitions(TABLE);
+        if (partitions.isEmpty() || partitions.get(0).name() == null) {
+            return; // Not created or not partitioned yet, see PartitionManager
+        }
+        long cutoff = now - config.getHotDays() * 86_400_000L;
+        int archived = 0;
+        PartitionRepository.Partition previous = null;
+        for (PartitionRepository.Partition partition : partitions) {
+            if (partition.lessThan() == null || partition.lessThan() > cutoff || archived >= config.getMaxPartitionsPerRun()) {
+                break; // Partitions are in order, the rest are hot
+            }
+            if (partitionRepository.countRows(TABLE, partition.name()) > 0) {
+                archive(partition);
+                archived++;
+            }
+            if (previous != null) {
+                // Both are emptied; unlike a DROP, merging keeps an event inserted since the count
+                partitionRepository.mergePartitions(TABLE, List.of(previous.name(), partition.name()),
+                        new PartitionRepository.Bound(partition.name(), partition.lessThan()));
+            }
+            previous = partition;
+        }
+    }
+
+    private void archive(PartitionRepository.Partition partition) throws IOException {
+        long started = System.currentTimeMillis();
+        String round = Long.toString(started / 1000);
+        String segmentName = segmentName(partition.name(), round);
+        String archiveTable = ARCHIVE_TABLE_PREFIX + partition.name() + "_" + round;
+        Map<String, String> metadata = Map.of("source", TABLE, "partition", partition.name(),
+                "lessThan", Long.toString(partition.lessThan()));
+
+        long rows;
+        try (ColdEventStore.ArchiveWriter archive = coldEventStore.startArchive(segmentName, metadata)) {
+            eventBatchRepository.forEachGameEvent(TABLE, partition.name(), event -> add(archive, event));
+            partitionRepository.createExchangeTable(TABLE, archiveTable);
+            partitionRepository.exchangePartition(TABLE, partition.name(), archiveTable);
+            PartitionRepository.IdChecksum swapped = partitionRepository.checksumIds(archiveTable);
+            rows = swapped.rows();
+            if (swapped.equals(new PartitionRepository.IdChecksum(archive.getRowCount(), archive.getIdSum(), archive.getIdXor()))) {
+                archive.finish();
+                coldEventStore.commit(archive);
+            }
+        }
+        if (!coldEventStore.hasSegment(segmentName)) {
+            // Rows were inserted or deleted between the export and the exchange; the table is stable now
+            rows = export(segmentName, archiveTable, null, metadata);
+        }
+        partitionRepository.dropTable(archiveTable);
+        meterRegistry.counter("tiering.partitions.archived").increment();
+        meterRegistry.counter("tiering.rows.archived").increment(rows);
+        logger.info("Archived {} rows of {} partition {} to segment {} in {} ms", rows, TABLE, partition.name(),
+                segmentName, System.currentTimeMillis() - started);
+    }
+
+    private long export(String segmentName, String table, String partition, Map<String, String> metadata) throws IOException {
+        try (ColdEventStore.ArchiveWriter archive = coldEventStore.startArchive(segmentName, metadata)) {
+            eventBatchRepository.forEachGameEvent(table, partition, event -> add(archive, event));
+            archive.finish();
+            coldEventStore.commit(archive);
+            return archive.getRowCount();
+        }
+    }
+
+    private static void add(ColdEventStore.ArchiveWriter archive, GameEvent event) {
+        try {
+            archive.add(event);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String segmentName(String partition, String round) {
+        return TABLE + "-" + partition + "-" + round;
+    }
+}
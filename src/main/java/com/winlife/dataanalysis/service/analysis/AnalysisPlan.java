@@ -0,0 +1,298 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.FilterCondition;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link EventAnalysisQuery} parsed into what it groups by, what it calculates and how it filters.
+ * <p>
+ * The plan is independent of where the events are stored: {@link AnalysisSql} renders it for MySQL,
+ * {@link RowEvaluator} evaluates it against events read from other stores.
+ * Unsupported attributes and operators are rejected with 400 while parsing.
+ */
+@Getter
+public class AnalysisPlan {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalysisPlan.class);
+
+    public static final String EVENT_COUNT = "eventCount";
+    public static final String UNIQUE_USER_COUNT = "uniqueUserCount";
+    public static final String AVERAGE_COUNT_PER_USER = "averageCountPerUser";
+
+    private final String eventName;
+    private final long startTime;
+    private final long endTime;
+    // Null when the query's time unit is unknown: everything is then aggregated into one row
+    private final Dimension grouping;
+    // In SELECT order; aliases are unique
+    private final List<Measure> measures;
+    private final List<Filter> filters;
+    private final boolean averageCountPerUser;
+    // Distinct counts are estimated with HyperLogLog sketches
+    private final boolean approx;
+
+    private AnalysisPlan(EventAnalysisQuery query, Dimension grouping, List<Measure> measures, List<Filter> filters) {
+        this.eventName = query.getEventName();
+        this.startTime = query.getStartTime();
+        this.endTime = query.getEndTime();
+        this.grouping = grouping;
+        this.measures = Collections.unmodifiableList(measures);
+        this.filters = Collections.unmodifiableList(filters);
+        this.averageCountPerUser = query.getCalculationAttributes().contains(AVERAGE_COUNT_PER_USER);
+        this.approx = Boolean.TRUE.equals(query.getApprox());
+    }
+
+    private AnalysisPlan(AnalysisPlan plan, long startTime, long endTime) {
+        this.eventName = plan.eventName;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.grouping = plan.grouping;
+        this.measures = plan.measures;
+        this.filters = plan.filters;
+        this.averageCountPerUser = plan.averageCountPerUser;
+        this.approx = plan.approx;
+    }
+
+    /**
+     * Parses a query whose event name, time range, grouping and calculations are already known to be present.
+     */
+    public static AnalysisPlan parse(EventAnalysisQuery query) {
+        Dimension grouping = parseGrouping(query.getGroupingAttribute());
+
+        Map<String, Measure> measures = new LinkedHashMap<>();
+        List<String> calculations = query.getCalculationAttributes();
+        // eventCount and uniqueUserCount come first, averageCountPerUser is derived from both
+        boolean average = calculations.contains(AVERAGE_COUNT_PER_USER);
+        if (average || calculations.contains(EVENT_COUNT)) {
+            measures.put(EVENT_COUNT, new Measure(Aggregation.COUNT, null, EVENT_COUNT));
+        }
+        if (average || calculations.contains(UNIQUE_USER_COUNT)) {
+            measures.put(UNIQUE_USER_COUNT, new Measure(Aggregation.DISTINCT_COUNT, Field.USER_ID, UNIQUE_USER_COUNT));
+        }
+        for (String calculation : calculations) {
+            if (calculation.equals(EVENT_COUNT) || calculation.equals(UNIQUE_USER_COUNT) || calculation.equals(AVERAGE_COUNT_PER_USER)) {
+                continue;
+            }
+            Measure measure = parseMeasure(calculation);
+            measures.putIfAbsent(measure.alias(), measure);
+        }
+        if (measures.isEmpty() && grouping == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No valid selection attributes or calculations.");
+        }
+
+        List<Filter> filters = new ArrayList<>();
+        if (query.getGlobalFilters() != null) {
+            for (FilterCondition condition : query.getGlobalFilters()) {
+                filters.add(parseFilter(condition));
+            }
+        }
+        return new AnalysisPlan(query, grouping, new ArrayList<>(measures.values()), filters);
+    }
+
+    private static Dimension parseGrouping(String attribute) {
+        if (attribute.startsWith("time.")) {
+            TimeUnit unit = TimeUnit.of(attribute.substring("time.".length()));
+            return unit == null ? null : new Dimension(unit, null, attribute.replace('.', '_'));
+        }
+        Field field = Field.parse(attribute);
+        if (field == null) {
+            logger.warn("Unsupported grouping attribute: {}", attribute);
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported grouping attribute: " + attribute);
+        }
+        return new Dimension(null, field, attribute.replace('.', '_'));
+    }
+
+    private static Measure parseMeasure(String calculation) {
+        if (calculation.equals("deviceId")) {
+            return new Measure(Aggregation.DISTINCT_COUNT, Field.DEVICE_ID, "uniqueDeviceCount");
+        }
+        for (FieldKind kind : new FieldKind[]{FieldKind.PARAMETER, FieldKind.USER_PROPERTY}) {
+            if (!calculation.startsWith(kind.prefix)) {
+                continue;
+            }
+            String[] parts = calculation.substring(kind.prefix.length()).split("@");
+            String name = parts[0];
+            String type = parts.length > 1 ? parts[1] : "distinctCount";
+            Aggregation aggregation = Aggregation.of(type);
+            if (aggregation == null) {
+                logger.warn("Unsupported {} type: {}", kind == FieldKind.PARAMETER ? "parameter" : "userProperty", type);
+                aggregation = Aggregation.DISTINCT_COUNT;
+            }
+            return new Measure(aggregation, new Field(kind, name), kind.prefix.replace('.', '_') + name + "_" + type);
+        }
+        logger.warn("Unsupported calculation attribute: {}", calculation);
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported calculation attribute: " + calculation);
+    }
+
+    private static Filter parseFilter(FilterCondition condition) {
+        Field field = Field.parse(condition.getAttribute());
+        if (field == null) {
+            logger.warn("Could not determine SQL expression for filter attribute: {}", condition.getAttribute());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported filter attribute: " + condition.getAttribute());
+        }
+        Operator operator = Operator.of(condition.getOperator());
+        if (operator == null) {
+            logger.warn("Unsupported filter operator: {}", condition.getOperator());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported filter operator: " + condition.getOperator());
+        }
+        return new Filter(field, operator, condition.getValue());
+    }
+
+    /**
+     * @return the same plan over [startTime, endTime], for answering parts of the range from different stores
+     */
+    public AnalysisPlan withTimeRange(long startTime, long endTime) {
+        return new AnalysisPlan(this, startTime, endTime);
+    }
+
+    /**
+     * @return every field the plan reads, besides the event header
+     */
+    public List<Field> getReferencedFields() {
+        List<Field> fields = new ArrayList<>();
+        if (grouping != null && grouping.field() != null) {
+            fields.add(grouping.field());
+        }
+        for (Measure measure : measures) {
+            if (measure.field() != null && !fields.contains(measure.field())) {
+                fields.add(measure.field());
+            }
+        }
+        for (Filter filter : filters) {
+            if (!fields.contains(filter.field())) {
+                fields.add(filter.field());
+            }
+        }
+        return fields;
+    }
+
+    public enum FieldKind {
+        PARAMETER("parameter."),
+        USER_PROPERTY("userProperty."),
+        USER_ID(null),
+        DEVICE_ID(null);
+
+        private final String prefix;
+
+        FieldKind(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * A value of an event: a parameter, a user property or one of the id columns.
+     */
+    public record Field(FieldKind kind, String name) {
+        public static final Field USER_ID = new Field(FieldKind.USER_ID, "userId");
+        public static final Field DEVICE_ID = new Field(FieldKind.DEVICE_ID, "deviceId");
+
+        /**
+         * @return the field as written in a query, e.g. parameter.level
+         */
+        public String attribute() {
+            return kind.prefix == null ? name : kind.prefix + name;
+        }
+
+        public static Field parse(String attribute) {
+            if (attribute.startsWith(FieldKind.PARAMETER.prefix)) {
+                return new Field(FieldKind.PARAMETER, attribute.substring(FieldKind.PARAMETER.prefix.length()));
+            }
+            if (attribute.startsWith(FieldKind.USER_PROPERTY.prefix)) {
+                return new Field(FieldKind.USER_PROPERTY, attribute.substring(FieldKind.USER_PROPERTY.prefix.length()));
+            }
+            if (attribute.equals("userId")) {
+                return USER_ID;
+            }
+            if (attribute.equals("deviceId")) {
+                return DEVICE_ID;
+            }
+            return null;
+        }
+    }
+
+    public enum TimeUnit {
+        HOUR(ChronoUnit.HOURS), DAY(ChronoUnit.DAYS), WEEK(ChronoUnit.WEEKS), MONTH(ChronoUnit.MONTHS);
+
+        private final ChronoUnit chronoUnit;
+
+        TimeUnit(ChronoUnit chronoUnit) {
+            this.chronoUnit = chronoUnit;
+        }
+
+        public ChronoUnit chronoUnit() {
+            return chronoUnit;
+        }
+
+        static TimeUnit of(String name) {
+            return switch (name) {
+                case "hour" -> HOUR;
+                case "day" -> DAY;
+                case "week" -> WEEK;
+                case "month" -> MONTH;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * What rows are grouped by: a time bucket of the event timestamp or a field.
+     */
+    public record Dimension(TimeUnit timeUnit, Field field, String alias) {
+    }
+
+    public enum Aggregation {
+        COUNT, DISTINCT_COUNT, SUM, AVG, MAX, MIN;
+
+        static Aggregation of(String type) {
+            return switch (type) {
+                case "distinctCount" -> DISTINCT_COUNT;
+                case "sum" -> SUM;
+                case "avg" -> AVG;
+                case "max" -> MAX;
+                case "min" -> MIN;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * One calculated column; field is null for COUNT.
+     */
+    public record Measure(Aggregation aggregation, Field field, String alias) {
+    }
+
+    public enum Operator {
+        EQ("="), NE("!="), GT(">"), LT("<"), GE(">="), LE("<="),
+        CONTAINS("contains"), NOT_CONTAINS("not contains"), IS_NULL("isNull"), IS_NOT_NULL("isNotNull");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        static Operator of(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+    }
+
+    public record Filter(Field field, Operator operator, Object value) {
+    }
+}
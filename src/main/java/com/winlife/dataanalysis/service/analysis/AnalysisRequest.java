@@ -0,0 +1,139 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.service.AnalysisCancelledException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One client request for event analysis: who asks, how urgent it is, until when the client waits, and the
+ * statements running for it. Several threads may run statements for the same request (the tiles of a dashboard).
+ * <p>
+ * {@link #cancel} stops those statements with {@link Statement#cancel()}, which MySQL Connector/J sends as
+ * KILL QUERY on a separate connection, and fails the statements the request would still start. The deadline
+ * is enforced through each statement's query timeout, which Connector/J also turns into KILL QUERY.
+ */
+public final class AnalysisRequest {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalysisRequest.class);
+
+    /**
+     * In order of admission: a waiting dashboard tile goes before a waiting ad-hoc query.
+     */
+    public enum Priority {
+        DASHBOARD,
+        AD_HOC
+    }
+
+    private final String user;
+    private final Priority priority;
+    private final long deadline; // Epoch millis, Long.MAX_VALUE if the client waits as long as it takes
+
+    // Guarded by this
+    private final Set<Statement> statements = new HashSet<>();
+    private String cancelReason;
+
+    public AnalysisRequest(String user, Priority priority, long deadline) {
+        this.user = user;
+        this.priority = priority;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param timeoutMs how long the client waits for the answer, null or not positive if it did not say
+     */
+    public static AnalysisRequest of(String user, Priority priority, Long timeoutMs) {
+        long deadline = timeoutMs == null || timeoutMs <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+        return new AnalysisRequest(user == null ? "anonymous" : user, priority, deadline);
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return milliseconds until the deadline, at most {@code limitMs}
+     */
+    public long remainingMs(long limitMs) {
+        return deadline == Long.MAX_VALUE ? limitMs : Math.min(limitMs, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * @param limitMs the longest any one statement may run, not positive for no limit
+     * @return the query timeout for a statement started now, in the whole seconds of {@link Statement#setQueryTimeout};
+     *         0 if neither the limit nor a deadline applies
+     * @throws AnalysisCancelledException if the request was cancelled or its deadline passed
+     */
+    public int statementTimeoutSeconds(long limitMs) {
+        checkActive();
+        long remaining = remainingMs(limitMs <= 0 ? Long.MAX_VALUE : limitMs);
+        if (remaining == Long.MAX_VALUE) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            throw new AnalysisCancelledException("The analysis request passed its deadline");
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000);
+    }
+
+    /**
+     * @throws AnalysisCancelledException if the request was cancelled
+     */
+    public synchronized void checkActive() {
+        if (cancelReason != null) {
+            throw new AnalysisCancelledException("The analysis request was cancelled: " + cancelReason);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    /**
+     * Tracks a statement until {@link #unregister}, so a cancel stops it.
+     *
+     * @throws AnalysisCancelledException if the request was cancelled already
+     */
+    public synchronized void register(Statement statement) {
+        checkActive();
+        statements.add(statement);
+    }
+
+    public synchronized void unregister(Statement statement) {
+        statements.remove(statement);
+    }
+
+    /**
+     * Stops the running statements of the request; later ones fail with {@link AnalysisCancelledException}.
+     */
+    public void cancel(String reason) {
+        List<Statement> running;
+        synchronized (this) {
+            if (cancelReason != null) {
+                return;
+            }
+            cancelReason = reason;
+            running = new ArrayList<>(statements);
+        }
+        for (Statement statement : running) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                logger.warn("Could not cancel an analysis statement of {}: {}", user, e.getMessage());
+            }
+        }
+        if (!running.isEmpty()) {
+            logger.info("Cancelled {} analysis statements of {}: {}", running.size(), user, reason);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.FilterCondition;
+import com.winlife.dataanalysis.model.GameEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Results of event analysis queries, keyed by the query in canonical form: calculation attributes and filters
+ * de-duplicated and sorted, filter values by type and text. Dashboards re-run the same saved queries on every
+ * load, for every viewer.
+ * <p>
+ * A result whose range ended before it was computed is closed: it stays until an event in its range is stored
+ * through this node (late data), or analysis.result-cache.closed-ttl-ms at the latest. A result that reaches the
+ * open bucket of now is kept for open-ttl-ms only. A query that is running while an event of its range is stored
+ * does not cache a closed result, it may have missed that event.
+ * <p>
+ * A query grouped by time is also cached per bucket of its grouping, so a rolling window (the last 7 days by
+ * day) only reads the buckets that are open, at the edges of its range, or got late data since they were cached.
+ * <p>
+ * Results are kept as {@link ColumnarResult}s. The cache holds up to max-rows result rows and evicts the least
+ * recently used results beyond that.
+ * Its hits, misses and evictions are the analysis.cache.* metrics of /actuator/metrics.
+ */
+@Component
+public class AnalysisResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalysisResultCache.class);
+
+    private final AnalysisProperties analysisProperties;
+
+    // Least recently used first; guarded by this
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Event name -> closed entries and running loads, the ones stored events invalidate; guarded by this
+    private final Map<String, Set<Key>> closedKeys = new HashMap<>();
+    private final Map<String, Set<Load>> loads = new HashMap<>();
+    private long cachedRows;
+
+    private final Counter queryHits;
+    private final Counter queryMisses;
+    private final Counter bucketHits;
+    private final Counter bucketMisses;
+    private final Counter sizeEvictions;
+    private final Counter expirations;
+    private final Counter invalidations;
+
+    public AnalysisResultCache(AnalysisProperties analysisProperties, MeterRegistry meterRegistry) {
+        this.analysisProperties = analysisProperties;
+        this.queryHits = meterRegistry.counter("analysis.cache.requests", "level", "query", "result", "hit");
+        this.queryMisses = meterRegistry.counter("analysis.cache.requests", "level", "query", "result", "miss");
+        this.bucketHits = meterRegistry.counter("analysis.cache.requests", "level", "bucket", "result", "hit");
+        this.bucketMisses = meterRegistry.counter("analysis.cache.requests", "level", "bucket", "result", "miss");
+        this.sizeEvictions = meterRegistry.counter("analysis.cache.evictions", "cause", "size");
+        this.expirations = meterRegistry.counter("analysis.cache.evictions", "cause", "expired");
+        this.invalidations = meterRegistry.counter("analysis.cache.evictions", "cause", "late-data");
+        Gauge.builder("analysis.cache.entries", this, AnalysisResultCache::size).register(meterRegistry);
+        Gauge.builder("analysis.cache.rows", this, AnalysisResultCache::rows).register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return analysisProperties.getResultCache().isEnabled();
+    }
+
+    /**
+     * @param query  a query that passed validation
+     * @param loader computes the result of a query on a miss, also of queries over parts of the range; its
+     *               exceptions propagate and nothing is cached
+     * @return the cached or computed result
+     */
+    public ColumnarResult get(EventAnalysisQuery query, Function<EventAnalysisQuery, ColumnarResult> loader) {
+        if (!isEnabled()) {
+            return loader.apply(query);
+        }
+        Key key = Key.of(query);
+        ColumnarResult cached = lookup(key, queryHits, queryMisses);
+        if (cached != null) {
+            return cached;
+        }
+        AnalysisPlan.TimeUnit unit = timeUnit(query);
+        return load(key, () -> unit == null ? loader.apply(query) : loadByBucket(query, unit, loader),
+                result -> Map.of(key, result)).get(key);
+    }
+
+    /**
+     * Answers a time grouped query bucket by bucket: the whole closed buckets in its range from the cache, the ones
+     * missing there with a query per run of them, the rest (partial buckets at the ends, the open bucket) with a
+     * query each. Every bucket is a group of its own, so the rows are concatenated in time order, and a bucket's
+     * distinct counts are already final.
+     */
+    private ColumnarResult loadByBucket(EventAnalysisQuery query, AnalysisPlan.TimeUnit unit,
+                                        Function<EventAnalysisQuery, ColumnarResult> loader) {
+        RowEvaluator buckets = new RowEvaluator(AnalysisPlan.parse(query), ZoneId.of(analysisProperties.getTimeZone()));
+        long now = System.currentTimeMillis();
+        List<ColumnarResult> parts = new ArrayList<>();
+        long from = query.getStartTime();
+        buckets.timeKey(from);
+        if (buckets.getBucketStart() < from) {
+            // The range starts within a bucket: that part is read as is
+            long headEnd = Math.min(query.getEndTime(), buckets.getBucketEnd() - 1);
+            parts.add(loader.apply(withRange(query, from, headEnd)));
+            from = headEnd + 1;
+        }
+        // Whole closed buckets: [bucket start, bucket end) -> group key
+        Map<Long, String> missing = new LinkedHashMap<>();
+        long missingEnd = 0;
+        while (from <= query.getEndTime()) {
+            String bucketKey = buckets.timeKey(from);
+            long bucketEnd = buckets.getBucketEnd();
+            if (bucketEnd - 1 > query.getEndTime() || bucketEnd > now) {
+                break;
+            }
+            ColumnarResult cached = lookup(Key.of(withRange(query, from, bucketEnd - 1)), bucketHits, bucketMisses);
+            if (cached == null) {
+                missing.put(from, bucketKey);
+                missingEnd = bucketEnd;
+            } else {
+                loadMissing(query, missing, missingEnd, loader, parts);
+                missing.clear();
+                parts.add(cached);
+            }
+            from = bucketEnd;
+        }
+        loadMissing(query, missing, missingEnd, loader, parts);
+        if (from <= query.getEndTime()) {
+            parts.add(loader.apply(withRange(query, from, query.getEndTime())));
+        }
+        return ColumnarResult.concat(parts);
+    }
+
+    /**
+     * Reads a run of consecutive whole buckets with one query, adds its result to the parts and caches each
+     * bucket's rows.
+     *
+     * @param bucketKeys bucket start -> group key, in time order
+     * @param end        end of the last bucket, exclusive
+     */
+    private void loadMissing(EventAnalysisQuery query, Map<Long, String> bucketKeys, long end,
+                             Function<EventAnalysisQuery, ColumnarResult> loader, List<ColumnarResult> parts) {
+        if (bucketKeys.isEmpty()) {
+            return;
+        }
+        long start = bucketKeys.keySet().iterator().next();
+        String alias = query.getGroupingAttribute().replace('.', '_');
+        load(Key.of(withRange(query, start, end - 1)), () -> {
+            ColumnarResult run = loader.apply(withRange(query, start, end - 1));
+            parts.add(run);
+            return run;
+        }, run -> {
+            int column = run.indexOf(alias);
+            Map<String, List<Integer>> byGroupKey = new HashMap<>();
+            for (int row = 0; column >= 0 && row < run.getRowCount(); row++) {
+                byGroupKey.computeIfAbsent(String.valueOf(run.get(row, column)), k -> new ArrayList<>()).add(row);
+            }
+            if (column < 0 || !bucketKeys.values().containsAll(byGroupKey.keySet())) {
+                logger.warn("Buckets of {} do not match analysis.time-zone {}, not caching them", alias, analysisProperties.getTimeZone());
+                return Map.of();
+            }
+            // A bucket without events has no row, and is cached as such
+            Map<Key, ColumnarResult> split = new LinkedHashMap<>();
+            List<Long> starts = new ArrayList<>(bucketKeys.keySet());
+            for (int i = 0; i < starts.size(); i++) {
+                long bucketEnd = i + 1 < starts.size() ? starts.get(i + 1) : end;
+                List<Integer> rows = byGroupKey.getOrDefault(bucketKeys.get(starts.get(i)), List.of());
+                split.put(Key.of(withRange(query, starts.get(i), bucketEnd - 1)),
+                        run.select(rows.stream().mapToInt(Integer::intValue).toArray()));
+            }
+            return split;
+        });
+    }
+
+    /**
+     * Computes a result with the range of {@code key} registered as loading, then caches it in one or more parts.
+     *
+     * @param split the result's parts by key, each one within the range of {@code key}
+     */
+    private <T> Map<Key, ColumnarResult> load(Key key, Supplier<T> compute, Function<T, Map<Key, ColumnarResult>> split) {
+        long now = System.currentTimeMillis();
+        Load load = new Load(key);
+        synchronized (this) {
+            loads.computeIfAbsent(key.eventName(), name -> new HashSet<>()).add(load);
+        }
+        Map<Key, ColumnarResult> parts;
+        try {
+            parts = split.apply(compute.get());
+        } finally {
+            synchronized (this) {
+                removeFrom(loads, key.eventName(), load);
+            }
+        }
+        parts.forEach((part, result) -> put(part, result, part.endTime() < now, load.stale));
+        return parts;
+    }
+
+    /**
+     * @return the cached result, null if there is none or it expired
+     */
+    private synchronized ColumnarResult lookup(Key key, Counter hits, Counter misses) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+            hits.increment();
+            return entry.result;
+        }
+        if (entry != null) {
+            remove(key);
+            expirations.increment();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Drops the closed results the just stored events belong to. Call after the events are committed.
+     */
+    public void invalidate(Collection<GameEvent> events) {
+        if (!isEnabled() || events.isEmpty()) {
+            return;
+        }
+        Map<String, List<Long>> timestamps = new HashMap<>();
+        for (GameEvent event : events) {
+            // Analysis only counts events with a user id
+            if (event.getUserId() != null) {
+                timestamps.computeIfAbsent(event.getEventName(), name -> new ArrayList<>()).add(event.getTimestamp());
+            }
+        }
+        synchronized (this) {
+            timestamps.forEach((eventName, list) -> {
+                long[] sorted = list.stream().mapToLong(Long::longValue).sorted().toArray();
+                for (Load load : loads.getOrDefault(eventName, Set.of())) {
+                    if (containsAny(sorted, load.key.startTime(), load.key.endTime())) {
+                        load.stale = true;
+                    }
+                }
+                Set<Key> closed = closedKeys.get(eventName);
+                if (closed == null) {
+                    return;
+                }
+                for (Key key : new ArrayList<>(closed)) {
+                    if (containsAny(sorted, key.startTime(), key.endTime())) {
+                        remove(key);
+                        invalidations.increment();
+                    }
+                }
+            });
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long rows() {
+        return cachedRows;
+    }
+
+    private synchronized void put(Key key, ColumnarResult result, boolean closed, boolean stale) {
+        AnalysisProperties.ResultCache config = analysisProperties.getResultCache();
+        long weight = result.getRowCount() + 1L;
+        if (closed && stale || weight > config.getMaxRows()) {
+            return;
+        }
+        remove(key);
+        long ttl = closed ? config.getClosedTtlMs() : config.getOpenTtlMs();
+        entries.put(key, new Entry(result, System.currentTimeMillis() + ttl, weight, closed));
+        cachedRows += weight;
+        if (closed) {
+            closedKeys.computeIfAbsent(key.eventName(), name -> new HashSet<>()).add(key);
+        }
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedRows > config.getMaxRows() && eldest.hasNext()) {
+            Map.Entry<Key, Entry> evicted = eldest.next();
+            eldest.remove();
+            forget(evicted.getKey(), evicted.getValue());
+            sizeEvictions.increment();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            forget(key, entry);
+        }
+    }
+
+    private void forget(Key key, Entry entry) {
+        cachedRows -= entry.weight;
+        if (entry.closed) {
+            removeFrom(closedKeys, key.eventName(), key);
+        }
+    }
+
+    private static <T> void removeFrom(Map<String, Set<T>> index, String eventName, T value) {
+        Set<T> values = index.get(eventName);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            index.remove(eventName);
+        }
+    }
+
+    /**
+     * @return whether a timestamp of the sorted array lies in [start, end]
+     */
+    private static boolean containsAny(long[] sorted, long start, long end) {
+        int i = Arrays.binarySearch(sorted, start);
+        int insertion = i >= 0 ? i : -i - 1;
+        return insertion < sorted.length && sorted[insertion] <= end;
+    }
+
+    /**
+     * @return the unit of the query's time grouping, null if it does not group by time
+     */
+    private static AnalysisPlan.TimeUnit timeUnit(EventAnalysisQuery query) {
+        String grouping = query.getGroupingAttribute();
+        return grouping.startsWith("time.") ? AnalysisPlan.TimeUnit.of(grouping.substring("time.".length())) : null;
+    }
+
+    private static EventAnalysisQuery withRange(EventAnalysisQuery query, long startTime, long endTime) {
+        return new EventAnalysisQuery(startTime, endTime, query.getEventName(), query.getCalculationAttributes(),
+                query.getGroupingAttribute(), query.getGlobalFilters(), query.getApprox());
+    }
+
+    private record Entry(ColumnarResult result, long expiresAt, long weight, boolean closed) {
+    }
+
+    private static final class Load {
+        private final Key key;
+        private boolean stale; // Guarded by the cache
+
+        private Load(Key key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A query in canonical form. The time range is kept as is: both bounds are part of the result.
+     */
+    record Key(String eventName, long startTime, long endTime, String grouping, List<String> calculations,
+               List<String> filters, boolean approx) {
+
+        static Key of(EventAnalysisQuery query) {
+            List<String> filters = new ArrayList<>();
+            if (query.getGlobalFilters() != null) {
+                // Filters are ANDed: their order and repetitions do not change the result
+                Set<String> sorted = new TreeSet<>();
+                for (FilterCondition filter : query.getGlobalFilters()) {
+                    sorted.add(filter.getAttribute() + '\u0000' + filter.getOperator() + '\u0000' + canonicalValue(filter.getValue()));
+                }
+                filters.addAll(sorted);
+            }
+            return new Key(query.getEventName(), query.getStartTime(), query.getEndTime(), query.getGroupingAttribute(),
+                    List.copyOf(new TreeSet<>(query.getCalculationAttributes())), filters, Boolean.TRUE.equals(query.getApprox()));
+        }
+
+        /**
+         * Numbers and text filter differently (see {@link AnalysisSql}), so the type is part of the value.
+         */
+        private static String canonicalValue(Object value) {
+            if (value == null) {
+                return "null";
+            }
+            if (value instanceof Number || value instanceof String || value instanceof Boolean) {
+                String type = value instanceof Number ? "number" : value instanceof String ? "string" : "boolean";
+                return type + ':' + value;
+            }
+            return value.getClass().getName() + ':' + value;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import java.util.List;
+
+/**
+ * Receives the rows of a streamed event analysis one at a time.
+ */
+@FunctionalInterface
+public interface AnalysisRowWriter {
+
+    /**
+     * @param aliases the column names, the same list for every row of a streamed query
+     * @param values  the row's values by column; the array may be reused for the next row, so it is only
+     *                valid during the call
+     */
+    void write(List<String> aliases, Object[] values);
+}
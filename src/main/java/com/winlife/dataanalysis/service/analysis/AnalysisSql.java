@@ -0,0 +1,324 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.service.CompiledSchema;
+import com.winlife.dataanalysis.util.HyperLogLog;
+import lombok.Getter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Native MySQL query over game_events for an {@link AnalysisPlan}, with its named parameters and
+ * the alias of each selected column.
+ */
+@Getter
+public class AnalysisSql {
+
+    // Column of the partial query counting the group's rows, see partial()
+    public static final String ROW_COUNT_ALIAS = "rowCount";
+
+    private final String sql;
+    private final Map<String, Object> parameters;
+    private final List<String> aliases;
+
+    private AnalysisSql(String sql, Map<String, Object> parameters, List<String> aliases) {
+        this.sql = sql;
+        this.parameters = Collections.unmodifiableMap(parameters);
+        this.aliases = Collections.unmodifiableList(aliases);
+    }
+
+    /**
+     * The query answering the plan, one row per group with the measures as aliased columns.
+     * Filters and grouping read the promoted columns where they give the same result as their JSON fields.
+     */
+    public static AnalysisSql of(AnalysisPlan plan, PromotedColumns columns) {
+        List<String> selectExpressions = new ArrayList<>();
+        List<String> aliases = new ArrayList<>();
+        String grouping = groupingExpression(plan.getGrouping(), columns);
+        if (grouping != null) {
+            selectExpressions.add(grouping + " AS " + plan.getGrouping().alias());
+            aliases.add(plan.getGrouping().alias());
+        }
+        for (AnalysisPlan.Measure measure : plan.getMeasures()) {
+            selectExpressions.add(measureExpression(measure) + " AS " + measure.alias());
+            aliases.add(measure.alias());
+        }
+
+        Map<String, Object> parameters = new HashMap<>();
+        StringBuilder sql = new StringBuilder("SELECT ").append(String.join(", ", selectExpressions));
+        appendFromWhere(sql, plan, columns, parameters);
+
+        if (grouping != null) {
+            sql.append(" GROUP BY ").append(grouping);
+            sql.append(" ORDER BY ").append(grouping).append(" ASC");
+        } else {
+            // Without grouping order by the first calculation that is not a count, or by eventCount
+            Optional<String> firstCalcAlias = aliases.stream()
+                    .filter(alias -> !alias.equals(AnalysisPlan.EVENT_COUNT) && !alias.equals(AnalysisPlan.UNIQUE_USER_COUNT))
+                    .findFirst();
+            if (firstCalcAlias.isPresent()) {
+                sql.append(" ORDER BY ").append(firstCalcAlias.get()).append(" ASC");
+            } else if (aliases.contains(AnalysisPlan.EVENT_COUNT)) {
+                sql.append(" ORDER BY ").append(AnalysisPlan.EVENT_COUNT).append(" ASC");
+            }
+        }
+        return new AnalysisSql(sql.toString(), parameters, aliases);
+    }
+
+    /**
+     * The plan's aggregates in a form that can be merged with aggregates computed elsewhere:
+     * the group key (if grouped), rowCount, then per measure COUNT: nothing (rowCount is the count),
+     * SUM: the sum, AVG: the sum and the count of values, MAX/MIN: the extreme.
+     * DISTINCT_COUNT measures are not part of it, their values come from {@link #distinctValues}.
+     */
+    public static AnalysisSql partial(AnalysisPlan plan, PromotedColumns columns) {
+        List<String> selectExpressions = new ArrayList<>();
+        List<String> aliases = new ArrayList<>();
+        String grouping = groupingExpression(plan.getGrouping(), columns);
+        if (grouping != null) {
+            selectExpressions.add(grouping + " AS " + plan.getGrouping().alias());
+            aliases.add(plan.getGrouping().alias());
+        }
+        selectExpressions.add("COUNT(*) AS " + ROW_COUNT_ALIAS);
+        aliases.add(ROW_COUNT_ALIAS);
+        for (AnalysisPlan.Measure measure : plan.getMeasures()) {
+            String json = measure.field() == null ? null : jsonExpression(measure.field());
+            switch (measure.aggregation()) {
+                case SUM -> {
+                    selectExpressions.add("SUM(" + json + ") AS " + measure.alias());
+                    aliases.add(measure.alias());
+                }
+                case AVG -> {
+                    selectExpressions.add("SUM(" + json + ") AS " + measure.alias() + "_sum");
+                    selectExpressions.add("COUNT(" + json + ") AS " + measure.alias() + "_count");
+                    aliases.add(measure.alias() + "_sum");
+                    aliases.add(measure.alias() + "_count");
+                }
+                case MAX, MIN -> {
+                    selectExpressions.add(measureExpression(measure) + " AS " + measure.alias());
+                    aliases.add(measure.alias());
+                }
+                default -> {
+                    // COUNT is rowCount, DISTINCT_COUNT is fetched by distinctValues
+                }
+            }
+        }
+
+        Map<String, Object> parameters = new HashMap<>();
+        StringBuilder sql = new StringBuilder("SELECT ").append(String.join(", ", selectExpressions));
+        appendFromWhere(sql, plan, columns, parameters);
+        if (grouping != null) {
+            sql.append(" GROUP BY ").append(grouping);
+        }
+        return new AnalysisSql(sql.toString(), parameters, aliases);
+    }
+
+    /**
+     * The distinct (group key, value) pairs of a DISTINCT_COUNT measure; a count distinct can only be
+     * merged from the values themselves.
+     */
+    public static AnalysisSql distinctValues(AnalysisPlan plan, AnalysisPlan.Measure measure, PromotedColumns columns) {
+        List<String> selectExpressions = new ArrayList<>();
+        List<String> aliases = new ArrayList<>();
+        String grouping = groupingExpression(plan.getGrouping(), columns);
+        if (grouping != null) {
+            selectExpressions.add(grouping + " AS " + plan.getGrouping().alias());
+            aliases.add(plan.getGrouping().alias());
+        }
+        String value = textExpression(measure.field());
+        selectExpressions.add(value + " AS distinctValue");
+        aliases.add("distinctValue");
+
+        Map<String, Object> parameters = new HashMap<>();
+        StringBuilder sql = new StringBuilder("SELECT DISTINCT ").append(String.join(", ", selectExpressions));
+        appendFromWhere(sql, plan, columns, parameters);
+        sql.append(" AND ").append(value).append(" IS NOT NULL");
+        return new AnalysisSql(sql.toString(), parameters, aliases);
+    }
+
+    /**
+     * The HyperLogLog registers of a DISTINCT_COUNT measure per group: at most 2^{@link HyperLogLog#PRECISION}
+     * small rows per group, however many distinct values it has.
+     */
+    public static AnalysisSql sketchRegisters(AnalysisPlan plan, AnalysisPlan.Measure measure, PromotedColumns columns) {
+        String grouping = groupingExpression(plan.getGrouping(), columns);
+        String value = textExpression(measure.field());
+        Map<String, Object> parameters = new HashMap<>();
+        StringBuilder hashed = new StringBuilder("SELECT ");
+        if (grouping != null) {
+            hashed.append(grouping).append(" AS ").append(plan.getGrouping().alias()).append(", ");
+        }
+        hashed.append(HyperLogLog.sqlHash(value)).append(" AS valueHash");
+        appendFromWhere(hashed, plan, columns, parameters);
+        hashed.append(" AND ").append(value).append(" IS NOT NULL");
+
+        List<String> aliases = new ArrayList<>();
+        String groupBy = "sketchRegister";
+        if (grouping != null) {
+            aliases.add(plan.getGrouping().alias());
+            groupBy = plan.getGrouping().alias() + ", " + groupBy;
+        }
+        aliases.add("sketchRegister");
+        aliases.add("sketchRank");
+        String sql = "SELECT " + (grouping != null ? plan.getGrouping().alias() + ", " : "")
+                + HyperLogLog.sqlRegister("valueHash") + " AS sketchRegister, MAX(" + HyperLogLog.sqlRank("valueHash")
+                + ") AS sketchRank FROM (" + hashed + ") hashed GROUP BY " + groupBy;
+        return new AnalysisSql(sql, parameters, aliases);
+    }
+
+    private static void appendFromWhere(StringBuilder sql, AnalysisPlan plan, PromotedColumns columns, Map<String, Object> parameters) {
+        sql.append(" FROM game_events ge");
+
+        List<String> whereConditions = new ArrayList<>();
+        whereConditions.add("ge.user_id IS NOT NULL");
+        // Compare timestamp (milliseconds epoch) directly assuming DB column is numeric or compatible.
+        // Keep the bare column on the left: game_events is RANGE partitioned on it, so MySQL then only reads the partitions of the range
+        whereConditions.add("ge.timestamp >= :startTime");
+        whereConditions.add("ge.timestamp <= :endTime");
+        whereConditions.add("ge.event_name = :eventName");
+        parameters.put("startTime", plan.getStartTime());
+        parameters.put("endTime", plan.getEndTime());
+        parameters.put("eventName", plan.getEventName());
+
+        int filterParamIndex = 0;
+        for (AnalysisPlan.Filter filter : plan.getFilters()) {
+            // Parameter name for filter value binding
+            String paramName = "filterValue" + filterParamIndex++;
+            String condition = filterCondition(filter, textExpression(filter.field()), false, paramName);
+            PromotedColumns.Column column = columns.get(filter.field());
+            String promoted = column == null ? null : promotedFilterCondition(filter, column, paramName);
+            if (promoted != null) {
+                // The column is NULL where the JSON value does not fit it (JSON null, too long, not a number), so those
+                // rows keep the JSON condition; MySQL still reads the column's index for "= :v OR IS NULL"
+                condition = "(" + promoted + " OR (ge." + column.name() + " IS NULL AND " + condition + "))";
+            }
+            whereConditions.add(condition);
+            if (filter.operator() == AnalysisPlan.Operator.CONTAINS || filter.operator() == AnalysisPlan.Operator.NOT_CONTAINS) {
+                parameters.put(paramName, escapeLikeValue(filter.value()));
+            } else if (filter.operator() != AnalysisPlan.Operator.IS_NULL && filter.operator() != AnalysisPlan.Operator.IS_NOT_NULL) {
+                parameters.put(paramName, filter.value()); // A Number for <, >, ...
+            }
+        }
+        sql.append(" WHERE ").append(String.join(" AND ", whereConditions));
+    }
+
+    /**
+     * The filter on an expression giving the field as text, or as a number if numeric is set.
+     * NOTE: the comparisons assume a type (numeric for <, >, ...); the schema does not drive them yet
+     */
+    private static String filterCondition(AnalysisPlan.Filter filter, String attribute, boolean numeric, String paramName) {
+        String decimal = numeric ? attribute : "CAST(" + attribute + " AS DECIMAL)";
+        return switch (filter.operator()) {
+            case EQ -> attribute + " = :" + paramName;
+            case NE -> attribute + " != :" + paramName;
+            case GT -> decimal + " > :" + paramName;
+            case LT -> decimal + " < :" + paramName;
+            case GE -> decimal + " >= :" + paramName;
+            case LE -> decimal + " <= :" + paramName;
+            case CONTAINS -> attribute + " LIKE CONCAT('%', :" + paramName + ", '%')";
+            case NOT_CONTAINS -> attribute + " NOT LIKE CONCAT('%', :" + paramName + ", '%')";
+            case IS_NULL -> attribute + " IS NULL";
+            case IS_NOT_NULL -> attribute + " IS NOT NULL";
+        };
+    }
+
+    /**
+     * The filter on the promoted column, for the rows where the column is not NULL; null where the column cannot
+     * give the JSON condition's result. A STRING column then holds exactly the field's text. An INTEGER column
+     * holds the number of a text like 5, 5.0 or "5": it compares like the text with numbers, but not with texts.
+     * Null checks always read the JSON, which a NULL column does not tell apart from JSON null.
+     */
+    private static String promotedFilterCondition(AnalysisPlan.Filter filter, PromotedColumns.Column column, String paramName) {
+        if (filter.operator() == AnalysisPlan.Operator.IS_NULL || filter.operator() == AnalysisPlan.Operator.IS_NOT_NULL) {
+            return null;
+        }
+        String attribute = "ge." + column.name();
+        if (column.type() == CompiledSchema.ValueType.STRING) {
+            return filterCondition(filter, attribute, false, paramName);
+        }
+        return switch (filter.operator()) {
+            case EQ, NE -> isWholeNumber(filter.value()) ? filterCondition(filter, attribute, true, paramName) : null;
+            case GT, LT, GE, LE -> filterCondition(filter, attribute, true, paramName);
+            default -> null;
+        };
+    }
+
+    private static boolean isWholeNumber(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger;
+    }
+
+    /**
+     * Grouping expression, cast to CHAR for time buckets so they group and order as strings; null without grouping.
+     */
+    static String groupingExpression(AnalysisPlan.Dimension grouping, PromotedColumns columns) {
+        if (grouping == null) {
+            return null;
+        }
+        if (grouping.timeUnit() == null) {
+            PromotedColumns.Column column = columns.get(grouping.field());
+            if (column == null || column.type() != CompiledSchema.ValueType.STRING) {
+                // An INTEGER column printed as text differs from the JSON text for 5.0 or "5"
+                return textExpression(grouping.field());
+            }
+            return "COALESCE(ge." + column.name() + ", " + textExpression(grouping.field()) + ")";
+        }
+        String expression = switch (grouping.timeUnit()) {
+            case DAY -> "DATE(FROM_UNIXTIME(ge.timestamp / 1000))"; // Format as YYYY-MM-DD
+            case WEEK -> "DATE_FORMAT(FROM_UNIXTIME(ge.timestamp / 1000), '%X-%V')"; // Year-Week format
+            case MONTH -> "DATE_FORMAT(FROM_UNIXTIME(ge.timestamp / 1000), '%Y-%m')"; // Year-Month format
+            case HOUR -> "DATE_FORMAT(FROM_UNIXTIME(ge.timestamp / 1000), '%Y-%m-%d %H:00')"; // Year-Month-Day Hour:00 format
+        };
+        return "CAST(" + expression + " AS CHAR)";
+    }
+
+    static String measureExpression(AnalysisPlan.Measure measure) {
+        return switch (measure.aggregation()) {
+            case COUNT -> "COUNT(*)";
+            case DISTINCT_COUNT -> "COUNT(DISTINCT " + textExpression(measure.field()) + ")";
+            case SUM -> "SUM(" + jsonExpression(measure.field()) + ")";
+            case AVG -> "AVG(" + jsonExpression(measure.field()) + ")";
+            case MAX -> "MAX(" + jsonExpression(measure.field()) + ")";
+            case MIN -> "MIN(" + jsonExpression(measure.field()) + ")";
+        };
+    }
+
+    /**
+     * The field as text: JSON strings unquoted, SQL NULL when a JSON key is missing. Also used by the
+     * rollup rebuild, which reads game_events as ge too.
+     */
+    public static String textExpression(AnalysisPlan.Field field) {
+        return switch (field.kind()) {
+            case PARAMETER, USER_PROPERTY -> "JSON_UNQUOTE(" + jsonExpression(field) + ")";
+            case USER_ID -> "ge.user_id";
+            case DEVICE_ID -> "ge.device_id";
+        };
+    }
+
+    /**
+     * The field as a JSON value, for the numeric aggregations.
+     */
+    static String jsonExpression(AnalysisPlan.Field field) {
+        return switch (field.kind()) {
+            case PARAMETER -> "JSON_EXTRACT(ge.parameters, '$.\"" + field.name() + "\"')";
+            case USER_PROPERTY -> "JSON_EXTRACT(ge.user_properties, '$.\"" + field.name() + "\"')";
+            case USER_ID -> "ge.user_id";
+            case DEVICE_ID -> "ge.device_id";
+        };
+    }
+
+    // Escapes %, _ and \ for LIKE
+    private static String escapeLikeValue(Object value) {
+        if (value == null) return "";
+        String strValue = value.toString();
+        strValue = strValue.replace("\\", "\\\\");
+        strValue = strValue.replace("%", "\\%");
+        strValue = strValue.replace("_", "\\_");
+        return strValue;
+    }
+}
@@ -0,0 +1,398 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.util.ColumnarSegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+/**
+ * Archived game_events in local {@link ColumnarSegment} files, one per exported partition.
+ * <p>
+ * The header fields are columns of their own (id, timestamp, event_id, user_id, device_id, event_name),
+ * every parameter and user property key becomes a column "p.key" / "u.key". Queries only decode the
+ * row groups whose timestamp range overlaps theirs and whose event_name dictionary holds their event,
+ * and of those only the columns the plan reads.
+ * <p>
+ * A segment is written as *.seg.pending and only becomes visible to queries with {@link #commit}.
+ */
+@Component
+public class ColdEventStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ColdEventStore.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String PENDING_SUFFIX = ".seg.pending";
+    private static final String PARAMETER_PREFIX = "p.";
+    private static final String USER_PROPERTY_PREFIX = "u.";
+
+    private final AnalysisProperties analysisProperties;
+    private final JsonFactory jsonFactory;
+    private final Path directory;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    public ColdEventStore(AnalysisProperties analysisProperties, ObjectMapper objectMapper) {
+        this.analysisProperties = analysisProperties;
+        this.jsonFactory = objectMapper.getFactory();
+        this.directory = Paths.get(analysisProperties.getTiering().getDirectory());
+        loadSegments();
+    }
+
+    /**
+     * One committed segment file.
+     */
+    public record Segment(Path path, String name, long minTimestamp, long maxTimestamp, ColumnarSegment.Footer footer) {
+    }
+
+    public List<Segment> getSegments() {
+        return List.copyOf(segments);
+    }
+
+    public boolean hasSegment(String name) {
+        return segments.stream().anyMatch(segment -> segment.name().equals(name));
+    }
+
+    /**
+     * @return the segments that may hold events of the plan's event within its time range
+     */
+    public List<Segment> findSegments(AnalysisPlan plan) {
+        List<Segment> found = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.maxTimestamp() < plan.getStartTime() || segment.minTimestamp() > plan.getEndTime()) {
+                continue;
+            }
+            for (ColumnarSegment.RowGroup rowGroup : segment.footer().rowGroups()) {
+                if (mayMatch(rowGroup, plan)) {
+                    found.add(segment);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Aggregates the matching events of the segments into the aggregation.
+     *
+     * @throws UncheckedIOException if a segment cannot be read
+     */
+    public void scan(List<Segment> toScan, RowEvaluator evaluator, GroupedAggregation aggregation) {
+        AnalysisPlan plan = evaluator.getPlan();
+        List<AnalysisPlan.Field> fields = plan.getReferencedFields();
+        for (Segment segment : toScan) {
+            try (ColumnarSegment.Reader reader = ColumnarSegment.Reader.open(segment.path(), segment.footer())) {
+                for (ColumnarSegment.RowGroup rowGroup : segment.footer().rowGroups()) {
+                    if (mayMatch(rowGroup, plan)) {
+                        scanRowGroup(reader, rowGroup, fields, evaluator, aggregation);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read archived events from " + segment.path(), e);
+            }
+        }
+    }
+
+    private void scanRowGroup(ColumnarSegment.Reader reader, ColumnarSegment.RowGroup rowGroup, List<AnalysisPlan.Field> fields,
+                              RowEvaluator evaluator, GroupedAggregation aggregation) throws IOException {
+        ColumnarSegment.ValueColumn eventNames = reader.readValues(rowGroup, "event_name");
+        int eventNameIndex = eventNames == null ? -1 : eventNames.indexOf(evaluator.getPlan().getEventName());
+        ColumnarSegment.ValueColumn userIds = reader.readValues(rowGroup, "user_id");
+        if (eventNameIndex < 0 || userIds == null) {
+            return;
+        }
+        SegmentRow row = new SegmentRow(reader.readLongs(rowGroup, "timestamp"), eventNames, userIds);
+        for (AnalysisPlan.Field field : fields) {
+            switch (field.kind()) {
+                case DEVICE_ID -> row.deviceIds = reader.readValues(rowGroup, "device_id");
+                case PARAMETER -> row.parameters.put(field.name(), reader.readValues(rowGroup, PARAMETER_PREFIX + field.name()));
+                case USER_PROPERTY -> row.userProperties.put(field.name(), reader.readValues(rowGroup, USER_PROPERTY_PREFIX + field.name()));
+                default -> {
+                }
+            }
+        }
+        for (int i = 0; i < rowGroup.rowCount(); i++) {
+            if (eventNames.indexAt(i) != eventNameIndex) {
+                continue;
+            }
+            row.index = i;
+            if (evaluator.matches(row)) {
+                aggregation.add(evaluator.groupKey(row), row);
+            }
+        }
+    }
+
+    private static boolean mayMatch(ColumnarSegment.RowGroup rowGroup, AnalysisPlan plan) {
+        ColumnarSegment.ColumnMeta timestamps = rowGroup.columns().get("timestamp");
+        if (timestamps == null || timestamps.maxLong() < plan.getStartTime() || timestamps.minLong() > plan.getEndTime()) {
+            return false;
+        }
+        ColumnarSegment.ColumnMeta eventNames = rowGroup.columns().get("event_name");
+        return eventNames != null && (eventNames.dictionary() == null || eventNames.dictionary().contains(plan.getEventName()));
+    }
+
+    /**
+     * Starts writing the segment of the given name; nothing is visible before {@link #commit}.
+     */
+    public ArchiveWriter startArchive(String name, Map<String, String> metadata) throws IOException {
+        Files.createDirectories(directory);
+        Path pending = directory.resolve(name + PENDING_SUFFIX);
+        return new ArchiveWriter(name, pending, new ColumnarSegment.Writer(pending, analysisProperties.getTiering().getRowGroupSize(), metadata));
+    }
+
+    /**
+     * Makes a finished archive visible to queries. The rename is synced before this returns, so the
+     * archived rows can be dropped from MySQL: after a crash the segment is there, not the pending file.
+     */
+    public void commit(ArchiveWriter archive) throws IOException {
+        Path target = directory.resolve(archive.name + SEGMENT_SUFFIX);
+        Files.move(archive.pending, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        addSegment(target);
+    }
+
+    /**
+     * Deletes the segments whose events are all older than the cutoff.
+     *
+     * @return how many were deleted
+     */
+    public synchronized int deleteSegmentsBefore(long cutoff) {
+        int deleted = 0;
+        for (Segment segment : segments) {
+            if (segment.maxTimestamp() >= cutoff) {
+                continue;
+            }
+            segments.remove(segment); // Invisible to new queries; running scans keep their open file
+            try {
+                Files.deleteIfExists(segment.path());
+                deleted++;
+            } catch (IOException e) {
+                logger.warn("Failed to delete expired segment {}", segment.path(), e);
+            }
+        }
+        return deleted;
+    }
+
+    public ZoneId getZone() {
+        return ZoneId.of(analysisProperties.getTimeZone());
+    }
+
+    private void loadSegments() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.sorted().toList()) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(PENDING_SUFFIX)) {
+                    // An export that did not finish: its rows are still in MySQL
+                    Files.deleteIfExists(file);
+                } else if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        addSegment(file);
+                    } catch (IOException e) {
+                        logger.error("Skipping unreadable segment {}", file, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list segments in " + directory, e);
+        }
+        logger.info("Loaded {} cold segments from {}", segments.size(), directory);
+    }
+
+    private synchronized void addSegment(Path file) throws IOException {
+        ColumnarSegment.Footer footer = ColumnarSegment.readFooter(file);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (ColumnarSegment.RowGroup rowGroup : footer.rowGroups()) {
+            ColumnarSegment.ColumnMeta timestamps = rowGroup.columns().get("timestamp");
+            if (timestamps != null) {
+                min = Math.min(min, timestamps.minLong());
+                max = Math.max(max, timestamps.maxLong());
+            }
+        }
+        String fileName = file.getFileName().toString();
+        Segment segment = new Segment(file, fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()), min, max, footer);
+        segments.removeIf(existing -> existing.path().equals(file));
+        segments.add(segment);
+        segments.sort(Comparator.comparingLong(Segment::minTimestamp));
+    }
+
+    /**
+     * Appends events to a pending segment.
+     */
+    public final class ArchiveWriter implements AutoCloseable {
+        private final String name;
+        private final Path pending;
+        private final ColumnarSegment.Writer writer;
+        private boolean finished;
+        // Order-independent checksum of the ids added, see TieringService
+        private long idSum;
+        private long idXor;
+
+        private ArchiveWriter(String name, Path pending, ColumnarSegment.Writer writer) {
+            this.name = name;
+            this.pending = pending;
+            this.writer = writer;
+        }
+
+        public void add(GameEvent event) throws IOException {
+            writer.setLong("id", event.getId());
+            idSum += event.getId();
+            idXor ^= event.getId();
+            writer.setLong("timestamp", event.getTimestamp());
+            writer.setValue("event_id", event.getEventId());
+            writer.setValue("user_id", event.getUserId());
+            writer.setValue("device_id", event.getDeviceId());
+            writer.setValue("event_name", event.getEventName());
+            addJsonObject(PARAMETER_PREFIX, event.getParameters());
+            addJsonObject(USER_PROPERTY_PREFIX, event.getUserProperties());
+            writer.endRow();
+        }
+
+        public long getRowCount() {
+            return writer.getRowCount();
+        }
+
+        /**
+         * @return the sum of the ids added, wrapped around to 64 bits
+         */
+        public long getIdSum() {
+            return idSum;
+        }
+
+        /**
+         * @return the XOR of the ids added
+         */
+        public long getIdXor() {
+            return idXor;
+        }
+
+        /**
+         * Writes the footer and syncs the file; the segment is then ready for {@link #commit}.
+         */
+        public void finish() throws IOException {
+            writer.putMetadata("rows", Long.toString(writer.getRowCount()));
+            writer.finish();
+            finished = true;
+        }
+
+        /**
+         * Closes the file, deleting it unless it was finished.
+         */
+        @Override
+        public void close() throws IOException {
+            writer.close();
+            if (!finished) {
+                Files.deleteIfExists(pending);
+            }
+        }
+
+        private void addJsonObject(String prefix, String json) throws IOException {
+            if (json == null) {
+                return;
+            }
+            try (JsonParser parser = jsonFactory.createParser(json)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return; // JSON null or not an object: there are no keys to store
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.currentName();
+                    writer.setValue(prefix + key, readValue(parser, parser.nextToken()));
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Reads the JSON value at the parser's current token as an {@link EventRow} value.
+     */
+    static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        return switch (token) {
+            case VALUE_TRUE -> Boolean.TRUE;
+            case VALUE_FALSE -> Boolean.FALSE;
+            case VALUE_STRING -> parser.getText();
+            case VALUE_NUMBER_INT -> parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+                    ? new ColumnarSegment.RawJson(parser.getText()) : (Object) parser.getLongValue();
+            case VALUE_NUMBER_FLOAT -> parser.getDoubleValue();
+            case VALUE_NULL -> new ColumnarSegment.RawJson("null");
+            default -> new ColumnarSegment.RawJson(parser.readValueAsTree().toString());
+        };
+    }
+
+    /**
+     * Cursor over the decoded columns of a row group.
+     */
+    private static final class SegmentRow implements EventRow {
+        private final long[] timestamps;
+        private final ColumnarSegment.ValueColumn eventNames;
+        private final ColumnarSegment.ValueColumn userIds;
+        private ColumnarSegment.ValueColumn deviceIds;
+        private final Map<String, ColumnarSegment.ValueColumn> parameters = new HashMap<>();
+        private final Map<String, ColumnarSegment.ValueColumn> userProperties = new HashMap<>();
+        private int index;
+
+        private SegmentRow(long[] timestamps, ColumnarSegment.ValueColumn eventNames, ColumnarSegment.ValueColumn userIds) {
+            this.timestamps = timestamps;
+            this.eventNames = eventNames;
+            this.userIds = userIds;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamps[index];
+        }
+
+        @Override
+        public String getEventName() {
+            return (String) eventNames.get(index);
+        }
+
+        @Override
+        public String getUserId() {
+            return (String) userIds.get(index);
+        }
+
+        @Override
+        public String getDeviceId() {
+            return deviceIds == null ? null : (String) deviceIds.get(index);
+        }
+
+        @Override
+        public Object getParameter(String name) {
+            ColumnarSegment.ValueColumn column = parameters.get(name);
+            return column == null ? null : column.get(index);
+        }
+
+        @Override
+        public Object getUserProperty(String name) {
+            ColumnarSegment.ValueColumn column = userProperties.get(name);
+            return column == null ? null : column.get(index);
+        }
+    }
+}
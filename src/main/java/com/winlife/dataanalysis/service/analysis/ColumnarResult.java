@@ -0,0 +1,417 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An event analysis result stored by column: a header of column names and types, then one array per column,
+ * long[] or double[] for a column of integers or decimals. A time series of thousands of buckets is held and
+ * written as JSON without a map, and a boxed number, per cell. {@link #toRows()} adapts it to the row shape of
+ * POST /api/analysis/event.
+ * <p>
+ * As JSON: {"columns":[{"name":...,"type":"long|double|string|object"},...],"rowCount":n,"data":[[values of
+ * the first column],...]}. A column mixing numbers and texts (MAX over a JSON field) has type object.
+ * <p>
+ * Immutable; derived results share the arrays of the columns they keep.
+ */
+@JsonSerialize(using = ColumnarResult.Serializer.class)
+public final class ColumnarResult {
+
+    public enum Type {
+        LONG, DOUBLE, STRING, OBJECT
+    }
+
+    private final List<Column> columns;
+    private final List<String> names;
+    private final int rowCount;
+
+    private ColumnarResult(List<Column> columns, int rowCount) {
+        this.columns = List.copyOf(columns);
+        this.names = columns.stream().map(Column::name).toList();
+        this.rowCount = rowCount;
+    }
+
+    public List<String> getColumnNames() {
+        return names;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public Type getType(int column) {
+        return columns.get(column).type;
+    }
+
+    /**
+     * @return the column's index, -1 if there is no such column
+     */
+    public int indexOf(String name) {
+        return names.indexOf(name);
+    }
+
+    public boolean isNull(int row, int column) {
+        return columns.get(column).isNull(row);
+    }
+
+    /**
+     * @return the value, boxed
+     */
+    public Object get(int row, int column) {
+        return columns.get(column).get(row);
+    }
+
+    /**
+     * @return the value of a number column, 0 for null
+     */
+    public double getDouble(int row, int column) {
+        Column c = columns.get(column);
+        return switch (c.type) {
+            case LONG -> ((long[]) c.values)[row];
+            case DOUBLE -> ((double[]) c.values)[row];
+            default -> c.isNull(row) ? 0 : ((Number) c.get(row)).doubleValue();
+        };
+    }
+
+    /**
+     * The compatibility adapter: one map per row, column name to value.
+     */
+    public List<Map<String, Object>> toRows() {
+        List<Map<String, Object>> rows = new ArrayList<>(rowCount);
+        for (int row = 0; row < rowCount; row++) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (int column = 0; column < columns.size(); column++) {
+                map.put(names.get(column), get(row, column));
+            }
+            rows.add(map);
+        }
+        return rows;
+    }
+
+    /**
+     * Hands the rows to the writer through one reused array.
+     */
+    public void forEachRow(AnalysisRowWriter writer) {
+        Object[] values = new Object[columns.size()];
+        for (int row = 0; row < rowCount; row++) {
+            for (int column = 0; column < values.length; column++) {
+                values[column] = get(row, column);
+            }
+            writer.write(names, values);
+        }
+    }
+
+    /**
+     * @return the result without the named columns; names that are not columns are ignored
+     */
+    public ColumnarResult withoutColumns(Collection<String> dropped) {
+        return new ColumnarResult(columns.stream().filter(column -> !dropped.contains(column.name)).toList(), rowCount);
+    }
+
+    /**
+     * @return the result with another column, replacing one of the same name
+     */
+    public ColumnarResult withColumn(String name, double[] values) {
+        if (values.length != rowCount) {
+            throw new IllegalArgumentException("Column " + name + " has " + values.length + " values for " + rowCount + " rows");
+        }
+        List<Column> extended = new ArrayList<>(withoutColumns(List.of(name)).columns);
+        extended.add(new Column(name, Type.DOUBLE, values, null));
+        return new ColumnarResult(extended, rowCount);
+    }
+
+    /**
+     * @return the given rows, in the given order
+     */
+    public ColumnarResult select(int[] rows) {
+        Builder builder = new Builder(names);
+        for (int row : rows) {
+            builder.addRow(this, row);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the rows of all parts in order, with the columns of the first part; a column missing in a later
+     * part is null in its rows
+     */
+    public static ColumnarResult concat(List<ColumnarResult> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        Builder builder = new Builder(parts.get(0).names);
+        for (ColumnarResult part : parts) {
+            for (int row = 0; row < part.rowCount; row++) {
+                builder.addRow(part, row);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Collects a result row by row; each column's type follows from the values added to it.
+     */
+    public static final class Builder {
+
+        private final List<String> names;
+        private final ColumnBuilder[] columns;
+        private int rowCount;
+        // Per source result of addRow(ColumnarResult, int): its column index for each of ours
+        private ColumnarResult mappedSource;
+        private int[] sourceColumns;
+
+        public Builder(List<String> names) {
+            this.names = List.copyOf(names);
+            this.columns = new ColumnBuilder[names.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new ColumnBuilder();
+            }
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * @param values the row's values in the order of the names; not kept, so the array may be reused
+         */
+        public Builder addRow(Object[] values) {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].add(values[i]);
+            }
+            rowCount++;
+            return this;
+        }
+
+        /**
+         * Adds a row of another result by column name, copying numbers without boxing them.
+         */
+        public Builder addRow(ColumnarResult source, int row) {
+            if (source != mappedSource) {
+                sourceColumns = new int[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    sourceColumns[i] = source.indexOf(names.get(i));
+                }
+                mappedSource = source;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (sourceColumns[i] < 0) {
+                    columns[i].add(null);
+                } else {
+                    columns[i].add(source.columns.get(sourceColumns[i]), row);
+                }
+            }
+            rowCount++;
+            return this;
+        }
+
+        public ColumnarResult build() {
+            List<Column> built = new ArrayList<>(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                built.add(columns[i].build(names.get(i), rowCount));
+            }
+            return new ColumnarResult(built, rowCount);
+        }
+    }
+
+    /**
+     * @param values long[], double[] or Object[], of at least the result's row count
+     * @param nulls  the null rows of a long or double column, null if there are none
+     */
+    private record Column(String name, Type type, Object values, BitSet nulls) {
+
+        private boolean isNull(int row) {
+            return switch (type) {
+                case LONG, DOUBLE -> nulls != null && nulls.get(row);
+                default -> ((Object[]) values)[row] == null;
+            };
+        }
+
+        private Object get(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            return switch (type) {
+                case LONG -> ((long[]) values)[row];
+                case DOUBLE -> ((double[]) values)[row];
+                default -> ((Object[]) values)[row];
+            };
+        }
+    }
+
+    private static final class ColumnBuilder {
+        private Type type; // Null while only nulls were added
+        private long[] longs;
+        private double[] doubles;
+        private Object[] objects;
+        private final BitSet nulls = new BitSet();
+        private int size;
+
+        private void add(Object value) {
+            if (value == null) {
+                if (type != null) {
+                    ensureCapacity();
+                }
+                if (type != Type.STRING && type != Type.OBJECT) {
+                    nulls.set(size); // An object column stores the null itself
+                }
+                size++;
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                addLong(((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                addDouble(((Number) value).doubleValue());
+            } else {
+                addObject(value);
+            }
+        }
+
+        private void add(Column source, int row) {
+            if (source.isNull(row)) {
+                add(null);
+                return;
+            }
+            switch (source.type) {
+                case LONG -> addLong(((long[]) source.values)[row]);
+                case DOUBLE -> addDouble(((double[]) source.values)[row]);
+                default -> addObject(((Object[]) source.values)[row]);
+            }
+        }
+
+        private void addLong(long value) {
+            if (type == null) {
+                type = Type.LONG;
+                longs = new long[capacity()];
+            }
+            if (type == Type.LONG) {
+                ensureCapacity();
+                longs[size++] = value;
+            } else {
+                addObject(value);
+            }
+        }
+
+        private void addDouble(double value) {
+            if (type == null) {
+                type = Type.DOUBLE;
+                doubles = new double[capacity()];
+            }
+            if (type == Type.DOUBLE) {
+                ensureCapacity();
+                doubles[size++] = value;
+            } else {
+                addObject(value);
+            }
+        }
+
+        private void addObject(Object value) {
+            Type valueType = value instanceof String ? Type.STRING : Type.OBJECT;
+            if (type == null) {
+                type = valueType;
+                objects = new Object[capacity()];
+            } else if (type == Type.LONG || type == Type.DOUBLE) {
+                box();
+            } else if (type != valueType) {
+                type = Type.OBJECT;
+            }
+            ensureCapacity();
+            objects[size++] = value;
+        }
+
+        /**
+         * Turns a number column that got a value of another kind into an object column.
+         */
+        private void box() {
+            objects = new Object[capacity()];
+            for (int i = 0; i < size; i++) {
+                if (!nulls.get(i)) {
+                    objects[i] = type == Type.LONG ? (Object) longs[i] : (Object) doubles[i];
+                }
+            }
+            longs = null;
+            doubles = null;
+            nulls.clear();
+            type = Type.OBJECT;
+        }
+
+        private int capacity() {
+            return Math.max(16, size * 2);
+        }
+
+        private void ensureCapacity() {
+            if (type == Type.LONG && size == longs.length) {
+                longs = Arrays.copyOf(longs, size * 2);
+            } else if (type == Type.DOUBLE && size == doubles.length) {
+                doubles = Arrays.copyOf(doubles, size * 2);
+            } else if ((type == Type.STRING || type == Type.OBJECT) && size == objects.length) {
+                objects = Arrays.copyOf(objects, size * 2);
+            }
+        }
+
+        private Column build(String name, int rowCount) {
+            BitSet columnNulls = nulls.isEmpty() ? null : (BitSet) nulls.clone();
+            if (type == null) {
+                return new Column(name, Type.OBJECT, new Object[rowCount], null);
+            }
+            return switch (type) {
+                case LONG -> new Column(name, type, Arrays.copyOf(longs, rowCount), columnNulls);
+                case DOUBLE -> new Column(name, type, Arrays.copyOf(doubles, rowCount), columnNulls);
+                default -> new Column(name, type, Arrays.copyOf(objects, rowCount), null);
+            };
+        }
+    }
+
+    /**
+     * Writes numbers straight from the primitive arrays.
+     */
+    static final class Serializer extends StdSerializer<ColumnarResult> {
+
+        Serializer() {
+            super(ColumnarResult.class);
+        }
+
+        @Override
+        public void serialize(ColumnarResult result, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("columns");
+            for (Column column : result.columns) {
+                generator.writeStartObject();
+                generator.writeStringField("name", column.name);
+                generator.writeStringField("type", column.type.name().toLowerCase(Locale.ROOT));
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeNumberField("rowCount", result.rowCount);
+            generator.writeArrayFieldStart("data");
+            for (Column column : result.columns) {
+                generator.writeStartArray();
+                for (int row = 0; row < result.rowCount; row++) {
+                    if (column.isNull(row)) {
+                        generator.writeNull();
+                        continue;
+                    }
+                    switch (column.type) {
+                        case LONG -> generator.writeNumber(((long[]) column.values)[row]);
+                        case DOUBLE -> generator.writeNumber(((double[]) column.values)[row]);
+                        case STRING -> generator.writeString((String) ((Object[]) column.values)[row]);
+                        default -> provider.defaultSerializeValue(((Object[]) column.values)[row], generator);
+                    }
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.winlife.dataanalysis.service.analysis;
+
+/**
+ * Read access to one stored event, for evaluating an {@link AnalysisPlan} outside of MySQL.
+ * Parameter and user property values are Long, Double, String, Boolean or
+ * {@link com.winlife.dataanalysis.util.ColumnarSegment.RawJson}, and null when the key is missing.
+ */
+public interface EventRow {
+
+    long getTimestamp();
+
+    String getEventName();
+
+    String getUserId();
+
+    String getDeviceId();
+
+    Object getParameter(String name);
+
+    Object getUserProperty(String name);
+}
@@ -0,0 +1,317 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.util.HyperLogLog;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mergeable per-group state of an {@link AnalysisPlan}'s measures, filled from events evaluated in the JVM,
+ * from rows of {@link AnalysisSql#partial} and from {@link AnalysisSql#distinctValues}, in any combination.
+ * For an approximate plan distinct counts are HyperLogLog sketches instead of value sets, also filled from
+ * {@link AnalysisSql#sketchRegisters}, and every row reports their error bounds.
+ * <p>
+ * Not thread-safe; parallel producers fill their own instance and {@link #merge} them.
+ */
+public class GroupedAggregation {
+
+    public static final String ERROR_BOUND_SUFFIX = "ErrorBound";
+
+    private final AnalysisPlan plan;
+    private final List<AnalysisPlan.Measure> measures;
+    // Group key (null for a missing value or no grouping) -> state
+    private final Map<String, GroupState> groups = new HashMap<>();
+
+    public GroupedAggregation(AnalysisPlan plan) {
+        this.plan = plan;
+        this.measures = plan.getMeasures();
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Adds one event that matched the plan.
+     */
+    public void add(String key, EventRow row) {
+        GroupState state = group(key);
+        state.rows++;
+        for (int i = 0; i < measures.size(); i++) {
+            AnalysisPlan.Measure measure = measures.get(i);
+            if (measure.aggregation() == AnalysisPlan.Aggregation.COUNT) {
+                continue;
+            }
+            Object value = RowEvaluator.value(measure.field(), row);
+            if (value != null) {
+                state.accept(i, measure.aggregation(), value);
+            }
+        }
+    }
+
+    /**
+     * Adds one row of {@link AnalysisSql#partial}, whose column aliases are given.
+     */
+    public void addPartial(Object[] row, List<String> aliases) {
+        Map<String, Object> columns = new HashMap<>();
+        for (int i = 0; i < aliases.size(); i++) {
+            columns.put(aliases.get(i), row[i]);
+        }
+        Object key = plan.getGrouping() == null ? null : columns.get(plan.getGrouping().alias());
+        GroupState state = group(key == null ? null : key.toString());
+        state.rows += ((Number) columns.get(AnalysisSql.ROW_COUNT_ALIAS)).longValue();
+        for (int i = 0; i < measures.size(); i++) {
+            AnalysisPlan.Measure measure = measures.get(i);
+            switch (measure.aggregation()) {
+                case SUM -> {
+                    Object sum = columns.get(measure.alias());
+                    if (sum != null) {
+                        state.addSum(i, ((Number) sum).doubleValue(), 0);
+                    }
+                }
+                case AVG -> {
+                    Object sum = columns.get(measure.alias() + "_sum");
+                    long count = ((Number) columns.get(measure.alias() + "_count")).longValue();
+                    if (sum != null) {
+                        state.addSum(i, ((Number) sum).doubleValue(), count);
+                    }
+                }
+                case MAX, MIN -> {
+                    Object extreme = columns.get(measure.alias());
+                    if (extreme != null) {
+                        state.accept(i, measure.aggregation(), parseJsonScalar(extreme));
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds one row of {@link AnalysisSql#distinctValues} for the measure.
+     */
+    public void addDistinct(AnalysisPlan.Measure measure, Object[] row) {
+        Object key = plan.getGrouping() == null ? null : row[0];
+        Object value = row[row.length - 1];
+        if (value != null) {
+            group(key == null ? null : key.toString()).accept(measures.indexOf(measure), AnalysisPlan.Aggregation.DISTINCT_COUNT, value);
+        }
+    }
+
+    /**
+     * Adds one row of {@link AnalysisSql#sketchRegisters} for the measure of an approximate plan.
+     */
+    public void addRegister(AnalysisPlan.Measure measure, Object[] row) {
+        Object key = plan.getGrouping() == null ? null : row[0];
+        int index = measures.indexOf(measure);
+        group(key == null ? null : key.toString()).sketch(index)
+                .addRegister(((Number) row[row.length - 2]).intValue(), ((Number) row[row.length - 1]).intValue());
+    }
+
+    /**
+     * Adds a distinct count sketch of an approximate plan, e.g. one stored with the rollups.
+     */
+    void addSketch(String key, int measureIndex, HyperLogLog sketch) {
+        group(key).sketch(measureIndex).merge(sketch);
+    }
+
+    /**
+     * Adds matched rows that were counted elsewhere, e.g. by {@link RecentEventAggregation}.
+     */
+    void addRows(String key, long rows) {
+        group(key).rows += rows;
+    }
+
+    /**
+     * Adds a SUM/AVG measure's sum over count values.
+     */
+    void addSum(String key, int measureIndex, double sum, long count) {
+        group(key).addSum(measureIndex, sum, count);
+    }
+
+    /**
+     * Adds one value of a DISTINCT_COUNT, MAX or MIN measure.
+     */
+    void addValue(String key, int measureIndex, Object value) {
+        group(key).accept(measureIndex, measures.get(measureIndex).aggregation(), value);
+    }
+
+    public void merge(GroupedAggregation other) {
+        other.groups.forEach((key, otherState) -> group(key).merge(otherState, measures));
+    }
+
+    /**
+     * @return one row per group, ordered by group key (null first) like the SQL's ORDER BY; without grouping
+     * exactly one row, as an aggregate query without GROUP BY returns. Approximate distinct counts come with
+     * &lt;alias&gt;ErrorBound, see {@link HyperLogLog#errorBound()}.
+     */
+    public ColumnarResult toColumns() {
+        if (plan.getGrouping() == null && groups.isEmpty()) {
+            group(null);
+        }
+        List<String> names = new ArrayList<>();
+        if (plan.getGrouping() != null) {
+            names.add(plan.getGrouping().alias());
+        }
+        for (AnalysisPlan.Measure measure : measures) {
+            names.add(measure.alias());
+            if (plan.isApprox() && measure.aggregation() == AnalysisPlan.Aggregation.DISTINCT_COUNT) {
+                names.add(measure.alias() + ERROR_BOUND_SUFFIX);
+            }
+        }
+        List<Map.Entry<String, GroupState>> entries = new ArrayList<>(groups.entrySet());
+        entries.sort(Map.Entry.comparingByKey(Comparator.nullsFirst(Comparator.naturalOrder())));
+        ColumnarResult.Builder result = new ColumnarResult.Builder(names);
+        Object[] row = new Object[names.size()];
+        for (Map.Entry<String, GroupState> entry : entries) {
+            int column = 0;
+            if (plan.getGrouping() != null) {
+                row[column++] = entry.getKey();
+            }
+            GroupState state = entry.getValue();
+            for (int i = 0; i < measures.size(); i++) {
+                row[column++] = state.result(i, measures.get(i).aggregation());
+                if (plan.isApprox() && measures.get(i).aggregation() == AnalysisPlan.Aggregation.DISTINCT_COUNT) {
+                    row[column++] = state.errorBound(i);
+                }
+            }
+            result.addRow(row);
+        }
+        return result.build();
+    }
+
+    private GroupState group(String key) {
+        return groups.computeIfAbsent(key, k -> new GroupState(measures.size(), plan.isApprox()));
+    }
+
+    /**
+     * Hibernate returns MAX/MIN over JSON as the JSON text.
+     */
+    private static Object parseJsonScalar(Object value) {
+        if (value instanceof Number) {
+            return value;
+        }
+        String text = value.toString().trim();
+        if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")) {
+            return text.substring(1, text.length() - 1);
+        }
+        try {
+            return Long.valueOf(text);
+        } catch (NumberFormatException e) {
+            // Not an integer
+        }
+        try {
+            return Double.valueOf(text);
+        } catch (NumberFormatException e) {
+            return text;
+        }
+    }
+
+    private static final class GroupState {
+        private long rows;
+        // Per measure: Set of distinct texts (a HyperLogLog if approximate), double[]{sum, count} or the extreme value
+        private final Object[] states;
+        private final boolean approx;
+
+        private GroupState(int measureCount, boolean approx) {
+            this.states = new Object[measureCount];
+            this.approx = approx;
+        }
+
+        private HyperLogLog sketch(int index) {
+            if (states[index] == null) {
+                states[index] = new HyperLogLog();
+            }
+            return (HyperLogLog) states[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        private void accept(int index, AnalysisPlan.Aggregation aggregation, Object value) {
+            switch (aggregation) {
+                case DISTINCT_COUNT -> {
+                    if (approx) {
+                        sketch(index).add(RowEvaluator.text(value));
+                        return;
+                    }
+                    if (states[index] == null) {
+                        states[index] = new HashSet<String>();
+                    }
+                    ((Set<String>) states[index]).add(RowEvaluator.text(value));
+                }
+                case SUM, AVG -> addSum(index, RowEvaluator.number(value), 1);
+                case MAX -> {
+                    if (states[index] == null || RowEvaluator.compare(value, states[index]) > 0) {
+                        states[index] = value;
+                    }
+                }
+                case MIN -> {
+                    if (states[index] == null || RowEvaluator.compare(value, states[index]) < 0) {
+                        states[index] = value;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        private void addSum(int index, double sum, long count) {
+            double[] state = (double[]) states[index];
+            if (state == null) {
+                state = new double[2];
+                states[index] = state;
+            }
+            state[0] += sum;
+            state[1] += count;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void merge(GroupState other, List<AnalysisPlan.Measure> measures) {
+            rows += other.rows;
+            for (int i = 0; i < states.length; i++) {
+                Object otherState = other.states[i];
+                if (otherState == null) {
+                    continue;
+                }
+                AnalysisPlan.Aggregation aggregation = measures.get(i).aggregation();
+                switch (aggregation) {
+                    case DISTINCT_COUNT -> {
+                        if (approx) {
+                            sketch(i).merge((HyperLogLog) otherState);
+                            continue;
+                        }
+                        if (states[i] == null) {
+                            states[i] = new HashSet<String>();
+                        }
+                        ((Set<String>) states[i]).addAll((Set<String>) otherState);
+                    }
+                    case SUM, AVG -> addSum(i, ((double[]) otherState)[0], (long) ((double[]) otherState)[1]);
+                    case MAX, MIN -> accept(i, aggregation, otherState);
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        private Object result(int index, AnalysisPlan.Aggregation aggregation) {
+            Object state = states[index];
+            return switch (aggregation) {
+                case COUNT -> rows;
+                case DISTINCT_COUNT -> state == null ? 0L
+                        : state instanceof HyperLogLog sketch ? sketch.estimate() : (long) ((Set<?>) state).size();
+                case SUM -> state == null ? null : ((double[]) state)[0];
+                case AVG -> state == null || ((double[]) state)[1] == 0 ? null : ((double[]) state)[0] / ((double[]) state)[1];
+                case MAX, MIN -> state;
+            };
+        }
+
+        private long errorBound(int index) {
+            return states[index] instanceof HyperLogLog sketch ? sketch.errorBound() : 0L;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.service.CompiledSchema;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Indexed generated columns of game_events that hold a JSON field, which {@link AnalysisSql} reads
+ * instead of extracting the field from the JSON document.
+ */
+public final class PromotedColumns {
+
+    public static final PromotedColumns NONE = new PromotedColumns(Collections.emptyMap());
+
+    private final Map<AnalysisPlan.Field, Column> columns;
+
+    public PromotedColumns(Map<AnalysisPlan.Field, Column> columns) {
+        this.columns = Map.copyOf(columns);
+    }
+
+    /**
+     * @return the column holding the field, null if it is not promoted
+     */
+    public Column get(AnalysisPlan.Field field) {
+        return field == null ? null : columns.get(field);
+    }
+
+    public boolean isEmpty() {
+        return columns.isEmpty();
+    }
+
+    /**
+     * A generated column: STRING columns hold the unquoted text, INTEGER columns the number.
+     */
+    public record Column(String name, CompiledSchema.ValueType type) {
+    }
+}
@@ -0,0 +1,758 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.util.ColumnarSegment;
+import com.winlife.dataanalysis.util.LongHashSet;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates an {@link AnalysisPlan} over {@link RecentEventStore} chunks with the semantics of
+ * {@link RowEvaluator} and {@link GroupedAggregation}, in loops over the primitive columns.
+ * <p>
+ * Filters, group keys and values are evaluated once per dictionary code of a chunk, or once per number in
+ * a small cache, instead of once per row; per row only array lookups are left. Groups are slots of primitive
+ * accumulators and distinct counts are sets of text ids, so nothing is allocated per matching row.
+ * <p>
+ * Not thread-safe; one instance per query.
+ */
+public class RecentEventAggregation {
+
+    private static final int NUMBER_CACHE_SIZE = 1024;
+
+    private final AnalysisPlan plan;
+    private final RowEvaluator evaluator;
+    private final long from;
+    private final long to;
+    // The parameter / user property fields the plan reads, in the order of the snapshot's value columns
+    private final List<AnalysisPlan.Field> valueFields = new ArrayList<>();
+    private final List<Operand> operands = new ArrayList<>();
+    private final FilterState[] filters;
+    private final Operand groupOperand;
+    private final Accumulator[] accumulators;
+    private final RecentEventStore.Columns scratch = new RecentEventStore.Columns();
+    private final List<RecentEventStore.ChunkSnapshot> scanned = new ArrayList<>();
+
+    // Group slots: key (null for a missing value or no grouping) and matched rows
+    private final Map<String, Integer> slotsByKey = new HashMap<>();
+    private final List<String> slotKeys = new ArrayList<>();
+    private long[] rows = new long[16];
+    // Per chunk: group slot + 1 by dictionary code, 0 if not resolved yet
+    private int[] slotByCode = new int[0];
+    private final NumberCache slotByNumber = new NumberCache();
+    // Grouping by user or device id: group slot + 1 by store-wide number
+    private int[] slotByIdNumber = new int[0];
+    private int absentSlot = -1;
+    private int trueSlot = -1;
+    private int falseSlot = -1;
+    // Time grouping: the slot of the current bucket
+    private long bucketStart = Long.MAX_VALUE;
+    private long bucketEnd = Long.MIN_VALUE;
+    private int bucketSlot;
+
+    // Texts of distinct values; id = index + 1
+    private final Map<String, Integer> textIds = new HashMap<>();
+    private final List<String> texts = new ArrayList<>();
+
+    RecentEventAggregation(AnalysisPlan plan, ZoneId zone, long from, long to) {
+        this.plan = plan;
+        this.evaluator = new RowEvaluator(plan, zone);
+        this.from = from;
+        this.to = to;
+        for (AnalysisPlan.Field field : plan.getReferencedFields()) {
+            if (field.kind() == AnalysisPlan.FieldKind.PARAMETER || field.kind() == AnalysisPlan.FieldKind.USER_PROPERTY) {
+                valueFields.add(field);
+            }
+        }
+        this.filters = new FilterState[plan.getFilters().size()];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = new FilterState(plan.getFilters().get(i), operand(plan.getFilters().get(i).field()));
+        }
+        AnalysisPlan.Dimension grouping = plan.getGrouping();
+        this.groupOperand = grouping == null || grouping.field() == null ? null : operand(grouping.field());
+        List<Accumulator> measureAccumulators = new ArrayList<>();
+        for (int i = 0; i < plan.getMeasures().size(); i++) {
+            AnalysisPlan.Measure measure = plan.getMeasures().get(i);
+            if (measure.aggregation() != AnalysisPlan.Aggregation.COUNT) {
+                measureAccumulators.add(new Accumulator(i, measure.aggregation(), operand(measure.field())));
+            }
+        }
+        this.accumulators = measureAccumulators.toArray(new Accumulator[0]);
+        if (grouping == null) {
+            slot(null); // Everything goes into one row
+        }
+    }
+
+    List<AnalysisPlan.Field> getValueFields() {
+        return valueFields;
+    }
+
+    /**
+     * Adds the matching rows of one chunk.
+     */
+    void scan(RecentEventStore.ChunkSnapshot chunk) {
+        scanned.add(chunk);
+        for (Operand operand : operands) {
+            operand.bindChunk(chunk);
+        }
+        if (groupOperand != null) {
+            slotByCode = reset(slotByCode, groupOperand.dictionarySize);
+        }
+        for (FilterState filter : filters) {
+            filter.bindChunk();
+        }
+        for (Accumulator accumulator : accumulators) {
+            accumulator.bindChunk();
+        }
+        // A chunk is one hour: the range only has to be checked per row in its first and last hour
+        boolean checkTime = chunk.hourStart < from || chunk.hourStart + 3600_000L - 1 > to;
+        RecentEventStore.Columns sealed = chunk.loadSealed(scratch);
+        if (sealed != null) {
+            scanPart(sealed, checkTime);
+        }
+        scanPart(chunk.tail(), checkTime);
+    }
+
+    private void scanPart(RecentEventStore.Columns part, boolean checkTime) {
+        for (Operand operand : operands) {
+            operand.bindPart(part);
+        }
+        long[] timestamps = part.timestamps;
+        int[] users = part.users;
+        int count = part.rows;
+        rows:
+        for (int row = 0; row < count; row++) {
+            long timestamp = timestamps[row];
+            if (checkTime && (timestamp < from || timestamp > to) || users[row] == 0) {
+                continue;
+            }
+            for (FilterState filter : filters) {
+                if (!filter.test(row)) {
+                    continue rows;
+                }
+            }
+            int slot = groupSlot(row, timestamp);
+            rows[slot]++;
+            for (Accumulator accumulator : accumulators) {
+                accumulator.accept(row, slot);
+            }
+        }
+    }
+
+    private int groupSlot(int row, long timestamp) {
+        AnalysisPlan.Dimension grouping = plan.getGrouping();
+        if (grouping == null) {
+            return 0;
+        }
+        if (groupOperand == null) {
+            if (timestamp < bucketStart || timestamp >= bucketEnd) {
+                bucketSlot = slot(evaluator.timeKey(timestamp));
+                bucketStart = evaluator.getBucketStart();
+                bucketEnd = evaluator.getBucketEnd();
+            }
+            return bucketSlot;
+        }
+        byte tag = groupOperand.tag(row);
+        long bits = groupOperand.bits(row);
+        switch (tag) {
+            case RecentEventStore.ABSENT -> {
+                if (absentSlot < 0) {
+                    absentSlot = slot(null);
+                }
+                return absentSlot;
+            }
+            case RecentEventStore.TRUE -> {
+                if (trueSlot < 0) {
+                    trueSlot = slot("true");
+                }
+                return trueSlot;
+            }
+            case RecentEventStore.FALSE -> {
+                if (falseSlot < 0) {
+                    falseSlot = slot("false");
+                }
+                return falseSlot;
+            }
+            case RecentEventStore.LONG, RecentEventStore.DOUBLE -> {
+                int slot = slotByNumber.get(tag, bits);
+                if (slot < 0) {
+                    slot = slot(groupOperand.text(tag, bits));
+                    slotByNumber.put(tag, bits, slot);
+                }
+                return slot;
+            }
+            default -> {
+                int code = (int) bits;
+                if (slotByCode[code] == 0) {
+                    slotByCode[code] = groupOperand.numbers == null
+                            ? slot(groupOperand.text(tag, bits)) + 1
+                            : idNumberSlot(groupOperand.numbers[code - 1], groupOperand.text(tag, bits)) + 1;
+                }
+                return slotByCode[code] - 1;
+            }
+        }
+    }
+
+    private int idNumberSlot(int number, String id) {
+        if (number >= slotByIdNumber.length) {
+            slotByIdNumber = Arrays.copyOf(slotByIdNumber, Math.max(number + 1, 2 * slotByIdNumber.length));
+        }
+        if (slotByIdNumber[number] == 0) {
+            slotByIdNumber[number] = slot(id) + 1;
+        }
+        return slotByIdNumber[number] - 1;
+    }
+
+    private int slot(String key) {
+        Integer slot = slotsByKey.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        slot = slotKeys.size();
+        slotsByKey.put(key, slot);
+        slotKeys.add(key);
+        if (slot == rows.length) {
+            rows = Arrays.copyOf(rows, slot * 2);
+        }
+        for (Accumulator accumulator : accumulators) {
+            accumulator.ensureSlots(rows.length);
+        }
+        return slot;
+    }
+
+    private int textId(String text) {
+        Integer id = textIds.get(text);
+        if (id == null) {
+            texts.add(text);
+            id = texts.size();
+            textIds.put(text, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return one row per group like {@link GroupedAggregation#toColumns()}
+     */
+    public ColumnarResult toColumns() {
+        List<String> names = new ArrayList<>();
+        if (plan.getGrouping() != null) {
+            names.add(plan.getGrouping().alias());
+        }
+        Accumulator[] byMeasure = new Accumulator[plan.getMeasures().size()];
+        for (Accumulator accumulator : accumulators) {
+            byMeasure[accumulator.measureIndex] = accumulator;
+        }
+        plan.getMeasures().forEach(measure -> names.add(measure.alias()));
+        ColumnarResult.Builder result = new ColumnarResult.Builder(names);
+        Object[] row = new Object[names.size()];
+        for (int slot : sortedSlots()) {
+            int column = 0;
+            if (plan.getGrouping() != null) {
+                row[column++] = slotKeys.get(slot);
+            }
+            for (Accumulator accumulator : byMeasure) {
+                // Only COUNT measures have no accumulator, they are the matched rows
+                row[column++] = accumulator == null ? rows[slot] : accumulator.result(slot);
+            }
+            result.addRow(row);
+        }
+        return result.build();
+    }
+
+    /**
+     * Adds the groups to an aggregation of the rest of the plan's time range.
+     */
+    public void mergeInto(GroupedAggregation aggregation) {
+        Map<AnalysisPlan.FieldKind, String[]> idsByNumber = new HashMap<>();
+        for (int slot = 0; slot < slotKeys.size(); slot++) {
+            if (rows[slot] == 0) {
+                continue; // The row of an ungrouped plan without matches
+            }
+            String key = slotKeys.get(slot);
+            aggregation.addRows(key, rows[slot]);
+            for (Accumulator accumulator : accumulators) {
+                accumulator.mergeInto(aggregation, key, slot, idsByNumber);
+            }
+        }
+    }
+
+    /**
+     * @return the user or device ids of the scanned chunks by store-wide number
+     */
+    private String[] idsByNumber(AnalysisPlan.FieldKind kind) {
+        boolean users = kind == AnalysisPlan.FieldKind.USER_ID;
+        int max = 0;
+        for (RecentEventStore.ChunkSnapshot chunk : scanned) {
+            int[] numbers = users ? chunk.userNumbers : chunk.deviceNumbers;
+            for (int i = 0, count = users ? chunk.userCount : chunk.deviceCount; i < count; i++) {
+                max = Math.max(max, numbers[i]);
+            }
+        }
+        String[] ids = new String[max + 1];
+        for (RecentEventStore.ChunkSnapshot chunk : scanned) {
+            int[] numbers = users ? chunk.userNumbers : chunk.deviceNumbers;
+            String[] dictionary = users ? chunk.users : chunk.devices;
+            for (int i = 0, count = users ? chunk.userCount : chunk.deviceCount; i < count; i++) {
+                ids[numbers[i]] = dictionary[i];
+            }
+        }
+        return ids;
+    }
+
+    private List<Integer> sortedSlots() {
+        List<Integer> slots = new ArrayList<>(slotKeys.size());
+        for (int slot = 0; slot < slotKeys.size(); slot++) {
+            slots.add(slot);
+        }
+        slots.sort(Comparator.comparing(slotKeys::get, Comparator.nullsFirst(Comparator.naturalOrder())));
+        return slots;
+    }
+
+    private Operand operand(AnalysisPlan.Field field) {
+        Operand operand = new Operand(field, valueFields.indexOf(field));
+        operands.add(operand);
+        return operand;
+    }
+
+    private static int[] reset(int[] memo, int dictionarySize) {
+        if (memo.length <= dictionarySize) {
+            return new int[dictionarySize + 1];
+        }
+        Arrays.fill(memo, 0, dictionarySize + 1, 0);
+        return memo;
+    }
+
+    /**
+     * Reads one field per row as a tag and bits: a value column, or user_id / device_id codes as STRING.
+     */
+    private static final class Operand {
+        private final AnalysisPlan.Field field;
+        private final int column;
+        private String[] dictionary;
+        private int dictionarySize;
+        // Store-wide number by code - 1 for user and device ids, else null
+        private int[] numbers;
+        private int[] codes;
+        private byte[] tags;
+        private long[] bits;
+
+        private Operand(AnalysisPlan.Field field, int column) {
+            this.field = field;
+            this.column = column;
+        }
+
+        private void bindChunk(RecentEventStore.ChunkSnapshot chunk) {
+            switch (field.kind()) {
+                case USER_ID -> {
+                    dictionary = chunk.users;
+                    dictionarySize = chunk.userCount;
+                    numbers = chunk.userNumbers;
+                }
+                case DEVICE_ID -> {
+                    dictionary = chunk.devices;
+                    dictionarySize = chunk.deviceCount;
+                    numbers = chunk.deviceNumbers;
+                }
+                default -> {
+                    dictionary = chunk.values;
+                    dictionarySize = chunk.valueCount;
+                }
+            }
+        }
+
+        private void bindPart(RecentEventStore.Columns part) {
+            switch (field.kind()) {
+                case USER_ID -> codes = part.users;
+                case DEVICE_ID -> codes = part.devices;
+                default -> {
+                    tags = part.values[column].tags();
+                    bits = part.values[column].bits();
+                }
+            }
+        }
+
+        private byte tag(int row) {
+            if (codes != null) {
+                return codes[row] == 0 ? RecentEventStore.ABSENT : RecentEventStore.STRING;
+            }
+            return tags == null ? RecentEventStore.ABSENT : tags[row];
+        }
+
+        private long bits(int row) {
+            if (codes != null) {
+                return codes[row];
+            }
+            return bits == null ? 0 : bits[row];
+        }
+
+        /**
+         * @return the value as {@link EventRow} returns it
+         */
+        private Object value(byte tag, long bits) {
+            return switch (tag) {
+                case RecentEventStore.LONG -> bits;
+                case RecentEventStore.DOUBLE -> Double.longBitsToDouble(bits);
+                case RecentEventStore.TRUE -> Boolean.TRUE;
+                case RecentEventStore.FALSE -> Boolean.FALSE;
+                case RecentEventStore.STRING -> dictionary[(int) bits - 1];
+                case RecentEventStore.RAW_JSON -> new ColumnarSegment.RawJson(dictionary[(int) bits - 1]);
+                default -> null;
+            };
+        }
+
+        private String text(byte tag, long bits) {
+            return switch (tag) {
+                case RecentEventStore.STRING, RecentEventStore.RAW_JSON -> dictionary[(int) bits - 1];
+                default -> RowEvaluator.text(value(tag, bits));
+            };
+        }
+    }
+
+    private static final class FilterState {
+        private final AnalysisPlan.Filter filter;
+        private final Operand operand;
+        private final boolean absentResult;
+        private final boolean trueResult;
+        private final boolean falseResult;
+        // Long values in [low, high] (or outside, if negated) match; only if longRange
+        private boolean longRange;
+        private long low = 1;
+        private long high = 0;
+        private boolean negated;
+        private final NumberCache numbers = new NumberCache();
+        // Per chunk: 0 unknown, 1 no match, 2 match, by dictionary code
+        private int[] byCode = new int[0];
+
+        private FilterState(AnalysisPlan.Filter filter, Operand operand) {
+            this.filter = filter;
+            this.operand = operand;
+            this.absentResult = RowEvaluator.matches(filter, null);
+            this.trueResult = RowEvaluator.matches(filter, Boolean.TRUE);
+            this.falseResult = RowEvaluator.matches(filter, Boolean.FALSE);
+            initLongRange();
+        }
+
+        private void bindChunk() {
+            byCode = reset(byCode, operand.dictionarySize);
+        }
+
+        private boolean test(int row) {
+            byte tag = operand.tag(row);
+            switch (tag) {
+                case RecentEventStore.ABSENT -> {
+                    return absentResult;
+                }
+                case RecentEventStore.TRUE -> {
+                    return trueResult;
+                }
+                case RecentEventStore.FALSE -> {
+                    return falseResult;
+                }
+                case RecentEventStore.LONG, RecentEventStore.DOUBLE -> {
+                    long bits = operand.bits(row);
+                    if (longRange && tag == RecentEventStore.LONG) {
+                        return (bits >= low && bits <= high) != negated;
+                    }
+                    int cached = numbers.get(tag, bits);
+                    if (cached < 0) {
+                        cached = RowEvaluator.matches(filter, operand.value(tag, bits)) ? 1 : 0;
+                        numbers.put(tag, bits, cached);
+                    }
+                    return cached == 1;
+                }
+                default -> {
+                    int code = (int) operand.bits(row);
+                    if (byCode[code] == 0) {
+                        byCode[code] = RowEvaluator.matches(filter, operand.value(tag, code)) ? 2 : 1;
+                    }
+                    return byCode[code] == 2;
+                }
+            }
+        }
+
+        /**
+         * The comparisons of a long value as a range: CAST(v AS DECIMAL) &gt; x is v &gt; floor(x), and so on.
+         */
+        private void initLongRange() {
+            Object expected = filter.value();
+            switch (filter.operator()) {
+                case GT, GE, LT, LE -> {
+                    longRange = true;
+                    if (expected == null) {
+                        return; // Empty range: never true
+                    }
+                    BigDecimal value = RowEvaluator.decimal(expected);
+                    BigDecimal floor = value.setScale(0, RoundingMode.FLOOR);
+                    BigDecimal ceiling = value.setScale(0, RoundingMode.CEILING);
+                    switch (filter.operator()) {
+                        case GT -> setRange(floor.add(BigDecimal.ONE), null);
+                        case GE -> setRange(ceiling, null);
+                        case LT -> setRange(null, ceiling.subtract(BigDecimal.ONE));
+                        default -> setRange(null, floor);
+                    }
+                }
+                case EQ, NE -> {
+                    longRange = true;
+                    negated = filter.operator() == AnalysisPlan.Operator.NE;
+                    Long exact = exactLong(expected);
+                    if (exact != null) {
+                        low = exact;
+                        high = exact;
+                    }
+                }
+                default -> longRange = false;
+            }
+        }
+
+        private void setRange(BigDecimal min, BigDecimal max) {
+            BigDecimal longMin = BigDecimal.valueOf(Long.MIN_VALUE);
+            BigDecimal longMax = BigDecimal.valueOf(Long.MAX_VALUE);
+            if (min != null && min.compareTo(longMax) > 0 || max != null && max.compareTo(longMin) < 0) {
+                return; // Empty
+            }
+            low = min == null || min.compareTo(longMin) < 0 ? Long.MIN_VALUE : min.longValueExact();
+            high = max == null || max.compareTo(longMax) > 0 ? Long.MAX_VALUE : max.longValueExact();
+        }
+
+        /**
+         * @return the only long that = matches, null if none does
+         */
+        private static Long exactLong(Object expected) {
+            if (expected == null) {
+                return null;
+            }
+            if (expected instanceof Number || expected instanceof Boolean) {
+                try {
+                    return RowEvaluator.decimal(expected).longValueExact();
+                } catch (ArithmeticException e) {
+                    return null; // Fractional or out of range
+                }
+            }
+            String text = expected.toString();
+            try {
+                long value = Long.parseLong(text);
+                return Long.toString(value).equals(text) ? value : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final class Accumulator {
+        private final int measureIndex;
+        private final AnalysisPlan.Aggregation aggregation;
+        private final Operand operand;
+        // DISTINCT_COUNT: text ids (store-wide numbers for user and device ids) per slot, text id by code (per chunk) and by number
+        private LongHashSet[] distinct = new LongHashSet[0];
+        private int[] textIdByCode = new int[0];
+        private final NumberCache textIdByNumber = new NumberCache();
+        // SUM, AVG: sum and number of values per slot, number by code (per chunk; NaN unknown)
+        private double[] sums = new double[0];
+        private long[] counts = new long[0];
+        private double[] numberByCode = new double[0];
+        // MAX, MIN: numbers rank below texts
+        private boolean[] hasNumber = new boolean[0];
+        private double[] bestNumbers = new double[0];
+        private Object[] bestNumberValues = new Object[0];
+        private String[] bestTexts = new String[0];
+        private Object[] bestTextValues = new Object[0];
+        private int capacity;
+
+        private Accumulator(int measureIndex, AnalysisPlan.Aggregation aggregation, Operand operand) {
+            this.measureIndex = measureIndex;
+            this.aggregation = aggregation;
+            this.operand = operand;
+        }
+
+        private void ensureSlots(int slots) {
+            if (slots <= capacity) {
+                return;
+            }
+            capacity = slots;
+            switch (aggregation) {
+                case DISTINCT_COUNT -> distinct = Arrays.copyOf(distinct, slots);
+                case SUM, AVG -> {
+                    sums = Arrays.copyOf(sums, slots);
+                    counts = Arrays.copyOf(counts, slots);
+                }
+                case MAX, MIN -> {
+                    hasNumber = Arrays.copyOf(hasNumber, slots);
+                    bestNumbers = Arrays.copyOf(bestNumbers, slots);
+                    bestNumberValues = Arrays.copyOf(bestNumberValues, slots);
+                    bestTexts = Arrays.copyOf(bestTexts, slots);
+                    bestTextValues = Arrays.copyOf(bestTextValues, slots);
+                }
+                default -> {
+                }
+            }
+        }
+
+        private void bindChunk() {
+            switch (aggregation) {
+                case DISTINCT_COUNT -> {
+                    if (operand.numbers == null) {
+                        textIdByCode = reset(textIdByCode, operand.dictionarySize);
+                    }
+                }
+                case SUM, AVG -> {
+                    if (numberByCode.length <= operand.dictionarySize) {
+                        numberByCode = new double[operand.dictionarySize + 1];
+                    }
+                    Arrays.fill(numberByCode, 0, operand.dictionarySize + 1, Double.NaN);
+                }
+                default -> {
+                }
+            }
+        }
+
+        private void accept(int row, int slot) {
+            byte tag = operand.tag(row);
+            if (tag == RecentEventStore.ABSENT) {
+                return;
+            }
+            long bits = operand.bits(row);
+            switch (aggregation) {
+                case DISTINCT_COUNT -> acceptDistinct(tag, bits, slot);
+                case SUM, AVG -> {
+                    sums[slot] += number(tag, bits);
+                    counts[slot]++;
+                }
+                case MAX, MIN -> acceptExtreme(tag, bits, slot);
+                default -> {
+                }
+            }
+        }
+
+        private void acceptDistinct(byte tag, long bits, int slot) {
+            int id;
+            if (operand.numbers != null) {
+                id = operand.numbers[(int) bits - 1];
+            } else if (tag == RecentEventStore.STRING || tag == RecentEventStore.RAW_JSON) {
+                int code = (int) bits;
+                if (textIdByCode[code] == 0) {
+                    textIdByCode[code] = textId(operand.text(tag, bits));
+                }
+                id = textIdByCode[code];
+            } else {
+                id = textIdByNumber.get(tag, bits);
+                if (id < 0) {
+                    id = textId(operand.text(tag, bits));
+                    textIdByNumber.put(tag, bits, id);
+                }
+            }
+            if (distinct[slot] == null) {
+                distinct[slot] = new LongHashSet();
+            }
+            distinct[slot].add(id);
+        }
+
+        private double number(byte tag, long bits) {
+            return switch (tag) {
+                case RecentEventStore.LONG -> (double) bits;
+                case RecentEventStore.DOUBLE -> Double.longBitsToDouble(bits);
+                case RecentEventStore.TRUE -> 1;
+                case RecentEventStore.FALSE -> 0;
+                default -> {
+                    int code = (int) bits;
+                    if (Double.isNaN(numberByCode[code])) {
+                        numberByCode[code] = RowEvaluator.number(operand.value(tag, bits));
+                    }
+                    yield numberByCode[code];
+                }
+            };
+        }
+
+        private void acceptExtreme(byte tag, long bits, int slot) {
+            boolean max = aggregation == AnalysisPlan.Aggregation.MAX;
+            if (tag == RecentEventStore.LONG || tag == RecentEventStore.DOUBLE) {
+                double number = tag == RecentEventStore.LONG ? (double) bits : Double.longBitsToDouble(bits);
+                if (!hasNumber[slot] || (max ? Double.compare(number, bestNumbers[slot]) > 0 : Double.compare(number, bestNumbers[slot]) < 0)) {
+                    hasNumber[slot] = true;
+                    bestNumbers[slot] = number;
+                    bestNumberValues[slot] = operand.value(tag, bits);
+                }
+                return;
+            }
+            String text = operand.text(tag, bits);
+            String best = bestTexts[slot];
+            if (best == null || (max ? text.compareTo(best) > 0 : text.compareTo(best) < 0)) {
+                bestTexts[slot] = text;
+                bestTextValues[slot] = operand.value(tag, bits);
+            }
+        }
+
+        private Object result(int slot) {
+            return switch (aggregation) {
+                case DISTINCT_COUNT -> distinct[slot] == null ? 0L : (long) distinct[slot].size();
+                case SUM -> counts[slot] == 0 ? null : sums[slot];
+                case AVG -> counts[slot] == 0 ? null : sums[slot] / counts[slot];
+                case MAX -> bestTexts[slot] != null ? bestTextValues[slot] : bestNumberValues[slot];
+                case MIN -> hasNumber[slot] ? bestNumberValues[slot] : bestTextValues[slot];
+                default -> null;
+            };
+        }
+
+        private void mergeInto(GroupedAggregation aggregation, String key, int slot,
+                               Map<AnalysisPlan.FieldKind, String[]> idsByNumber) {
+            switch (this.aggregation) {
+                case DISTINCT_COUNT -> {
+                    if (distinct[slot] == null) {
+                        return;
+                    }
+                    AnalysisPlan.FieldKind kind = operand.field.kind();
+                    String[] ids = kind == AnalysisPlan.FieldKind.USER_ID || kind == AnalysisPlan.FieldKind.DEVICE_ID
+                            ? idsByNumber.computeIfAbsent(kind, RecentEventAggregation.this::idsByNumber) : null;
+                    for (long id : distinct[slot].toArray()) {
+                        aggregation.addValue(key, measureIndex, ids != null ? ids[(int) id] : texts.get((int) id - 1));
+                    }
+                }
+                case SUM, AVG -> {
+                    if (counts[slot] > 0) {
+                        aggregation.addSum(key, measureIndex, sums[slot], counts[slot]);
+                    }
+                }
+                case MAX, MIN -> {
+                    Object value = result(slot);
+                    if (value != null) {
+                        aggregation.addValue(key, measureIndex, value);
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    /**
+     * Direct-mapped cache of small non-negative ints by (tag, number bits); a collision just evicts.
+     */
+    private static final class NumberCache {
+        private final long[] keys = new long[NUMBER_CACHE_SIZE];
+        private final byte[] tags = new byte[NUMBER_CACHE_SIZE];
+        private final int[] values = new int[NUMBER_CACHE_SIZE];
+
+        private int get(byte tag, long bits) {
+            int index = index(tag, bits);
+            return tags[index] == tag && keys[index] == bits ? values[index] : -1;
+        }
+
+        private void put(byte tag, long bits, int value) {
+            int index = index(tag, bits);
+            tags[index] = tag;
+            keys[index] = bits;
+            values[index] = value;
+        }
+
+        private static int index(byte tag, long bits) {
+            long h = (bits + tag) * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 54) & (NUMBER_CACHE_SIZE - 1);
+        }
+    }
+}
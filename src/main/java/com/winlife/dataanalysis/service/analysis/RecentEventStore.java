@@ -0,0 +1,829 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.service.NodeRegistry;
+import com.winlife.dataanalysis.util.ColumnarSegment;
+import com.winlife.dataanalysis.util.LongHashSet;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last days of game_events in memory, as columns per event name and hour, so event analysis over
+ * recent data does not touch MySQL.
+ * <p>
+ * A chunk (event name, hour) holds the timestamps as long[], user_id and device_id as int[] codes of
+ * chunk-local dictionaries (0 is null), and one column per parameter / user property key: a tag byte
+ * per row (absent, long, double, string, true, false, other JSON) and a long with the number's bits or
+ * the dictionary code of its text. Dictionaries are per chunk, so dropping an expired hour frees all of it;
+ * user and device ids also get store-wide numbers, so distinct counts over many hours compare ints.
+ * <p>
+ * Rows come from the ingestion path once they are stored in MySQL and from {@link #startLoading loading}
+ * MySQL at startup. Rows are deduplicated by id, so a row seen by both, or written again by a retried
+ * batch, is kept once. Rows without a user id are not kept, analysis never counts them.
+ * <p>
+ * When the estimated heap use passes analysis.memory-store.off-heap-threshold-mb, chunks of hours that
+ * are over are moved to direct buffers; late rows for such an hour collect in an on-heap tail until the next move.
+ * <p>
+ * The store answers for [{@link #getCoverageStart()}, now] once the load has finished. It is only complete
+ * if every event is ingested through this node, so it answers only while the node leases show no other node
+ * running since the load started ({@link NodeRegistry#getSingleNodeTerm()}). A node that joins is seen at
+ * the next lease renewal, the events it ingests before that are missed until the store is loaded again.
+ */
+@Component
+public class RecentEventStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecentEventStore.class);
+
+    static final byte ABSENT = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte STRING = 3;
+    static final byte TRUE = 4;
+    static final byte FALSE = 5;
+    static final byte RAW_JSON = 6;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final AnalysisProperties analysisProperties;
+    private final JsonFactory jsonFactory;
+    private final NodeRegistry nodeRegistry;
+
+    // Event name -> hour start -> chunk
+    private final Map<String, ConcurrentSkipListMap<Long, Chunk>> chunks = new ConcurrentHashMap<>();
+    private final AtomicLong rowCount = new AtomicLong();
+    private final AtomicLong heapBytes = new AtomicLong();
+    private final AtomicLong offHeapBytes = new AtomicLong();
+    // Rows older than this are not kept; Long.MAX_VALUE while nothing is kept
+    private volatile long acceptFrom = Long.MAX_VALUE;
+    // The store holds every stored event from here on; Long.MAX_VALUE until loaded
+    private volatile long coverageStart = Long.MAX_VALUE;
+    // The single-node term the load started in, see getCoverageStart
+    private volatile long singleNodeTerm = -1;
+    // Store-wide numbers of user and device ids; the version is odd while chunks are being renumbered
+    private volatile Numbering userNumbering = new Numbering();
+    private volatile Numbering deviceNumbering = new Numbering();
+    private volatile int numberingVersion;
+
+    public RecentEventStore(AnalysisProperties analysisProperties, ObjectMapper objectMapper, NodeRegistry nodeRegistry,
+                            MeterRegistry meterRegistry) {
+        this.analysisProperties = analysisProperties;
+        this.jsonFactory = objectMapper.getFactory();
+        this.nodeRegistry = nodeRegistry;
+        Gauge.builder("memory.store.rows", rowCount, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("memory.store.bytes", heapBytes, AtomicLong::get).tag("area", "heap").register(meterRegistry);
+        Gauge.builder("memory.store.bytes", offHeapBytes, AtomicLong::get).tag("area", "direct").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return analysisProperties.getMemoryStore().isEnabled();
+    }
+
+    /**
+     * @return the earliest timestamp the store answers for, Long.MAX_VALUE if it does not answer yet, or no
+     *         longer because another node may have ingested events since the load started
+     */
+    public long getCoverageStart() {
+        long term = singleNodeTerm;
+        return term >= 0 && nodeRegistry.getSingleNodeTerm() == term ? coverageStart : Long.MAX_VALUE;
+    }
+
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    public ZoneId getZone() {
+        return ZoneId.of(analysisProperties.getTimeZone());
+    }
+
+    /**
+     * Drops everything and starts keeping rows from the hour of the given time; the store answers
+     * only after {@link #finishLoading}.
+     *
+     * @return the hour start rows are kept from, where the load has to start
+     */
+    public synchronized long startLoading(long from) {
+        coverageStart = Long.MAX_VALUE;
+        singleNodeTerm = nodeRegistry.getSingleNodeTerm();
+        acceptFrom = hourStart(from);
+        userNumbering = new Numbering();
+        deviceNumbering = new Numbering();
+        for (ConcurrentSkipListMap<Long, Chunk> byHour : chunks.values()) {
+            for (Chunk chunk : byHour.values()) {
+                synchronized (chunk) {
+                    chunk.dropped = true; // Rows being added to it are not counted
+                }
+            }
+        }
+        chunks.clear();
+        rowCount.set(0);
+        heapBytes.set(0);
+        offHeapBytes.set(0);
+        return acceptFrom;
+    }
+
+    /**
+     * Called when every row stored since {@code from} was {@link #add added}: the store answers from now on.
+     */
+    public synchronized void finishLoading(long from) {
+        coverageStart = Math.max(from, acceptFrom);
+    }
+
+    /**
+     * Stops answering and frees everything, e.g. after a failed load.
+     */
+    public synchronized void clear() {
+        startLoading(Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds rows that were just stored in game_events. Never throws, ingestion must not fail because of the store.
+     */
+    public void addAll(Collection<GameEvent> events) {
+        if (acceptFrom == Long.MAX_VALUE) {
+            return;
+        }
+        for (GameEvent event : events) {
+            try {
+                add(event);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to add event {} to the memory store: {}", event.getId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adds one stored row, unless it is too old, has no user id or is already there.
+     *
+     * @return whether the row was added
+     */
+    public boolean add(GameEvent event) {
+        if (event.getTimestamp() < acceptFrom || event.getUserId() == null || event.getId() == null) {
+            return false;
+        }
+        ParsedValues parameters = parse(event.getParameters());
+        ParsedValues userProperties = parse(event.getUserProperties());
+        long hour = hourStart(event.getTimestamp());
+        Chunk chunk = chunks.computeIfAbsent(event.getEventName(), name -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(hour, h -> new Chunk(h));
+        long added;
+        synchronized (chunk) {
+            if (chunk.dropped) {
+                return false; // Expired concurrently
+            }
+            // Read under the lock, see renumberIfSparse
+            added = chunk.append(event, parameters, userProperties, userNumbering, deviceNumbering);
+        }
+        if (added < 0) {
+            return false;
+        }
+        rowCount.incrementAndGet();
+        heapBytes.addAndGet(added);
+        return true;
+    }
+
+    /**
+     * Drops the hours before the cutoff's hour and stops accepting rows for them.
+     *
+     * @return the number of chunks dropped
+     */
+    public synchronized int evictBefore(long cutoff) {
+        long hour = hourStart(cutoff);
+        if (acceptFrom == Long.MAX_VALUE || hour <= acceptFrom) {
+            return 0;
+        }
+        acceptFrom = hour;
+        if (coverageStart != Long.MAX_VALUE) {
+            coverageStart = Math.max(coverageStart, hour); // Before dropping, see aggregate
+        }
+        int dropped = 0;
+        for (ConcurrentSkipListMap<Long, Chunk> byHour : chunks.values()) {
+            ConcurrentNavigableMap<Long, Chunk> expired = byHour.headMap(hour);
+            for (Chunk chunk : expired.values()) {
+                synchronized (chunk) {
+                    chunk.dropped = true;
+                    rowCount.addAndGet(-chunk.rowCount());
+                    heapBytes.addAndGet(-chunk.heapBytes);
+                    offHeapBytes.addAndGet(chunk.sealed == null ? 0 : -chunk.sealed.buffer.capacity());
+                }
+                dropped++;
+            }
+            expired.clear();
+        }
+        renumberIfSparse();
+        return dropped;
+    }
+
+    /**
+     * Numbers the user and device ids anew once the numberings hold more than twice as many ids as the
+     * chunks' dictionaries, so the ids of expired hours do not pile up. Aggregations that overlap with
+     * it give up, see {@link #aggregate}.
+     */
+    private void renumberIfSparse() {
+        long users = 0;
+        long devices = 0;
+        for (ConcurrentSkipListMap<Long, Chunk> byHour : chunks.values()) {
+            for (Chunk chunk : byHour.values()) {
+                users += chunk.users.size; // An estimate, read without the lock
+                devices += chunk.devices.size;
+            }
+        }
+        if (userNumbering.size() <= 2 * users && deviceNumbering.size() <= 2 * devices) {
+            return;
+        }
+        numberingVersion++;
+        Numbering newUsers = new Numbering();
+        Numbering newDevices = new Numbering();
+        // Appends read the numberings under their chunk's lock: one that runs before its chunk is
+        // renumbered below is renumbered with it, one after uses the new numberings already
+        userNumbering = newUsers;
+        deviceNumbering = newDevices;
+        for (ConcurrentSkipListMap<Long, Chunk> byHour : chunks.values()) {
+            for (Chunk chunk : byHour.values()) {
+                synchronized (chunk) {
+                    chunk.users.renumber(newUsers);
+                    chunk.devices.renumber(newDevices);
+                }
+            }
+        }
+        numberingVersion++;
+    }
+
+    /**
+     * Moves chunks of hours that ended before {@code closedBefore} to direct memory, oldest first,
+     * until the heap use is below the threshold.
+     *
+     * @return the number of chunks moved
+     */
+    public int moveOffHeap(long closedBefore) {
+        long threshold = analysisProperties.getMemoryStore().getOffHeapThresholdMb() * 1024 * 1024;
+        if (heapBytes.get() <= threshold) {
+            return 0;
+        }
+        List<Chunk> candidates = new ArrayList<>();
+        for (ConcurrentSkipListMap<Long, Chunk> byHour : chunks.values()) {
+            for (Chunk chunk : byHour.headMap(closedBefore - HOUR_MILLIS, true).values()) {
+                candidates.add(chunk);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(chunk -> chunk.hourStart));
+        int moved = 0;
+        for (Chunk chunk : candidates) {
+            if (heapBytes.get() <= threshold) {
+                break;
+            }
+            synchronized (chunk) {
+                if (chunk.dropped || chunk.size == 0) {
+                    continue;
+                }
+                long oldDirect = chunk.sealed == null ? 0 : chunk.sealed.buffer.capacity();
+                long oldHeap = chunk.heapBytes;
+                chunk.seal();
+                heapBytes.addAndGet(chunk.heapBytes - oldHeap);
+                offHeapBytes.addAndGet(chunk.sealed.buffer.capacity() - oldDirect);
+            }
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * Aggregates the plan's events in [from, plan end] from memory.
+     *
+     * @param from at least {@link #getCoverageStart()}
+     * @return null if the store does not (or no longer) hold all events from {@code from}
+     */
+    public RecentEventAggregation aggregate(AnalysisPlan plan, long from) {
+        int version = numberingVersion;
+        if (from < getCoverageStart() || (version & 1) != 0) {
+            return null;
+        }
+        RecentEventAggregation aggregation = new RecentEventAggregation(plan, getZone(), from, plan.getEndTime());
+        List<ChunkSnapshot> snapshots = new ArrayList<>();
+        ConcurrentSkipListMap<Long, Chunk> byHour = chunks.get(plan.getEventName());
+        if (byHour != null) {
+            for (Chunk chunk : byHour.subMap(hourStart(from), true, plan.getEndTime(), true).values()) {
+                synchronized (chunk) {
+                    if (!chunk.dropped) {
+                        snapshots.add(chunk.snapshot(aggregation.getValueFields()));
+                    }
+                }
+            }
+        }
+        // Eviction raises the coverage before it drops chunks: if the check still passes, nothing was missed.
+        // An unchanged version means every snapshot has numbers of the same numbering.
+        if (from < getCoverageStart() || numberingVersion != version) {
+            return null;
+        }
+        for (ChunkSnapshot snapshot : snapshots) {
+            aggregation.scan(snapshot);
+        }
+        return aggregation;
+    }
+
+    private static long hourStart(long timestamp) {
+        return timestamp == Long.MAX_VALUE ? timestamp : Math.floorDiv(timestamp, HOUR_MILLIS) * HOUR_MILLIS;
+    }
+
+    private ParsedValues parse(String json) {
+        ParsedValues values = new ParsedValues();
+        if (json == null) {
+            return values;
+        }
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return values; // JSON null or not an object: no keys
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.currentName();
+                values.keys.add(key);
+                values.values.add(ColdEventStore.readValue(parser, parser.nextToken()));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e.getMessage(), e);
+        }
+        return values;
+    }
+
+    private static final class ParsedValues {
+        private final List<String> keys = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+    }
+
+    /**
+     * Columns of a value field within one part of a chunk; null arrays if no row has the key.
+     */
+    record ValueColumn(byte[] tags, long[] bits) {
+    }
+
+    /**
+     * Rows of one part of a chunk as primitive arrays, valid for [0, rows). The value columns are in the
+     * order of the fields the snapshot was taken for.
+     */
+    static final class Columns {
+        long[] timestamps;
+        int[] users;
+        int[] devices;
+        ValueColumn[] values;
+        int rows;
+    }
+
+    /**
+     * The rows of a chunk at the time of a scan: those in direct memory and the on-heap tail, with the
+     * chunk's dictionaries (index = code - 1) and the store-wide numbers of its user and device ids by the
+     * same index. Later appends do not change it.
+     */
+    static final class ChunkSnapshot {
+        final long hourStart;
+        final String[] users;
+        final String[] devices;
+        final String[] values;
+        final int[] userNumbers;
+        final int[] deviceNumbers;
+        final int userCount;
+        final int deviceCount;
+        final int valueCount;
+        private final OffHeapPart sealed;
+        private final List<AnalysisPlan.Field> fields;
+        private final Columns tail;
+
+        private ChunkSnapshot(Chunk chunk, List<AnalysisPlan.Field> fields) {
+            this.hourStart = chunk.hourStart;
+            this.users = chunk.users.values;
+            this.devices = chunk.devices.values;
+            this.values = chunk.texts.values;
+            this.userNumbers = chunk.users.numbers;
+            this.deviceNumbers = chunk.devices.numbers;
+            this.userCount = chunk.users.size;
+            this.deviceCount = chunk.devices.size;
+            this.valueCount = chunk.texts.size;
+            this.sealed = chunk.sealed;
+            this.fields = fields;
+            this.tail = new Columns();
+            tail.timestamps = chunk.timestamps;
+            tail.users = chunk.userCodes;
+            tail.devices = chunk.deviceCodes;
+            tail.rows = chunk.size;
+            tail.values = new ValueColumn[fields.size()];
+            for (int i = 0; i < fields.size(); i++) {
+                HeapColumn column = chunk.columns(fields.get(i).kind()).get(fields.get(i).name());
+                tail.values[i] = column == null ? new ValueColumn(null, null) : new ValueColumn(column.tags, column.bits);
+            }
+        }
+
+        /**
+         * @return the rows in direct memory copied into the scratch columns (grown as needed), null if there are none
+         */
+        Columns loadSealed(Columns scratch) {
+            if (sealed == null) {
+                return null;
+            }
+            sealed.copyTo(scratch, fields);
+            return scratch;
+        }
+
+        Columns tail() {
+            return tail;
+        }
+    }
+
+    /**
+     * Store-wide numbers (from 1) of user or device ids.
+     */
+    private static final class Numbering {
+        private final Map<String, Integer> numbers = new ConcurrentHashMap<>();
+        private final AtomicInteger last = new AtomicInteger();
+
+        private int number(String id) {
+            return numbers.computeIfAbsent(id, key -> last.incrementAndGet());
+        }
+
+        private int size() {
+            return numbers.size();
+        }
+    }
+
+    /**
+     * Codes of the texts of one chunk; code 0 is null. Only changed under the chunk's lock.
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private String[] values = new String[16];
+        // Store-wide number by code - 1, only for user and device ids
+        private int[] numbers;
+        private int size;
+
+        private Dictionary(boolean numbered) {
+            this.numbers = numbered ? new int[values.length] : null;
+        }
+
+        /**
+         * @param numbering the current numbering if the dictionary is numbered, else null
+         * @return the code, and the heap bytes added through {@code added[0]}
+         */
+        private int code(String value, Numbering numbering, long[] added) {
+            if (value == null) {
+                return 0;
+            }
+            Integer code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2); // Snapshots keep the old array, which is valid for their codes
+                added[0] += 4L * size;
+                if (numbers != null) {
+                    numbers = Arrays.copyOf(numbers, size * 2);
+                    added[0] += 4L * size;
+                }
+            }
+            if (numbers != null) {
+                numbers[size] = numbering.number(value);
+            }
+            values[size++] = value;
+            codes.put(value, size);
+            added[0] += 64 + 2L * value.length();
+            return size;
+        }
+
+        private void renumber(Numbering numbering) {
+            int[] renumbered = new int[values.length]; // A new array, snapshots keep the old numbers
+            for (int i = 0; i < size; i++) {
+                renumbered[i] = numbering.number(values[i]);
+            }
+            numbers = renumbered;
+        }
+    }
+
+    private static final class HeapColumn {
+        private byte[] tags;
+        private long[] bits;
+
+        private HeapColumn(int capacity) {
+            this.tags = new byte[capacity];
+            this.bits = new long[capacity];
+        }
+    }
+
+    private static final class Chunk {
+        private final long hourStart;
+        private final Dictionary users = new Dictionary(true);
+        private final Dictionary devices = new Dictionary(true);
+        private final Dictionary texts = new Dictionary(false);
+        // On-heap tail; arrays are replaced when they grow, so snapshots can keep reading the old ones
+        private long[] timestamps = new long[INITIAL_CAPACITY];
+        private int[] userCodes = new int[INITIAL_CAPACITY];
+        private int[] deviceCodes = new int[INITIAL_CAPACITY];
+        private Map<String, HeapColumn> parameters = new LinkedHashMap<>();
+        private Map<String, HeapColumn> userProperties = new LinkedHashMap<>();
+        private LongHashSet ids = new LongHashSet(INITIAL_CAPACITY);
+        private int size;
+        // Rows moved to direct memory, null if none
+        private OffHeapPart sealed;
+        private long dictionaryBytes;
+        private long heapBytes;
+        private boolean dropped;
+
+        private Chunk(long hourStart) {
+            this.hourStart = hourStart;
+        }
+
+        private int rowCount() {
+            return size + (sealed == null ? 0 : sealed.rows);
+        }
+
+        private Map<String, HeapColumn> columns(AnalysisPlan.FieldKind kind) {
+            return kind == AnalysisPlan.FieldKind.USER_PROPERTY ? userProperties : parameters;
+        }
+
+        /**
+         * @return the heap bytes added, -1 if the row is already there
+         */
+        private long append(GameEvent event, ParsedValues parameterValues, ParsedValues userPropertyValues,
+                            Numbering userNumbering, Numbering deviceNumbering) {
+            long id = event.getId();
+            if (ids.contains(id) || sealed != null && sealed.containsId(id)) {
+                return -1;
+            }
+            long before = heapBytes;
+            long[] added = new long[1];
+            if (size == timestamps.length) {
+                grow();
+            }
+            ids.add(id);
+            timestamps[size] = event.getTimestamp();
+            userCodes[size] = users.code(event.getUserId(), userNumbering, added);
+            deviceCodes[size] = devices.code(event.getDeviceId(), deviceNumbering, added);
+            setValues(parameters, parameterValues, added);
+            setValues(userProperties, userPropertyValues, added);
+            size++;
+            dictionaryBytes += added[0];
+            heapBytes = tailBytes() + dictionaryBytes;
+            return heapBytes - before;
+        }
+
+        private void setValues(Map<String, HeapColumn> columns, ParsedValues parsed, long[] added) {
+            for (int i = 0; i < parsed.keys.size(); i++) {
+                HeapColumn column = columns.get(parsed.keys.get(i));
+                if (column == null) {
+                    column = new HeapColumn(timestamps.length);
+                    columns.put(parsed.keys.get(i), column);
+                }
+                Object value = parsed.values.get(i);
+                byte tag;
+                long bits;
+                if (value instanceof Long number) {
+                    tag = LONG;
+                    bits = number;
+                } else if (value instanceof Double number) {
+                    tag = DOUBLE;
+                    bits = Double.doubleToRawLongBits(number);
+                } else if (value instanceof Boolean b) {
+                    tag = b ? TRUE : FALSE;
+                    bits = 0;
+                } else if (value instanceof ColumnarSegment.RawJson raw) {
+                    tag = RAW_JSON;
+                    bits = texts.code(raw.json(), null, added);
+                } else {
+                    tag = STRING;
+                    bits = texts.code(value.toString(), null, added);
+                }
+                column.tags[size] = tag;
+                column.bits[size] = bits;
+            }
+        }
+
+        private void grow() {
+            int capacity = timestamps.length * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            userCodes = Arrays.copyOf(userCodes, capacity);
+            deviceCodes = Arrays.copyOf(deviceCodes, capacity);
+            for (HeapColumn column : parameters.values()) {
+                column.tags = Arrays.copyOf(column.tags, capacity);
+                column.bits = Arrays.copyOf(column.bits, capacity);
+            }
+            for (HeapColumn column : userProperties.values()) {
+                column.tags = Arrays.copyOf(column.tags, capacity);
+                column.bits = Arrays.copyOf(column.bits, capacity);
+            }
+        }
+
+        /**
+         * Moves the tail, together with the rows already in direct memory, to a new direct buffer.
+         */
+        private void seal() {
+            sealed = OffHeapPart.of(sealed, this);
+            timestamps = new long[INITIAL_CAPACITY];
+            userCodes = new int[INITIAL_CAPACITY];
+            deviceCodes = new int[INITIAL_CAPACITY];
+            parameters = new LinkedHashMap<>();
+            userProperties = new LinkedHashMap<>();
+            ids = new LongHashSet(INITIAL_CAPACITY);
+            size = 0;
+            heapBytes = tailBytes() + dictionaryBytes;
+        }
+
+        private ChunkSnapshot snapshot(List<AnalysisPlan.Field> fields) {
+            return new ChunkSnapshot(this, fields);
+        }
+
+        private long tailBytes() {
+            long perRow = 16 + 9L * (parameters.size() + userProperties.size());
+            return timestamps.length * perRow + ids.memoryBytes();
+        }
+
+    }
+
+    /**
+     * Rows of a chunk in one direct buffer, in native byte order: longs first (timestamps, the sorted ids,
+     * the bits of every value column), then the user and device codes, then the tags of every value column.
+     */
+    private static final class OffHeapPart {
+        private final ByteBuffer buffer;
+        private final int rows;
+        private final int timestampsOffset;
+        private final int idsOffset;
+        private final int usersOffset;
+        private final int devicesOffset;
+        // Key -> {bits offset, tags offset}
+        private final Map<String, int[]> parameters;
+        private final Map<String, int[]> userProperties;
+
+        private OffHeapPart(ByteBuffer buffer, int rows, Map<String, int[]> parameters, Map<String, int[]> userProperties) {
+            this.buffer = buffer;
+            this.rows = rows;
+            this.timestampsOffset = 0;
+            this.idsOffset = 8 * rows;
+            int longColumns = 2 + parameters.size() + userProperties.size();
+            this.usersOffset = 8 * rows * longColumns;
+            this.devicesOffset = usersOffset + 4 * rows;
+            this.parameters = parameters;
+            this.userProperties = userProperties;
+        }
+
+        /**
+         * @return the rows of the previous part (may be null) and the chunk's tail in one new buffer
+         */
+        private static OffHeapPart of(OffHeapPart previous, Chunk chunk) {
+            int oldRows = previous == null ? 0 : previous.rows;
+            int rows = oldRows + chunk.size;
+            Set<String> parameterKeys = new LinkedHashSet<>(chunk.parameters.keySet());
+            Set<String> userPropertyKeys = new LinkedHashSet<>(chunk.userProperties.keySet());
+            if (previous != null) {
+                parameterKeys.addAll(previous.parameters.keySet());
+                userPropertyKeys.addAll(previous.userProperties.keySet());
+            }
+            int longColumns = 2 + parameterKeys.size() + userPropertyKeys.size();
+            int valueColumns = parameterKeys.size() + userPropertyKeys.size();
+            long capacity = 8L * rows * longColumns + 8L * rows + (long) rows * valueColumns;
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Chunk too large for one direct buffer: " + rows + " rows");
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) capacity).order(ByteOrder.nativeOrder());
+            Map<String, int[]> parameterOffsets = new LinkedHashMap<>();
+            Map<String, int[]> userPropertyOffsets = new LinkedHashMap<>();
+            int bitsOffset = 16 * rows;
+            int tagsOffset = (int) (8L * rows * longColumns + 8L * rows);
+            for (String key : parameterKeys) {
+                parameterOffsets.put(key, new int[]{bitsOffset, tagsOffset});
+                bitsOffset += 8 * rows;
+                tagsOffset += rows;
+            }
+            for (String key : userPropertyKeys) {
+                userPropertyOffsets.put(key, new int[]{bitsOffset, tagsOffset});
+                bitsOffset += 8 * rows;
+                tagsOffset += rows;
+            }
+            OffHeapPart part = new OffHeapPart(buffer, rows, parameterOffsets, userPropertyOffsets);
+
+            long[] ids = new long[rows];
+            if (previous != null) {
+                previous.longs(previous.idsOffset, oldRows).get(ids, 0, oldRows);
+                copyLongs(previous, previous.timestampsOffset, part, part.timestampsOffset, oldRows);
+                copyBytes(previous, previous.usersOffset, part, part.usersOffset, 4 * oldRows);
+                copyBytes(previous, previous.devicesOffset, part, part.devicesOffset, 4 * oldRows);
+                copyColumns(previous, previous.parameters, part, parameterOffsets);
+                copyColumns(previous, previous.userProperties, part, userPropertyOffsets);
+            }
+            System.arraycopy(chunk.ids.toArray(), 0, ids, oldRows, chunk.size);
+            Arrays.sort(ids);
+            part.longs(part.idsOffset, rows).put(ids);
+            part.longs(part.timestampsOffset + 8 * oldRows, chunk.size).put(chunk.timestamps, 0, chunk.size);
+            part.ints(part.usersOffset + 4 * oldRows, chunk.size).put(chunk.userCodes, 0, chunk.size);
+            part.ints(part.devicesOffset + 4 * oldRows, chunk.size).put(chunk.deviceCodes, 0, chunk.size);
+            putTail(chunk.parameters, part, parameterOffsets, oldRows, chunk.size);
+            putTail(chunk.userProperties, part, userPropertyOffsets, oldRows, chunk.size);
+            return part;
+        }
+
+        private static void copyColumns(OffHeapPart from, Map<String, int[]> fromOffsets, OffHeapPart to, Map<String, int[]> toOffsets) {
+            for (Map.Entry<String, int[]> column : fromOffsets.entrySet()) {
+                int[] target = toOffsets.get(column.getKey());
+                copyLongs(from, column.getValue()[0], to, target[0], from.rows);
+                copyBytes(from, column.getValue()[1], to, target[1], from.rows);
+            }
+        }
+
+        private static void putTail(Map<String, HeapColumn> columns, OffHeapPart part, Map<String, int[]> offsets, int oldRows, int rows) {
+            for (Map.Entry<String, HeapColumn> column : columns.entrySet()) {
+                int[] target = offsets.get(column.getKey());
+                part.longs(target[0] + 8 * oldRows, rows).put(column.getValue().bits, 0, rows);
+                part.buffer.put(target[1] + oldRows, column.getValue().tags, 0, rows);
+            }
+        }
+
+        private static void copyLongs(OffHeapPart from, int fromOffset, OffHeapPart to, int toOffset, int count) {
+            copyBytes(from, fromOffset, to, toOffset, 8 * count);
+        }
+
+        private static void copyBytes(OffHeapPart from, int fromOffset, OffHeapPart to, int toOffset, int length) {
+            to.buffer.put(toOffset, from.buffer, fromOffset, length);
+        }
+
+        private LongBuffer longs(int offset, int count) {
+            return buffer.slice(offset, 8 * count).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+
+        private IntBuffer ints(int offset, int count) {
+            return buffer.slice(offset, 4 * count).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+
+        private boolean containsId(long id) {
+            int low = 0;
+            int high = rows - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long value = buffer.getLong(idsOffset + 8 * mid);
+                if (value < id) {
+                    low = mid + 1;
+                } else if (value > id) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void copyTo(Columns scratch, List<AnalysisPlan.Field> fields) {
+            if (scratch.timestamps == null || scratch.timestamps.length < rows) {
+                scratch.timestamps = new long[rows];
+                scratch.users = new int[rows];
+                scratch.devices = new int[rows];
+            }
+            if (scratch.values == null || scratch.values.length != fields.size()) {
+                scratch.values = new ValueColumn[fields.size()];
+            }
+            longs(timestampsOffset, rows).get(scratch.timestamps, 0, rows);
+            ints(usersOffset, rows).get(scratch.users, 0, rows);
+            ints(devicesOffset, rows).get(scratch.devices, 0, rows);
+            for (int i = 0; i < fields.size(); i++) {
+                AnalysisPlan.Field field = fields.get(i);
+                int[] offsets = (field.kind() == AnalysisPlan.FieldKind.USER_PROPERTY ? userProperties : parameters).get(field.name());
+                ValueColumn current = scratch.values[i];
+                if (offsets == null) {
+                    scratch.values[i] = new ValueColumn(null, null);
+                    continue;
+                }
+                if (current == null || current.tags() == null || current.tags().length < rows) {
+                    current = new ValueColumn(new byte[rows], new long[rows]);
+                    scratch.values[i] = current;
+                }
+                longs(offsets[0], rows).get(current.bits(), 0, rows);
+                buffer.get(offsets[1], current.tags(), 0, rows);
+            }
+            scratch.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.winlife.dataanalysis.model.EventRollup;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventRollupRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a batch of stored events adds to the hourly and daily rollups: events per event name and local
+ * hour or day, once without dimension and once per configured dimension and value.
+ */
+public class RollupDeltas {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupDeltas.class);
+
+    private final List<AnalysisPlan.Field> dimensions;
+    private final ZoneId zone;
+    private final JsonFactory jsonFactory;
+    private final Set<String> parameterNames = new HashSet<>();
+    private final Set<String> userPropertyNames = new HashSet<>();
+    // Key -> {events, events with a user id}
+    private final Map<Key, long[]> counts = new HashMap<>();
+    // Hour and day of the last event; a batch mostly holds events of one hour
+    private long hourStart = Long.MAX_VALUE;
+    private long hourEnd = Long.MIN_VALUE;
+    private long dayStart;
+
+    /**
+     * @param dimensions parameter and user property fields only
+     */
+    public RollupDeltas(List<AnalysisPlan.Field> dimensions, ZoneId zone, JsonFactory jsonFactory) {
+        this.dimensions = dimensions;
+        this.zone = zone;
+        this.jsonFactory = jsonFactory;
+        for (AnalysisPlan.Field dimension : dimensions) {
+            (dimension.kind() == AnalysisPlan.FieldKind.PARAMETER ? parameterNames : userPropertyNames).add(dimension.name());
+        }
+    }
+
+    public void add(GameEvent event) {
+        long timestamp = event.getTimestamp();
+        if (timestamp < hourStart || timestamp >= hourEnd) {
+            ZonedDateTime hour = Instant.ofEpochMilli(timestamp).atZone(zone).truncatedTo(ChronoUnit.HOURS);
+            hourStart = hour.toInstant().toEpochMilli();
+            hourEnd = hour.plusHours(1).toInstant().toEpochMilli();
+            dayStart = hour.toLocalDate().atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+        long identified = event.getUserId() == null ? 0 : 1;
+        count(RollupPlan.NO_DIMENSION, event.getEventName(), null, identified);
+        if (dimensions.isEmpty()) {
+            return;
+        }
+        Map<String, String> parameters = values(event.getParameters(), parameterNames);
+        Map<String, String> userProperties = values(event.getUserProperties(), userPropertyNames);
+        for (AnalysisPlan.Field dimension : dimensions) {
+            String value = (dimension.kind() == AnalysisPlan.FieldKind.PARAMETER ? parameters : userProperties).get(dimension.name());
+            count(dimension.attribute(), event.getEventName(), value, identified);
+        }
+    }
+
+    public boolean isEmpty() {
+        return counts.isEmpty();
+    }
+
+    /**
+     * @return the counts in {@link EventRollupRepository.RollupCount#ORDER}
+     */
+    public List<EventRollupRepository.RollupCount> toCounts() {
+        List<EventRollupRepository.RollupCount> result = new ArrayList<>(counts.size());
+        counts.forEach((key, count) -> result.add(new EventRollupRepository.RollupCount(key.granularity(), key.dimension(),
+                key.eventName(), key.bucketStart(), key.value(), count[0], count[1], null)));
+        result.sort(EventRollupRepository.RollupCount.ORDER);
+        return result;
+    }
+
+    private void count(String dimension, String eventName, String value, long identified) {
+        increment(new Key(EventRollup.Granularity.HOUR, dimension, eventName, hourStart, value), identified);
+        increment(new Key(EventRollup.Granularity.DAY, dimension, eventName, dayStart, value), identified);
+    }
+
+    private void increment(Key key, long identified) {
+        long[] count = counts.computeIfAbsent(key, k -> new long[2]);
+        count[0]++;
+        count[1] += identified;
+    }
+
+    /**
+     * @return the named top-level fields of the JSON object as JSON_UNQUOTE(JSON_EXTRACT(...)) returns them
+     */
+    private Map<String, String> values(String json, Set<String> names) {
+        Map<String, String> values = new HashMap<>();
+        if (names.isEmpty() || json == null) {
+            return values;
+        }
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return values;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (names.contains(name)) {
+                    values.put(name, RowEvaluator.text(ColdEventStore.readValue(parser, token))); // MySQL keeps the last duplicate
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            // Stored documents come from the ObjectMapper; one that cannot be read counts as lacking the fields
+            logger.warn("Unreadable event JSON, counted without its dimension values: {}", e.getMessage());
+        }
+        return values;
+    }
+
+    private record Key(EventRollup.Granularity granularity, String dimension, String eventName, long bucketStart, String value) {
+    }
+}
@@ -0,0 +1,113 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.repository.EventRollupRepository;
+import com.winlife.dataanalysis.util.HyperLogLog;
+
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How an {@link AnalysisPlan} that only counts events is answered from the hourly and daily rollups: the
+ * rollup rows of its range and, for the partial hours at the edges, the plan itself over the events.
+ * An approximate plan may also count distinct users, from the user sketches of the rows.
+ */
+public class RollupPlan {
+
+    // The rollups that count per event name only
+    public static final String NO_DIMENSION = "";
+
+    private final AnalysisPlan plan;
+    private final String dimension;
+    private final RollupRange range;
+    private final RowEvaluator evaluator;
+
+    private RollupPlan(AnalysisPlan plan, String dimension, RollupRange range, ZoneId zone) {
+        this.plan = plan;
+        this.dimension = dimension;
+        this.range = range;
+        this.evaluator = new RowEvaluator(plan, zone);
+    }
+
+    /**
+     * @param dimensions the configured dimensions, as attributes
+     * @param coverage   covered_from per dimension
+     * @return null unless the plan has no filters, only counts events (or, approximately, users), and groups by
+     * time, by a configured dimension or not at all, and a whole covered hour lies within its range
+     */
+    public static RollupPlan of(AnalysisPlan plan, Collection<String> dimensions, Map<String, Long> coverage, ZoneId zone) {
+        if (!plan.getFilters().isEmpty() || !plan.getMeasures().stream().allMatch(measure -> isRolledUp(plan, measure))) {
+            return null;
+        }
+        AnalysisPlan.Dimension grouping = plan.getGrouping();
+        String dimension = grouping == null || grouping.timeUnit() != null ? NO_DIMENSION : grouping.field().attribute();
+        if (!dimension.equals(NO_DIMENSION) && !dimensions.contains(dimension)) {
+            return null;
+        }
+        Long coveredFrom = coverage.get(dimension);
+        if (coveredFrom == null) {
+            return null;
+        }
+        // An hourly grouping needs the hours even where whole days are covered
+        boolean days = grouping == null || grouping.timeUnit() != AnalysisPlan.TimeUnit.HOUR;
+        RollupRange range = RollupRange.split(plan.getStartTime(), plan.getEndTime(), coveredFrom, zone, days);
+        return range == null ? null : new RollupPlan(plan, dimension, range, zone);
+    }
+
+    private static boolean isRolledUp(AnalysisPlan plan, AnalysisPlan.Measure measure) {
+        return measure.aggregation() == AnalysisPlan.Aggregation.COUNT || plan.isApprox()
+                && measure.aggregation() == AnalysisPlan.Aggregation.DISTINCT_COUNT && AnalysisPlan.Field.USER_ID.equals(measure.field());
+    }
+
+    /**
+     * @return whether the rows are only usable with their user sketches
+     */
+    public boolean needsSketches() {
+        return plan.getMeasures().stream().anyMatch(measure -> measure.aggregation() == AnalysisPlan.Aggregation.DISTINCT_COUNT);
+    }
+
+    public String getDimension() {
+        return dimension;
+    }
+
+    public List<RollupRange.Part> getParts() {
+        return range.parts();
+    }
+
+    /**
+     * @return the edges of the range the rollups do not cover
+     */
+    public List<RollupRange.Edge> getEdges() {
+        return range.edges();
+    }
+
+    public AnalysisPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Adds a rollup row read for one of the parts, with its user sketch if {@link #needsSketches()}. Only events
+     * with a user id count, as in the analysis over events.
+     */
+    public void add(GroupedAggregation aggregation, EventRollupRepository.RollupCount count) {
+        if (count.identifiedCount() == 0) {
+            return;
+        }
+        AnalysisPlan.Dimension grouping = plan.getGrouping();
+        String key;
+        if (grouping == null) {
+            key = null;
+        } else if (grouping.timeUnit() != null) {
+            key = evaluator.timeKey(count.bucketStart()); // Hours and days lie within one bucket of every unit
+        } else {
+            key = count.value();
+        }
+        aggregation.addRows(key, count.identifiedCount());
+        for (int i = 0; i < plan.getMeasures().size(); i++) {
+            if (plan.getMeasures().get(i).aggregation() == AnalysisPlan.Aggregation.DISTINCT_COUNT) {
+                aggregation.addSketch(key, i, HyperLogLog.fromBytes(count.userSketch()));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.model.EventRollup;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A time range [start, end] split into the whole local hours (and days) from coveredFrom on, which the
+ * rollups answer, and the edges around them, which are read from the events.
+ *
+ * @param parts rollup rows to read, by the start of their bucket
+ * @param edges the rest of the range, at most one piece before and one after the parts
+ */
+public record RollupRange(List<Part> parts, List<Edge> edges) {
+
+    /**
+     * @param days whether whole days are read from the daily rows instead of their hours
+     * @return null if no whole covered hour lies within the range
+     */
+    public static RollupRange split(long start, long end, long coveredFrom, ZoneId zone, boolean days) {
+        long hourFrom = ceil(Math.max(start, coveredFrom), zone, false);
+        long hourTo = floor(end, zone, false);
+        if (next(hourTo, zone, false) - 1 == end) {
+            hourTo = next(hourTo, zone, false); // The range ends with the last millisecond of the hour
+        }
+        if (hourFrom >= hourTo) {
+            return null;
+        }
+        List<Part> parts = new ArrayList<>();
+        long dayFrom = days ? ceil(hourFrom, zone, true) : hourTo;
+        long dayTo = days ? floor(hourTo, zone, true) : hourTo;
+        if (dayFrom < dayTo) {
+            addHours(parts, hourFrom, dayFrom);
+            parts.add(new Part(EventRollup.Granularity.DAY, dayFrom, dayTo));
+            addHours(parts, dayTo, hourTo);
+        } else {
+            addHours(parts, hourFrom, hourTo);
+        }
+        List<Edge> edges = new ArrayList<>();
+        if (start < hourFrom) {
+            edges.add(new Edge(start, hourFrom - 1));
+        }
+        if (hourTo <= end) {
+            edges.add(new Edge(hourTo, end));
+        }
+        return new RollupRange(parts, edges);
+    }
+
+    private static void addHours(List<Part> parts, long from, long to) {
+        if (from < to) {
+            parts.add(new Part(EventRollup.Granularity.HOUR, from, to));
+        }
+    }
+
+    private static long floor(long timestamp, ZoneId zone, boolean day) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(zone);
+        return (day ? time.toLocalDate().atStartOfDay(zone) : time.truncatedTo(ChronoUnit.HOURS)).toInstant().toEpochMilli();
+    }
+
+    private static long ceil(long timestamp, ZoneId zone, boolean day) {
+        long start = floor(timestamp, zone, day);
+        return start == timestamp ? start : next(start, zone, day);
+    }
+
+    /**
+     * @return the start of the hour or day after the one starting at bucketStart; a DST change can make a day 23 or 25 hours long
+     */
+    private static long next(long bucketStart, ZoneId zone, boolean day) {
+        ZonedDateTime start = Instant.ofEpochMilli(bucketStart).atZone(zone);
+        return (day ? start.toLocalDate().plusDays(1).atStartOfDay(zone) : start.plusHours(1)).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Rows of one granularity whose bucket starts in [from, to).
+     */
+    public record Part(EventRollup.Granularity granularity, long from, long to) {
+    }
+
+    /**
+     * Events in [start, end].
+     */
+    public record Edge(long start, long end) {
+    }
+}
@@ -0,0 +1,236 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.util.ColumnarSegment;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.WeekFields;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates an {@link AnalysisPlan} against single events (one instance per scanning thread), with the semantics of the SQL that
+ * {@link AnalysisSql} generates for it:
+ * <ul>
+ *     <li>a field is compared as text (JSON_UNQUOTE), a missing key is SQL NULL and fails every
+ *     comparison except isNull</li>
+ *     <li>= and != compare numerically when the filter value is a number, otherwise as strings
+ *     ignoring case (the columns use a case-insensitive collation)</li>
+ *     <li>&lt;, &gt;, ... compare CAST(... AS DECIMAL), i.e. the leading number rounded to an integer</li>
+ *     <li>time buckets are formatted like DATE / DATE_FORMAT('%X-%V', '%Y-%m', '%Y-%m-%d %H:00') in the
+ *     configured zone, which has to be the MySQL session time zone</li>
+ * </ul>
+ */
+public class RowEvaluator {
+
+    // MySQL's string to number conversion reads the longest numeric prefix
+    private static final Pattern NUMERIC_PREFIX = Pattern.compile("^\\s*[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+    // '%X-%V': weeks start on Sunday, week 1 is the first week with a Sunday in the year
+    private static final WeekFields MYSQL_WEEK = WeekFields.of(DayOfWeek.SUNDAY, 7);
+
+    private final AnalysisPlan plan;
+    private final ZoneId zone;
+    // Last time bucket rendered by groupKey
+    private long bucketStart = Long.MAX_VALUE;
+    private long bucketEnd = Long.MIN_VALUE;
+    private String bucketKey;
+
+    public RowEvaluator(AnalysisPlan plan, ZoneId zone) {
+        this.plan = plan;
+        this.zone = zone;
+    }
+
+    public AnalysisPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return whether the event is in the plan's time range, of its event, has a user id and passes all filters
+     */
+    public boolean matches(EventRow row) {
+        if (row.getUserId() == null || row.getTimestamp() < plan.getStartTime() || row.getTimestamp() > plan.getEndTime()
+                || !plan.getEventName().equals(row.getEventName())) {
+            return false;
+        }
+        for (AnalysisPlan.Filter filter : plan.getFilters()) {
+            if (!matches(filter, value(filter.field(), row))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the row's group key as MySQL renders it, null if not grouped or the field is missing
+     */
+    public String groupKey(EventRow row) {
+        AnalysisPlan.Dimension grouping = plan.getGrouping();
+        if (grouping == null) {
+            return null;
+        }
+        if (grouping.timeUnit() == null) {
+            return text(value(grouping.field(), row));
+        }
+        return timeKey(row.getTimestamp());
+    }
+
+    /**
+     * @return the time bucket of the timestamp in the plan's time grouping, which is then
+     * cached for [{@link #getBucketStart()}, {@link #getBucketEnd()})
+     */
+    String timeKey(long timestamp) {
+        AnalysisPlan.TimeUnit unit = plan.getGrouping().timeUnit();
+        if (timestamp < bucketStart || timestamp >= bucketEnd) {
+            // Rows come roughly in time order, so the bucket mostly stays the same
+            ZonedDateTime start = bucketStart(timestamp, unit);
+            // Days, weeks and months end at the next local midnight, which a DST change can move
+            ZonedDateTime end = unit == AnalysisPlan.TimeUnit.HOUR ? start.plusHours(1)
+                    : start.toLocalDate().plus(1, unit.chronoUnit()).atStartOfDay(zone);
+            bucketStart = start.toInstant().toEpochMilli();
+            bucketEnd = end.toInstant().toEpochMilli();
+            bucketKey = timeBucket(timestamp, unit, zone);
+        }
+        return bucketKey;
+    }
+
+    long getBucketStart() {
+        return bucketStart;
+    }
+
+    long getBucketEnd() {
+        return bucketEnd;
+    }
+
+    private ZonedDateTime bucketStart(long timestamp, AnalysisPlan.TimeUnit unit) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(zone);
+        return switch (unit) {
+            case HOUR -> time.truncatedTo(ChronoUnit.HOURS);
+            case DAY -> time.toLocalDate().atStartOfDay(zone);
+            case WEEK -> time.toLocalDate().with(MYSQL_WEEK.dayOfWeek(), 1).atStartOfDay(zone);
+            case MONTH -> time.toLocalDate().withDayOfMonth(1).atStartOfDay(zone);
+        };
+    }
+
+    public static Object value(AnalysisPlan.Field field, EventRow row) {
+        return switch (field.kind()) {
+            case PARAMETER -> row.getParameter(field.name());
+            case USER_PROPERTY -> row.getUserProperty(field.name());
+            case USER_ID -> row.getUserId();
+            case DEVICE_ID -> row.getDeviceId();
+        };
+    }
+
+    /**
+     * @return the value as JSON_UNQUOTE(JSON_EXTRACT(...)) returns it
+     */
+    public static String text(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof ColumnarSegment.RawJson raw) {
+            return raw.json();
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return the value as a number for SUM/AVG, null for a missing value
+     */
+    public static Double number(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        if (value instanceof Boolean b) {
+            return b ? 1d : 0d;
+        }
+        return decimal(text(value)).doubleValue();
+    }
+
+    /**
+     * Orders JSON scalars as MAX/MIN do: numbers numerically, anything else as text after numbers.
+     */
+    public static int compare(Object a, Object b) {
+        boolean aNumber = a instanceof Number;
+        boolean bNumber = b instanceof Number;
+        if (aNumber && bNumber) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (aNumber != bNumber) {
+            return aNumber ? -1 : 1;
+        }
+        return text(a).compareTo(text(b));
+    }
+
+    public static String timeBucket(long timestamp, AnalysisPlan.TimeUnit unit, ZoneId zone) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(zone);
+        return switch (unit) {
+            case DAY -> String.format(Locale.ROOT, "%04d-%02d-%02d", time.getYear(), time.getMonthValue(), time.getDayOfMonth());
+            case WEEK -> String.format(Locale.ROOT, "%04d-%02d", time.get(MYSQL_WEEK.weekBasedYear()), time.get(MYSQL_WEEK.weekOfWeekBasedYear()));
+            case MONTH -> String.format(Locale.ROOT, "%04d-%02d", time.getYear(), time.getMonthValue());
+            case HOUR -> String.format(Locale.ROOT, "%04d-%02d-%02d %02d:00", time.getYear(), time.getMonthValue(), time.getDayOfMonth(), time.getHour());
+        };
+    }
+
+    static boolean matches(AnalysisPlan.Filter filter, Object value) {
+        Object expected = filter.value();
+        String text = text(value);
+        return switch (filter.operator()) {
+            case IS_NULL -> text == null;
+            case IS_NOT_NULL -> text != null;
+            case EQ -> text != null && equalsValue(text, expected);
+            case NE -> text != null && !equalsValue(text, expected);
+            case GT -> text != null && expected != null && integral(value).compareTo(decimal(expected)) > 0;
+            case LT -> text != null && expected != null && integral(value).compareTo(decimal(expected)) < 0;
+            case GE -> text != null && expected != null && integral(value).compareTo(decimal(expected)) >= 0;
+            case LE -> text != null && expected != null && integral(value).compareTo(decimal(expected)) <= 0;
+            case CONTAINS -> text != null && containsIgnoreCase(text, expected);
+            case NOT_CONTAINS -> text != null && !containsIgnoreCase(text, expected);
+        };
+    }
+
+    private static boolean equalsValue(String text, Object expected) {
+        if (expected == null) {
+            return false; // = NULL is never true
+        }
+        if (expected instanceof Number || expected instanceof Boolean) {
+            return decimal(text).compareTo(decimal(expected)) == 0;
+        }
+        return text.equalsIgnoreCase(expected.toString());
+    }
+
+    private static boolean containsIgnoreCase(String text, Object expected) {
+        String needle = expected == null ? "" : expected.toString();
+        return text.toLowerCase(Locale.ROOT).contains(needle.toLowerCase(Locale.ROOT));
+    }
+
+    // CAST(x AS DECIMAL) has scale 0
+    private static BigDecimal integral(Object value) {
+        return value instanceof Long number ? BigDecimal.valueOf(number) : decimal(text(value)).setScale(0, RoundingMode.HALF_UP);
+    }
+
+    static BigDecimal decimal(Object value) {
+        if (value instanceof Boolean b) {
+            return b ? BigDecimal.ONE : BigDecimal.ZERO;
+        }
+        if (value instanceof Long || value instanceof Integer) {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        }
+        if (value instanceof Number number) {
+            return new BigDecimal(number.toString());
+        }
+        Matcher matcher = NUMERIC_PREFIX.matcher(value.toString());
+        if (!matcher.find()) {
+            return BigDecimal.ZERO;
+        }
+        return new BigDecimal(matcher.group().trim());
+    }
+}
@@ -0,0 +1,197 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.service.DatabaseBusyException;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits analysis queries to MySQL: at most analysis.db-concurrency.max-queries run at once, the rest wait
+ * up to acquire-timeout-ms (or the request's deadline, if earlier) and then get a {@link DatabaseBusyException}.
+ * <p>
+ * A free slot goes to a waiting dashboard tile before any ad-hoc query. Within a priority, users take turns:
+ * each user's queries wait in arrival order, and the user whose query was admitted moves to the back, so one
+ * user sending many expensive queries delays the others by at most one query per turn.
+ */
+@Component
+public class AnalysisAdmission {
+
+    private final int maxQueries;
+    private final long acquireTimeoutMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Per priority: user -> waiting queries, users in turn order; guarded by lock
+    private final Map<AnalysisRequest.Priority, LinkedHashMap<String, ArrayDeque<Waiter>>> waiting =
+            new EnumMap<>(AnalysisRequest.Priority.class);
+    private final Map<AnalysisRequest.Priority, Integer> waitingCounts = new EnumMap<>(AnalysisRequest.Priority.class);
+    private int waitingCount;
+    private int running;
+
+    private final Counter timeouts;
+
+    public AnalysisAdmission(AnalysisProperties analysisProperties, MeterRegistry meterRegistry) {
+        AnalysisProperties.DbConcurrency config = analysisProperties.getDbConcurrency();
+        this.maxQueries = Math.max(1, config.getMaxQueries());
+        this.acquireTimeoutMs = config.getAcquireTimeoutMs();
+        for (AnalysisRequest.Priority priority : AnalysisRequest.Priority.values()) {
+            waiting.put(priority, new LinkedHashMap<>());
+            waitingCounts.put(priority, 0);
+            Gauge.builder("analysis.admission.waiting", this, admission -> admission.queued(priority))
+                    .tag("priority", priority.name().toLowerCase()).register(meterRegistry);
+        }
+        // Same names as the write pool of DatabaseConcurrencyLimiter
+        this.timeouts = meterRegistry.counter("db.concurrency.timeouts", "pool", "query");
+        Gauge.builder("db.concurrency.waiting", this, AnalysisAdmission::queued).tag("pool", "query").register(meterRegistry);
+        Gauge.builder("db.concurrency.available", this, AnalysisAdmission::available).tag("pool", "query").register(meterRegistry);
+    }
+
+    /**
+     * Waits for a slot; use with try-with-resources.
+     *
+     * @throws DatabaseBusyException if no slot became free in time or the thread was interrupted
+     */
+    public Permit acquire(AnalysisRequest request) {
+        long timeoutMs = Math.max(0, request.remainingMs(acquireTimeoutMs));
+        lock.lock();
+        try {
+            if (running < maxQueries && waitingCount == 0) {
+                running++;
+                return new Permit();
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            waiting.get(request.getPriority()).computeIfAbsent(request.getUser(), user -> new ArrayDeque<>()).add(waiter);
+            waitingCounts.merge(request.getPriority(), 1, Integer::sum);
+            waitingCount++;
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            try {
+                while (!waiter.admitted && nanos > 0) {
+                    nanos = waiter.condition.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (waiter.admitted) {
+                return new Permit();
+            }
+            dequeue(request, waiter);
+        } finally {
+            lock.unlock();
+        }
+        timeouts.increment();
+        throw new DatabaseBusyException("No analysis query slot became free within " + timeoutMs + " ms");
+    }
+
+    private void dequeue(AnalysisRequest request, Waiter waiter) {
+        Map<String, ArrayDeque<Waiter>> users = waiting.get(request.getPriority());
+        ArrayDeque<Waiter> queue = users.get(request.getUser());
+        queue.remove(waiter);
+        if (queue.isEmpty()) {
+            users.remove(request.getUser());
+        }
+        waitingCounts.merge(request.getPriority(), -1, Integer::sum);
+        waitingCount--;
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            running--;
+            admitNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands free slots to the first waiting user of the highest priority with waiting queries.
+     */
+    private void admitNext() {
+        while (running < maxQueries && waitingCount > 0) {
+            for (AnalysisRequest.Priority priority : AnalysisRequest.Priority.values()) {
+                LinkedHashMap<String, ArrayDeque<Waiter>> users = waiting.get(priority);
+                if (users.isEmpty()) {
+                    continue;
+                }
+                Iterator<Map.Entry<String, ArrayDeque<Waiter>>> turns = users.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Waiter>> next = turns.next();
+                turns.remove();
+                Waiter waiter = next.getValue().poll();
+                if (!next.getValue().isEmpty()) {
+                    users.put(next.getKey(), next.getValue()); // To the back of the turn order
+                }
+                waitingCounts.merge(priority, -1, Integer::sum);
+                waitingCount--;
+                running++;
+                waiter.admitted = true;
+                waiter.condition.signal();
+                break;
+            }
+        }
+    }
+
+    private int queued() {
+        lock.lock();
+        try {
+            return waitingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int queued(AnalysisRequest.Priority priority) {
+        lock.lock();
+        try {
+            return waitingCounts.get(priority);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int available() {
+        lock.lock();
+        try {
+            return maxQueries - running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Waiter {
+        private final Condition condition;
+        private boolean admitted; // Guarded by the lock
+
+        private Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * A held slot, released once on close.
+     */
+    public final class Permit implements AutoCloseable {
+        private boolean released;
+
+        private Permit() {
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release();
+            }
+        }
+    }
+}
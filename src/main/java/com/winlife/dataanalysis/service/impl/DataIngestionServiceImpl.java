@@ -3,72 +3,113 @@ package com.winlife.dataanalysis.service.impl;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.IngestionProperties;
 import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.EventIngestResult;
 import com.winlife.dataanalysis.dto.EventReportStatistic;
-import com.winlife.dataanalysis.dto.FilterCondition;
 import com.winlife.dataanalysis.dto.GameEventDTO;
 import com.winlife.dataanalysis.model.*;
 import com.winlife.dataanalysis.repository.*;
+import com.winlife.dataanalysis.service.AnalysisCancelledException;
+import com.winlife.dataanalysis.service.CompiledSchema;
 import com.winlife.dataanalysis.service.DataIngestionService;
+import com.winlife.dataanalysis.service.DatabaseBusyException;
+import com.winlife.dataanalysis.service.EventRollupService;
+import com.winlife.dataanalysis.service.IndexAdvisor;
+import com.winlife.dataanalysis.service.JsonPathPromoter;
+import com.winlife.dataanalysis.service.SchemaRegistry;
+import com.winlife.dataanalysis.service.analysis.AnalysisPlan;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import com.winlife.dataanalysis.service.analysis.AnalysisResultCache;
+import com.winlife.dataanalysis.service.analysis.AnalysisRowWriter;
+import com.winlife.dataanalysis.service.analysis.AnalysisSql;
+import com.winlife.dataanalysis.service.analysis.ColdEventStore;
+import com.winlife.dataanalysis.service.analysis.ColumnarResult;
+import com.winlife.dataanalysis.service.analysis.GroupedAggregation;
+import com.winlife.dataanalysis.service.analysis.PromotedColumns;
+import com.winlife.dataanalysis.service.analysis.RecentEventAggregation;
+import com.winlife.dataanalysis.service.analysis.RecentEventStore;
+import com.winlife.dataanalysis.service.analysis.RowEvaluator;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.server.ResponseStatusException;
 
-
-import jakarta.persistence.EntityManager;
-import jakarta.persistence.Query; // Use JPA Query
-
-import java.time.Instant;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Service
 @RequiredArgsConstructor
 public class DataIngestionServiceImpl implements DataIngestionService {
 
     private static final Logger logger = LoggerFactory.getLogger(DataIngestionServiceImpl.class);
+
+    private static final int MAX_EVENT_ID_LENGTH = 64; // Length of game_events.event_id
+
     private final GameEventRepository gameEventRepository;
     private final EventSchemaRepository eventSchemaRepository;
     private final ErroredGameEventRepository erroredGameEventRepository;
     private final DebugGameEventRepository debugGameEventRepository;
-    private final UserPropertySchemaRepository userPropertySchemaRepository; // Inject UserPropertySchemaRepository
     private final PlayerDataRepository playerDataRepository; // Inject the new repository
-    private final EntityManager entityManager; // Inject EntityManager
     private final ObjectMapper objectMapper;
+    private final GameEventRecordMapper recordMapper;
+    private final EventBatchWriter eventBatchWriter;
+    private final PlayerDataWriter playerDataWriter;
+    private final EventDeduplicator eventDeduplicator;
+    private final SchemaRegistry schemaRegistry;
+    private final IngestionProperties ingestionProperties;
+    private final DatabaseConcurrencyLimiter databaseConcurrencyLimiter;
+    private final TransactionTemplate transactionTemplate;
+    private final ColdEventStore coldEventStore;
+    private final JsonPathPromoter jsonPathPromoter;
+    private final IndexAdvisor indexAdvisor;
+    private final RecentEventStore recentEventStore;
+    private final EventRollupService eventRollupService;
+    private final AnalysisResultCache analysisResultCache;
+    private final AnalysisQueryRepository analysisQueryRepository;
+    private final AnalysisAdmission analysisAdmission;
 
     @Override
-    @Transactional
+    @SuppressWarnings("try")
     public boolean processGameEvent(GameEventDTO event) {
+        // The permit is taken before the transaction borrows a connection
+        try (DatabaseConcurrencyLimiter.Permit ignored = databaseConcurrencyLimiter.acquire(DatabaseConcurrencyLimiter.Pool.WRITE)) {
+            try {
+                return Boolean.TRUE.equals(transactionTemplate.execute(status -> saveGameEvent(event)));
+            } catch (RuntimeException e) {
+                // The insert is flushed at commit, so its failure surfaces here; the errored row is written after the rollback
+                logger.error("Failed to save game event {} to the GameEvent table: {}", event.getEventName(), e.getMessage(), e);
+                saveErroredEvent(event, "Failed to save to main game_events table: " + e.getMessage());
+                return false;
+            }
+        } catch (DatabaseBusyException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Database is busy, retry later.", e);
+        }
+    }
+
+    private boolean saveGameEvent(GameEventDTO event) {
         // Validate event parameters against event schema
         String eventValidationError = validateEvent(event);
-        boolean isEventValid = eventValidationError == null;
 
         // Validate user properties against user property schema
         String userPropertiesValidationError = validateUserProperties(event.getUserProperties());
-        boolean areUserPropertiesValid = userPropertiesValidationError == null;
 
         // Combine validation results
-        boolean isEventAndPropertiesValid = isEventValid && areUserPropertiesValid;
-
-        String combinedValidationError = null;
-        if (!isEventValid) {
-            combinedValidationError = "Event validation failed: " + eventValidationError;
-        }
-        if (!areUserPropertiesValid) {
-            if (combinedValidationError == null) {
-                combinedValidationError = "User properties validation failed: " + userPropertiesValidationError;
-            } else {
-                combinedValidationError += "; User properties validation failed: " + userPropertiesValidationError;
-            }
-        }
+        String combinedValidationError = combineValidationErrors(eventValidationError, userPropertiesValidationError);
+        boolean isEventAndPropertiesValid = combinedValidationError == null;
 
 
         if (event.getIsDebug() == 1) {
@@ -85,8 +126,14 @@ public class DataIngestionServiceImpl implements DataIngestionService {
             return false; // Indicates validation failure and saved to error table
         }
 
+        if (eventDeduplicator.isDuplicate(event.getEventId())) {
+            logger.debug("Dropped duplicate event {} with eventId {}", event.getEventName(), event.getEventId());
+            return true; // Already stored by an earlier attempt
+        }
+
         // 2. Save event if valid and not in debug mode
         GameEvent gameEvent = new GameEvent();
+        gameEvent.setEventId(event.getEventId());
         gameEvent.setUserId(event.getUserId());
         gameEvent.setDeviceId(event.getDeviceId());
         gameEvent.setTimestamp(event.getTimestamp());
@@ -108,7 +155,7 @@ public class DataIngestionServiceImpl implements DataIngestionService {
             // Update PlayerData table after validation (regardless of event validity or debug mode)
             // We want to save the latest user properties received.
             if (event.getUserId() != null && !event.getUserId().trim().isEmpty()) {
-                updatePlayerData(event.getUserId(), event.getDeviceId(), event.getUserProperties());
+                playerDataWriter.update(event.getUserId(), event.getDeviceId(), gameEvent.getUserProperties());
             } else {
                 logger.warn("Received event with empty or null userId. Cannot update PlayerData.");
             }
@@ -120,59 +167,107 @@ public class DataIngestionServiceImpl implements DataIngestionService {
         }
 
 
-        try {
-            gameEventRepository.save(gameEvent);
-            logger.debug("Successfully saved valid game event with user properties: {}", event.getEventName());
-            return true; // Indicates valid and saved to main table
-        } catch (Exception e) {
-            logger.error("Failed to save game event with user properties to GameEvent table for event {}: {}", event.getEventName(), e.getMessage(), e);
-            // If saving to the main table fails, save to errored events and return false
-            saveErroredEvent(event, "Failed to save to main game_events table: " + e.getMessage());
-            return false;
+        // Same transaction as the insert, which runs at commit; first, so a failure here leaves the event unsaved.
+        // Failures roll the transaction back and are moved to the errored events by processGameEvent.
+        eventRollupService.add(List.of(gameEvent), Set.of());
+        gameEventRepository.save(gameEvent);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                recentEventStore.addAll(List.of(gameEvent));
+                analysisResultCache.invalidate(List.of(gameEvent));
+            }
+        });
+        logger.debug("Successfully saved valid game event with user properties: {}", event.getEventName());
+        return true; // Indicates valid and saved to main table
+    }
+
+    @Override
+    public List<EventIngestResult> processGameEvents(List<GameEventDTO> events) {
+        if (events == null || events.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int maxEvents = ingestionProperties.getBatch().getMaxEvents();
+        if (events.size() > maxEvents) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "At most " + maxEvents + " events are accepted per batch.");
         }
+
+        // Schemas come precompiled from the registry, so validation is pure CPU work and runs in parallel
+        String[] validationErrors = new String[events.size()];
+        IntStream.range(0, events.size()).parallel().forEach(i -> validationErrors[i] = validateGameEvent(events.get(i)));
+        return processValidatedGameEvents(events, Arrays.asList(validationErrors));
     }
 
-    /**
-     * Finds or creates PlayerData and updates user properties.
-     *
-     * @param userId         The user ID.
-     * @param deviceId       The device ID.
-     * @param userProperties The latest user properties.
-     */
-    private void updatePlayerData(String userId, String deviceId, Map<String, Object> userProperties) {
-        try {
-            Optional<PlayerData> playerDataOptional = playerDataRepository.findById(userId);
-            PlayerData playerData;
+    @Override
+    public List<EventIngestResult> processValidatedGameEvents(List<GameEventDTO> events, List<String> validationErrors) {
+        if (events == null || events.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int maxEvents = ingestionProperties.getBatch().getMaxEvents();
+        if (events.size() > maxEvents) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "At most " + maxEvents + " events are accepted per batch.");
+        }
 
-            if (playerDataOptional.isPresent()) {
-                playerData = playerDataOptional.get();
-                logger.debug("Found existing PlayerData for userId: {}", userId);
-            } else {
-                playerData = new PlayerData();
-                playerData.setUserId(userId); // Set userId for new record
-                logger.debug("Creating new PlayerData for userId: {}", userId);
+        EventIngestResult[] results = new EventIngestResult[events.size()];
+        EventBatchWriter.Batch batch = new EventBatchWriter.Batch();
+        List<Integer> acceptedIndexes = new ArrayList<>();
+
+        for (int i = 0; i < events.size(); i++) {
+            GameEventDTO event = events.get(i);
+            if (event == null) {
+                results[i] = EventIngestResult.of(i, EventIngestResult.Status.INVALID, validationErrors.get(i));
+                continue;
             }
+            EventBatchWriter.PreparedEvent prepared = eventBatchWriter.prepare(event, validationErrors.get(i));
+            prepared.addTo(batch);
+            results[i] = EventIngestResult.of(i, prepared.getStatus(), prepared.getMessage());
+            if (prepared.getStatus() == EventIngestResult.Status.ACCEPTED) {
+                acceptedIndexes.add(i);
+            }
+        }
 
-            // Always update deviceId and userProperties with the latest received data
-            playerData.setDeviceId(deviceId);
-            try {
-                // Serialize the validated user properties map
-                playerData.setUserProperties(objectMapper.writeValueAsString(userProperties));
-            } catch (JsonProcessingException e) {
-                logger.error("Failed to serialize user properties for PlayerData update for userId {}: {}", userId, userProperties, e);
-                // Decide how to handle this: maybe don't update userProperties field, or set to null
-                // For now, we'll log the error and proceed without updating userProperties for this record
-                // playerData.setUserProperties(null); // Optional: set to null on serialization failure
+        String failureReason;
+        try {
+            failureReason = eventBatchWriter.write(batch);
+        } catch (DatabaseBusyException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Database is busy, retry later.", e);
+        }
+        for (int index : acceptedIndexes) {
+            if (batch.isDuplicate(events.get(index))) {
+                results[index] = EventIngestResult.of(index, EventIngestResult.Status.DUPLICATE, null);
+            } else if (failureReason != null) {
+                results[index] = EventIngestResult.of(index, EventIngestResult.Status.FAILED, failureReason);
             }
-            playerData.setLastUpdatedTimestamp(Instant.now().toEpochMilli()); // Set last updated timestamp
+        }
+        return Arrays.asList(results);
+    }
 
-            playerDataRepository.save(playerData);
-            logger.debug("Successfully updated/created PlayerData for userId: {}", userId);
+    @Override
+    public String validateGameEvent(GameEventDTO event) {
+        if (event == null) {
+            return "Received null event.";
+        }
+        return combineValidationErrors(validateEvent(event), validateUserProperties(event.getUserProperties()));
+    }
 
-        } catch (Exception e) {
-            logger.error("Failed to update/create PlayerData for userId {}: {}", userId, e.getMessage(), e);
-            logger.error("PlayerData update details:", e);
+    /**
+     * Combines event and user property validation errors into a single reason.
+     *
+     * @return Null if both are valid, otherwise the combined reason.
+     */
+    static String combineValidationErrors(String eventValidationError, String userPropertiesValidationError) {
+        String combinedValidationError = null;
+        if (eventValidationError != null) {
+            combinedValidationError = "Event validation failed: " + eventValidationError;
+        }
+        if (userPropertiesValidationError != null) {
+            if (combinedValidationError == null) {
+                combinedValidationError = "User properties validation failed: " + userPropertiesValidationError;
+            } else {
+                combinedValidationError += "; User properties validation failed: " + userPropertiesValidationError;
+            }
         }
+        return combinedValidationError;
     }
 
     /**
@@ -182,38 +277,7 @@ public class DataIngestionServiceImpl implements DataIngestionService {
      * @param errorReason The reason for validation failure or ingestion exception.
      */
     private void saveErroredEvent(GameEventDTO event, String errorReason) {
-        ErroredGameEvent erroredEvent = new ErroredGameEvent();
-        erroredEvent.setUserId(event.getUserId());
-        erroredEvent.setDeviceId(event.getDeviceId());
-        erroredEvent.setTimestamp(event.getTimestamp());
-        erroredEvent.setEventName(event.getEventName());
-        erroredEvent.setErrorReason(errorReason);
-        erroredEvent.setReceivedTimestamp(Instant.now().toEpochMilli());
-
-        try {
-            // Attempt to serialize original event parameters
-            erroredEvent.setRawParameters(objectMapper.writeValueAsString(event.getParameters()));
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to serialize raw event parameters for errored event {}: {}", event.getEventName(), event.getParameters(), e);
-            erroredEvent.setRawParameters(null);
-        }
-
-        // ErroredGameEvent does not store user properties separately, they are part of the raw event if needed.
-        // If you want to store raw user properties explicitly in ErroredGameEvent, add a column for it.
-        // For now, they are implicitly part of the raw event data if you save the whole raw DTO JSON.
-        // But the user wants to save rawParameters and validation error.
-        // Let's add a rawUserProperties field to ErroredGameEvent model. (Done in Step 2 for Debug, add for Errored too)
-        // --> Update: UserProperties are added to GameEvent and DebugGameEvent. Let's update ErroredGameEvent too.
-
-//        try {
-//            // Attempt to serialize original user properties
-//            // Need to update ErroredGameEvent entity first
-//            erroredEvent.setRawUserProperties(objectMapper.writeValueAsString(event.getUserProperties()));
-//        } catch (JsonProcessingException e) {
-//            logger.error("Failed to serialize raw user properties for errored event {}: {}", event.getEventName(), event.getUserProperties(), e);
-//            erroredEvent.setRawUserProperties(null);
-//        }
-
+        ErroredGameEvent erroredEvent = recordMapper.toErroredEvent(event, errorReason);
 
         try {
             logger.debug("Attempting to save errored event with name: {}, reason: {}", erroredEvent.getEventName(), erroredEvent.getErrorReason());
@@ -233,31 +297,7 @@ public class DataIngestionServiceImpl implements DataIngestionService {
      * @param validationError The combined reason for validation failure if not valid.
      */
     private void saveDebugEvent(GameEventDTO event, boolean isValid, String validationError) {
-        DebugGameEvent debugEvent = new DebugGameEvent();
-        debugEvent.setUserId(event.getUserId());
-        debugEvent.setDeviceId(event.getDeviceId());
-        debugEvent.setTimestamp(event.getTimestamp());
-        debugEvent.setEventName(event.getEventName());
-        debugEvent.setValid(isValid);
-        debugEvent.setValidationError(validationError);
-        debugEvent.setReceivedTimestamp(Instant.now().toEpochMilli());
-
-        try {
-            // Save raw event parameters
-            debugEvent.setRawParameters(objectMapper.writeValueAsString(event.getParameters()));
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to serialize raw event parameters for debug event {}: {}", event.getEventName(), event.getParameters(), e);
-            debugEvent.setRawParameters(null);
-        }
-
-        try {
-            // Save raw user properties
-            debugEvent.setRawUserProperties(objectMapper.writeValueAsString(event.getUserProperties()));
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to serialize raw user properties for debug event {}: {}", event.getEventName(), event.getUserProperties(), e);
-            debugEvent.setRawUserProperties(null);
-        }
-
+        DebugGameEvent debugEvent = recordMapper.toDebugEvent(event, isValid, validationError);
 
         try {
             logger.debug("Attempting to save debug event with name: {}, isValid: {}", debugEvent.getEventName(), debugEvent.isValid());
@@ -286,6 +326,7 @@ public class DataIngestionServiceImpl implements DataIngestionService {
     public Page<DebugGameEvent> getRecentDebugEvents(int page, int size, String deviceId) {
         PageRequest pageRequest = PageRequest.of(page, size, Sort.by("receivedTimestamp").descending());
         if (StringUtils.hasText(deviceId)) {
+            indexAdvisor.record(IndexAdvisor.DEBUG_EVENTS_BY_DEVICE, Map.of("deviceId", deviceId));
             return debugGameEventRepository.findByDeviceIdOrderByReceivedTimestampDesc(deviceId, pageRequest);
         } else {
             return debugGameEventRepository.findAllByOrderByReceivedTimestampDesc(pageRequest);
@@ -294,167 +335,63 @@ public class DataIngestionServiceImpl implements DataIngestionService {
 
     @Override
     public String validateUserProperties(Map<String, Object> userProperties) {
-        Optional<UserPropertySchema> schemaOptional = userPropertySchemaRepository.findFirstByOrderByIdAsc();
+        CompiledSchema schema = schemaRegistry.getUserPropertySchema();
 
         // Policy: If no user property schema is defined, allow the user properties.
-        if (schemaOptional.isEmpty()) {
+        if (schema == null) {
             logger.debug("No user property schema found. Allowing user properties.");
             return null; // Valid
         }
-
-        UserPropertySchema schema = schemaOptional.get();
-        // Reuse the same validation logic as for event parameters, but with the user property schema
-        return validateProperties(userProperties, schema.getPropertySchema(), "User Property");
+        return schema.validate(userProperties);
     }
 
-
     /**
-     * Reusable validation logic for properties map against a JSON schema string.
+     * Checks of an event that do not depend on its schema.
      *
-     * @param properties        The map of properties (event parameters or user properties).
-     * @param schemaJson        The JSON string defining the schema.
-     * @param propertyTypeLabel Label for logging (e.g., "Event Parameter", "User Property").
      * @return Null if valid, or error reason string.
      */
-    private String validateProperties(Map<String, Object> properties, String schemaJson, String propertyTypeLabel) {
-        if (schemaJson == null || schemaJson.trim().isEmpty() || "{}".equals(schemaJson.trim())) {
-            if (properties != null && !properties.isEmpty()) {
-                return propertyTypeLabel + "s received but schema expects none. Received: " + properties;
-            }
-            return null; // Valid (no properties expected, none received)
-        }
-
-        JsonNode schemaNode;
-        try {
-            schemaNode = objectMapper.readTree(schemaJson);
-            if (!schemaNode.isObject()) {
-                return propertyTypeLabel + " schema is not a valid JSON object: " + schemaJson;
-            }
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to parse " + propertyTypeLabel + " schema JSON: {}", schemaJson, e);
-            return "Failed to parse " + propertyTypeLabel + " schema JSON.";
-        } catch (Exception e) {
-            logger.error("Error processing " + propertyTypeLabel + " schema: {}", schemaJson, e);
-            return "Error processing " + propertyTypeLabel + " schema.";
-        }
-
-
-        // Validate properties present in the received map
-        if (properties != null) {
-            for (Map.Entry<String, Object> receivedParam : properties.entrySet()) {
-                String paramName = receivedParam.getKey();
-                Object receivedValue = receivedParam.getValue();
-
-                JsonNode paramSchema = schemaNode.get(paramName);
-
-                if (paramSchema == null) {
-                    return propertyTypeLabel + " '" + paramName + "' is unexpected.";
-                }
-
-                String expectedType = null;
-                boolean isRequired = false;
-
-                if (paramSchema.isTextual()) {
-                    expectedType = paramSchema.asText().toLowerCase();
-                } else if (paramSchema.isObject()) {
-                    if (!paramSchema.has("type")) {
-                        return propertyTypeLabel + " '" + paramName + "' schema is object but missing 'type'.";
-                    }
-                    expectedType = paramSchema.get("type").asText().toLowerCase();
-                    isRequired = paramSchema.has("required") ? paramSchema.get("required").asBoolean() : false;
-                } else {
-                    return propertyTypeLabel + " '" + paramName + "' schema is not text or object.";
-                }
-
-                if (isRequired && receivedValue == null) {
-                    return propertyTypeLabel + " '" + paramName + "' is required but value is null.";
-                }
-
-                if (receivedValue != null) {
-                    boolean typeMatch = false;
-                    switch (expectedType) {
-                        case "string":
-                            typeMatch = receivedValue instanceof String;
-                            break;
-                        case "integer":
-                            typeMatch = receivedValue instanceof Integer || receivedValue instanceof Long;
-                            break;
-                        case "float":
-                        case "double":
-                            typeMatch = receivedValue instanceof Float || receivedValue instanceof Double;
-                            break;
-                        case "boolean":
-                            typeMatch = receivedValue instanceof Boolean;
-                            break;
-                        // TODO: Add more type checks
-                        default:
-                            return "Unknown expected type '" + expectedType + "' for " + propertyTypeLabel + " '" + paramName + "'.";
-                    }
-
-                    if (!typeMatch) {
-                        return propertyTypeLabel + " '" + paramName + "' has incorrect type. Expected: " + expectedType + ", Received: " + (receivedValue != null ? receivedValue.getClass().getSimpleName() : "null");
-                    }
-                }
-            }
-        }
-
-
-        // Validate that all required properties are present
-        if (schemaNode.isObject()) {
-            Iterator<Map.Entry<String, JsonNode>> fields = schemaNode.fields(); // Use fields() instead of next()
-            while (fields.hasNext()) {
-                Map.Entry<String, JsonNode> field = fields.next();
-                String paramName = field.getKey();
-                JsonNode paramSchema = field.getValue();
-
-                boolean isRequired = false;
-                if (paramSchema.isObject() && paramSchema.has("required")) {
-                    isRequired = paramSchema.get("required").asBoolean();
-                }
-
-                if (isRequired) {
-                    if (properties == null || !properties.containsKey(paramName)) {
-                        return propertyTypeLabel + " '" + paramName + "' is missing and required.";
-                    }
-                }
-            }
-        }
-
-        return null; // Valid
-    }
-
-    // Modify validateEvent to use the reusable method
-    private String validateEvent(GameEventDTO event) {
+    static String validateEventHeader(GameEventDTO event) {
         if (event == null) return "Received null event.";
         if (event.getEventName() == null || event.getEventName().trim().isEmpty())
             return "Received event with empty or null event name.";
+        if (event.getEventId() != null && event.getEventId().length() > MAX_EVENT_ID_LENGTH)
+            return "eventId must not be longer than " + MAX_EVENT_ID_LENGTH + " characters.";
+        return null;
+    }
 
-        Optional<EventSchema> schemaOptional = eventSchemaRepository.findByEventName(event.getEventName());
+    private String validateEvent(GameEventDTO event) {
+        String headerError = validateEventHeader(event);
+        if (headerError != null) return headerError;
 
-        if (schemaOptional.isEmpty()) {
-            logger.debug("No schema found for event: {}. Allowing event.", event.getEventName());
-            return "No schema found for event."; // Valid
+        CompiledSchema schema = schemaRegistry.getEventSchema(event.getEventName());
+        if (schema == null) {
+            // Unknown event names are rejected without any database access
+            logger.debug("No schema found for event: {}.", event.getEventName());
+            return "No schema found for event.";
         }
-
-        EventSchema schema = schemaOptional.get();
-        // Use the reusable validation method for event parameters
-        return validateProperties(event.getParameters(), schema.getParameterSchema(), "Event Parameter");
+        return schema.validate(event.getParameters());
     }
 
     @Override
     public List<EventReportStatistic> getEventReportingStatistics(long startTime, long endTime) {
         logger.debug("Fetching event reporting statistics from {} to {}", startTime, endTime);
         // Call the new repository method
-        return gameEventRepository.countEventsByEventNameAndTimeRange(startTime, endTime);
+        indexAdvisor.record(IndexAdvisor.EVENT_REPORTING, Map.of("startTime", startTime, "endTime", endTime));
+        List<EventReportStatistic> rolledUp = eventRollupService.countEventsByEventName(startTime, endTime);
+        return rolledUp != null ? rolledUp : gameEventRepository.countEventsByEventNameAndTimeRange(startTime, endTime);
     }
 
     @Override
     public List<PlayerData> getPlayerDataByUserId(String userId) {
-        return playerDataRepository.findByUserId(userId);
+        // An update still waiting in the write-behind buffer is newer than the stored row
+        return playerDataWriter.getPending(userId)
+                .map(List::of)
+                .orElseGet(() -> playerDataRepository.findByUserId(userId));
     }
 
     @Override
     public List<PlayerData> getPlayerDataByDeviceId(String deviceId) {
+        indexAdvisor.record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, Collections.singletonMap("deviceId", deviceId));
         return playerDataRepository.findByDeviceId(deviceId);
     }
 
@@ -508,6 +445,7 @@ public class DataIngestionServiceImpl implements DataIngestionService {
         //        "GROUP BY ge.eventName " +
         //        "ORDER BY COUNT(ge) DESC")
         // List<EventReportStatistic> countEventsByUserIdAndTimeRange(@Param("userId") String userId, @Param("startTime") long startTime, @Param("endTime") long endTime);
+        indexAdvisor.record(IndexAdvisor.USER_EVENT_STATISTICS, Map.of("userId", userId, "startTime", startTime, "endTime", endTime));
         return gameEventRepository.countEventsByUserIdAndTimeRange(userId, startTime, endTime); // Requires this method in Repository
     }
 
@@ -515,6 +453,7 @@ public class DataIngestionServiceImpl implements DataIngestionService {
     public Page<GameEvent> getUserEventSequence(String userId, int page, int size) {
         logger.debug("Fetching event sequence for userId: {} page {} size {}", userId, page, size);
         PageRequest pageRequest = PageRequest.of(page, size, Sort.by("timestamp").descending());
+        indexAdvisor.record(IndexAdvisor.USER_EVENT_SEQUENCE, Map.of("userId", userId));
         // Requires a method in GameEventRepository to find by userId with pagination and sorting
         // Example: In GameEventRepository, add:
         // Page<GameEvent> findByUserIdOrderByTimestampDesc(String userId, Pageable pageable);
@@ -529,13 +468,29 @@ public class DataIngestionServiceImpl implements DataIngestionService {
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public List<Map<String, Object>> runEventAnalysis(EventAnalysisQuery query) {
-        logger.info("Running event analysis query...");
-        logger.debug("Query details: {}", query);
+    public List<Map<String, Object>> runEventAnalysis(EventAnalysisQuery query, AnalysisRequest request) {
+        return runEventAnalysisColumns(query, request).toRows();
+    }
+
+    @Override
+    @SuppressWarnings("try")
+    public ColumnarResult runEventAnalysisColumns(EventAnalysisQuery query, AnalysisRequest request) {
+        validateEventAnalysisQuery(query);
+        // Cache hits take no query slot
+        return analysisResultCache.get(query, part -> {
+            try (AnalysisAdmission.Permit ignored = analysisAdmission.acquire(request)) {
+                return executeEventAnalysis(part, request);
+            } catch (DatabaseBusyException e) {
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many analysis queries are running, retry later.", e);
+            } catch (AnalysisCancelledException e) {
+                throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, e.getMessage(), e);
+            }
+        });
+    }
 
-        // --- Step 1: Validate and Parse the Query DTO ---
-        // Perform detailed validation as before. Ensure attributes/operators are valid.
+    // --- Step 1: Validate the Query DTO ---
+    // Perform detailed validation as before. Ensure attributes/operators are valid.
+    private void validateEventAnalysisQuery(EventAnalysisQuery query) {
         if (!StringUtils.hasText(query.getEventName())) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Event name is required.");
         }
@@ -548,381 +503,186 @@ public class DataIngestionServiceImpl implements DataIngestionService {
         if (query.getCalculationAttributes() == null || query.getCalculationAttributes().isEmpty()) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "至少选择一个计算属性。");
         }
+    }
 
-        // Fetch EventSchema to validate attribute paths and types
-        Optional<EventSchema> eventSchemaOptional = getEventSchemaByName(query.getEventName());
-        if (!eventSchemaOptional.isPresent()) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Event schema not found for event " + query.getEventName());
-        }
-        EventSchema eventSchema = eventSchemaOptional.get();
-        // Use eventSchema and userPropertySchema to validate query attributes and types (Implementation needed)
-
-
-        // --- Step 2: Translate Query Definition into MySQL SQL ---
-
-        StringBuilder sqlBuilder = new StringBuilder();
-        List<String> selectExpressions = new ArrayList<>();
-        List<String> selectAliases = new ArrayList<>(); // To map results later
-        Map<String, Object> parameters = new HashMap<>(); // Use a map for named parameters
-
-        // 2.1 SELECT clause: Include the grouping attribute and calculated attributes.
-
-        // Add grouping column
-        String groupingSqlExpression = null;
-        String groupingAlias = null; // Alias determined by the attribute
-
-        String groupingAttribute = query.getGroupingAttribute();
-
-        if (groupingAttribute.startsWith("time.")) {
-            String timeUnit = groupingAttribute.substring("time.".length());
-            // MySQL functions for time formatting/truncation
-            if ("day".equals(timeUnit)) {
-                groupingSqlExpression = "DATE(FROM_UNIXTIME(ge.timestamp / 1000))"; // Format as YYYY-MM-DD
-            } else if ("week".equals(timeUnit)) {
-                groupingSqlExpression = "DATE_FORMAT(FROM_UNIXTIME(ge.timestamp / 1000), '%X-%V')"; // Year-Week format
-            } else if ("month".equals(timeUnit)) {
-                groupingSqlExpression = "DATE_FORMAT(FROM_UNIXTIME(ge.timestamp / 1000), '%Y-%m')"; // Year-Month format
-            } else if ("hour".equals(timeUnit)) { // Add hour granularity
-                groupingSqlExpression = "DATE_FORMAT(FROM_UNIXTIME(ge.timestamp / 1000), '%Y-%m-%d %H:00')"; // Year-Month-Day Hour:00 format
-            }
-            // Add other granularities if needed
-
-            // Cast to CHAR to ensure consistent string representation for grouping and ordering
-            if (groupingSqlExpression != null) {
-                groupingSqlExpression = "CAST(" + groupingSqlExpression + " AS CHAR)";
-                groupingAlias = groupingAttribute.replace('.', '_'); // e.g., time_day
+    @Override
+    @SuppressWarnings("try")
+    public void streamEventAnalysis(EventAnalysisQuery query, AnalysisRequest request, AnalysisRowWriter writer) {
+        validateEventAnalysisQuery(query);
+        try (AnalysisAdmission.Permit ignored = analysisAdmission.acquire(request)) {
+            AnalysisPlan plan = parseEventAnalysis(query);
+            PromotedColumns columns = jsonPathPromoter.columnsFor(plan);
+            GroupedAggregation rolledUp = eventRollupService.aggregate(plan, edge -> aggregateEvents(edge, columns, request));
+            boolean hotOnly = rolledUp == null && !plan.isApprox() && recentEventStore.getCoverageStart() > plan.getEndTime()
+                    && coldEventStore.findSegments(plan).isEmpty();
+            if (hotOnly) {
+                streamHotEvents(plan, columns, request, writer);
+                return;
             }
-
-        } else if (groupingAttribute.startsWith("parameter.")) {
-            String paramName = groupingAttribute.substring("parameter.".length());
-            // MySQL JSON extraction function. Using ->> for direct text extraction. JSON_UNQUOTE is safer.
-            groupingSqlExpression = "JSON_UNQUOTE(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"'))"; // JSON_UNQUOTE to remove quotes from strings
-            groupingAlias = groupingAttribute.replace('.', '_'); // e.g., parameter_level
-        } else if (groupingAttribute.startsWith("userProperty.")) {
-            String propName = groupingAttribute.substring("userProperty.".length());
-            // MySQL JSON extraction function for user properties snapshot
-            groupingSqlExpression = "JSON_UNQUOTE(JSON_EXTRACT(ge.user_properties, '$.\"" + propName + "\"'))";
-            groupingAlias = groupingAttribute.replace('.', '_'); // e.g., userProperty_vip_status
-        } else if (groupingAttribute.equals("userId")) {
-            groupingSqlExpression = "ge.user_id";
-            groupingAlias = "userId";
-        } else if (groupingAttribute.equals("deviceId")) {
-            groupingSqlExpression = "ge.device_id";
-            groupingAlias = "deviceId";
-        } else {
-            // Handle other potential grouping attributes (direct columns)
-            logger.warn("Unsupported grouping attribute: {}", groupingAttribute);
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported grouping attribute: " + groupingAttribute);
+            // Other stores merge into an aggregation that holds every group anyway; its rows are written one by one
+            ColumnarResult result = rolledUp != null ? rolledUp.toColumns() : queryEvents(plan, columns, request);
+            withAverageCountPerUser(plan, result).forEachRow(writer);
+        } catch (DatabaseBusyException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many analysis queries are running, retry later.", e);
+        } catch (AnalysisCancelledException e) {
+            throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, e.getMessage(), e);
         }
+    }
 
-        if (groupingSqlExpression != null) {
-            selectExpressions.add(groupingSqlExpression + " AS " + groupingAlias);
-            selectAliases.add(groupingAlias);
-        }
-
-
-        // Add calculation columns
-        boolean needsEventCount = false;
-        boolean needsUniqueUserCount = false;
-
-        // Identify if we need eventCount and uniqueUserCount (either explicitly requested or for average calculation)
-        if (query.getCalculationAttributes().contains("eventCount")) {
-            needsEventCount = true;
-        }
-        if (query.getCalculationAttributes().contains("uniqueUserCount")) {
-            needsUniqueUserCount = true;
-        }
-        // ** If 'averageCountPerUser' is requested, we need both eventCount and uniqueUserCount **
-        if (query.getCalculationAttributes().contains("averageCountPerUser")) {
-            needsEventCount = true;
-            needsUniqueUserCount = true;
+    /**
+     * Streams the rows of the plan's query from MySQL to the writer through one reused buffer.
+     */
+    private void streamHotEvents(AnalysisPlan plan, PromotedColumns columns, AnalysisRequest request, AnalysisRowWriter writer) {
+        AnalysisSql sql = AnalysisSql.of(plan, columns);
+        logger.info("Streaming SQL Query: {}", sql.getSql());
+        indexAdvisor.record(IndexAdvisor.eventAnalysis(sql.getSql()), sql.getParameters());
+        List<String> aliases = new ArrayList<>(sql.getAliases());
+        int selected = aliases.size();
+        int eventCount = aliases.indexOf(AnalysisPlan.EVENT_COUNT);
+        int uniqueUserCount = aliases.indexOf(AnalysisPlan.UNIQUE_USER_COUNT);
+        if (plan.isAverageCountPerUser()) {
+            aliases.add(AnalysisPlan.AVERAGE_COUNT_PER_USER);
+        }
+        Object[] values = new Object[aliases.size()];
+        try {
+            analysisQueryRepository.forEachRow(sql.getSql(), sql.getParameters(), selected, request, row -> {
+                System.arraycopy(row, 0, values, 0, selected);
+                if (plan.isAverageCountPerUser()) {
+                    values[selected] = averageCountPerUser((Number) row[eventCount], (Number) row[uniqueUserCount]);
+                }
+                writer.write(aliases, values);
+            });
+        } catch (DataAccessException e) {
+            throw analysisQueryFailure(sql.getSql(), e, request);
         }
+    }
 
+    private ColumnarResult executeEventAnalysis(EventAnalysisQuery query, AnalysisRequest request) {
+        AnalysisPlan plan = parseEventAnalysis(query);
+        PromotedColumns columns = jsonPathPromoter.columnsFor(plan);
 
-        // Add necessary calculation selects based on identified needs
-        if (needsEventCount) {
-            // Only add if not already included
-            if (!selectAliases.contains("eventCount")) {
-                selectExpressions.add("COUNT(*) AS eventCount");
-                selectAliases.add("eventCount");
-            }
-        }
-        if (needsUniqueUserCount) {
-            // Only add if not already included
-            if (!selectAliases.contains("uniqueUserCount")) {
-                selectExpressions.add("COUNT(DISTINCT ge.user_id) AS uniqueUserCount");
-                selectAliases.add("uniqueUserCount");
-            }
+        // Counts per time bucket or configured dimension: whole hours and days come from the rollups
+        GroupedAggregation rolledUp = eventRollupService.aggregate(plan, edge -> aggregateEvents(edge, columns, request));
+        ColumnarResult result;
+        if (rolledUp != null) {
+            logger.info("Answered the analysis of {} from the rollups", plan.getEventName());
+            result = rolledUp.toColumns();
+        } else {
+            result = queryEvents(plan, columns, request);
         }
+        result = withAverageCountPerUser(plan, result);
 
+        logger.info("Successfully executed dynamic SQL query and formatted results.");
+        logger.debug("Formatted results: {} rows of {}", result.getRowCount(), result.getColumnNames());
 
-        for (String calcAttribute : query.getCalculationAttributes()) {
-            // Skip implicit counts as they are handled above
-            if (calcAttribute.equals("eventCount") || calcAttribute.equals("uniqueUserCount") || calcAttribute.equals("averageCountPerUser")) {
-                continue;
-            }
-
-            String calculationSqlExpression = null;
-            String calculationAlias = calcAttribute.replace('.', '_');
-
-            if (calcAttribute.startsWith("parameter.")) {
-                String[] params = calcAttribute.substring("parameter.".length()).split("@");
-                String paramName = params[0];
-                String paramType = params.length > 1 ? params[1] : "distinctCount"; // Default to string if no type specified
-                // Assuming a default aggregation for parameters, e.g., COUNT(DISTINCT) or SUM for numeric.
-                // This still needs schema lookup to determine type and choose SUM/AVG vs COUNT DISTINCT.
-                // For now, using COUNT(DISTINCT value) as a generic example.
-                // 去重数 distinctCount
-                // 总和 sum
-                // 均值 avg
-                // 最大值 max
-                // 最小值 min
-                if(paramType.equals("distinctCount")){
-                    calculationSqlExpression = "COUNT(DISTINCT JSON_UNQUOTE(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"')))";
-                }
-                else if(paramType.equals("sum")){
-                    calculationSqlExpression = "SUM(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"'))";
-                }
-                else if(paramType.equals("avg")){
-                    calculationSqlExpression = "AVG(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"'))";
-                }
-                else if(paramType.equals("max")){
-                    calculationSqlExpression = "MAX(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"'))";
-                }
-                else if(paramType.equals("min")){
-                    calculationSqlExpression = "MIN(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"'))";
-                }
-                else {
-                    logger.warn("Unsupported parameter type: {}", paramType);
-                    calculationSqlExpression = "COUNT(DISTINCT JSON_UNQUOTE(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"')))";
-                }
-                calculationAlias = "parameter_" + paramName + "_" + paramType; // Example alias
-
-            } else if (calcAttribute.startsWith("userProperty.")) {
-                String[] params = calcAttribute.substring("userProperty.".length()).split("@");
-                String paramName = params[0];
-                String paramType = params.length > 1 ? params[1] : "distinctCount";
-
-                // Similar logic for user properties
-                // 去重数 distinctCount
-                // 总和 sum
-                // 均值 avg
-                // 最大值 max
-                // 最小值 min
-                if(paramType.equals("distinctCount")){
-                    calculationSqlExpression = "COUNT(DISTINCT JSON_UNQUOTE(JSON_EXTRACT(ge.user_properties, '$.\"" + paramName + "\"')))";
-                }
-                else if(paramType.equals("sum")){
-                    calculationSqlExpression = "SUM(JSON_EXTRACT(ge.user_properties, '$.\"" + paramName + "\"'))";
-                }
-                else if(paramType.equals("avg")){
-                    calculationSqlExpression = "AVG(JSON_EXTRACT(ge.user_properties, '$.\"" + paramName + "\"'))";
-                }
-                else if(paramType.equals("max")){
-                    calculationSqlExpression = "MAX(JSON_EXTRACT(ge.user_properties, '$.\"" + paramName + "\"'))";
-                }
-                else if(paramType.equals("min")){
-                    calculationSqlExpression = "MIN(JSON_EXTRACT(ge.user_properties, '$.\"" + paramName + "\"'))";
-                }
-                else {
-                    logger.warn("Unsupported userProperty type: {}", paramType);
-                    calculationSqlExpression = "COUNT(DISTINCT JSON_UNQUOTE(JSON_EXTRACT(ge.user_properties, '$.\"" + paramName + "\"')))";
-                }
-                calculationAlias = "userProperty_" + paramName + "_" + paramType; // Example alias
-            } else if (calcAttribute.equals("deviceId")) {
-                calculationSqlExpression = "COUNT(DISTINCT ge.device_id)";
-                calculationAlias = "uniqueDeviceCount";
-            }
-            // Handle other potential calculations based on direct columns (e.g., SUM(ge.duration))
+        return result;
+    }
 
-            if (calculationSqlExpression != null) {
-                // Avoid adding duplicates if an attribute is somehow requested twice
-                if (!selectAliases.contains(calculationAlias)) {
-                    selectExpressions.add(calculationSqlExpression + " AS " + calculationAlias);
-                    selectAliases.add(calculationAlias);
-                }
-            } else {
-                logger.warn("Unsupported calculation attribute: {}", calcAttribute);
-                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported calculation attribute: " + calcAttribute);
-            }
-        }
+    private AnalysisPlan parseEventAnalysis(EventAnalysisQuery query) {
+        logger.info("Running event analysis query...");
+        logger.debug("Query details: {}", query);
 
-        if (selectExpressions.isEmpty()) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No valid selection attributes or calculations.");
+        // Fetch EventSchema to validate attribute paths and types
+        Optional<EventSchema> eventSchemaOptional = getEventSchemaByName(query.getEventName());
+        if (!eventSchemaOptional.isPresent()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Event schema not found for event " + query.getEventName());
         }
-
-        sqlBuilder.append("SELECT ").append(String.join(", ", selectExpressions));
-
-
-        // 2.2 FROM clause
-        sqlBuilder.append(" FROM game_events ge");
-        // Add joins if necessary (e.g., if querying latest user properties from PlayerData)
-
-
-        // 2.3 WHERE clause: Filter by time range, event name, and global filters.
-        List<String> whereConditions = new ArrayList<>();
-        whereConditions.add("ge.user_id IS NOT NULL");
-        // Compare timestamp (milliseconds epoch) directly assuming DB column is numeric or compatible
-        whereConditions.add("ge.timestamp >= :startTime");
-        whereConditions.add("ge.timestamp <= :endTime");
-
-        // Filter by selected event name
-        whereConditions.add("ge.event_name = :eventName");
-
-        // Add parameters for time range and event name
-        parameters.put("startTime", query.getStartTime());
-        parameters.put("endTime", query.getEndTime());
-        parameters.put("eventName", query.getEventName());
-
-
-        // Add global filters
-        int filterParamIndex = 0;
-        for (FilterCondition filter : query.getGlobalFilters()) {
-            String filterAttributeSqlExpression = null;
-            String attributePath = filter.getAttribute();
-            String operator = filter.getOperator();
-            Object filterValue = filter.getValue();
-            // String attributeType = "unknown"; // Placeholder: Get type from schema
-
-            if (attributePath.startsWith("parameter.")) {
-                String paramName = attributePath.substring("parameter.".length());
-                filterAttributeSqlExpression = "JSON_UNQUOTE(JSON_EXTRACT(ge.parameters, '$.\"" + paramName + "\"'))";
-                // attributeType = getTypeFromSchema(eventSchema.getParameterSchema(), paramName, 'parameter');
-            } else if (attributePath.startsWith("userProperty.")) {
-                String propName = attributePath.substring("userProperty.".length());
-                filterAttributeSqlExpression = "JSON_UNQUOTE(JSON_EXTRACT(ge.user_properties, '$.\"" + propName + "\"'))";
-                // attributeType = getTypeFromSchema(userPropertySchema.getPropertySchema(), propName, 'userProperty'); // Need global user property schema here
-            } else if (attributePath.equals("userId")) {
-                filterAttributeSqlExpression = "ge.user_id";
-                // attributeType = "string";
-            } else if (attributePath.equals("deviceId")) {
-                filterAttributeSqlExpression = "ge.device_id";
-                // attributeType = "string";
-            }
-            // Handle other direct columns
+        EventSchema eventSchema = eventSchemaOptional.get();
+        // Use eventSchema and userPropertySchema to validate query attributes and types (Implementation needed)
 
 
-            if (filterAttributeSqlExpression == null) {
-                logger.warn("Could not determine SQL expression for filter attribute: {}", attributePath);
-                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported filter attribute: " + attributePath);
-            }
+        // --- Step 2: Parse the query into a plan, shared by MySQL and the cold segments ---
+        AnalysisPlan plan = AnalysisPlan.parse(query);
+        jsonPathPromoter.recordUsage(plan);
+        return plan;
+    }
 
-            String filterComparisonSql = null;
-            // Parameter name for filter value binding
-            String paramName = "filterValue" + filterParamIndex++; // Simple unique param name for binding
-
-            // --- Generate Comparison SQL based on operator and assumed type ---
-            // NOTE: Proper type handling is essential here. Using schema to get type is recommended.
-            // This example makes assumptions or uses string comparisons where type is ambiguous.
-
-            if ("=".equals(operator)) {
-                filterComparisonSql = filterAttributeSqlExpression + " = :" + paramName;
-                parameters.put(paramName, filterValue);
-            } else if ("!=".equals(operator)) {
-                filterComparisonSql = filterAttributeSqlExpression + " != :" + paramName;
-                parameters.put(paramName, filterValue);
-            } else if (">".equals(operator)) {
-                // Assuming numeric type, needs casting if JSON extract returns text
-                filterComparisonSql = "CAST(" + filterAttributeSqlExpression + " AS DECIMAL) > :" + paramName;
-                parameters.put(paramName, filterValue); // Should be a Number
-            } else if ("<".equals(operator)) {
-                // Assuming numeric type
-                filterComparisonSql = "CAST(" + filterAttributeSqlExpression + " AS DECIMAL) < :" + paramName;
-                parameters.put(paramName, filterValue); // Should be a Number
-            } else if (">=".equals(operator)) {
-                // Assuming numeric type
-                filterComparisonSql = "CAST(" + filterAttributeSqlExpression + " AS DECIMAL) >= :" + paramName;
-                parameters.put(paramName, filterValue); // Should be a Number
-            } else if ("<=".equals(operator)) {
-                // Assuming numeric type
-                filterComparisonSql = "CAST(" + filterAttributeSqlExpression + " AS DECIMAL) <= :" + paramName;
-                parameters.put(paramName, filterValue); // Should be a Number
-            } else if ("contains".equals(operator)) {
-                // Assuming string type, use LIKE
-                filterComparisonSql = filterAttributeSqlExpression + " LIKE CONCAT('%', :" + paramName + ", '%')";
-                parameters.put(paramName, escapeLikeValue(filterValue)); // Escape value for LIKE
-            } else if ("not contains".equals(operator)) {
-                // Assuming string type, use NOT LIKE
-                filterComparisonSql = filterAttributeSqlExpression + " NOT LIKE CONCAT('%', :" + paramName + ", '%')";
-                parameters.put(paramName, escapeLikeValue(filterValue)); // Escape value for LIKE
-            } else if ("isNull".equals(operator)) {
-                filterComparisonSql = filterAttributeSqlExpression + " IS NULL";
-                // No parameter needed
-            } else if ("isNotNull".equals(operator)) {
-                filterComparisonSql = filterAttributeSqlExpression + " IS NOT NULL";
-                // No parameter needed
-            } else {
-                logger.warn("Unsupported filter operator: {}", operator);
-                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported filter operator: " + operator);
-            }
+    // --- Step 4: Post-Processing Calculations (e.g., Average) ---
+    private static ColumnarResult withAverageCountPerUser(AnalysisPlan plan, ColumnarResult result) {
+        if (!plan.isAverageCountPerUser()) {
+            return result;
+        }
+        // Ensure eventCount and uniqueUserCount are present (they should be if average was requested)
+        int eventCount = result.indexOf(AnalysisPlan.EVENT_COUNT);
+        int uniqueUserCount = result.indexOf(AnalysisPlan.UNIQUE_USER_COUNT);
+        double[] averages = new double[result.getRowCount()];
+        for (int row = 0; row < averages.length; row++) {
+            double events = eventCount < 0 ? 0.0 : result.getDouble(row, eventCount);
+            double users = uniqueUserCount < 0 ? 0.0 : result.getDouble(row, uniqueUserCount);
+            averages[row] = averageCountPerUser(events, users);
+        }
+        return result.withColumn(AnalysisPlan.AVERAGE_COUNT_PER_USER, averages);
+    }
 
-            if (filterComparisonSql != null) {
-                whereConditions.add(filterComparisonSql);
-            }
-        }
+    private static double averageCountPerUser(Number eventCountNum, Number uniqueUserCountNum) {
+        double eventCount = (eventCountNum != null) ? eventCountNum.doubleValue() : 0.0;
+        double uniqueUserCount = (uniqueUserCountNum != null) ? uniqueUserCountNum.doubleValue() : 0.0;
+        return averageCountPerUser(eventCount, uniqueUserCount);
+    }
 
+    private static double averageCountPerUser(double eventCount, double uniqueUserCount) {
+        return (uniqueUserCount > 0) ? eventCount / uniqueUserCount : 0.0;
+    }
 
-        if (!whereConditions.isEmpty()) {
-            sqlBuilder.append(" WHERE ").append(String.join(" AND ", whereConditions));
+    private ColumnarResult queryEvents(AnalysisPlan plan, PromotedColumns columns, AnalysisRequest request) {
+        if (plan.isApprox()) {
+            // Sketches from every store merge into one aggregation, which also reports their error bounds
+            return aggregateEvents(plan, columns, request).toColumns();
         }
-
-
-        // 2.4 GROUP BY clause: Group by the grouping attribute expression.
-        // Grouping is done by the *expression*, not the alias.
-        if (groupingSqlExpression != null) {
-            sqlBuilder.append(" GROUP BY ").append(groupingSqlExpression);
+        // The memory store holds every event from its coverage start on: it answers that part of the range
+        long recentFrom = Math.max(plan.getStartTime(), recentEventStore.getCoverageStart());
+        RecentEventAggregation recent = recentFrom <= plan.getEndTime() ? recentEventStore.aggregate(plan, recentFrom) : null;
+        if (recent != null && recentFrom == plan.getStartTime()) {
+            logger.info("Answered the analysis of {} from the memory store", plan.getEventName());
+            return recent.toColumns();
         }
-
-
-        // 2.5 HAVING clause: Optional, for filtering on aggregated results.
-
-        // 2.6 ORDER BY clause: Order by the grouping attribute expression (time period usually)
-        if (groupingSqlExpression != null) {
-            sqlBuilder.append(" ORDER BY ").append(groupingSqlExpression).append(" ASC");
-        } else {
-            // If no grouping (e.g., just calculating totals), maybe order by a calculation alias or just omit ORDER BY
-            if (!selectAliases.isEmpty()) {
-                // Order by the first non-count calculation alias if no grouping
-                Optional<String> firstCalcAlias = selectAliases.stream()
-                        .filter(alias -> !alias.equals("eventCount") && !alias.equals("uniqueUserCount") && !alias.equals("averageCountPerUser"))
-                        .findFirst();
-                if(firstCalcAlias.isPresent()) {
-                    sqlBuilder.append(" ORDER BY ").append(firstCalcAlias.get()).append(" ASC");
-                } else if (selectAliases.contains("eventCount")) {
-                    sqlBuilder.append(" ORDER BY eventCount ASC"); // Order by eventCount if only count is selected
-                } // No order by if nothing suitable to order by
-            }
+        if (recent != null) {
+            return withOlderEvents(plan, recentFrom, recent, columns, request).toColumns();
         }
-
-
-        // --- Step 3: Execute the Dynamic SQL Query using EntityManager ---
-        String finalSql = sqlBuilder.toString();
-        logger.info("Generated SQL Query: {}", finalSql); // Log the generated SQL
-
-        Query nativeQuery = entityManager.createNativeQuery(finalSql);
-
-        // --- Step 3.1: Bind Parameters ---
-        try {
-            parameters.forEach(nativeQuery::setParameter);
-        } catch (IllegalArgumentException e) {
-            logger.error("Error binding parameters to dynamic SQL query", e);
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error binding query parameters", e);
+        List<ColdEventStore.Segment> coldSegments = coldEventStore.findSegments(plan);
+        if (coldSegments.isEmpty()) {
+            return queryHotEvents(plan, columns, request);
         }
+        // Part of the range was archived: MySQL returns mergeable partial aggregates, the segments are scanned here
+        logger.info("Merging {} cold segments into the analysis of {}", coldSegments.size(), plan.getEventName());
+        return aggregateStoredEvents(plan, columns, coldSegments, request).toColumns();
+    }
 
+    /**
+     * Like {@link #queryEvents}, but always as a mergeable aggregation.
+     */
+    private GroupedAggregation aggregateEvents(AnalysisPlan plan, PromotedColumns columns, AnalysisRequest request) {
+        long recentFrom = Math.max(plan.getStartTime(), recentEventStore.getCoverageStart());
+        RecentEventAggregation recent = recentFrom <= plan.getEndTime() ? recentEventStore.aggregate(plan, recentFrom) : null;
+        if (recent == null) {
+            return aggregateStoredEvents(plan, columns, coldEventStore.findSegments(plan), request);
+        }
+        if (recentFrom == plan.getStartTime()) {
+            GroupedAggregation aggregation = new GroupedAggregation(plan);
+            recent.mergeInto(aggregation);
+            return aggregation;
+        }
+        return withOlderEvents(plan, recentFrom, recent, columns, request);
+    }
 
-        List<Object[]> resultListRaw;
-        try {
-            resultListRaw = nativeQuery.getResultList(); // Execute
-        } catch (Exception e) {
-            logger.error("Error executing dynamic SQL query: {}", finalSql, e);
-            // Catch specific exceptions (e.g., SQLGrammarException) and provide helpful messages
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error executing analysis query", e);
-        }
-
+    /**
+     * @return the memory store's aggregation of [recentFrom, end] merged with the stored events before it
+     */
+    private GroupedAggregation withOlderEvents(AnalysisPlan plan, long recentFrom, RecentEventAggregation recent, PromotedColumns columns,
+                                               AnalysisRequest request) {
+        AnalysisPlan older = plan.withTimeRange(plan.getStartTime(), recentFrom - 1);
+        GroupedAggregation aggregation = aggregateStoredEvents(older, columns, coldEventStore.findSegments(older), request);
+        recent.mergeInto(aggregation);
+        return aggregation;
+    }
 
-        // --- Step 4: Format Results and Perform Post-Processing Calculations (e.g., Average) ---
-        List<Map<String, Object>> formattedResults = new ArrayList<>();
+    private ColumnarResult queryHotEvents(AnalysisPlan plan, PromotedColumns columns, AnalysisRequest request) {
+        AnalysisSql sql = AnalysisSql.of(plan, columns);
+        List<String> selectAliases = sql.getAliases();
+        List<Object[]> resultListRaw = runNativeQuery(sql, request);
 
+        // --- Step 3: Format Results ---
+        ColumnarResult.Builder formattedResults = new ColumnarResult.Builder(selectAliases);
         if (!resultListRaw.isEmpty()) {
             // Ensure the number of aliases matches the number of columns in the raw result
             if (selectAliases.size() != resultListRaw.get(0).length) {
@@ -932,41 +692,76 @@ public class DataIngestionServiceImpl implements DataIngestionService {
             }
 
             for (Object[] row : resultListRaw) {
-                Map<String, Object> rowMap = new HashMap<>();
-                // Map raw result array to map using aliases
-                for (int i = 0; i < selectAliases.size(); i++) {
-                    rowMap.put(selectAliases.get(i), row[i]);
-                }
-
-                // ** Post-process to calculate 'averageCountPerUser' if requested **
-                if (query.getCalculationAttributes().contains("averageCountPerUser")) {
-                    // Ensure eventCount and uniqueUserCount are present (they should be if average was requested)
-                    Number eventCountNum = (Number) rowMap.get("eventCount");
-                    Number uniqueUserCountNum = (Number) rowMap.get("uniqueUserCount");
-
-                    double eventCount = (eventCountNum != null) ? eventCountNum.doubleValue() : 0.0;
-                    double uniqueUserCount = (uniqueUserCountNum != null) ? uniqueUserCountNum.doubleValue() : 0.0;
-
-                    double averageCountPerUser = (uniqueUserCount > 0) ? eventCount / uniqueUserCount : 0.0;
-
-                    // Add the calculated average to the row map
-                    rowMap.put("averageCountPerUser", averageCountPerUser);
+                formattedResults.addRow(row); // Columns in the order of the aliases
+            }
+        }
+        return formattedResults.build();
+    }
 
-                    // Add alias for averageCountPerUser if not already in selectAliases (it won't be from SQL select)
-                    if (!selectAliases.contains("averageCountPerUser")) {
-                        // This is just for tracking aliases on the backend side for logging/debugging if needed,
-                        // the map already has the key.
-                    }
+    /**
+     * Aggregates the plan from MySQL partial aggregates and the given cold segments.
+     */
+    private GroupedAggregation aggregateStoredEvents(AnalysisPlan plan, PromotedColumns columns, List<ColdEventStore.Segment> coldSegments,
+                                                     AnalysisRequest request) {
+        GroupedAggregation aggregation = new GroupedAggregation(plan);
+        AnalysisSql partial = AnalysisSql.partial(plan, columns);
+        for (Object[] row : runNativeQuery(partial, request)) {
+            aggregation.addPartial(row, partial.getAliases());
+        }
+        // Distinct counts only merge as the values themselves, or as sketches when approximate
+        for (AnalysisPlan.Measure measure : plan.getMeasures()) {
+            if (measure.aggregation() != AnalysisPlan.Aggregation.DISTINCT_COUNT) {
+                continue;
+            }
+            if (plan.isApprox()) {
+                for (Object[] row : runNativeQuery(AnalysisSql.sketchRegisters(plan, measure, columns), request)) {
+                    aggregation.addRegister(measure, row);
+                }
+            } else {
+                for (Object[] row : runNativeQuery(AnalysisSql.distinctValues(plan, measure, columns), request)) {
+                    aggregation.addDistinct(measure, row);
                 }
-
-                formattedResults.add(rowMap);
             }
         }
+        try {
+            coldEventStore.scan(coldSegments, new RowEvaluator(plan, coldEventStore.getZone()), aggregation);
+        } catch (UncheckedIOException e) {
+            logger.error("Error scanning archived events", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error reading archived events", e);
+        }
+        return aggregation;
+    }
 
-        logger.info("Successfully executed dynamic SQL query and formatted results.");
-        logger.debug("Formatted results (first 5 rows): {}", formattedResults.stream().limit(5).toList());
+    /**
+     * Runs the query through {@link AnalysisQueryRepository}, which times it out and lets the request cancel it.
+     */
+    private List<Object[]> runNativeQuery(AnalysisSql sql, AnalysisRequest request) {
+        String finalSql = sql.getSql();
+        logger.info("Generated SQL Query: {}", finalSql); // Log the generated SQL
+        indexAdvisor.record(IndexAdvisor.eventAnalysis(finalSql), sql.getParameters());
+
+        try {
+            return analysisQueryRepository.query(finalSql, sql.getParameters(), request); // Execute
+        } catch (DataAccessException e) {
+            throw analysisQueryFailure(finalSql, e, request);
+        }
+    }
 
-        return formattedResults;
+    /**
+     * @return what to throw for an analysis statement that failed: cancelled and timed out statements were
+     * stopped on purpose, anything else is an error of the generated SQL or the database
+     */
+    private RuntimeException analysisQueryFailure(String sql, DataAccessException e, AnalysisRequest request) {
+        if (request.isCancelled()) {
+            return new AnalysisCancelledException("The analysis request was cancelled", e);
+        }
+        if (e instanceof QueryTimeoutException) {
+            logger.warn("Analysis query of {} timed out: {}", request.getUser(), sql);
+            return new AnalysisCancelledException("The analysis query ran into its timeout", e);
+        }
+        logger.error("Error executing dynamic SQL query: {}", sql, e);
+        // Catch specific exceptions (e.g., SQLGrammarException) and provide helpful messages
+        return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error executing analysis query", e);
     }
 
     // Helper method to escape values for SQL (example, needs careful implementation)
@@ -999,17 +794,6 @@ public class DataIngestionServiceImpl implements DataIngestionService {
         }
     }
 
-    // Helper method to escape values for SQL LIKE (example)
-    private String escapeLikeValue(Object value) {
-        if (value == null) return "";
-        String strValue = value.toString();
-        // Escape %, _, and \
-        strValue = strValue.replace("\\", "\\\\");
-        strValue = strValue.replace("%", "\\%");
-        strValue = strValue.replace("_", "\\_");
-        return strValue;
-    }
-
     // Example helper to get type from schema (conceptual)
      private String getTypeFromSchema(String schemaJson, String attributeName, String schemaType) {
          if (schemaJson == null) return null;
@@ -0,0 +1,78 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.service.DatabaseBusyException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds how many event writes run against MySQL at once.
+ * <p>
+ * With virtual threads the number of request threads no longer limits database concurrency,
+ * so every write takes a permit from a fair semaphore before it borrows a connection. Analysis
+ * queries have a separate budget, see {@link AnalysisAdmission}, so slow analysis queries cannot
+ * starve ingestion of connections and vice versa. A caller that cannot get a permit within
+ * the configured timeout gets a {@link DatabaseBusyException} instead of piling up in the
+ * connection pool.
+ */
+@Component
+public class DatabaseConcurrencyLimiter {
+
+    public enum Pool {
+        WRITE   // Event inserts of all ingestion paths
+    }
+
+    private final Semaphore writes;
+    private final long writeTimeoutMs;
+    private final Counter writeTimeouts;
+
+    public DatabaseConcurrencyLimiter(IngestionProperties ingestionProperties, MeterRegistry meterRegistry) {
+        IngestionProperties.DbConcurrency writeConfig = ingestionProperties.getDbConcurrency();
+        this.writes = new Semaphore(Math.max(1, writeConfig.getMaxWrites()), true);
+        this.writeTimeoutMs = writeConfig.getAcquireTimeoutMs();
+        this.writeTimeouts = meterRegistry.counter("db.concurrency.timeouts", "pool", "write");
+        Gauge.builder("db.concurrency.waiting", writes, Semaphore::getQueueLength).tag("pool", "write").register(meterRegistry);
+        Gauge.builder("db.concurrency.available", writes, Semaphore::availablePermits).tag("pool", "write").register(meterRegistry);
+    }
+
+    /**
+     * Waits up to the pool's timeout for a permit; use with try-with-resources.
+     *
+     * @throws DatabaseBusyException if no permit became free in time or the thread was interrupted
+     */
+    public Permit acquire(Pool pool) {
+        try {
+            if (writes.tryAcquire(writeTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return new Permit(writes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeTimeouts.increment();
+        throw new DatabaseBusyException("No database " + pool.name().toLowerCase() + " slot became free within " + writeTimeoutMs + " ms");
+    }
+
+    /**
+     * A held permit, released once on close.
+     */
+    public static final class Permit implements AutoCloseable {
+        private Semaphore semaphore;
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close() {
+            if (semaphore != null) {
+                semaphore.release();
+                semaphore = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.winlife.dataanalysis.service.impl;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how long ingestion writes to MySQL take, as an exponentially weighted moving average
+ * that load shedding can read cheaply.
+ * <p>
+ * Without writes there are no samples to pull a high average down, so every idle second counts
+ * as a sample of 0 ms: after a burst of slow writes the average falls below the shedding
+ * thresholds within seconds instead of keeping the writes shed that would bring it down.
+ */
+@Component
+public class DatabaseLatencyTracker {
+
+    // Weight of the newest sample; about the last 10 writes dominate the average
+    private static final double ALPHA = 0.2;
+    private static final long DECAY_INTERVAL_MS = 1000;
+
+    private final Timer timer;
+    private double averageMillis;
+    private long lastSampleMillis;
+
+    public DatabaseLatencyTracker(MeterRegistry meterRegistry) {
+        this.timer = meterRegistry.timer("ingestion.db.write");
+        Gauge.builder("ingestion.db.write.latency.avg", this, DatabaseLatencyTracker::getAverageMillis).register(meterRegistry);
+    }
+
+    public void record(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        timer.record(elapsed, TimeUnit.NANOSECONDS);
+        double millis = elapsed / 1_000_000d;
+        synchronized (this) {
+            averageMillis = lastSampleMillis == 0 ? millis : ALPHA * millis + (1 - ALPHA) * averageMillis;
+            lastSampleMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the moving average write latency
+     */
+    public synchronized double getAverageMillis() {
+        return averageMillis;
+    }
+
+    @Scheduled(fixedRate = DECAY_INTERVAL_MS)
+    public void decay() {
+        decay(System.currentTimeMillis());
+    }
+
+    /**
+     * Counts a 0 ms sample unless a write was recorded within the last interval.
+     */
+    public synchronized void decay(long nowMillis) {
+        if (nowMillis - lastSampleMillis >= DECAY_INTERVAL_MS) {
+            averageMillis = (1 - ALPHA) * averageMillis;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.model.DebugGameEvent;
+import com.winlife.dataanalysis.model.ErroredGameEvent;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventBatchRepository;
+import com.winlife.dataanalysis.service.DatabaseBusyException;
+import com.winlife.dataanalysis.service.EventRollupService;
+import com.winlife.dataanalysis.service.analysis.AnalysisResultCache;
+import com.winlife.dataanalysis.service.analysis.RecentEventStore;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persists a prepared batch of valid, errored and debug rows and refreshes PlayerData
+ * for the users of the valid events. Used by the synchronous batch endpoint and the
+ * persist stage of the async pipeline.
+ */
+@Component
+@RequiredArgsConstructor
+public class EventBatchWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventBatchWriter.class);
+
+    private final EventBatchRepository eventBatchRepository;
+    private final GameEventRecordMapper recordMapper;
+    private final PlayerDataWriter playerDataWriter;
+    private final EventDeduplicator eventDeduplicator;
+    private final DatabaseLatencyTracker databaseLatencyTracker;
+    private final DatabaseConcurrencyLimiter databaseConcurrencyLimiter;
+    private final RecentEventStore recentEventStore;
+    private final AnalysisResultCache analysisResultCache;
+    private final EventRollupService eventRollupService;
+    private final TransactionTemplate transactionTemplate;
+
+    /**
+     * Turns a validated event into the row it will be stored as.
+     *
+     * @param event           The incoming event, never null.
+     * @param validationError The combined validation error, or null if the event is valid.
+     */
+    public PreparedEvent prepare(GameEventDTO event, String validationError) {
+        if (event.getIsDebug() == 1) {
+            return new PreparedEvent(event, EventIngestResult.Status.DEBUG, validationError,
+                    null, null, recordMapper.toDebugEvent(event, validationError == null, validationError));
+        }
+        if (validationError != null) {
+            return new PreparedEvent(event, EventIngestResult.Status.INVALID, validationError,
+                    null, recordMapper.toErroredEvent(event, validationError), null);
+        }
+        try {
+            return new PreparedEvent(event, EventIngestResult.Status.ACCEPTED, null,
+                    recordMapper.toGameEvent(event), null, null);
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize valid event {}", event.getEventName(), e);
+            String reason = "Failed to serialize valid event: " + e.getMessage();
+            return new PreparedEvent(event, EventIngestResult.Status.FAILED, reason,
+                    null, recordMapper.toErroredEvent(event, reason), null);
+        }
+    }
+
+    /**
+     * Writes the batch. If the game_events insert fails, the valid events are moved to
+     * errored_game_events with the failure reason instead.
+     *
+     * @return Null if the valid events were stored, otherwise the failure reason.
+     * @throws DatabaseBusyException if no database write slot became free in time; nothing was written
+     */
+    public String write(Batch batch) {
+        return write(batch, false);
+    }
+
+    /**
+     * Like {@link #write(Batch)}, but failures a retry may fix (lost connection, failover,
+     * lock timeouts) are rethrown instead of being recorded as errored events or dropped.
+     * For replaying the write-ahead log: the rows carry the ids recorded there and are inserted
+     * idempotently, so the whole batch can be retried.
+     */
+    public String writeOrThrowTransient(Batch batch) {
+        return write(batch, true);
+    }
+
+    /**
+     * @return whether the failure is caused by the database being temporarily unavailable
+     */
+    public static boolean isTransient(Throwable e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException
+                || e instanceof CannotCreateTransactionException;
+    }
+
+    @SuppressWarnings("try")
+    private String write(Batch batch, boolean rethrowTransient) {
+        if (batch.isEmpty()) {
+            return null;
+        }
+        try (DatabaseConcurrencyLimiter.Permit ignored = databaseConcurrencyLimiter.acquire(DatabaseConcurrencyLimiter.Pool.WRITE)) {
+            return writeRows(batch, rethrowTransient);
+        }
+    }
+
+    private String writeRows(Batch batch, boolean rethrowTransient) {
+        String failureReason = null;
+        long start = 0;
+        boolean stored = false;
+        // The event ids stay claimed until the insert committed, so a concurrent retry waits for it
+        try (EventDeduplicator.Claim claim = eventDeduplicator.findDuplicates(batch.gameEvents)) {
+            batch.removeDuplicates(claim.getDuplicates());
+            start = System.nanoTime();
+            insertGameEvents(batch.gameEvents, rethrowTransient);
+            stored = true;
+            logger.debug("Batch inserted {} valid game events", batch.gameEvents.size());
+        } catch (RuntimeException e) {
+            if (rethrowTransient && isTransient(e)) {
+                throw e;
+            }
+            logger.error("Failed to batch insert {} game events: {}", batch.gameEvents.size(), e.getMessage(), e);
+            failureReason = "Failed to save to main game_events table: " + e.getMessage();
+            for (int i = 0; i < batch.gameEventSources.size(); i++) {
+                ErroredGameEvent erroredEvent = recordMapper.toErroredEvent(batch.gameEventSources.get(i), failureReason);
+                erroredEvent.setId(batch.gameEvents.get(i).getId()); // Keeps a retried write idempotent
+                batch.erroredEvents.add(erroredEvent);
+            }
+        }
+        if (stored) {
+            // The events are stored; a failure from here on must not move them to errored_game_events as well
+            long insertStart = start;
+            afterInsert("record the database latency", () -> databaseLatencyTracker.record(insertStart));
+            afterInsert("invalidate cached analysis results", () -> analysisResultCache.invalidate(batch.gameEvents));
+            afterInsert("update PlayerData", () -> updatePlayerData(batch.gameEvents));
+            afterInsert("add the events to the recent event store", () -> recentEventStore.addAll(batch.gameEvents));
+        }
+
+        try {
+            eventBatchRepository.insertErroredEvents(batch.erroredEvents, rethrowTransient);
+        } catch (RuntimeException e) {
+            if (rethrowTransient && isTransient(e)) {
+                throw e;
+            }
+            logger.error("Failed to batch insert {} errored game events: {}", batch.erroredEvents.size(), e.getMessage(), e);
+        }
+
+        try {
+            eventBatchRepository.insertDebugEvents(batch.debugEvents, rethrowTransient);
+        } catch (RuntimeException e) {
+            if (rethrowTransient && isTransient(e)) {
+                throw e;
+            }
+            logger.error("Failed to batch insert {} debug game events: {}", batch.debugEvents.size(), e.getMessage(), e);
+        }
+        return failureReason;
+    }
+
+    /**
+     * Inserts the events and counts them for the rollups in one transaction, see
+     * {@link EventRollupService#add}. Events a failed attempt already stored are counted already
+     * and are not counted again.
+     */
+    private void insertGameEvents(List<GameEvent> gameEvents, boolean replayed) {
+        if (gameEvents.isEmpty() || !eventRollupService.isEnabled()) {
+            eventBatchRepository.insertGameEvents(gameEvents, replayed);
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            Set<Long> stored = replayed ? eventBatchRepository.findStoredIds(gameEvents) : Set.of();
+            eventBatchRepository.insertGameEvents(gameEvents, replayed);
+            eventRollupService.add(gameEvents, stored);
+        });
+    }
+
+    private void afterInsert(String step, Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            logger.error("Stored game events but failed to {}: {}", step, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Hands the user properties of every stored event to the PlayerData write-behind buffer,
+     * which keeps only the newest state per user.
+     */
+    private void updatePlayerData(List<GameEvent> gameEvents) {
+        for (GameEvent gameEvent : gameEvents) {
+            if (StringUtils.hasText(gameEvent.getUserId())) {
+                playerDataWriter.update(gameEvent.getUserId(), gameEvent.getDeviceId(), gameEvent.getUserProperties());
+            }
+        }
+    }
+
+    /**
+     * A single event converted into exactly one of the three row types.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static class PreparedEvent {
+        private final GameEventDTO source;
+        private final EventIngestResult.Status status;
+        private final String message;
+        private final GameEvent gameEvent;
+        private final ErroredGameEvent erroredEvent;
+        private final DebugGameEvent debugEvent;
+
+        /**
+         * Gives the row a predetermined id, e.g. the one recorded in the write-ahead log.
+         */
+        public void assignId(long id) {
+            if (gameEvent != null) {
+                gameEvent.setId(id);
+            } else if (erroredEvent != null) {
+                erroredEvent.setId(id);
+            } else if (debugEvent != null) {
+                debugEvent.setId(id);
+            }
+        }
+
+        public void addTo(Batch batch) {
+            if (gameEvent != null) {
+                batch.addGameEvent(source, gameEvent);
+            } else if (erroredEvent != null) {
+                batch.addErroredEvent(erroredEvent);
+            } else if (debugEvent != null) {
+                batch.addDebugEvent(debugEvent);
+            }
+        }
+    }
+
+    /**
+     * Rows collected for one write. Valid events keep their source DTO for PlayerData
+     * updates and for the errored fallback.
+     */
+    public static class Batch {
+        private final List<GameEvent> gameEvents = new ArrayList<>();
+        private final List<GameEventDTO> gameEventSources = new ArrayList<>();
+        private final List<ErroredGameEvent> erroredEvents = new ArrayList<>();
+        private final List<DebugGameEvent> debugEvents = new ArrayList<>();
+        private final Set<GameEventDTO> duplicateSources = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        public void addGameEvent(GameEventDTO source, GameEvent gameEvent) {
+            gameEventSources.add(source);
+            gameEvents.add(gameEvent);
+        }
+
+        public void addErroredEvent(ErroredGameEvent erroredEvent) {
+            erroredEvents.add(erroredEvent);
+        }
+
+        public void addDebugEvent(DebugGameEvent debugEvent) {
+            debugEvents.add(debugEvent);
+        }
+
+        /**
+         * @return whether the valid event was dropped because its eventId was already stored
+         */
+        public boolean isDuplicate(GameEventDTO source) {
+            return duplicateSources.contains(source);
+        }
+
+        private void removeDuplicates(boolean[] duplicate) {
+            for (int i = duplicate.length - 1; i >= 0; i--) {
+                if (duplicate[i]) {
+                    duplicateSources.add(gameEventSources.remove(i));
+                    gameEvents.remove(i);
+                }
+            }
+        }
+
+        /**
+         * @return the valid events of the batch, in the order they were added
+         */
+        public List<GameEvent> getGameEvents() {
+            return Collections.unmodifiableList(gameEvents);
+        }
+
+        public int size() {
+            return gameEvents.size() + erroredEvents.size() + debugEvents.size();
+        }
+
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+    }
+}
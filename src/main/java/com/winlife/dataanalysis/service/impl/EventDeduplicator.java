@@ -0,0 +1,237 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventBatchRepository;
+import com.winlife.dataanalysis.util.RotatingBloomFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drops retried events by their client-supplied eventId.
+ * <p>
+ * Every eventId seen within ingestion.dedup.window-ms is remembered in a {@link RotatingBloomFilter}.
+ * An id the filter has definitely not seen is new and costs no database access. Only when the
+ * filter reports a possible match is game_events queried, so a false positive never drops an event.
+ * Events without an eventId are never treated as duplicates.
+ * <p>
+ * game_events only shows committed rows, so the ids of a write are claimed until it commits: a retry
+ * arriving while the original is still being written waits for it and then finds it stored, instead of
+ * both passing the check. Claims are held in memory, so this covers the writes of one instance.
+ */
+@Component
+public class EventDeduplicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventDeduplicator.class);
+
+    private final EventBatchRepository eventBatchRepository;
+    private final IngestionProperties.Dedup config;
+    private final RotatingBloomFilter filter;
+    private final long rotateIntervalMs;
+    private volatile long lastRotation = System.currentTimeMillis();
+    // Claimed event id -> completed when the claiming write has committed or failed
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter checked;
+    private final Counter possibleDuplicates;
+    private final Counter duplicates;
+    private final Counter falsePositives;
+
+    public EventDeduplicator(EventBatchRepository eventBatchRepository, IngestionProperties ingestionProperties, MeterRegistry meterRegistry) {
+        this.eventBatchRepository = eventBatchRepository;
+        this.config = ingestionProperties.getDedup();
+        int generations = Math.max(2, config.getGenerations());
+        // The newest generation fills while the others cover the rest of the window
+        this.rotateIntervalMs = Math.max(1, config.getWindowMs() / (generations - 1));
+        this.filter = new RotatingBloomFilter(generations, config.getExpectedEventsPerWindow() / (generations - 1), config.getFalsePositiveRate());
+
+        this.checked = meterRegistry.counter("ingestion.dedup.checked");
+        this.possibleDuplicates = meterRegistry.counter("ingestion.dedup.possible");
+        this.duplicates = meterRegistry.counter("ingestion.dedup.duplicates");
+        this.falsePositives = meterRegistry.counter("ingestion.dedup.false.positives");
+        Gauge.builder("ingestion.dedup.duplicate.ratio", this, d -> d.checked.count() == 0 ? 0 : d.duplicates.count() / d.checked.count())
+                .register(meterRegistry);
+        Gauge.builder("ingestion.dedup.filter.bytes", filter, RotatingBloomFilter::sizeInBytes).register(meterRegistry);
+    }
+
+    /**
+     * Checks an event written in the current transaction. Unless it is a duplicate, its id stays claimed
+     * until the transaction completes, or is released right away without one.
+     *
+     * @return whether an event with this id was already stored; null or empty ids are never duplicates
+     */
+    public boolean isDuplicate(String eventId) {
+        if (!config.isEnabled() || !StringUtils.hasText(eventId)) {
+            return false;
+        }
+        Claim claim = claim(Collections.singletonList(eventId));
+        boolean duplicate = claim.getDuplicates()[0];
+        if (!duplicate && TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    claim.close();
+                }
+            });
+        } else {
+            claim.close();
+        }
+        return duplicate;
+    }
+
+    /**
+     * Marks the events that repeat an eventId stored earlier or an earlier event of the same list, and
+     * claims the ids of the others until the returned claim is closed, after the insert committed.
+     */
+    public Claim findDuplicates(List<GameEvent> events) {
+        List<String> eventIds = new ArrayList<>(events.size());
+        for (GameEvent event : events) {
+            eventIds.add(event.getEventId());
+        }
+        return config.isEnabled() ? claim(eventIds) : new Claim(new boolean[events.size()], null, List.of());
+    }
+
+    private Claim claim(List<String> eventIds) {
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String eventId : eventIds) {
+            if (StringUtils.hasText(eventId)) {
+                distinct.add(eventId);
+            }
+        }
+        while (true) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            List<String> claimed = new ArrayList<>(distinct.size());
+            CompletableFuture<Void> blocker = null;
+            for (String eventId : distinct) {
+                blocker = inFlight.putIfAbsent(eventId, done);
+                if (blocker != null) {
+                    break;
+                }
+                claimed.add(eventId);
+            }
+            if (blocker == null) {
+                try {
+                    return new Claim(markDuplicates(eventIds), done, claimed);
+                } catch (RuntimeException e) {
+                    new Claim(null, done, claimed).close();
+                    throw e;
+                }
+            }
+            // Wait for the other write without holding any claim, so two writes never wait for each other
+            new Claim(null, done, claimed).close();
+            blocker.join();
+        }
+    }
+
+    private boolean[] markDuplicates(List<String> eventIds) {
+        rotateIfDue();
+        boolean[] duplicate = new boolean[eventIds.size()];
+        Set<String> seenInBatch = new HashSet<>();
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < eventIds.size(); i++) {
+            String eventId = eventIds.get(i);
+            if (!StringUtils.hasText(eventId)) {
+                continue;
+            }
+            checked.increment();
+            if (!seenInBatch.add(eventId)) {
+                duplicate[i] = true;
+            } else if (filter.mightContain(eventId)) {
+                candidates.add(i);
+            } else {
+                filter.put(eventId);
+            }
+        }
+
+        if (!candidates.isEmpty()) {
+            possibleDuplicates.increment(candidates.size());
+            Set<String> candidateIds = new HashSet<>();
+            for (int i : candidates) {
+                candidateIds.add(eventIds.get(i));
+            }
+            Set<String> stored = eventBatchRepository.findExistingEventIds(candidateIds);
+            for (int i : candidates) {
+                if (stored.contains(eventIds.get(i))) {
+                    duplicate[i] = true;
+                } else {
+                    falsePositives.increment();
+                    filter.put(eventIds.get(i));
+                }
+            }
+        }
+
+        int found = 0;
+        for (boolean d : duplicate) {
+            found += d ? 1 : 0;
+        }
+        if (found > 0) {
+            duplicates.increment(found);
+            logger.debug("Dropped {} duplicate events", found);
+        }
+        return duplicate;
+    }
+
+    private void rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastRotation < rotateIntervalMs) {
+            return;
+        }
+        synchronized (this) {
+            if (now - lastRotation >= rotateIntervalMs) {
+                filter.rotate();
+                lastRotation = now;
+            }
+        }
+    }
+
+    /**
+     * The duplicate flags of a write and the event ids it claimed.
+     */
+    public final class Claim implements AutoCloseable {
+        private final boolean[] duplicates;
+        private final CompletableFuture<Void> done;
+        private final List<String> eventIds;
+
+        private Claim(boolean[] duplicates, CompletableFuture<Void> done, List<String> eventIds) {
+            this.duplicates = duplicates;
+            this.done = done;
+            this.eventIds = eventIds;
+        }
+
+        /**
+         * @return duplicate flags, parallel to the checked events
+         */
+        public boolean[] getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Releases the claimed ids and wakes the writes waiting for them; may be called more than once.
+         */
+        @Override
+        public void close() {
+            for (String eventId : eventIds) {
+                inFlight.remove(eventId, done);
+            }
+            if (done != null) {
+                done.complete(null);
+            }
+        }
+    }
+}
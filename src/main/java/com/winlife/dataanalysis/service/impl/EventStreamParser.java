@@ -0,0 +1,226 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.service.CompiledSchema;
+import com.winlife.dataanalysis.service.SchemaRegistry;
+import lombok.Getter;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Parses, validates and re-serializes one NDJSON event line in a single pass over its bytes.
+ * <p>
+ * The header fields are read straight off the token stream. parameters and userProperties are
+ * never bound to maps: their tokens are checked against the compiled schemas while they are
+ * parsed, and the exact bytes of the two objects are kept as the JSON to store. Only when
+ * eventName comes after parameters in the line are the parameter bytes scanned a second time.
+ * <p>
+ * Header values of an unusual shape (e.g. a numeric timestamp sent as a string) fall back to
+ * ObjectMapper data binding of the whole line, so coercion stays exactly what the batch
+ * endpoint accepts; such events are then validated the regular way.
+ */
+@Component
+public class EventStreamParser {
+
+    private static final String NULL_JSON = "null";
+
+    private final SchemaRegistry schemaRegistry;
+    private final JsonFactory jsonFactory;
+    private final ObjectReader eventReader;
+
+    public EventStreamParser(SchemaRegistry schemaRegistry, ObjectMapper objectMapper) {
+        this.schemaRegistry = schemaRegistry;
+        this.jsonFactory = objectMapper.getFactory();
+        this.eventReader = objectMapper.readerFor(GameEventDTO.class);
+    }
+
+    /**
+     * Parses the event in buffer[0, length).
+     *
+     * @throws JsonProcessingException if the line is not a single JSON object that binds to an event
+     */
+    public ParsedEvent parse(byte[] buffer, int length) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(buffer, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new UnsupportedShapeException(null);
+            }
+            ParsedEvent parsed = parseObject(parser, buffer);
+            if (parser.nextToken() != null) {
+                throw new UnsupportedShapeException("Expected a single event per line");
+            }
+            return parsed;
+        } catch (UnsupportedShapeException e) {
+            if (e.getOriginalMessage() != null) {
+                throw e;
+            }
+            // Let data binding decide, it reports the same errors as the batch endpoint
+            GameEventDTO event = eventReader.readValue(buffer, 0, length);
+            return new ParsedEvent(event, null, false);
+        }
+    }
+
+    private ParsedEvent parseObject(JsonParser parser, byte[] buffer) throws IOException {
+        GameEventDTO event = new GameEventDTO();
+        CompiledSchema userPropertySchema = schemaRegistry.getUserPropertySchema();
+        String parametersError = null;
+        boolean parametersValidated = false;
+        String userPropertiesError = null;
+        int parametersStart = -1;
+        int parametersEnd = -1;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (name) {
+                case "eventId" -> event.setEventId(readString(parser, value));
+                case "userId" -> event.setUserId(readString(parser, value));
+                case "deviceId" -> event.setDeviceId(readString(parser, value));
+                case "eventName" -> event.setEventName(readString(parser, value));
+                case "timestamp" -> event.setTimestamp(readLong(parser, value));
+                case "isDebug" -> event.setIsDebug(readInt(parser, value));
+                case "parameters" -> {
+                    int start = startOffset(parser, value);
+                    CompiledSchema schema = DataIngestionServiceImpl.validateEventHeader(event) == null
+                            ? schemaRegistry.getEventSchema(event.getEventName()) : null;
+                    if (schema != null) {
+                        // eventName was already read: validate while parsing
+                        parametersError = schema.validate(parser);
+                        parametersValidated = true;
+                    } else {
+                        parser.skipChildren();
+                        parametersValidated = false;
+                    }
+                    parametersStart = start;
+                    parametersEnd = endOffset(parser);
+                    event.setRawParameters(value == JsonToken.VALUE_NULL ? NULL_JSON : slice(buffer, start, parametersEnd));
+                }
+                case "userProperties" -> {
+                    int start = startOffset(parser, value);
+                    if (userPropertySchema != null) {
+                        userPropertiesError = userPropertySchema.validate(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    event.setRawUserProperties(value == JsonToken.VALUE_NULL ? NULL_JSON : slice(buffer, start, endOffset(parser)));
+                }
+                default -> parser.skipChildren(); // Unknown properties are ignored, as by data binding
+            }
+        }
+
+        String eventError = DataIngestionServiceImpl.validateEventHeader(event);
+        if (eventError == null) {
+            CompiledSchema schema = schemaRegistry.getEventSchema(event.getEventName());
+            if (schema == null) {
+                eventError = "No schema found for event.";
+            } else if (parametersValidated) {
+                eventError = parametersError;
+            } else if (parametersStart < 0) {
+                eventError = schema.validate((Map<String, Object>) null);
+            } else {
+                // parameters came before eventName: scan its bytes once more
+                try (JsonParser rescan = jsonFactory.createParser(buffer, parametersStart, parametersEnd - parametersStart)) {
+                    rescan.nextToken();
+                    eventError = schema.validate(rescan);
+                }
+            }
+        }
+        if (userPropertySchema != null && event.getRawUserProperties() == null) {
+            userPropertiesError = userPropertySchema.validate((Map<String, Object>) null);
+        }
+        if (event.getRawParameters() == null) {
+            event.setRawParameters(NULL_JSON);
+        }
+        if (event.getRawUserProperties() == null) {
+            event.setRawUserProperties(NULL_JSON);
+        }
+        return new ParsedEvent(event, DataIngestionServiceImpl.combineValidationErrors(eventError, userPropertiesError), true);
+    }
+
+    private static String readString(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        throw new UnsupportedShapeException(null);
+    }
+
+    private static int readInt(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() == JsonParser.NumberType.INT) {
+            return parser.getIntValue();
+        }
+        if (value == JsonToken.VALUE_NULL) {
+            return 0;
+        }
+        throw new UnsupportedShapeException(null);
+    }
+
+    private static long readLong(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+            return parser.getLongValue();
+        }
+        if (value == JsonToken.VALUE_NULL) {
+            return 0;
+        }
+        throw new UnsupportedShapeException(null);
+    }
+
+    /**
+     * Offset of the first byte of the current value, which must be an object or null.
+     */
+    private static int startOffset(JsonParser parser, JsonToken value) throws JsonProcessingException {
+        if (value != JsonToken.START_OBJECT && value != JsonToken.VALUE_NULL) {
+            throw new UnsupportedShapeException(null);
+        }
+        return (int) parser.currentTokenLocation().getByteOffset();
+    }
+
+    /**
+     * Offset just past the value the parser is positioned at the end of.
+     */
+    private static int endOffset(JsonParser parser) {
+        return (int) parser.currentLocation().getByteOffset();
+    }
+
+    private static String slice(byte[] buffer, int start, int end) {
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One parsed line.
+     */
+    @Getter
+    public static final class ParsedEvent {
+        private final GameEventDTO event;
+        // Combined validation error, null if valid; only meaningful if validated
+        private final String validationError;
+        // False if the event was bound by the ObjectMapper fallback and still needs validation
+        private final boolean validated;
+
+        private ParsedEvent(GameEventDTO event, String validationError, boolean validated) {
+            this.event = event;
+            this.validationError = validationError;
+            this.validated = validated;
+        }
+    }
+
+    /**
+     * Thrown when a line is not handled by the fast path. Without a message, data binding of the
+     * whole line takes over; with a message, the line is rejected.
+     */
+    private static final class UnsupportedShapeException extends JsonProcessingException {
+        private UnsupportedShapeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.model.DebugGameEvent;
+import com.winlife.dataanalysis.model.ErroredGameEvent;
+import com.winlife.dataanalysis.model.GameEvent;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+
+/**
+ * Converts incoming GameEventDTOs into the entities stored in game_events,
+ * errored_game_events and debug_game_events. Shared by the single-event and batch ingestion paths.
+ */
+@Component
+@RequiredArgsConstructor
+public class GameEventRecordMapper {
+
+    private static final Logger logger = LoggerFactory.getLogger(GameEventRecordMapper.class);
+
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Builds a GameEvent for a validated event.
+     *
+     * @throws JsonProcessingException if parameters or user properties cannot be serialized
+     */
+    public GameEvent toGameEvent(GameEventDTO event) throws JsonProcessingException {
+        GameEvent gameEvent = new GameEvent();
+        gameEvent.setEventId(event.getEventId());
+        gameEvent.setUserId(event.getUserId());
+        gameEvent.setDeviceId(event.getDeviceId());
+        gameEvent.setTimestamp(event.getTimestamp());
+        gameEvent.setEventName(event.getEventName());
+        gameEvent.setParameters(parametersJson(event));
+        gameEvent.setUserProperties(userPropertiesJson(event));
+        return gameEvent;
+    }
+
+    /**
+     * Builds an ErroredGameEvent. Serialization failures of the raw parameters are logged and stored as null.
+     */
+    public ErroredGameEvent toErroredEvent(GameEventDTO event, String errorReason) {
+        ErroredGameEvent erroredEvent = new ErroredGameEvent();
+        erroredEvent.setUserId(event.getUserId());
+        erroredEvent.setDeviceId(event.getDeviceId());
+        erroredEvent.setTimestamp(event.getTimestamp());
+        erroredEvent.setEventName(event.getEventName());
+        erroredEvent.setErrorReason(errorReason);
+        erroredEvent.setReceivedTimestamp(Instant.now().toEpochMilli());
+
+        try {
+            erroredEvent.setRawParameters(parametersJson(event));
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize raw event parameters for errored event {}: {}", event.getEventName(), event.getParameters(), e);
+            erroredEvent.setRawParameters(null);
+        }
+        return erroredEvent;
+    }
+
+    /**
+     * Builds a DebugGameEvent. Serialization failures of the raw payloads are logged and stored as null.
+     */
+    public DebugGameEvent toDebugEvent(GameEventDTO event, boolean isValid, String validationError) {
+        DebugGameEvent debugEvent = new DebugGameEvent();
+        debugEvent.setUserId(event.getUserId());
+        debugEvent.setDeviceId(event.getDeviceId());
+        debugEvent.setTimestamp(event.getTimestamp());
+        debugEvent.setEventName(event.getEventName());
+        debugEvent.setValid(isValid);
+        debugEvent.setValidationError(validationError);
+        debugEvent.setReceivedTimestamp(Instant.now().toEpochMilli());
+
+        try {
+            debugEvent.setRawParameters(parametersJson(event));
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize raw event parameters for debug event {}: {}", event.getEventName(), event.getParameters(), e);
+            debugEvent.setRawParameters(null);
+        }
+
+        try {
+            debugEvent.setRawUserProperties(userPropertiesJson(event));
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize raw user properties for debug event {}: {}", event.getEventName(), event.getUserProperties(), e);
+            debugEvent.setRawUserProperties(null);
+        }
+        return debugEvent;
+    }
+
+    private String parametersJson(GameEventDTO event) throws JsonProcessingException {
+        return event.getRawParameters() != null ? event.getRawParameters() : objectMapper.writeValueAsString(event.getParameters());
+    }
+
+    private String userPropertiesJson(GameEventDTO event) throws JsonProcessingException {
+        return event.getRawUserProperties() != null ? event.getRawUserProperties() : objectMapper.writeValueAsString(event.getUserProperties());
+    }
+}
@@ -0,0 +1,187 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.PlayerData;
+import com.winlife.dataanalysis.repository.PlayerDataBatchRepository;
+import com.winlife.dataanalysis.util.HashUtils;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps player_data in sync with the latest user properties received from ingestion.
+ * <p>
+ * Updates are coalesced per userId in memory and flushed periodically as one multi-row
+ * upsert. The latest received update wins, both here and in the upsert: the receive time is
+ * what last_updated_timestamp stores and what the upsert compares, so event timestamps
+ * (client clocks) never decide which properties are kept. A flush skips users whose device and
+ * properties hash equals what was last written for them, so a player repeating the same
+ * properties on every event costs no database writes at all.
+ * Disable with ingestion.player-data.write-behind=false to upsert on every update.
+ */
+@Component
+public class PlayerDataWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(PlayerDataWriter.class);
+
+    private final PlayerDataBatchRepository playerDataBatchRepository;
+    private final ObjectMapper objectMapper;
+    private final IngestionProperties ingestionProperties;
+
+    private final ConcurrentHashMap<String, PendingUpdate> pending = new ConcurrentHashMap<>();
+    // Drained by a flush whose upsert has not committed yet; still the user's latest state for readers
+    private final ConcurrentHashMap<String, PendingUpdate> inFlight = new ConcurrentHashMap<>();
+    // userId -> hash of the last written device/properties (bounded LRU)
+    private final Map<String, Long> lastWrittenHashes;
+
+    public PlayerDataWriter(PlayerDataBatchRepository playerDataBatchRepository, ObjectMapper objectMapper,
+                            IngestionProperties ingestionProperties) {
+        this.playerDataBatchRepository = playerDataBatchRepository;
+        this.objectMapper = objectMapper;
+        this.ingestionProperties = ingestionProperties;
+        int maxEntries = Math.max(1, ingestionProperties.getPlayerData().getHashCacheSize());
+        this.lastWrittenHashes = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Records the latest user properties of a user.
+     *
+     * @param userId         The user ID.
+     * @param deviceId       The device ID.
+     * @param userProperties The latest user properties.
+     */
+    public void update(String userId, String deviceId, Map<String, Object> userProperties) {
+        try {
+            update(userId, deviceId, objectMapper.writeValueAsString(userProperties));
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize user properties for PlayerData update for userId {}: {}", userId, userProperties, e);
+        }
+    }
+
+    /**
+     * Records the latest user properties of a user, already serialized as JSON.
+     */
+    public void update(String userId, String deviceId, String userPropertiesJson) {
+        PendingUpdate update = new PendingUpdate(userId, deviceId, userPropertiesJson);
+        if (!ingestionProperties.getPlayerData().isWriteBehind()) {
+            write(Collections.singletonList(update));
+            return;
+        }
+        Long lastWrittenHash = lastWrittenHashes.get(userId);
+        if (lastWrittenHash != null && lastWrittenHash == update.contentHash
+                && !pending.containsKey(userId) && !inFlight.containsKey(userId)) {
+            return; // Nothing changed since the last write
+        }
+        pending.merge(userId, update, (current, candidate) -> candidate.receivedTimestamp >= current.receivedTimestamp ? candidate : current);
+    }
+
+    /**
+     * @return the buffered state of the user that is not yet committed to player_data, if any
+     */
+    public Optional<PlayerData> getPending(String userId) {
+        PendingUpdate update = pending.get(userId);
+        if (update == null) {
+            update = inFlight.get(userId);
+        }
+        return update == null ? Optional.empty() : Optional.of(update.toPlayerData());
+    }
+
+    @Scheduled(fixedDelayString = "${ingestion.player-data.flush-interval-ms:1000}")
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<PendingUpdate> drained = new ArrayList<>(pending.size());
+        for (String userId : pending.keySet()) {
+            // Moved to inFlight before it leaves pending, so getPending never falls back to the old row
+            pending.computeIfPresent(userId, (id, update) -> {
+                Long lastWrittenHash = lastWrittenHashes.get(id);
+                if (lastWrittenHash == null || lastWrittenHash != update.contentHash) {
+                    inFlight.put(id, update);
+                    drained.add(update);
+                }
+                return null;
+            });
+        }
+        try {
+            write(drained);
+        } finally {
+            for (PendingUpdate update : drained) {
+                inFlight.remove(update.userId, update);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+
+    private void write(List<PendingUpdate> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        List<PlayerData> rows = new ArrayList<>(updates.size());
+        for (PendingUpdate update : updates) {
+            rows.add(update.toPlayerData());
+        }
+        try {
+            playerDataBatchRepository.upsertAll(rows);
+            for (PendingUpdate update : updates) {
+                lastWrittenHashes.put(update.userId, update.contentHash);
+            }
+            logger.debug("Upserted {} PlayerData rows", rows.size());
+        } catch (Exception e) {
+            logger.error("Failed to upsert {} PlayerData rows, will retry on next flush: {}", rows.size(), e.getMessage(), e);
+            if (ingestionProperties.getPlayerData().isWriteBehind()) {
+                // Put the updates back unless a newer one arrived in the meantime
+                for (PendingUpdate update : updates) {
+                    pending.merge(update.userId, update, (current, failed) -> current.receivedTimestamp >= failed.receivedTimestamp ? current : failed);
+                }
+            }
+        }
+    }
+
+    private static final class PendingUpdate {
+        private final String userId;
+        private final String deviceId;
+        private final String userPropertiesJson;
+        private final long receivedTimestamp;
+        private final long contentHash;
+
+        private PendingUpdate(String userId, String deviceId, String userPropertiesJson) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+            this.userPropertiesJson = userPropertiesJson;
+            this.receivedTimestamp = Instant.now().toEpochMilli();
+            this.contentHash = HashUtils.hash64(deviceId + '\u0000' + userPropertiesJson);
+        }
+
+        private PlayerData toPlayerData() {
+            PlayerData playerData = new PlayerData();
+            playerData.setUserId(userId);
+            playerData.setDeviceId(deviceId);
+            playerData.setUserProperties(userPropertiesJson);
+            playerData.setLastUpdatedTimestamp(receivedTimestamp);
+            return playerData;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.winlife.dataanalysis.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads newline-terminated lines from a byte stream into a reused buffer, without decoding them.
+ * Lines longer than the limit are skipped up to the next newline and reported as oversized.
+ */
+public class BoundedLineReader {
+
+    private final InputStream in;
+    private final int maxLineBytes;
+    private final byte[] readBuffer = new byte[64 * 1024];
+    private int readPosition;
+    private int readLimit;
+
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private boolean oversized;
+
+    public BoundedLineReader(InputStream in, int maxLineBytes) {
+        this.in = in;
+        this.maxLineBytes = maxLineBytes;
+    }
+
+    /**
+     * Advances to the next line. A trailing carriage return is stripped.
+     *
+     * @return false at the end of the stream
+     */
+    public boolean next() throws IOException {
+        lineLength = 0;
+        oversized = false;
+        boolean readAnything = false;
+        while (true) {
+            if (readPosition == readLimit) {
+                readLimit = in.read(readBuffer);
+                readPosition = 0;
+                if (readLimit <= 0) {
+                    readLimit = 0;
+                    return readAnything;
+                }
+            }
+            readAnything = true;
+            int start = readPosition;
+            while (readPosition < readLimit && readBuffer[readPosition] != '\n') {
+                readPosition++;
+            }
+            append(start, readPosition - start);
+            if (readPosition < readLimit) {
+                readPosition++; // Consume the newline
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of the current line, valid until the next call to {@link #next()}
+     */
+    public byte[] getLine() {
+        return line;
+    }
+
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * @return whether the current line exceeded the limit; its content is then truncated
+     */
+    public boolean isOversized() {
+        return oversized;
+    }
+
+    private void append(int start, int length) {
+        if (oversized) {
+            return;
+        }
+        if (lineLength + length > maxLineBytes) {
+            oversized = true;
+            return;
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.min(maxLineBytes, Math.max(line.length * 2, lineLength + length)));
+        }
+        System.arraycopy(readBuffer, start, line, lineLength, length);
+        lineLength += length;
+    }
+}
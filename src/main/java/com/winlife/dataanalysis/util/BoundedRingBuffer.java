@@ -0,0 +1,125 @@
+package com.winlife.dataanalysis.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-capacity ring buffer used to hand events between ingestion stages.
+ * Producers either fail fast ({@link #offer(Object)}) or wait for space for a bounded time,
+ * consumers drain in batches so that one lock acquisition moves many elements.
+ */
+public class BoundedRingBuffer<T> {
+
+    private final Object[] items;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int head; // Next slot to read
+    private int tail; // Next slot to write
+    private int count;
+
+    public BoundedRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.items = new Object[capacity];
+    }
+
+    /**
+     * Adds the element if there is space.
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (count == items.length) {
+                return false;
+            }
+            enqueue(item);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the element, waiting up to the given time for space to become available.
+     *
+     * @return false if the buffer stayed full for the whole timeout
+     */
+    public boolean offer(T item, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == items.length) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(item);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to maxElements into the target collection, waiting up to the given time
+     * for at least one element to arrive.
+     *
+     * @return the number of elements transferred
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> target, int maxElements, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int n = Math.min(maxElements, count);
+            for (int i = 0; i < n; i++) {
+                target.add((T) items[head]);
+                items[head] = null;
+                head = (head + 1) % items.length;
+            }
+            count -= n;
+            notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    private void enqueue(T item) {
+        items[tail] = item;
+        tail = (tail + 1) % items.length;
+        count++;
+        notEmpty.signal();
+    }
+}
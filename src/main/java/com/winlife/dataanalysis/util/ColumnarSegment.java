@@ -0,0 +1,557 @@
+package com.winlife.dataanalysis.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Immutable, compressed columnar file of rows with named columns.
+ * <p>
+ * Rows are written in row groups. Within a row group every column is one Deflate-compressed chunk:
+ * <ul>
+ *     <li>LONG columns (present in every row) are stored as zigzag varint deltas to the previous row,
+ *     so sorted or clustered values such as timestamps and ids take one or two bytes</li>
+ *     <li>VALUE columns (optional per row) are dictionary encoded: the distinct values of the row group
+ *     once, then one varint index per row, 0 meaning absent</li>
+ * </ul>
+ * The footer lists every chunk with its offset and statistics: min/max for LONG columns, the numeric
+ * min/max and the dictionary size for VALUE columns, and small dictionaries in full, so readers can
+ * skip row groups without touching their data. The file ends with the footer length and the magic.
+ * <p>
+ * Values are Long, Double, String, Boolean or {@link RawJson}.
+ */
+public final class ColumnarSegment {
+
+    private static final byte[] MAGIC = {'W', 'S', 'E', 'G'};
+    private static final int FORMAT_VERSION = 1;
+    // Dictionaries up to this size are repeated in the footer
+    private static final int FOOTER_DICTIONARY_LIMIT = 64;
+
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_RAW_JSON = 6;
+
+    private ColumnarSegment() {
+    }
+
+    public enum ColumnType { LONG, VALUE }
+
+    /**
+     * A JSON value stored as its text, for objects, arrays, null and numbers Long/Double cannot hold.
+     */
+    public record RawJson(String json) {
+    }
+
+    /**
+     * Statistics and location of one column chunk. minLong/maxLong are set for LONG columns; minNumber/maxNumber
+     * are null for VALUE columns without numbers; dictionary is null if the dictionary was too large for the footer.
+     */
+    public record ColumnMeta(String name, ColumnType type, long offset, int length, int rawLength,
+                             long minLong, long maxLong, int dictionarySize, Double minNumber, Double maxNumber,
+                             List<Object> dictionary) {
+    }
+
+    public record RowGroup(int rowCount, Map<String, ColumnMeta> columns) {
+    }
+
+    public record Footer(Map<String, String> metadata, List<RowGroup> rowGroups) {
+        public long rowCount() {
+            long rows = 0;
+            for (RowGroup rowGroup : rowGroups) {
+                rows += rowGroup.rowCount();
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * A decoded VALUE chunk.
+     */
+    public static final class ValueColumn {
+        private final Object[] dictionary;
+        private final int[] indexes;
+
+        private ValueColumn(Object[] dictionary, int[] indexes) {
+            this.dictionary = dictionary;
+            this.indexes = indexes;
+        }
+
+        /**
+         * @return the row's value, null if absent
+         */
+        public Object get(int row) {
+            int index = indexes[row];
+            return index == 0 ? null : dictionary[index - 1];
+        }
+
+        /**
+         * @return the dictionary index of the row (0 if absent), comparable with {@link #indexOf(Object)}
+         */
+        public int indexAt(int row) {
+            return indexes[row];
+        }
+
+        /**
+         * @return the dictionary index of the value, -1 if no row has it
+         */
+        public int indexOf(Object value) {
+            for (int i = 0; i < dictionary.length; i++) {
+                if (dictionary[i].equals(value)) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Writes a segment. Call the setters for the current row, then {@link #endRow()}; finish with {@link #finish()}.
+     * Not thread-safe.
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final int rowGroupSize;
+        private final Map<String, String> metadata;
+        private final Map<String, LongBuffer> longColumns = new TreeMap<>();
+        private final Map<String, ValueBuffer> valueColumns = new TreeMap<>();
+        private final List<RowGroup> rowGroups = new ArrayList<>();
+        private final Deflater deflater = new Deflater();
+        private int rows;
+        private long position;
+
+        public Writer(Path file, int rowGroupSize, Map<String, String> metadata) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.rowGroupSize = Math.max(1, rowGroupSize);
+            this.metadata = new LinkedHashMap<>(metadata);
+            write(ByteBuffer.wrap(MAGIC));
+            write(ByteBuffer.wrap(new byte[]{FORMAT_VERSION}));
+        }
+
+        public void setLong(String column, long value) {
+            longColumns.computeIfAbsent(column, name -> new LongBuffer(rowGroupSize)).set(rows, value);
+        }
+
+        /**
+         * @param value a supported value, or null to leave the column absent in this row
+         */
+        public void setValue(String column, Object value) {
+            if (value != null) {
+                valueColumns.computeIfAbsent(column, name -> new ValueBuffer(rowGroupSize)).set(rows, value);
+            }
+        }
+
+        public void endRow() throws IOException {
+            rows++;
+            if (rows == rowGroupSize) {
+                flushRowGroup();
+            }
+        }
+
+        /**
+         * Adds or replaces a footer metadata entry; written by {@link #finish()}.
+         */
+        public void putMetadata(String key, String value) {
+            metadata.put(key, value);
+        }
+
+        public long getRowCount() {
+            long written = rows;
+            for (RowGroup rowGroup : rowGroups) {
+                written += rowGroup.rowCount();
+            }
+            return written;
+        }
+
+        /**
+         * Writes the last row group and the footer, and forces the file to disk.
+         */
+        public void finish() throws IOException {
+            if (rows > 0) {
+                flushRowGroup();
+            }
+            VarintWriter footer = new VarintWriter(4096);
+            footer.writeVarint(metadata.size());
+            metadata.forEach((key, value) -> footer.writeString(key).writeString(value));
+            footer.writeVarint(rowGroups.size());
+            for (RowGroup rowGroup : rowGroups) {
+                footer.writeVarint(rowGroup.rowCount()).writeVarint(rowGroup.columns().size());
+                for (ColumnMeta column : rowGroup.columns().values()) {
+                    writeColumnMeta(footer, column);
+                }
+            }
+            byte[] footerBytes = footer.toByteArray();
+            write(ByteBuffer.wrap(footerBytes));
+            ByteBuffer trailer = ByteBuffer.allocate(8).putInt(footerBytes.length).put(MAGIC);
+            write(trailer.flip());
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            channel.close();
+        }
+
+        private void flushRowGroup() throws IOException {
+            Map<String, ColumnMeta> columns = new LinkedHashMap<>();
+            for (Map.Entry<String, LongBuffer> entry : longColumns.entrySet()) {
+                LongBuffer buffer = entry.getValue();
+                if (buffer.size != rows) {
+                    throw new IllegalStateException("LONG column " + entry.getKey() + " must be set in every row");
+                }
+                VarintWriter chunk = new VarintWriter(rows * 2);
+                long previous = 0;
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                for (int i = 0; i < rows; i++) {
+                    long value = buffer.values[i];
+                    chunk.writeZigZag(value - previous);
+                    previous = value;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                columns.put(entry.getKey(), writeChunk(entry.getKey(), ColumnType.LONG, chunk.toByteArray(), min, max, 0, null, null, null));
+                buffer.size = 0;
+            }
+            for (Map.Entry<String, ValueBuffer> entry : valueColumns.entrySet()) {
+                ValueBuffer buffer = entry.getValue();
+                if (buffer.dictionary.isEmpty()) {
+                    continue; // Not present in this row group
+                }
+                VarintWriter chunk = new VarintWriter(rows + buffer.dictionary.size() * 8);
+                chunk.writeVarint(buffer.dictionary.size());
+                Double minNumber = null;
+                Double maxNumber = null;
+                for (Object value : buffer.entries) {
+                    writeValue(chunk, value);
+                    if (value instanceof Number number) {
+                        double d = number.doubleValue();
+                        minNumber = minNumber == null ? d : Math.min(minNumber, d);
+                        maxNumber = maxNumber == null ? d : Math.max(maxNumber, d);
+                    }
+                }
+                for (int i = 0; i < rows; i++) {
+                    chunk.writeVarint(i < buffer.size ? buffer.indexes[i] : 0);
+                }
+                List<Object> dictionary = buffer.entries.size() <= FOOTER_DICTIONARY_LIMIT ? new ArrayList<>(buffer.entries) : null;
+                columns.put(entry.getKey(), writeChunk(entry.getKey(), ColumnType.VALUE, chunk.toByteArray(), 0, 0,
+                        buffer.entries.size(), minNumber, maxNumber, dictionary));
+                buffer.reset();
+            }
+            rowGroups.add(new RowGroup(rows, columns));
+            rows = 0;
+        }
+
+        private ColumnMeta writeChunk(String name, ColumnType type, byte[] raw, long minLong, long maxLong, int dictionarySize,
+                                      Double minNumber, Double maxNumber, List<Object> dictionary) throws IOException {
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] compressed = new byte[Math.max(64, raw.length + raw.length / 1000 + 64)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            long offset = position;
+            write(ByteBuffer.wrap(compressed, 0, length));
+            return new ColumnMeta(name, type, offset, length, raw.length, minLong, maxLong, dictionarySize, minNumber, maxNumber, dictionary);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads the chunks of a segment whose footer was read with {@link #readFooter(Path)}. Thread-safe.
+     */
+    public static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final Footer footer;
+
+        private Reader(FileChannel channel, Footer footer) {
+            this.channel = channel;
+            this.footer = footer;
+        }
+
+        public static Reader open(Path file, Footer footer) throws IOException {
+            return new Reader(FileChannel.open(file, StandardOpenOption.READ), footer);
+        }
+
+        public Footer getFooter() {
+            return footer;
+        }
+
+        /**
+         * @return the column's values, null if the row group has no such column
+         */
+        public long[] readLongs(RowGroup rowGroup, String column) throws IOException {
+            ColumnMeta meta = rowGroup.columns().get(column);
+            if (meta == null) {
+                return null;
+            }
+            VarintReader reader = chunk(meta);
+            long[] values = new long[rowGroup.rowCount()];
+            long previous = 0;
+            for (int i = 0; i < values.length; i++) {
+                previous += reader.readZigZag();
+                values[i] = previous;
+            }
+            return values;
+        }
+
+        /**
+         * @return the column's values, null if no row of the row group has the column
+         */
+        public ValueColumn readValues(RowGroup rowGroup, String column) throws IOException {
+            ColumnMeta meta = rowGroup.columns().get(column);
+            if (meta == null) {
+                return null;
+            }
+            VarintReader reader = chunk(meta);
+            Object[] dictionary = new Object[reader.readVarint32()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readValue(reader);
+            }
+            int[] indexes = new int[rowGroup.rowCount()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = reader.readVarint32();
+            }
+            return new ValueColumn(dictionary, indexes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private VarintReader chunk(ColumnMeta meta) throws IOException {
+            ByteBuffer compressed = ByteBuffer.allocate(meta.length());
+            while (compressed.hasRemaining()) {
+                if (channel.read(compressed, meta.offset() + compressed.position()) < 0) {
+                    throw new IOException("Truncated chunk of column " + meta.name());
+                }
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed.array());
+                byte[] raw = new byte[meta.rawLength()];
+                int length = 0;
+                while (length < raw.length && !inflater.finished()) {
+                    int n = inflater.inflate(raw, length, raw.length - length);
+                    if (n == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length != raw.length) {
+                    throw new IOException("Corrupt chunk of column " + meta.name());
+                }
+                return new VarintReader(raw, 0, raw.length);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt chunk of column " + meta.name(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    public static Footer readFooter(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAGIC.length + 1 + 8) {
+                throw new IOException("Not a segment file: " + file);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            readFully(channel, trailer, size - 8);
+            int footerLength = trailer.getInt(0);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (trailer.get(4 + i) != MAGIC[i]) {
+                    throw new IOException("Not a segment file (bad trailer): " + file);
+                }
+            }
+            if (footerLength < 0 || footerLength > size - 8) {
+                throw new IOException("Corrupt footer length in " + file);
+            }
+            ByteBuffer footerBytes = ByteBuffer.allocate(footerLength);
+            readFully(channel, footerBytes, size - 8 - footerLength);
+
+            VarintReader reader = new VarintReader(footerBytes.array(), 0, footerLength);
+            Map<String, String> metadata = new LinkedHashMap<>();
+            int metadataCount = reader.readVarint32();
+            for (int i = 0; i < metadataCount; i++) {
+                metadata.put(reader.readString(), reader.readString());
+            }
+            int rowGroupCount = reader.readVarint32();
+            List<RowGroup> rowGroups = new ArrayList<>(rowGroupCount);
+            for (int i = 0; i < rowGroupCount; i++) {
+                int rowCount = reader.readVarint32();
+                int columnCount = reader.readVarint32();
+                Map<String, ColumnMeta> columns = new HashMap<>();
+                for (int c = 0; c < columnCount; c++) {
+                    ColumnMeta column = readColumnMeta(reader);
+                    columns.put(column.name(), column);
+                }
+                rowGroups.add(new RowGroup(rowCount, Collections.unmodifiableMap(columns)));
+            }
+            return new Footer(Collections.unmodifiableMap(metadata), Collections.unmodifiableList(rowGroups));
+        }
+    }
+
+    private static void writeColumnMeta(VarintWriter footer, ColumnMeta column) {
+        footer.writeString(column.name()).writeByte(column.type().ordinal())
+                .writeVarint(column.offset()).writeVarint(column.length()).writeVarint(column.rawLength());
+        if (column.type() == ColumnType.LONG) {
+            footer.writeZigZag(column.minLong()).writeZigZag(column.maxLong());
+            return;
+        }
+        footer.writeVarint(column.dictionarySize());
+        footer.writeByte(column.minNumber() == null ? 0 : 1);
+        if (column.minNumber() != null) {
+            footer.writeDouble(column.minNumber()).writeDouble(column.maxNumber());
+        }
+        footer.writeByte(column.dictionary() == null ? 0 : 1);
+        if (column.dictionary() != null) {
+            for (Object value : column.dictionary()) {
+                writeValue(footer, value);
+            }
+        }
+    }
+
+    private static ColumnMeta readColumnMeta(VarintReader reader) throws IOException {
+        String name = reader.readString();
+        int typeOrdinal = reader.readByte();
+        if (typeOrdinal >= ColumnType.values().length) {
+            throw new IOException("Unknown column type " + typeOrdinal);
+        }
+        ColumnType type = ColumnType.values()[typeOrdinal];
+        long offset = reader.readVarint();
+        int length = reader.readVarint32();
+        int rawLength = reader.readVarint32();
+        if (type == ColumnType.LONG) {
+            return new ColumnMeta(name, type, offset, length, rawLength, reader.readZigZag(), reader.readZigZag(), 0, null, null, null);
+        }
+        int dictionarySize = reader.readVarint32();
+        Double minNumber = null;
+        Double maxNumber = null;
+        if (reader.readByte() == 1) {
+            minNumber = reader.readDouble();
+            maxNumber = reader.readDouble();
+        }
+        List<Object> dictionary = null;
+        if (reader.readByte() == 1) {
+            dictionary = new ArrayList<>(dictionarySize);
+            for (int i = 0; i < dictionarySize; i++) {
+                dictionary.add(readValue(reader));
+            }
+        }
+        return new ColumnMeta(name, type, offset, length, rawLength, 0, 0, dictionarySize, minNumber, maxNumber, dictionary);
+    }
+
+    private static void writeValue(VarintWriter writer, Object value) {
+        if (value instanceof Boolean b) {
+            writer.writeByte(b ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Long l) {
+            writer.writeByte(TAG_LONG).writeZigZag(l);
+        } else if (value instanceof Double d) {
+            writer.writeByte(TAG_DOUBLE).writeDouble(d);
+        } else if (value instanceof String s) {
+            writer.writeByte(TAG_STRING).writeString(s);
+        } else if (value instanceof RawJson raw) {
+            writer.writeByte(TAG_RAW_JSON).writeString(raw.json());
+        } else {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(VarintReader reader) throws IOException {
+        int tag = reader.readByte();
+        return switch (tag) {
+            case TAG_FALSE -> Boolean.FALSE;
+            case TAG_TRUE -> Boolean.TRUE;
+            case TAG_LONG -> reader.readZigZag();
+            case TAG_DOUBLE -> reader.readDouble();
+            case TAG_STRING -> reader.readString();
+            case TAG_RAW_JSON -> new RawJson(reader.readString());
+            default -> throw new IOException("Unknown value tag " + tag);
+        };
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static final class LongBuffer {
+        private final long[] values;
+        private int size;
+
+        private LongBuffer(int capacity) {
+            this.values = new long[capacity];
+        }
+
+        private void set(int row, long value) {
+            if (row != size) {
+                throw new IllegalStateException("LONG columns must be set exactly once in every row");
+            }
+            values[size++] = value;
+        }
+    }
+
+    private static final class ValueBuffer {
+        private final int[] indexes;
+        private final Map<Object, Integer> dictionary = new HashMap<>();
+        private final List<Object> entries = new ArrayList<>();
+        // Rows up to here have their index set; later rows are absent unless set
+        private int size;
+
+        private ValueBuffer(int capacity) {
+            this.indexes = new int[capacity];
+        }
+
+        private void set(int row, Object value) {
+            Integer index = dictionary.get(value);
+            if (index == null) {
+                entries.add(value);
+                index = entries.size();
+                dictionary.put(value, index);
+            }
+            while (size < row) {
+                indexes[size++] = 0;
+            }
+            indexes[row] = index;
+            size = row + 1;
+        }
+
+        private void reset() {
+            dictionary.clear();
+            entries.clear();
+            size = 0;
+        }
+    }
+}
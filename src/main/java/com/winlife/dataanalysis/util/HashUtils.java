@@ -0,0 +1,50 @@
+package com.winlife.dataanalysis.util;
+
+/**
+ * Fast non-cryptographic 64-bit hashing for in-memory dedup and change detection.
+ */
+public final class HashUtils {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private HashUtils() {
+    }
+
+    /**
+     * FNV-1a over the UTF-16 chars, finished with the MurmurHash3 fmix64 step
+     * so that every input bit affects every output bit.
+     */
+    public static long hash64(CharSequence value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return fmix64(hash);
+    }
+
+    /**
+     * Same as {@link #hash64(CharSequence)} over a byte range.
+     */
+    public static long hash64(byte[] bytes, int offset, int length) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return fmix64(hash);
+    }
+
+    /**
+     * MurmurHash3 64-bit finalizer.
+     */
+    public static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,235 @@
+package com.winlife.dataanalysis.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Mergeable approximate distinct counter in the style of HyperLogLog++: 64-bit hashes, an exact sparse
+ * mode for small sets and 2^14 six-bit registers once that grows past the size of the registers.
+ * The dense estimate uses Ertl's improved estimator ("New cardinality estimation algorithms for HyperLogLog
+ * sketches", 2017), which needs no empirical bias tables, with a standard error of about 0.8%.
+ * <p>
+ * Values are hashed as the first 8 bytes of the MD5 of their UTF-8 text, which {@link #sqlHash} computes in
+ * MySQL as well, so registers aggregated by a query merge with sketches filled here. Not thread-safe.
+ */
+public final class HyperLogLog {
+
+    public static final int PRECISION = 14;
+    private static final int REGISTERS = 1 << PRECISION;
+    // Hash bits below the register index; their leading zeros plus one is the rank
+    private static final int RANK_BITS = 64 - PRECISION;
+    private static final long RANK_MASK = (1L << RANK_BITS) - 1;
+    private static final int DENSE_BYTES = REGISTERS * 6 / 8;
+    // The sparse mode turns dense once its hashes take more space than the registers
+    private static final int SPARSE_LIMIT = DENSE_BYTES / 8;
+    private static final byte SPARSE = 1;
+    private static final byte DENSE = 2;
+    private static final double TWO_STANDARD_ERRORS = 2 * 1.04 / Math.sqrt(REGISTERS);
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    });
+
+    private LongHashSet sparse = new LongHashSet();
+    private byte[] registers;
+
+    public static long hash(String text) {
+        byte[] digest = MD5.get().digest(text.getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest, 0, 8).getLong();
+    }
+
+    /**
+     * @param text a SQL expression of the text to hash, e.g. JSON_UNQUOTE(...)
+     * @return the SQL expression of {@link #hash} as an unsigned BIGINT
+     */
+    public static String sqlHash(String text) {
+        return "CAST(CONV(LEFT(MD5(" + text + "), 16), 16, 10) AS UNSIGNED)";
+    }
+
+    /**
+     * @return the SQL expression of the register index of a hash computed by {@link #sqlHash}
+     */
+    public static String sqlRegister(String hash) {
+        return "(" + hash + " >> " + RANK_BITS + ")";
+    }
+
+    /**
+     * @return the SQL expression of the rank of a hash computed by {@link #sqlHash}
+     */
+    public static String sqlRank(String hash) {
+        String rest = "(" + hash + " & " + RANK_MASK + ")";
+        return "IF(" + rest + " = 0, " + (RANK_BITS + 1) + ", " + (RANK_BITS + 1) + " - LENGTH(BIN(" + rest + ")))";
+    }
+
+    public void add(String text) {
+        addHash(hash(text));
+    }
+
+    public void addHash(long hash) {
+        if (registers != null) {
+            addToRegisters(hash);
+            return;
+        }
+        sparse.add(hash == 0 ? 1 : hash); // LongHashSet reserves 0; one in 2^64 hashes is counted as another
+        if (sparse.size() > SPARSE_LIMIT) {
+            toDense();
+        }
+    }
+
+    /**
+     * Adds a register as aggregated elsewhere, see {@link #sqlRegister} and {@link #sqlRank}.
+     */
+    public void addRegister(int index, int rank) {
+        toDense();
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.registers == null) {
+            for (long hash : other.sparse.toArray()) {
+                addHash(hash);
+            }
+            return;
+        }
+        toDense();
+        for (int i = 0; i < REGISTERS; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        if (registers == null) {
+            return sparse.size();
+        }
+        int[] counts = new int[RANK_BITS + 2];
+        for (byte register : registers) {
+            counts[register]++;
+        }
+        double m = REGISTERS;
+        double z = m * tau(1 - counts[RANK_BITS + 1] / m);
+        for (int k = RANK_BITS; k >= 1; k--) {
+            z = 0.5 * (z + counts[k]);
+        }
+        z += m * sigma(counts[0] / m);
+        return Math.round(m * m / (2 * Math.log(2)) / z);
+    }
+
+    /**
+     * @return about two standard errors of {@link #estimate()} (95% confidence), 0 while the count is exact
+     */
+    public long errorBound() {
+        return registers == null ? 0 : (long) Math.ceil(estimate() * TWO_STANDARD_ERRORS);
+    }
+
+    public byte[] toBytes() {
+        if (registers == null) {
+            long[] hashes = sparse.toArray();
+            Arrays.sort(hashes);
+            ByteBuffer buffer = ByteBuffer.allocate(1 + 8 * hashes.length).put(SPARSE);
+            for (long hash : hashes) {
+                buffer.putLong(hash);
+            }
+            return buffer.array();
+        }
+        byte[] bytes = new byte[1 + DENSE_BYTES];
+        bytes[0] = DENSE;
+        // Four 6-bit registers per 3 bytes
+        for (int i = 0, out = 1; i < REGISTERS; i += 4, out += 3) {
+            int packed = registers[i] << 18 | registers[i + 1] << 12 | registers[i + 2] << 6 | registers[i + 3];
+            bytes[out] = (byte) (packed >>> 16);
+            bytes[out + 1] = (byte) (packed >>> 8);
+            bytes[out + 2] = (byte) packed;
+        }
+        return bytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes were not written by {@link #toBytes()}
+     */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        HyperLogLog sketch = new HyperLogLog();
+        if (bytes.length > 0 && bytes[0] == SPARSE && (bytes.length - 1) % 8 == 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+            while (buffer.hasRemaining()) {
+                sketch.addHash(buffer.getLong());
+            }
+            return sketch;
+        }
+        if (bytes.length != 1 + DENSE_BYTES || bytes[0] != DENSE) {
+            throw new IllegalArgumentException("Not a serialized HyperLogLog");
+        }
+        sketch.registers = new byte[REGISTERS];
+        sketch.sparse = null;
+        for (int i = 0, in = 1; i < REGISTERS; i += 4, in += 3) {
+            int packed = (bytes[in] & 0xff) << 16 | (bytes[in + 1] & 0xff) << 8 | (bytes[in + 2] & 0xff);
+            sketch.registers[i] = (byte) (packed >>> 18);
+            sketch.registers[i + 1] = (byte) (packed >>> 12 & 0x3f);
+            sketch.registers[i + 2] = (byte) (packed >>> 6 & 0x3f);
+            sketch.registers[i + 3] = (byte) (packed & 0x3f);
+        }
+        return sketch;
+    }
+
+    private void toDense() {
+        if (registers != null) {
+            return;
+        }
+        registers = new byte[REGISTERS];
+        for (long hash : sparse.toArray()) {
+            addToRegisters(hash);
+        }
+        sparse = null;
+    }
+
+    private void addToRegisters(long hash) {
+        int index = (int) (hash >>> RANK_BITS);
+        long rest = hash & RANK_MASK;
+        int rank = rest == 0 ? RANK_BITS + 1 : Long.numberOfLeadingZeros(rest) - PRECISION + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    private static double sigma(double x) {
+        if (x == 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double y = 1;
+        double z = x;
+        double previous;
+        do {
+            x *= x;
+            previous = z;
+            z += x * y;
+            y += y;
+        } while (z != previous);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if (x == 0 || x == 1) {
+            return 0;
+        }
+        double y = 1;
+        double z = 1 - x;
+        double previous;
+        do {
+            x = Math.sqrt(x);
+            previous = z;
+            y *= 0.5;
+            z -= Math.pow(1 - x, 2) * y;
+        } while (z != previous);
+        return z / 3;
+    }
+}
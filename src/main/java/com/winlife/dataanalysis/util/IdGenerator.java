@@ -0,0 +1,10 @@
+package com.winlife.dataanalysis.util;
+
+/**
+ * Source of unique, time-ordered 64-bit ids for the event tables.
+ * Declare a bean of this type to replace the default {@link SnowflakeIdGenerator}.
+ */
+public interface IdGenerator {
+
+    long nextId();
+}
@@ -0,0 +1,109 @@
+package com.winlife.dataanalysis.util;
+
+/**
+ * Open addressing hash set of primitive longs, without boxing. 0 is reserved as the empty slot
+ * marker and cannot be added. Not thread-safe.
+ */
+public class LongHashSet {
+
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] slots;
+    private int size;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * MAX_LOAD < expectedSize && capacity < 1 << 30) {
+            capacity <<= 1;
+        }
+        this.slots = new long[capacity];
+    }
+
+    /**
+     * @return true if the value was not in the set yet
+     * @throws IllegalArgumentException if the value is 0
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("0 cannot be added to a LongHashSet");
+        }
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != 0) {
+            if (slots[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        if (++size > slots.length * MAX_LOAD) {
+            grow();
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return false;
+        }
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != 0) {
+            if (slots[index] == value) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the values in no particular order
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int count = 0;
+        for (long slot : slots) {
+            if (slot != 0) {
+                values[count++] = slot;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return approximate heap size in bytes
+     */
+    public long memoryBytes() {
+        return 16 + 8L * slots.length;
+    }
+
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length << 1];
+        int mask = slots.length - 1;
+        for (long value : old) {
+            if (value != 0) {
+                int index = mix(value) & mask;
+                while (slots[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                slots[index] = value;
+            }
+        }
+    }
+
+    // Snowflake ids differ mostly in their high bits, spread them over the table
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,108 @@
+package com.winlife.dataanalysis.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time-windowed Bloom filter made of a fixed number of generations.
+ * <p>
+ * Keys are added to the newest generation and looked up in all of them; {@link #rotate()}
+ * drops the oldest generation and starts an empty one. Rotating every {@code window / (generations - 1)}
+ * therefore remembers every key for at least the window while memory stays constant.
+ * Lookups and inserts are lock-free; a key inserted concurrently with a rotation may land in
+ * the generation being dropped, which only shortens how long that key is remembered.
+ */
+public class RotatingBloomFilter {
+
+    private final int hashFunctions;
+    private final int bitsPerGeneration;
+    private volatile AtomicLongArray[] generations;
+
+    /**
+     * @param generations                    Number of generations kept, at least 2.
+     * @param expectedInsertionsPerGeneration Keys expected to be added between two rotations.
+     * @param falsePositiveRate               Target false positive rate of a single generation.
+     */
+    public RotatingBloomFilter(int generations, long expectedInsertionsPerGeneration, double falsePositiveRate) {
+        if (generations < 2) {
+            throw new IllegalArgumentException("At least 2 generations are required: " + generations);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        long n = Math.max(1, expectedInsertionsPerGeneration);
+        // Standard Bloom filter sizing: m = -n ln p / (ln 2)^2, k = m / n ln 2
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitsPerGeneration = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitsPerGeneration / n * Math.log(2)));
+        AtomicLongArray[] initial = new AtomicLongArray[generations];
+        for (int i = 0; i < generations; i++) {
+            initial[i] = newGeneration();
+        }
+        this.generations = initial;
+    }
+
+    /**
+     * @return false if the key was definitely not added within the remembered generations
+     */
+    public boolean mightContain(CharSequence key) {
+        long hash = HashUtils.hash64(key);
+        for (AtomicLongArray generation : generations) {
+            if (contains(generation, hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void put(CharSequence key) {
+        long hash = HashUtils.hash64(key);
+        AtomicLongArray[] current = generations;
+        AtomicLongArray newest = current[current.length - 1];
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashFunctions; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitsPerGeneration);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            long value = newest.get(word);
+            while ((value & mask) == 0 && !newest.compareAndSet(word, value, value | mask)) {
+                value = newest.get(word);
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest generation and starts a new, empty one.
+     */
+    public synchronized void rotate() {
+        AtomicLongArray[] current = generations;
+        AtomicLongArray[] next = new AtomicLongArray[current.length];
+        System.arraycopy(current, 1, next, 0, current.length - 1);
+        next[next.length - 1] = newGeneration();
+        generations = next;
+    }
+
+    /**
+     * @return memory used by the bit sets, in bytes
+     */
+    public long sizeInBytes() {
+        return (long) generations.length * ((bitsPerGeneration + 63) / 64) * Long.BYTES;
+    }
+
+    private boolean contains(AtomicLongArray generation, long hash) {
+        // Kirsch-Mitzenmacher: k hash functions derived from the two halves of one 64-bit hash
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashFunctions; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitsPerGeneration);
+            if ((generation.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private AtomicLongArray newGeneration() {
+        return new AtomicLongArray((bitsPerGeneration + 63) / 64);
+    }
+}
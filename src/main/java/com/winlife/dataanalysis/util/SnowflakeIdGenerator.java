@@ -0,0 +1,69 @@
+package com.winlife.dataanalysis.util;
+
+/**
+ * Snowflake style 64-bit id generator: 41 bits of milliseconds since a custom epoch,
+ * 10 bits of node id and a 12 bit per-millisecond sequence.
+ * <p>
+ * Ids are strictly increasing per node and sort roughly by creation time across nodes,
+ * without any database round trip or coordination. If the wall clock moves backwards the
+ * generator keeps counting on its last timestamp, and when a millisecond's 4096 sequence
+ * numbers are used up it borrows the next millisecond instead of blocking.
+ */
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+
+    private final long epochMillis;
+    private final long nodeId;
+
+    private long lastTimestamp = -1L;
+    private long sequence;
+
+    /**
+     * @param epochMillis Start of the 41-bit time range (about 69 years), must not be in the future.
+     * @param nodeId      Unique id of this node, 0 to {@link #MAX_NODE_ID}.
+     */
+    public SnowflakeIdGenerator(long epochMillis, long nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        if (epochMillis > System.currentTimeMillis()) {
+            throw new IllegalArgumentException("Id epoch must not be in the future: " + epochMillis);
+        }
+        this.epochMillis = epochMillis;
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public synchronized long nextId() {
+        long now = System.currentTimeMillis() - epochMillis;
+        if (now < lastTimestamp) {
+            now = lastTimestamp; // Clock moved backwards: stay on the logical clock
+        }
+        if (now == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                now = lastTimestamp + 1; // Sequence exhausted: borrow the next millisecond
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = now;
+        return (now << TIMESTAMP_SHIFT) | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the creation time encoded in an id produced with the given epoch
+     */
+    public static long extractTimestamp(long id, long epochMillis) {
+        return (id >>> TIMESTAMP_SHIFT) + epochMillis;
+    }
+}
@@ -0,0 +1,122 @@
+package com.winlife.dataanalysis.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token bucket rate limiter with one bucket per key.
+ * <p>
+ * Buckets live in lock-striped, access-ordered LRU maps, so memory is bounded by maxKeys no matter
+ * how many distinct keys (e.g. device ids) show up; the least recently used buckets are evicted,
+ * which at worst gives an idle key a fresh, full bucket.
+ */
+public class TokenBucketLimiter {
+
+    private final double permitsPerNano;
+    private final double capacity;
+    private final Stripe[] stripes;
+
+    /**
+     * @param permitsPerSecond Sustained rate per key.
+     * @param burst            Bucket capacity, i.e. how many permits a key may take at once after idling.
+     * @param maxKeys          Upper bound of buckets kept in memory.
+     * @param stripeCount      Number of independently locked stripes.
+     */
+    public TokenBucketLimiter(double permitsPerSecond, double burst, int maxKeys, int stripeCount) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.permitsPerNano = permitsPerSecond / 1_000_000_000d;
+        this.capacity = burst;
+        int count = Math.max(1, stripeCount);
+        int keysPerStripe = Math.max(1, maxKeys / count);
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(keysPerStripe);
+        }
+    }
+
+    /**
+     * Takes a permit from the key's bucket if one is available.
+     *
+     * @return 0 if the permit was taken, otherwise the nanoseconds until one will be available
+     */
+    public long tryAcquire(String key) {
+        return take(key, true);
+    }
+
+    /**
+     * Checks whether the key's bucket has a permit without taking it.
+     *
+     * @return 0 if a permit is available, otherwise the nanoseconds until one will be
+     */
+    public long check(String key) {
+        return take(key, false);
+    }
+
+    /**
+     * Returns a permit taken by {@link #tryAcquire(String)} that ended up unused.
+     */
+    public void release(String key) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(key);
+            if (bucket != null) {
+                bucket.tokens = Math.min(capacity, bucket.tokens + 1);
+            }
+        }
+    }
+
+    private long take(String key, boolean consume) {
+        Stripe stripe = stripeOf(key);
+        long now = System.nanoTime();
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(key);
+            if (bucket == null) {
+                if (!consume) {
+                    return 0; // A new bucket starts full
+                }
+                bucket = new Bucket(capacity, now);
+                stripe.put(key, bucket);
+            } else {
+                bucket.tokens = Math.min(capacity, bucket.tokens + (now - bucket.lastRefillNanos) * permitsPerNano);
+                bucket.lastRefillNanos = now;
+            }
+            if (bucket.tokens >= 1) {
+                if (consume) {
+                    bucket.tokens -= 1;
+                }
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket.tokens) / permitsPerNano);
+        }
+    }
+
+    private Stripe stripeOf(String key) {
+        return stripes[(int) Math.floorMod(HashUtils.hash64(key), (long) stripes.length)];
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long lastRefillNanos;
+
+        private Bucket(double tokens, long lastRefillNanos) {
+            this.tokens = tokens;
+            this.lastRefillNanos = lastRefillNanos;
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<String, Bucket> {
+        private final int maxKeys;
+
+        private Stripe(int maxKeys) {
+            super(16, 0.75f, true);
+            this.maxKeys = maxKeys;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxKeys;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.winlife.dataanalysis.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads LEB128 varints, zigzag integers, doubles and length-prefixed UTF-8 strings from a byte range.
+ * Counterpart of {@link VarintWriter}.
+ */
+public class VarintReader {
+
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    public VarintReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Restricts reading to the bytes before the given position, e.g. the end of a length-prefixed record.
+     */
+    public void setLimit(int limit) {
+        if (limit < position || limit > buffer.length) {
+            throw new IllegalArgumentException("Limit " + limit + " outside of [" + position + ", " + buffer.length + "]");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Moves to a position not beyond the limit.
+     */
+    public void seek(int position) {
+        if (position > limit) {
+            throw new IllegalArgumentException("Position " + position + " beyond the limit " + limit);
+        }
+        this.position = position;
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    public int readByte() throws IOException {
+        if (position >= limit) {
+            throw new EOFException("Unexpected end of data at " + position);
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    /**
+     * Unsigned LEB128, at most 10 bytes.
+     */
+    public long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint at " + position);
+    }
+
+    /**
+     * Unsigned varint that must fit a non-negative int.
+     */
+    public int readVarint32() throws IOException {
+        long value = readVarint();
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Varint " + Long.toUnsignedString(value) + " out of range at " + position);
+        }
+        return (int) value;
+    }
+
+    public long readZigZag() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * IEEE 754 double, big-endian.
+     */
+    public double readDouble() throws IOException {
+        if (limit - position < Long.BYTES) {
+            throw new EOFException("Unexpected end of data at " + position);
+        }
+        long bits = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            bits = (bits << 8) | (buffer[position++] & 0xff);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Varint byte length followed by that many UTF-8 bytes.
+     */
+    public String readString() throws IOException {
+        int length = readVarint32();
+        if (limit - position < length) {
+            throw new EOFException("String of " + length + " bytes exceeds the data at " + position);
+        }
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+}
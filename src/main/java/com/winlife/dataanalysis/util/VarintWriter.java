@@ -0,0 +1,73 @@
+package com.winlife.dataanalysis.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable buffer writing the encodings read by {@link VarintReader}.
+ */
+public class VarintWriter {
+
+    private byte[] buffer;
+    private int size;
+
+    public VarintWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public VarintWriter writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    public VarintWriter writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    public VarintWriter writeZigZag(long value) {
+        return writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    public VarintWriter writeDouble(double value) {
+        ensureCapacity(Long.BYTES);
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[size++] = (byte) (bits >>> shift);
+        }
+        return this;
+    }
+
+    public VarintWriter writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    public VarintWriter writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.winlife.dataanalysis.util;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories for the background workers, platform or virtual depending on the execution mode.
+ */
+public final class WorkerThreads {
+
+    private WorkerThreads() {
+    }
+
+    /**
+     * @param namePrefix Thread names are this prefix followed by 0, 1, 2, ...
+     * @param virtual    Whether to create virtual threads instead of platform threads.
+     */
+    public static ThreadFactory factory(String namePrefix, boolean virtual) {
+        Thread.Builder builder = virtual ? Thread.ofVirtual() : Thread.ofPlatform();
+        return builder.name(namePrefix, 0).factory();
+    }
+}
@@ -0,0 +1,397 @@
+package com.winlife.dataanalysis.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of opaque records in fixed-size, memory-mapped segment files.
+ * <p>
+ * A record is {@code [int length][int crc32c][payload]}; a zero length marks the end of the
+ * written part of a segment. Positions (LSNs) are {@code segmentIndex << 32 | offset}, so they
+ * grow monotonically across segments. {@link #awaitDurable(long)} does group commit: the first
+ * waiter forces the mapped pages to disk on behalf of every record appended so far, the others
+ * wait for it. {@link #read(long, int)} only returns durable records.
+ * <p>
+ * The consumer persists its progress with {@link #writeCheckpoint(long)}; segments entirely
+ * before the checkpoint can then be deleted. On open, the tail of the last segment is scanned
+ * and everything after the last intact record (a torn write) is zeroed.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String CHECKPOINT_TMP_FILE = "checkpoint.tmp";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean fsync;
+
+    private final ConcurrentSkipListMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition syncDone = lock.newCondition();
+
+    // Guarded by lock
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private int writeOffset;
+    private boolean syncInProgress;
+    private boolean closed;
+
+    private volatile long durableLsn;
+
+    /**
+     * Opens the log in the directory, creating it if needed and recovering the tail of the last segment.
+     *
+     * @param segmentSize Size of each segment file in bytes; a record must fit in one segment.
+     * @param fsync       Whether {@link #awaitDurable(long)} forces pages to disk; false only waits for the page cache.
+     */
+    public WriteAheadLog(Path directory, int segmentSize, boolean fsync) throws IOException {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segment size must be at least 4096 bytes: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+
+        long checkpoint = readCheckpoint();
+        List<Long> existing = listSegments();
+        for (long segment : existing) {
+            if (segment < segmentOf(checkpoint)) {
+                Files.deleteIfExists(segmentPath(segment)); // Fully replayed before the last shutdown
+            } else {
+                segments.put(segment, map(segment, false));
+            }
+        }
+        if (segments.isEmpty()) {
+            writeSegment = segmentOf(checkpoint);
+            writeBuffer = map(writeSegment, true);
+            segments.put(writeSegment, writeBuffer);
+            writeOffset = 0;
+        } else {
+            writeSegment = segments.lastKey();
+            writeBuffer = segments.get(writeSegment);
+            writeOffset = recoverTail(writeBuffer);
+        }
+        durableLsn = lsn(writeSegment, writeOffset);
+    }
+
+    /**
+     * Appends a record. It is visible to readers once {@link #awaitDurable(long)} covered it.
+     *
+     * @return the LSN just after the record, to pass to {@link #awaitDurable(long)}
+     */
+    public long append(byte[] payload) {
+        if (payload.length == 0 || HEADER_BYTES + payload.length > segmentSize) {
+            throw new IllegalArgumentException("Record size must be between 1 and " + (segmentSize - HEADER_BYTES) + " bytes: " + payload.length);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        int recordSize = HEADER_BYTES + payload.length;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (writeOffset + recordSize > segmentSize) {
+                roll();
+            }
+            int offset = writeOffset;
+            writeBuffer.put(offset + HEADER_BYTES, payload);
+            writeBuffer.putInt(offset + 4, (int) crc.getValue());
+            writeBuffer.putInt(offset, payload.length);
+            writeOffset += recordSize;
+            long end = lsn(writeSegment, writeOffset);
+            if (!fsync) {
+                durableLsn = end;
+            }
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every record up to the LSN is on disk. Concurrent callers share one force.
+     */
+    public void awaitDurable(long lsn) throws InterruptedException {
+        if (durableLsn >= lsn) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (syncInProgress) {
+                    syncDone.await();
+                    continue;
+                }
+                // Become the leader: force everything appended so far, outside the lock
+                syncInProgress = true;
+                long target = lsn(writeSegment, writeOffset);
+                MappedByteBuffer buffer = writeBuffer;
+                int from = segmentOf(durableLsn) == writeSegment ? offsetOf(durableLsn) : 0;
+                int length = writeOffset - from;
+                boolean forced = false;
+                lock.unlock();
+                try {
+                    buffer.force(from, length);
+                    forced = true;
+                } finally {
+                    lock.lock();
+                    syncInProgress = false;
+                    if (forced && target > durableLsn) {
+                        durableLsn = target;
+                    }
+                    syncDone.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads up to maxRecords durable records starting at the LSN.
+     */
+    public List<Record> read(long fromLsn, int maxRecords) {
+        List<Record> records = new ArrayList<>();
+        long position = fromLsn;
+        long durable = durableLsn;
+        while (records.size() < maxRecords && position < durable) {
+            long segment = segmentOf(position);
+            int offset = offsetOf(position);
+            MappedByteBuffer buffer = segments.get(segment);
+            if (buffer == null || offset + HEADER_BYTES > segmentSize) {
+                Long next = segments.higherKey(segment);
+                if (next == null) {
+                    break;
+                }
+                position = lsn(next, 0);
+                continue;
+            }
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > segmentSize) {
+                // End of this segment, the writer continued in the next one
+                Long next = segments.higherKey(segment);
+                if (next == null) {
+                    break;
+                }
+                position = lsn(next, 0);
+                continue;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(offset + HEADER_BYTES, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                Long next = segments.higherKey(segment);
+                logger.error("Corrupt write-ahead log record in segment {} at offset {}, skipping the rest of the segment", segment, offset);
+                if (next == null) {
+                    break;
+                }
+                position = lsn(next, 0);
+                continue;
+            }
+            long end = lsn(segment, offset + HEADER_BYTES + length);
+            records.add(new Record(position, end, payload));
+            position = end;
+        }
+        return records;
+    }
+
+    /**
+     * @return the consumer position saved by {@link #writeCheckpoint(long)}, or the start of the log
+     */
+    public long readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return lsn(listSegments().stream().findFirst().orElse(0L), 0);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        long lsn = buffer.getLong();
+        if (buffer.getLong() != ~lsn) {
+            throw new IOException("Corrupt write-ahead log checkpoint file " + file);
+        }
+        return lsn;
+    }
+
+    /**
+     * Atomically saves the consumer position: everything before the LSN has been applied.
+     */
+    public void writeCheckpoint(long lsn) throws IOException {
+        Path tmp = directory.resolve(CHECKPOINT_TMP_FILE);
+        ByteBuffer buffer = ByteBuffer.allocate(16).putLong(lsn).putLong(~lsn).flip();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Deletes the segments that lie entirely before the LSN, never the segment being written.
+     */
+    public void deleteSegmentsBefore(long lsn) {
+        long keepFrom = segmentOf(lsn);
+        for (Long segment : segments.headMap(keepFrom).keySet()) {
+            lock.lock();
+            try {
+                if (segment == writeSegment) {
+                    continue;
+                }
+                segments.remove(segment);
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Files.deleteIfExists(segmentPath(segment));
+            } catch (IOException e) {
+                logger.warn("Failed to delete write-ahead log segment {}: {}", segment, e.getMessage());
+            }
+        }
+    }
+
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * Approximate number of log bytes between two LSNs.
+     */
+    public long bytesBetween(long fromLsn, long toLsn) {
+        return (segmentOf(toLsn) - segmentOf(fromLsn)) * segmentSize + (offsetOf(toLsn) - offsetOf(fromLsn));
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeBuffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void roll() {
+        writeBuffer.force(); // Earlier segments must be durable before the frontier can move past them
+        long next = writeSegment + 1;
+        try {
+            writeBuffer = map(next, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create write-ahead log segment " + next, e);
+        }
+        segments.put(next, writeBuffer);
+        writeSegment = next;
+        writeOffset = 0;
+        syncDirectory();
+    }
+
+    /**
+     * Finds the end of the last intact record and zeroes everything after it.
+     */
+    private int recoverTail(MappedByteBuffer buffer) {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segmentSize) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(offset + HEADER_BYTES, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                logger.warn("Discarding torn write-ahead log tail at offset {}", offset);
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        byte[] zeros = new byte[Math.min(64 * 1024, segmentSize)];
+        for (int position = offset; position < segmentSize; position += zeros.length) {
+            buffer.put(position, zeros, 0, Math.min(zeros.length, segmentSize - position));
+        }
+        buffer.force();
+        return offset;
+    }
+
+    private MappedByteBuffer map(long segment, boolean create) throws IOException {
+        Path path = segmentPath(segment);
+        if (!create && !Files.exists(path)) {
+            throw new IOException("Missing write-ahead log segment " + path);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() != segmentSize) {
+                file.setLength(segmentSize);
+            }
+            // The mapping stays valid after the channel is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%020d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on every platform; the segment contents are forced regardless
+        }
+    }
+
+    private static long lsn(long segment, int offset) {
+        return (segment << 32) | offset;
+    }
+
+    private static long segmentOf(long lsn) {
+        return lsn >>> 32;
+    }
+
+    private static int offsetOf(long lsn) {
+        return (int) lsn;
+    }
+
+    /**
+     * A durable record and the LSNs where it starts and where the next one starts.
+     */
+    public record Record(long lsn, long nextLsn, byte[] payload) {
+    }
+}
@@ -0,0 +1,123 @@
+package com.winlife.dataanalysis.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.service.DashboardAnalysisService;
+import com.winlife.dataanalysis.service.DataIngestionService;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import com.winlife.dataanalysis.service.analysis.AnalysisRowWriter;
+import com.winlife.dataanalysis.service.analysis.ColumnarResult;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AnalysisControllerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final DataIngestionService dataIngestionService = mock(DataIngestionService.class);
+    private final AnalysisController controller = new AnalysisController(dataIngestionService, mock(DashboardAnalysisService.class), objectMapper);
+    private final EventAnalysisQuery query = new EventAnalysisQuery(1_700_000_000_000L, 1_700_086_400_000L, "login",
+            List.of("eventCount", "averageCountPerUser"), "userId", List.of(), null);
+
+    @Test
+    void writesOneNdjsonLinePerRowOfTheEventAnalysis() throws IOException {
+        // More rows than one flush, with nulls, decimals and text that needs escaping
+        ColumnarResult result = result(1000, row -> new Object[]{row == 7 ? null : "u\"" + row + "\n",
+                (long) row, row % 3 == 0 ? null : row / 3.0, new BigDecimal(row + ".25")});
+        when(dataIngestionService.runEventAnalysis(any(), any())).thenReturn(result.toRows());
+        streamRows(result, new AtomicInteger());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        controller.streamEventAnalysis(query, null, null, response);
+
+        assertThat(response.getContentType()).startsWith("application/x-ndjson");
+        // Each line is exactly the JSON of the matching element of the POST /event answer
+        List<String> returned = new ArrayList<>();
+        for (Map<String, Object> row : controller.runEventAnalysis(query, null, null)) {
+            returned.add(objectMapper.writeValueAsString(row));
+        }
+        assertThat(response.getContentAsString().split("\n")).hasSize(1000).containsExactlyElementsOf(returned);
+    }
+
+    @Test
+    void cancelsTheRequestAndStopsReadingRowsOnceTheClientIsGone() {
+        ColumnarResult result = result(10_000, row -> new Object[]{"u" + row, (long) row, 1.0, BigDecimal.ONE});
+        AtomicInteger written = new AtomicInteger();
+        AtomicReference<AnalysisRequest> request = streamRows(result, written);
+        MockHttpServletResponse response = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return new BrokenOutputStream();
+            }
+        };
+
+        assertThatThrownBy(() -> controller.streamEventAnalysis(query, null, null, response))
+                .isInstanceOf(UncheckedIOException.class);
+
+        assertThat(request.get().isCancelled()).isTrue();
+        // The first flush failed; none of the later rows were read
+        assertThat(written.get()).isLessThan(result.getRowCount());
+    }
+
+    /**
+     * Makes the mocked service stream the result's rows, counting the rows handed to the writer.
+     *
+     * @return the request the controller passed in
+     */
+    private AtomicReference<AnalysisRequest> streamRows(ColumnarResult result, AtomicInteger written) {
+        AtomicReference<AnalysisRequest> request = new AtomicReference<>();
+        doAnswer(invocation -> {
+            request.set(invocation.getArgument(1));
+            AnalysisRowWriter writer = invocation.getArgument(2);
+            result.forEachRow((aliases, values) -> {
+                written.incrementAndGet();
+                writer.write(aliases, values);
+            });
+            return null;
+        }).when(dataIngestionService).streamEventAnalysis(any(), any(), any());
+        return request;
+    }
+
+    private static ColumnarResult result(int rows, IntFunction<Object[]> row) {
+        ColumnarResult.Builder builder = new ColumnarResult.Builder(List.of("userId", "eventCount", "averageCountPerUser", "parameter_score_sum"));
+        for (int i = 0; i < rows; i++) {
+            builder.addRow(row.apply(i));
+        }
+        return builder.build();
+    }
+
+    private static final class BrokenOutputStream extends ServletOutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+}
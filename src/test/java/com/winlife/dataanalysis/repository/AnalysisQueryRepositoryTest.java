@@ -0,0 +1,112 @@
+package com.winlife.dataanalysis.repository;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AnalysisQueryRepositoryTest {
+
+    private static final String SQL = "SELECT user_id, COUNT(*) FROM game_events WHERE event_name = :eventName GROUP BY user_id";
+    private static final int ROWS = 1000;
+
+    private final DataSource dataSource = mock(DataSource.class);
+    private final Connection connection = mock(Connection.class);
+    private final PreparedStatement statement = mock(PreparedStatement.class);
+    private final ResultSet resultSet = mock(ResultSet.class);
+    // Rows the driver handed out so far
+    private final AtomicInteger read = new AtomicInteger();
+    private final AnalysisRequest request = AnalysisRequest.of("analyst", AnalysisRequest.Priority.AD_HOC, null);
+    private AnalysisQueryRepository repository;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.getStatement()).thenReturn(statement);
+        when(resultSet.next()).thenAnswer(invocation -> read.incrementAndGet() <= ROWS);
+        when(resultSet.getObject(anyInt())).thenAnswer(invocation ->
+                invocation.<Integer>getArgument(0) == 1 ? "u" + read.get() : (long) read.get());
+        repository = new AnalysisQueryRepository(new JdbcTemplate(dataSource), new AnalysisProperties());
+    }
+
+    @Test
+    void streamsEveryRowThroughOneArray() throws Exception {
+        List<Object[]> arrays = new ArrayList<>();
+        List<String> users = new ArrayList<>();
+
+        repository.forEachRow(SQL, Map.of("eventName", "login"), 2, request, row -> {
+            arrays.add(row);
+            users.add((String) row[0]);
+        });
+
+        assertThat(users).hasSize(ROWS).startsWith("u1", "u2").endsWith("u" + ROWS);
+        assertThat(arrays).allSatisfy(row -> assertThat(row).isSameAs(arrays.get(0)));
+        // Connector/J only streams the result set with this fetch size
+        verify(statement).setFetchSize(Integer.MIN_VALUE);
+        verify(statement, never()).cancel();
+        verify(resultSet).close();
+    }
+
+    @Test
+    void cancelsTheStatementBeforeClosingTheResultSetWhenTheConsumerFails() throws Exception {
+        List<String> users = new ArrayList<>();
+
+        assertThatThrownBy(() -> repository.forEachRow(SQL, Map.of("eventName", "login"), 2, request, row -> {
+            users.add((String) row[0]);
+            if (users.size() == 3) {
+                throw new UncheckedIOException("Failed to write analysis row", new IOException("Broken pipe"));
+            }
+        })).isInstanceOf(UncheckedIOException.class);
+
+        // Closing first would make the driver read the remaining rows from the server
+        InOrder inOrder = inOrder(statement, resultSet);
+        inOrder.verify(statement).cancel();
+        inOrder.verify(resultSet).close();
+        inOrder.verify(statement).close();
+        assertThat(read.get()).isEqualTo(3);
+        verify(connection).close();
+        // The request no longer holds the statement: cancelling it now does not touch the closed statement
+        request.cancel("client disconnected");
+        verify(statement).cancel();
+    }
+
+    @Test
+    void collectsAllRowsOfAQuery() throws Exception {
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(metaData.getColumnCount()).thenReturn(2);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+
+        List<Object[]> rows = repository.query(SQL, Map.of("eventName", "login"), request);
+
+        assertThat(rows).hasSize(ROWS);
+        assertThat(rows.get(ROWS - 1)).containsExactly("u" + ROWS, (long) ROWS);
+        verify(statement, never()).setFetchSize(anyInt());
+        verify(resultSet).close();
+    }
+}
@@ -0,0 +1,219 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.service.impl.EventBatchWriter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AsyncIngestionPipelineTest {
+
+    private final DataIngestionService dataIngestionService = mock(DataIngestionService.class);
+    private final EventBatchWriter eventBatchWriter = mock(EventBatchWriter.class);
+    private final IngestionProperties properties = new IngestionProperties();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AsyncIngestionPipeline pipeline = new AsyncIngestionPipeline(dataIngestionService, eventBatchWriter,
+            properties, meterRegistry, new StandardEnvironment());
+
+    // One entry per write: the writing thread and the events written, in batch order
+    private final List<Write> writes = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        properties.getAsync().setEnabled(true);
+        properties.getAsync().setPartitions(4);
+        properties.getAsync().setShutdownTimeoutMs(5000);
+        when(eventBatchWriter.prepare(any(), nullable(String.class))).thenAnswer(invocation -> {
+            GameEventDTO event = invocation.getArgument(0);
+            GameEvent gameEvent = new GameEvent();
+            gameEvent.setUserId(event.getUserId());
+            gameEvent.setTimestamp(event.getTimestamp());
+            return new EventBatchWriter.PreparedEvent(event, EventIngestResult.Status.ACCEPTED, null, gameEvent, null, null);
+        });
+        doAnswer(invocation -> {
+            EventBatchWriter.Batch batch = invocation.getArgument(0);
+            writes.add(new Write(Thread.currentThread().getName(), List.copyOf(batch.getGameEvents())));
+            return null;
+        }).when(eventBatchWriter).write(any());
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.stop();
+    }
+
+    @Test
+    void persistsTheEventsOfEachUserInTheOrderTheyWereAccepted() {
+        properties.getAsync().setFlushSize(7);
+        pipeline.start();
+
+        for (int sequence = 0; sequence < 200; sequence++) {
+            for (int user = 0; user < 16; user++) {
+                assertThat(pipeline.submit(event("u" + user, sequence))).isTrue();
+            }
+        }
+        pipeline.stop();
+
+        Map<String, List<Long>> sequences = new HashMap<>();
+        Map<String, String> writers = new HashMap<>();
+        for (Write write : writes) {
+            for (GameEvent event : write.events()) {
+                sequences.computeIfAbsent(event.getUserId(), user -> new ArrayList<>()).add(event.getTimestamp());
+                // A user belongs to one partition, and so to one persist thread
+                assertThat(writers.computeIfAbsent(event.getUserId(), user -> write.thread())).isEqualTo(write.thread());
+            }
+        }
+        assertThat(sequences).hasSize(16);
+        assertThat(sequences.values()).allSatisfy(userSequence -> assertThat(userSequence).hasSize(200).isSorted());
+        assertThat(writers.values()).as("partitions used").hasSizeGreaterThan(1);
+    }
+
+    @Test
+    void rejectsEventsOnceTheBuffersAreFull() throws InterruptedException {
+        properties.getAsync().setPartitions(1);
+        properties.getAsync().setQueueCapacity(4);
+        properties.getAsync().setStageCapacity(2);
+        properties.getAsync().setFlushSize(1);
+        CountDownLatch databaseStuck = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            databaseStuck.await();
+            EventBatchWriter.Batch batch = invocation.getArgument(0);
+            writes.add(new Write(Thread.currentThread().getName(), List.copyOf(batch.getGameEvents())));
+            return null;
+        }).when(eventBatchWriter).write(any());
+        pipeline.start();
+
+        int accepted = 0;
+        while (accepted < 100 && pipeline.submit(event("u1", accepted))) {
+            accepted++;
+            // Let the stages take what they can, so only the accept buffer is left to fill
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+
+        // Accept buffer, both stage buffers and the batch being written
+        assertThat(accepted).isLessThan(100).isGreaterThanOrEqualTo(4);
+        assertThat(meterRegistry.counter("ingestion.async.rejected").count()).isEqualTo(1);
+        assertThat(pipeline.submitAll(List.of(event("u1", 1000))))
+                .extracting(EventIngestResult::getStatus).containsExactly(EventIngestResult.Status.REJECTED);
+
+        databaseStuck.countDown();
+        pipeline.stop();
+        assertThat(writes.stream().mapToInt(write -> write.events().size()).sum()).isEqualTo(accepted);
+    }
+
+    @Test
+    void flushesOnceTheBatchIsFull() {
+        properties.getAsync().setPartitions(1);
+        properties.getAsync().setFlushSize(10);
+        properties.getAsync().setFlushIntervalMs(60_000);
+        pipeline.start();
+
+        for (int sequence = 0; sequence < 25; sequence++) {
+            pipeline.submit(event("u1", sequence));
+        }
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> writes.size() == 2);
+        // The last 5 wait in the persist stage's batch
+        await().atMost(Duration.ofSeconds(5)).until(() -> pipeline.getBacklog() == 0);
+        assertThat(writes).extracting(write -> write.events().size()).containsExactly(10, 10);
+    }
+
+    @Test
+    void flushesOnceTheOldestRowWaitedTheInterval() {
+        properties.getAsync().setPartitions(1);
+        properties.getAsync().setFlushSize(1000);
+        properties.getAsync().setFlushIntervalMs(100);
+        pipeline.start();
+
+        long start = System.currentTimeMillis();
+        for (int sequence = 0; sequence < 3; sequence++) {
+            pipeline.submit(event("u1", sequence));
+        }
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> !writes.isEmpty());
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(100);
+        assertThat(writes).singleElement().satisfies(write -> assertThat(write.events()).hasSize(3));
+    }
+
+    @Test
+    void drainsEveryStageOnStop() {
+        properties.getAsync().setFlushSize(1000);
+        properties.getAsync().setFlushIntervalMs(60_000);
+        pipeline.start();
+        for (int sequence = 0; sequence < 500; sequence++) {
+            pipeline.submit(event("u" + sequence % 10, sequence));
+        }
+
+        pipeline.stop();
+
+        assertThat(writes.stream().mapToInt(write -> write.events().size()).sum()).isEqualTo(500);
+        assertThat(pipeline.getBacklog()).isZero();
+        assertThat(pipeline.isRunning()).isFalse();
+        assertThat(pipeline.submit(event("u1", 500))).isFalse();
+    }
+
+    @Test
+    void showsAPartitionAsStalledWhileNoWriteSlotIsFree() {
+        properties.getAsync().setPartitions(1);
+        properties.getAsync().setFlushSize(1);
+        CountDownLatch slotFree = new CountDownLatch(1);
+        AtomicInteger attempts = new AtomicInteger();
+        doAnswer(invocation -> {
+            attempts.incrementAndGet();
+            if (!slotFree.await(5, TimeUnit.MILLISECONDS)) {
+                throw new DatabaseBusyException("No database write slot became free within 5 ms");
+            }
+            EventBatchWriter.Batch batch = invocation.getArgument(0);
+            writes.add(new Write(Thread.currentThread().getName(), List.copyOf(batch.getGameEvents())));
+            return null;
+        }).when(eventBatchWriter).write(any());
+        pipeline.start();
+
+        pipeline.submit(event("u1", 0));
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> attempts.get() > 3);
+        assertThat(meterRegistry.get("ingestion.async.stalled-partitions").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("ingestion.async.stalled-ms").gauge().value()).isPositive();
+        assertThat(meterRegistry.counter("ingestion.async.persist.busy").count()).isGreaterThanOrEqualTo(3);
+
+        slotFree.countDown();
+        await().atMost(Duration.ofSeconds(5)).until(() -> !writes.isEmpty());
+        assertThat(meterRegistry.get("ingestion.async.stalled-partitions").gauge().value()).isZero();
+        assertThat(meterRegistry.get("ingestion.async.stalled-ms").gauge().value()).isZero();
+        assertThat(writes).singleElement().satisfies(write -> assertThat(write.events()).hasSize(1));
+    }
+
+    private static GameEventDTO event(String userId, long sequence) {
+        GameEventDTO event = new GameEventDTO();
+        event.setUserId(userId);
+        event.setEventName("login");
+        event.setTimestamp(sequence);
+        return event;
+    }
+
+    private record Write(String thread, List<GameEvent> events) {
+    }
+}
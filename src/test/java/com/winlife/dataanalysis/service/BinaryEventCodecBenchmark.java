@@ -0,0 +1,79 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Size and decoding time of a 100 event batch as JSON and as a binary frame. JMH is not part of the build,
+ * so this is a plain warm-up and measure loop; it only runs on request:
+ * mvn test -Dtest=BinaryEventCodecBenchmark -Dbenchmarks=true [-Dbenchmark.window-ms=3000]
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class BinaryEventCodecBenchmark {
+
+    private static final int EVENTS = 100;
+    private static final int ROUNDS = 3;
+
+    @Test
+    void binaryAgainstJson() throws IOException {
+        long windowNanos = Long.getLong("benchmark.window-ms", 3000) * 1_000_000L;
+        SchemaRegistry schemaRegistry = mock(SchemaRegistry.class);
+        when(schemaRegistry.getSchemaIdMap()).thenReturn(BinaryEventCodecTest.IDS);
+        BinaryEventCodec codec = new BinaryEventCodec(schemaRegistry);
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectReader reader = objectMapper.readerFor(new TypeReference<List<GameEventDTO>>() {
+        });
+
+        List<GameEventDTO> events = BinaryEventCodecTest.events(EVENTS, new Random(7));
+        byte[] json = objectMapper.writeValueAsBytes(events);
+        byte[] frame = codec.encode(events);
+        assertThat(codec.decode(frame, frame.length, EVENTS).getEvents()).isEqualTo(reader.readValue(json));
+        System.out.printf("Bytes per %d events: JSON %d (gzip %d), binary %d (gzip %d)%n",
+                EVENTS, json.length, gzipped(json), frame.length, gzipped(frame));
+
+        long sink = 0;
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            long batches = 0;
+            while (System.nanoTime() - start < windowNanos) {
+                List<GameEventDTO> decoded = reader.readValue(json);
+                sink += decoded.size();
+                batches++;
+            }
+            double jsonNanos = (System.nanoTime() - start) / (double) (batches * EVENTS);
+
+            start = System.nanoTime();
+            batches = 0;
+            while (System.nanoTime() - start < windowNanos) {
+                sink += codec.decode(frame, frame.length, EVENTS).getEvents().size();
+                batches++;
+            }
+            double binaryNanos = (System.nanoTime() - start) / (double) (batches * EVENTS);
+            System.out.printf("Round %d: JSON %.0f ns/event, binary %.0f ns/event (%.1fx)%n",
+                    round, jsonNanos, binaryNanos, jsonNanos / binaryNanos);
+        }
+        assertThat(sink).isPositive(); // Keeps the decoding from being optimized away
+    }
+
+    private static int gzipped(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.size();
+    }
+}
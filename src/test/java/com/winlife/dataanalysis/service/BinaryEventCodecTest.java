@@ -0,0 +1,165 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.util.VarintReader;
+import com.winlife.dataanalysis.util.VarintWriter;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BinaryEventCodecTest {
+
+    static final SchemaIdMap IDS = SchemaIdMap.build(Map.of(
+            "level_complete", SchemaIdMapTest.parameters("{\"level\":\"integer\",\"duration_ms\":\"integer\",\"stars\":\"integer\","
+                    + "\"score\":\"float\",\"mode\":\"string\",\"first_clear\":\"boolean\"}"),
+            "purchase", SchemaIdMapTest.parameters("{\"sku\":\"string\",\"price\":\"float\"}")),
+            SchemaIdMapTest.userProperties("{\"vip_level\":\"integer\",\"country\":\"string\",\"platform\":\"string\",\"total_pay\":\"float\"}"));
+
+    private final SchemaRegistry schemaRegistry = mock(SchemaRegistry.class);
+    private final BinaryEventCodec codec = new BinaryEventCodec(schemaRegistry);
+
+    BinaryEventCodecTest() {
+        when(schemaRegistry.getSchemaIdMap()).thenReturn(IDS);
+    }
+
+    @Test
+    void decodesToWhatTheJsonOfTheEventsBindsTo() throws Exception {
+        List<GameEventDTO> events = events(20, new Random(7));
+        GameEventDTO unknown = events.get(3);
+        unknown.setEventName("tutorial_step"); // No schema: sent inline
+        unknown.getParameters().put("step", 3_000_000_000L);
+        unknown.getParameters().put("note", null);
+        events.get(4).setUserProperties(null);
+        events.get(5).setEventId(null);
+        events.get(5).setIsDebug(1);
+
+        byte[] frame = codec.encode(events);
+        BinaryEventCodec.DecodedFrame decoded = codec.decode(frame, frame.length, 100);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<GameEventDTO> bound = objectMapper.readValue(objectMapper.writeValueAsBytes(events), new TypeReference<>() {
+        });
+        assertThat(decoded.getEvents()).isEqualTo(bound);
+        assertThat(decoded.getEvents().get(0).getParameters().get("level")).isInstanceOf(Integer.class);
+        assertThat(decoded.getEvents().get(3).getParameters().get("step")).isEqualTo(3_000_000_000L);
+    }
+
+    @Test
+    void refusesFramesOfAnotherSchemaVersion() {
+        byte[] frame = codec.encode(events(1, new Random(1)));
+        when(schemaRegistry.getSchemaIdMap()).thenReturn(SchemaIdMap.build(Map.of("purchase", SchemaIdMapTest.parameters("{}")), null));
+
+        assertThatThrownBy(() -> codec.decode(frame, frame.length, 100)).isInstanceOfSatisfying(ResponseStatusException.class,
+                e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.CONFLICT));
+    }
+
+    @Test
+    void decodesInlineNamesWithSchemaVersionZero() throws IOException {
+        when(schemaRegistry.getSchemaIdMap()).thenReturn(SchemaIdMap.NONE);
+        List<GameEventDTO> events = events(2, new Random(2));
+        byte[] encoded = codec.encode(events);
+        when(schemaRegistry.getSchemaIdMap()).thenReturn(IDS);
+
+        // Same records, declared as carrying names only
+        VarintReader reader = new VarintReader(encoded, 3, encoded.length - 3);
+        reader.readVarint();
+        VarintWriter frame = new VarintWriter(encoded.length).writeByte('W').writeByte('E').writeByte(1).writeVarint(0);
+        frame.writeBytes(encoded, reader.getPosition(), encoded.length - reader.getPosition());
+
+        assertThat(codec.decode(frame.toByteArray(), frame.size(), 100).getEvents()).isEqualTo(events);
+    }
+
+    @Test
+    void anUndecodableRecordOnlyInvalidatesItself() throws IOException {
+        List<GameEventDTO> events = events(3, new Random(3));
+        byte[] frame = codec.encode(events);
+        VarintReader reader = new VarintReader(frame, 3, frame.length - 3);
+        reader.readVarint(); // Schema version
+        reader.readVarint(); // Event count
+        reader.seek(reader.readVarint32() + reader.getPosition());
+        reader.readVarint32();
+        frame[reader.getPosition()] = 99; // The event id of the second record
+
+        BinaryEventCodec.DecodedFrame decoded = codec.decode(frame, frame.length, 100);
+
+        assertThat(decoded.getEvents()).containsExactly(events.get(0), events.get(2));
+        List<EventIngestResult> results = decoded.mergeResults(List.of(
+                EventIngestResult.of(0, EventIngestResult.Status.ACCEPTED, null),
+                EventIngestResult.of(1, EventIngestResult.Status.ACCEPTED, null)));
+        assertThat(results).extracting(EventIngestResult::getStatus).containsExactly(
+                EventIngestResult.Status.ACCEPTED, EventIngestResult.Status.INVALID, EventIngestResult.Status.ACCEPTED);
+        assertThat(results.get(1).getMessage()).isEqualTo("Unreadable event: unknown event id 99");
+    }
+
+    @Test
+    void aTruncatedFrameInvalidatesTheRecordsItCannotHold() {
+        List<GameEventDTO> events = events(3, new Random(4));
+        byte[] frame = codec.encode(events);
+
+        BinaryEventCodec.DecodedFrame decoded = codec.decode(Arrays.copyOf(frame, frame.length - 10), frame.length - 10, 100);
+
+        assertThat(decoded.getEvents()).containsExactly(events.get(0), events.get(1));
+        assertThat(decoded.size()).isEqualTo(3);
+    }
+
+    @Test
+    void refusesMalformedHeadersAndTooManyEvents() {
+        byte[] frame = codec.encode(events(3, new Random(5)));
+
+        assertThatThrownBy(() -> codec.decode(frame, frame.length, 2)).isInstanceOfSatisfying(ResponseStatusException.class,
+                e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE));
+        frame[0] = '{';
+        assertThatThrownBy(() -> codec.decode(frame, frame.length, 100)).isInstanceOfSatisfying(ResponseStatusException.class,
+                e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST));
+        assertThatThrownBy(() -> codec.decode(frame, 3, 100)).isInstanceOfSatisfying(ResponseStatusException.class,
+                e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST));
+    }
+
+    /**
+     * Events shaped like a typical SDK batch: level_complete with 6 parameters and 4 user properties.
+     */
+    static List<GameEventDTO> events(int count, Random random) {
+        List<GameEventDTO> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            GameEventDTO event = new GameEventDTO();
+            event.setEventId(new UUID(random.nextLong(), random.nextLong()).toString());
+            event.setUserId("user-" + random.nextInt(100_000));
+            event.setDeviceId("dev-" + Long.toHexString(random.nextLong()));
+            event.setTimestamp(1_760_000_000_000L + random.nextInt(1_000_000));
+            event.setEventName("level_complete");
+            Map<String, Object> parameters = new LinkedHashMap<>();
+            parameters.put("level", random.nextInt(300));
+            parameters.put("duration_ms", random.nextInt(600_000));
+            parameters.put("stars", random.nextInt(4) - 1);
+            parameters.put("score", random.nextDouble() * 1000);
+            parameters.put("mode", "normal");
+            parameters.put("first_clear", random.nextBoolean());
+            event.setParameters(parameters);
+            Map<String, Object> userProperties = new LinkedHashMap<>();
+            userProperties.put("vip_level", random.nextInt(10));
+            userProperties.put("country", "CN");
+            userProperties.put("platform", "android");
+            userProperties.put("total_pay", 12.5);
+            event.setUserProperties(userProperties);
+            events.add(event);
+        }
+        return events;
+    }
+}
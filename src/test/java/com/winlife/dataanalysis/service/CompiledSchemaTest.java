@@ -0,0 +1,247 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.model.EventSchema;
+import com.winlife.dataanalysis.model.UserPropertySchema;
+import com.winlife.dataanalysis.repository.EventSchemaRepository;
+import com.winlife.dataanalysis.repository.UserPropertySchemaRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.NullSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Every schema is checked against every received object, through both the map and the token stream
+ * validation, and must give exactly the result of the validation that parsed the schema JSON per event.
+ * JSON is written with single quotes for readability.
+ */
+class CompiledSchemaTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final List<String> RECEIVED = List.of(
+            "null",
+            "{}",
+            "{'level':3}",
+            "{'level':null}",
+            "{'level':3.5}",
+            "{'level':'3'}",
+            "{'level':true}",
+            "{'level':12345678901}",
+            "{'level':123456789012345678901234567890}",
+            "{'level':{'a':1}}",
+            "{'level':[1,2]}",
+            "{'level':1,'score':1}",
+            "{'level':1,'score':1.5,'ratio':2.0,'name':'a','vip':false}",
+            "{'level':1,'ratio':1e3}",
+            "{'level':1,'name':5}",
+            "{'level':1,'vip':'true'}",
+            "{'level':1,'name':null,'vip':null}",
+            "{'level':1,'other':1}",
+            "{'other':{'nested':[1,{'a':null}]},'level':1}",
+            "{'at':'2025-01-01'}",
+            "{'at':null}",
+            "{'x':'a'}",
+            "{'x':null}",
+            "{'a':'s'}",
+            "{'b':1,'a':null}",
+            "{'a':'s','b':2}",
+            "{'b':'2','a':'s'}");
+
+    @ParameterizedTest
+    @NullSource
+    @ValueSource(strings = {
+            "",
+            "  ",
+            "{}",
+            " {} ",
+            "{'level':{'type':'integer','required':true},'score':'float','ratio':'double','name':'string','vip':'BOOLEAN'}",
+            "{'level':'integer','score':{'type':'Float','required':false}}",
+            "{'a':{'type':'string','required':true},'b':{'type':'integer','required':true}}",
+            "{'a':{'type':'string','required':'true'},'b':{'type':'integer','required':1}}",
+            "{'at':'date'}",
+            "{'at':{'type':'date','required':true}}",
+            "{'x':{'required':true}}",
+            "{'x':{'required':false}}",
+            "{'x':42}",
+            "{'x':['string']}",
+            "[1,2]",
+            "'string'",
+            "{not json"
+    })
+    void acceptsAndRejectsWhatThePerEventValidationDid(String schemaJson) throws IOException {
+        String schema = json(schemaJson);
+        for (String label : List.of(SchemaRegistry.EVENT_PARAMETER_LABEL, SchemaRegistry.USER_PROPERTY_LABEL)) {
+            CompiledSchema compiled = CompiledSchema.compile(schema, label, OBJECT_MAPPER);
+            for (String received : RECEIVED) {
+                String properties = json(received);
+                String expected = validateProperties(bind(properties), schema, label);
+
+                assertThat(compiled.validate(bind(properties))).as("map %s with %s", properties, schema).isEqualTo(expected);
+                assertThat(validateTokens(compiled, properties)).as("tokens %s with %s", properties, schema).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    void leavesTheParserAtTheEndOfTheObjectEvenWhenItIsInvalid() throws IOException {
+        CompiledSchema compiled = CompiledSchema.compile(json("{'level':'integer'}"), SchemaRegistry.EVENT_PARAMETER_LABEL, OBJECT_MAPPER);
+        CompiledSchema none = CompiledSchema.compile("{}", SchemaRegistry.EVENT_PARAMETER_LABEL, OBJECT_MAPPER);
+
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(json("[{'level':'3','tags':{'a':[1]}},{'level':1},{'x':1},1]"))) {
+            parser.nextToken();
+            parser.nextToken();
+            assertThat(compiled.validate(parser)).isNotNull();
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.START_OBJECT);
+            assertThat(compiled.validate(parser)).isNull();
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.START_OBJECT);
+            assertThat(none.validate(parser)).isNotNull();
+            assertThat(parser.nextToken()).isEqualTo(JsonToken.VALUE_NUMBER_INT);
+        }
+    }
+
+    @Test
+    void registryCompilesEventAndUserPropertySchemasWithTheirLabels() {
+        EventSchemaRepository eventSchemaRepository = mock(EventSchemaRepository.class);
+        UserPropertySchemaRepository userPropertySchemaRepository = mock(UserPropertySchemaRepository.class);
+        EventSchema login = new EventSchema();
+        login.setEventName("login");
+        login.setParameterSchema(json("{'level':{'type':'integer','required':true}}"));
+        UserPropertySchema userPropertySchema = new UserPropertySchema();
+        userPropertySchema.setPropertySchema(json("{'country':{'type':'string','required':true}}"));
+        when(eventSchemaRepository.findAll()).thenReturn(List.of(login));
+        when(userPropertySchemaRepository.findFirstByOrderByIdAsc()).thenReturn(Optional.of(userPropertySchema));
+        SchemaRegistry registry = new SchemaRegistry(eventSchemaRepository, userPropertySchemaRepository, OBJECT_MAPPER);
+
+        // Unknown event names have no schema; the ingestion rejects them before any validation
+        assertThat(registry.getEventSchema("logout")).isNull();
+        assertThat(registry.getEventSchema(null)).isNull();
+        assertThat(registry.getEventSchema("login").validate(Map.of()))
+                .isEqualTo(validateProperties(Map.of(), login.getParameterSchema(), "Event Parameter"));
+        assertThat(registry.getUserPropertySchema().validate(Map.of("country", 1)))
+                .isEqualTo(validateProperties(Map.of("country", 1), userPropertySchema.getPropertySchema(), "User Property"));
+
+        registry.putUserPropertySchema(null);
+        assertThat(registry.getUserPropertySchema()).isNull();
+    }
+
+    private static String validateTokens(CompiledSchema compiled, String properties) throws IOException {
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(properties)) {
+            parser.nextToken();
+            String error = compiled.validate(parser);
+            assertThat(parser.currentToken()).isIn(JsonToken.END_OBJECT, JsonToken.VALUE_NULL);
+            assertThat(parser.nextToken()).isNull();
+            return error;
+        }
+    }
+
+    private static Map<String, Object> bind(String properties) throws JsonProcessingException {
+        return OBJECT_MAPPER.readValue(properties, new TypeReference<>() {
+        });
+    }
+
+    private static String json(String singleQuoted) {
+        return singleQuoted == null ? null : singleQuoted.replace('\'', '"');
+    }
+
+    /**
+     * The validation that parsed the schema JSON for every event, before schemas were compiled; the reference.
+     */
+    private static String validateProperties(Map<String, Object> properties, String schemaJson, String propertyTypeLabel) {
+        if (schemaJson == null || schemaJson.trim().isEmpty() || "{}".equals(schemaJson.trim())) {
+            if (properties != null && !properties.isEmpty()) {
+                return propertyTypeLabel + "s received but schema expects none. Received: " + properties;
+            }
+            return null;
+        }
+
+        JsonNode schemaNode;
+        try {
+            schemaNode = OBJECT_MAPPER.readTree(schemaJson);
+            if (!schemaNode.isObject()) {
+                return propertyTypeLabel + " schema is not a valid JSON object: " + schemaJson;
+            }
+        } catch (JsonProcessingException e) {
+            return "Failed to parse " + propertyTypeLabel + " schema JSON.";
+        }
+
+        if (properties != null) {
+            for (Map.Entry<String, Object> receivedParam : properties.entrySet()) {
+                String paramName = receivedParam.getKey();
+                Object receivedValue = receivedParam.getValue();
+                JsonNode paramSchema = schemaNode.get(paramName);
+                if (paramSchema == null) {
+                    return propertyTypeLabel + " '" + paramName + "' is unexpected.";
+                }
+
+                String expectedType;
+                boolean isRequired = false;
+                if (paramSchema.isTextual()) {
+                    expectedType = paramSchema.asText().toLowerCase();
+                } else if (paramSchema.isObject()) {
+                    if (!paramSchema.has("type")) {
+                        return propertyTypeLabel + " '" + paramName + "' schema is object but missing 'type'.";
+                    }
+                    expectedType = paramSchema.get("type").asText().toLowerCase();
+                    isRequired = paramSchema.has("required") && paramSchema.get("required").asBoolean();
+                } else {
+                    return propertyTypeLabel + " '" + paramName + "' schema is not text or object.";
+                }
+
+                if (isRequired && receivedValue == null) {
+                    return propertyTypeLabel + " '" + paramName + "' is required but value is null.";
+                }
+                if (receivedValue != null) {
+                    boolean typeMatch;
+                    switch (expectedType) {
+                        case "string":
+                            typeMatch = receivedValue instanceof String;
+                            break;
+                        case "integer":
+                            typeMatch = receivedValue instanceof Integer || receivedValue instanceof Long;
+                            break;
+                        case "float":
+                        case "double":
+                            typeMatch = receivedValue instanceof Float || receivedValue instanceof Double;
+                            break;
+                        case "boolean":
+                            typeMatch = receivedValue instanceof Boolean;
+                            break;
+                        default:
+                            return "Unknown expected type '" + expectedType + "' for " + propertyTypeLabel + " '" + paramName + "'.";
+                    }
+                    if (!typeMatch) {
+                        return propertyTypeLabel + " '" + paramName + "' has incorrect type. Expected: " + expectedType
+                                + ", Received: " + receivedValue.getClass().getSimpleName();
+                    }
+                }
+            }
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> fields = schemaNode.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode paramSchema = field.getValue();
+            boolean isRequired = paramSchema.isObject() && paramSchema.has("required") && paramSchema.get("required").asBoolean();
+            if (isRequired && (properties == null || !properties.containsKey(field.getKey()))) {
+                return propertyTypeLabel + " '" + field.getKey() + "' is missing and required.";
+            }
+        }
+        return null;
+    }
+}
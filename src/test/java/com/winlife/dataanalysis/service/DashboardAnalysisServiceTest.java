@@ -0,0 +1,162 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.dto.DashboardTileResult;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.FilterCondition;
+import com.winlife.dataanalysis.model.DashboardConfig;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import com.winlife.dataanalysis.service.analysis.ColumnarResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DashboardAnalysisServiceTest {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final long END = START + 86_400_000L;
+    private static final List<FilterCondition> FILTERS = List.of(
+            new FilterCondition("parameter.level", ">", 3), new FilterCondition("userProperty.vip", "=", true));
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MenuService menuService = mock(MenuService.class);
+    private final DataIngestionService dataIngestionService = mock(DataIngestionService.class);
+    private final DashboardAnalysisService service = new DashboardAnalysisService(menuService, dataIngestionService,
+            new AnalysisProperties(), objectMapper, new StandardEnvironment());
+    private final AnalysisRequest request = AnalysisRequest.of("analyst", AnalysisRequest.Priority.DASHBOARD, null);
+
+    @Test
+    void fusesTilesWhoseFiltersOnlyDifferInOrder() throws JsonProcessingException {
+        // An absent approx is the same as false
+        tiles(query(List.of("eventCount"), "parameter.level", FILTERS, null),
+                query(List.of("uniqueUserCount"), "parameter.level", List.of(FILTERS.get(1), FILTERS.get(0)), false));
+        when(dataIngestionService.runEventAnalysisColumns(any(), any())).thenReturn(result("parameter_level", "eventCount", "uniqueUserCount"));
+
+        List<DashboardTileResult> results = run();
+
+        ArgumentCaptor<EventAnalysisQuery> fused = ArgumentCaptor.forClass(EventAnalysisQuery.class);
+        verify(dataIngestionService).runEventAnalysisColumns(fused.capture(), any());
+        assertThat(fused.getValue().getCalculationAttributes()).containsExactly("eventCount", "uniqueUserCount");
+        assertThat(results).extracting(DashboardTileResult::getError).containsOnlyNulls();
+    }
+
+    @Test
+    void keepsTilesOfAnotherGroupingOrApproximationApart() throws JsonProcessingException {
+        tiles(query(List.of("eventCount"), "parameter.level", FILTERS, null),
+                query(List.of("uniqueUserCount"), "time.day", FILTERS, null),
+                query(List.of("uniqueUserCount"), "parameter.level", FILTERS, true),
+                query(List.of("uniqueUserCount"), "parameter.level", FILTERS.subList(0, 1), null));
+        when(dataIngestionService.runEventAnalysisColumns(any(), any())).thenReturn(result("parameter_level", "eventCount"));
+
+        run();
+
+        ArgumentCaptor<EventAnalysisQuery> queries = ArgumentCaptor.forClass(EventAnalysisQuery.class);
+        verify(dataIngestionService, times(4)).runEventAnalysisColumns(queries.capture(), any());
+        assertThat(queries.getAllValues()).allSatisfy(query -> assertThat(query.getCalculationAttributes()).hasSize(1));
+    }
+
+    @Test
+    void givesEachTileOnlyTheColumnsItAskedFor() throws JsonProcessingException {
+        tiles(query(List.of("averageCountPerUser"), "parameter.level", FILTERS, true),
+                query(List.of("eventCount", "parameter.score@sum", "parameter.item"), "parameter.level", FILTERS, true));
+        when(dataIngestionService.runEventAnalysisColumns(any(), any())).thenReturn(result("parameter_level", "eventCount",
+                "uniqueUserCount", "uniqueUserCountErrorBound", "parameter_score_sum", "parameter_item_distinctCount",
+                "parameter_item_distinctCountErrorBound", "averageCountPerUser"));
+
+        List<DashboardTileResult> results = run();
+
+        // Exactly the columns of the tile's own query: averageCountPerUser is derived from eventCount and uniqueUserCount
+        assertThat(results.get(0).getColumns().getColumnNames()).containsExactly("parameter_level", "eventCount",
+                "uniqueUserCount", "uniqueUserCountErrorBound", "averageCountPerUser");
+        assertThat(results.get(1).getColumns().getColumnNames()).containsExactly("parameter_level", "eventCount",
+                "parameter_score_sum", "parameter_item_distinctCount", "parameter_item_distinctCountErrorBound");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {503, 504})
+    void failsTheFusedTilesWithoutRunningThemOneByOneWhenBusyOrTimedOut(int status) throws JsonProcessingException {
+        tiles(query(List.of("eventCount"), "parameter.level", FILTERS, null),
+                query(List.of("uniqueUserCount"), "parameter.level", FILTERS, null));
+        when(dataIngestionService.runEventAnalysisColumns(any(), any()))
+                .thenThrow(new ResponseStatusException(HttpStatus.valueOf(status), "Analysis is busy"));
+
+        List<DashboardTileResult> results = run();
+
+        verify(dataIngestionService, times(1)).runEventAnalysisColumns(any(), any());
+        assertThat(results).extracting(DashboardTileResult::getError).containsExactly("Analysis is busy", "Analysis is busy");
+    }
+
+    @Test
+    void runsTheTilesOneByOneWhenOneOfThemBreaksTheFusedQuery() throws JsonProcessingException {
+        tiles(query(List.of("eventCount"), "parameter.level", FILTERS, null),
+                query(List.of("session.length"), "parameter.level", FILTERS, null));
+        when(dataIngestionService.runEventAnalysisColumns(any(), any())).thenAnswer(invocation -> {
+            EventAnalysisQuery query = invocation.getArgument(0);
+            if (query.getCalculationAttributes().contains("session.length")) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported calculation attribute: session.length");
+            }
+            return result("parameter_level", "eventCount");
+        });
+
+        List<DashboardTileResult> results = run();
+
+        verify(dataIngestionService, times(3)).runEventAnalysisColumns(any(), any());
+        assertThat(results).extracting(DashboardTileResult::getError)
+                .containsExactly(null, "Unsupported calculation attribute: session.length");
+        assertThat(results.get(0).getColumns().getColumnNames()).containsExactly("parameter_level", "eventCount");
+    }
+
+    /**
+     * @return the results of the dashboard's tiles, in tile order
+     */
+    private List<DashboardTileResult> run() {
+        List<DashboardTileResult> results = new ArrayList<>();
+        service.run(1L, true, request, results::add);
+        results.sort(Comparator.comparing(DashboardTileResult::getId));
+        return results;
+    }
+
+    private void tiles(EventAnalysisQuery... queries) throws JsonProcessingException {
+        List<DashboardConfig> configs = new ArrayList<>();
+        for (int i = 0; i < queries.length; i++) {
+            DashboardConfig config = new DashboardConfig();
+            config.setId((long) i);
+            config.setTitle("tile " + i);
+            config.setDashboardId(1L);
+            config.setConfig(objectMapper.writeValueAsString(queries[i]));
+            configs.add(config);
+        }
+        when(menuService.getDashboardConfigByDashboardId(1L)).thenReturn(configs);
+    }
+
+    private static EventAnalysisQuery query(List<String> calculations, String grouping, List<FilterCondition> filters, Boolean approx) {
+        return new EventAnalysisQuery(START, END, "login", calculations, grouping, filters, approx);
+    }
+
+    /**
+     * @return one row with a value in each of the columns
+     */
+    private static ColumnarResult result(String... columns) {
+        Object[] row = new Object[columns.length];
+        Arrays.fill(row, 1L);
+        return new ColumnarResult.Builder(List.of(columns)).addRow(row).build();
+    }
+}
@@ -0,0 +1,234 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.EventRollup;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventRollupRepository;
+import com.winlife.dataanalysis.repository.GameEventRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class EventRollupServiceTest {
+
+    private static final long DAY = 86_400_000L;
+    // Old enough that no day is rebuilt, recent enough to be covered
+    private static final long COVERED_FROM = 10 * DAY;
+
+    private final EventRollupRepository repository = mock(EventRollupRepository.class);
+    private final AnalysisProperties properties = new AnalysisProperties();
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private final EventRollupService service = new EventRollupService(repository, mock(GameEventRepository.class), properties,
+            new IngestionProperties(), new ObjectMapper(), transactionTemplate);
+
+    EventRollupServiceTest() {
+        doAnswer(invocation -> {
+            invocation.<Consumer<TransactionStatus>>getArgument(0).accept(null);
+            return null;
+        }).when(transactionTemplate).executeWithoutResult(any());
+        when(repository.findCoverage()).thenReturn(Map.of("", COVERED_FROM));
+        when(repository.findUnsketchedBuckets(any(), anyString(), anyLong(), anyLong(), anyInt())).thenReturn(List.of());
+    }
+
+    @AfterEach
+    void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void buffersCoveredCountsUntilTheTransactionCommitsAndAddsThemInOneFlush() {
+        service.maintain();
+        TransactionSynchronizationManager.initSynchronization();
+
+        service.add(List.of(event(1L, COVERED_FROM + 1000), event(2L, COVERED_FROM + 2000)), Set.of());
+        service.add(List.of(event(3L, COVERED_FROM + 3000)), Set.of());
+        service.flush();
+        verify(repository, never()).addCounts(nonEmpty());
+
+        commit();
+        service.flush();
+
+        List<EventRollupRepository.RollupCount> counts = flushed(1).get(0);
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::granularity)
+                .containsExactly(EventRollup.Granularity.HOUR, EventRollup.Granularity.DAY);
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::eventCount).containsExactly(3L, 3L);
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::identifiedCount).containsExactly(3L, 3L);
+    }
+
+    @Test
+    void dropsTheCountsOfARolledBackTransaction() {
+        service.maintain();
+        TransactionSynchronizationManager.initSynchronization();
+
+        service.add(List.of(event(1L, COVERED_FROM + 1000)), Set.of());
+        TransactionSynchronizationManager.clearSynchronization();
+        service.flush();
+
+        verify(repository, never()).addCounts(nonEmpty());
+    }
+
+    @Test
+    void addsTheCountsOfUncoveredBucketsInTheTransaction() {
+        service.maintain();
+        TransactionSynchronizationManager.initSynchronization();
+
+        service.add(List.of(event(1L, COVERED_FROM - 1000), event(2L, COVERED_FROM + 1000)), Set.of());
+
+        // The day before the coverage may be rebuilt, so its counts commit with its events
+        List<EventRollupRepository.RollupCount> counts = flushed(1).get(0);
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::bucketStart).allMatch(start -> start < COVERED_FROM);
+        assertThat(TransactionSynchronizationManager.getSynchronizations()).hasSize(1);
+    }
+
+    @Test
+    void keepsTheCountsBufferedWhenTheFlushFails() {
+        service.maintain();
+        service.add(List.of(event(1L, COVERED_FROM + 1000)), Set.of());
+        doThrow(new QueryTimeoutException("lock wait timeout")).doNothing().when(repository).addCounts(nonEmpty());
+
+        service.flush();
+        service.add(List.of(event(2L, COVERED_FROM + 1000)), Set.of());
+        service.flush();
+
+        assertThat(flushed(2).get(1)).extracting(EventRollupRepository.RollupCount::eventCount).containsExactly(2L, 2L);
+    }
+
+    @Test
+    void clearsTheCoverageOnceWhileDisabled() {
+        properties.getRollups().setEnabled(false);
+
+        service.maintain();
+        service.maintain();
+        properties.getRollups().setEnabled(true);
+        service.maintain();
+        properties.getRollups().setEnabled(false);
+        service.maintain();
+
+        verify(repository, times(2)).deleteCoverage();
+    }
+
+    @Test
+    void restoresTheCountsOfAClosedHourOnceTheSameDifferenceIsSeenTwice() {
+        long hour = lastClosedHour();
+        // A crash lost 2 of the hour's events, one of them with a user id
+        when(repository.countHours(eq(""), any(), anyLong(), anyLong())).thenReturn(List.of(hourCount(hour, 5, 4)));
+        when(repository.findCounts(eq(EventRollup.Granularity.HOUR), eq(""), any(), anyLong(), anyLong(), eq(false)))
+                .thenReturn(List.of(hourCount(hour, 3, 3)));
+
+        service.maintain();
+        verify(repository, never()).addCounts(nonEmpty());
+        service.maintain();
+
+        List<EventRollupRepository.RollupCount> counts = flushed(1).get(0);
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::granularity)
+                .containsExactly(EventRollup.Granularity.HOUR, EventRollup.Granularity.DAY);
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::bucketStart)
+                .containsExactly(hour, Instant.ofEpochMilli(hour).atZone(zone()).toLocalDate().atStartOfDay(zone()).toInstant().toEpochMilli());
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::eventCount).containsExactly(2L, 2L);
+        assertThat(counts).extracting(EventRollupRepository.RollupCount::identifiedCount).containsExactly(1L, 1L);
+    }
+
+    @Test
+    void leavesADifferenceAloneWhileCountsAreStillBeingFlushed() {
+        long hour = lastClosedHour();
+        when(repository.countHours(eq(""), any(), anyLong(), anyLong())).thenReturn(List.of(hourCount(hour, 5, 5)));
+        // A late batch committed: its counts are buffered during the first run, flushed by the second
+        when(repository.findCounts(eq(EventRollup.Granularity.HOUR), eq(""), any(), anyLong(), anyLong(), eq(false)))
+                .thenReturn(List.of(hourCount(hour, 4, 4)), List.of(hourCount(hour, 5, 5)));
+
+        service.maintain();
+        service.maintain();
+        service.maintain();
+
+        verify(repository, never()).addCounts(nonEmpty());
+    }
+
+    @Test
+    void comparesNoHoursWhenReconcilingIsOff() {
+        properties.getRollups().setReconcileHours(0);
+
+        service.maintain();
+
+        verify(repository, never()).countHours(anyString(), any(), anyLong(), anyLong());
+    }
+
+    private long lastClosedHour() {
+        return ZonedDateTime.now(zone()).truncatedTo(ChronoUnit.HOURS).minusHours(1).toInstant().toEpochMilli();
+    }
+
+    private ZoneId zone() {
+        return ZoneId.of(properties.getTimeZone());
+    }
+
+    private static EventRollupRepository.RollupCount hourCount(long hour, long events, long identified) {
+        return new EventRollupRepository.RollupCount(EventRollup.Granularity.HOUR, "", "login", hour, null, events, identified, null);
+    }
+
+    private static GameEvent event(long id, long timestamp) {
+        GameEvent event = new GameEvent();
+        event.setId(id);
+        event.setUserId("u" + id);
+        event.setTimestamp(timestamp);
+        event.setEventName("login");
+        event.setParameters("{}");
+        event.setUserProperties("{}");
+        return event;
+    }
+
+    private static void commit() {
+        List<TransactionSynchronization> synchronizations = new ArrayList<>(TransactionSynchronizationManager.getSynchronizations());
+        TransactionSynchronizationManager.clearSynchronization();
+        synchronizations.forEach(TransactionSynchronization::afterCommit);
+    }
+
+    private static List<EventRollupRepository.RollupCount> nonEmpty() {
+        return argThat(counts -> counts != null && !counts.isEmpty());
+    }
+
+    /**
+     * @return the non-empty counts added, checking there were that many additions
+     */
+    @SuppressWarnings("unchecked")
+    private List<List<EventRollupRepository.RollupCount>> flushed(int additions) {
+        ArgumentCaptor<List<EventRollupRepository.RollupCount>> captor = ArgumentCaptor.forClass(List.class);
+        verify(repository, atLeast(additions)).addCounts(captor.capture());
+        List<List<EventRollupRepository.RollupCount>> added = captor.getAllValues().stream().filter(counts -> !counts.isEmpty()).toList();
+        assertThat(added).hasSize(additions);
+        return added;
+    }
+}
@@ -0,0 +1,216 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.dto.IndexRecommendation;
+import com.winlife.dataanalysis.repository.IndexRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IndexAdvisorTest {
+
+    private static final Map<String, List<String>> PRIMARY_ONLY = Map.of("PRIMARY", List.of("id"));
+
+    private final IndexRepository indexRepository = mock(IndexRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final IndexAdvisor advisor = new IndexAdvisor(indexRepository, meterRegistry);
+
+    @BeforeEach
+    void setUp() {
+        when(indexRepository.findIndexes(anyString())).thenReturn(PRIMARY_ONLY);
+    }
+
+    @Test
+    void explainsEachShapeOnceWithItsLatestParameters() {
+        explain(IndexAdvisor.USER_EVENT_STATISTICS, 1000, 10.0);
+        advisor.record(IndexAdvisor.USER_EVENT_STATISTICS, Map.of("userId", "u1"));
+        advisor.record(IndexAdvisor.USER_EVENT_STATISTICS, Map.of("userId", "u2"));
+        advisor.record(IndexAdvisor.USER_EVENT_STATISTICS, Map.of("userId", "u3"));
+
+        List<IndexRecommendation> recommendations = advisor.recommend();
+
+        verify(indexRepository, times(1)).explain(anyString(), any());
+        verify(indexRepository).explain(IndexAdvisor.USER_EVENT_STATISTICS.sql(), Map.of("userId", "u3"));
+        assertThat(recommendations).singleElement().satisfies(recommendation -> {
+            assertThat(recommendation.getColumns()).containsExactly("user_id", "timestamp", "event_name");
+            assertThat(recommendation.getIndexName()).isEqualTo("idx_game_events_user_id_timestamp_event_name");
+            assertThat(recommendation.getCalls()).isEqualTo(3);
+        });
+    }
+
+    @Test
+    void keepsTheNullFiltersOfARecordedQuery() {
+        explain(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1000, 10.0);
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("deviceId", null);
+
+        advisor.record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, parameters);
+
+        assertThat(advisor.recommend()).hasSize(1);
+    }
+
+    @Test
+    void ranksByTheRowsTheIndexWouldSave() {
+        // 2 calls * (10000 - 1000) rows
+        explain(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 10_000, 10.0);
+        // 5 calls * (5000 - ceil(5000 * 0.5%)) rows
+        explain(IndexAdvisor.USER_EVENT_STATISTICS, 5000, 0.5);
+        // Every examined row matches: nothing to save
+        explain(IndexAdvisor.DEBUG_EVENTS_BY_DEVICE, 50_000, 100.0);
+        record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 2);
+        record(IndexAdvisor.USER_EVENT_STATISTICS, 5);
+        record(IndexAdvisor.DEBUG_EVENTS_BY_DEVICE, 100);
+
+        List<IndexRecommendation> recommendations = advisor.recommend();
+
+        assertThat(recommendations).extracting(IndexRecommendation::getTable)
+                .containsExactly("game_events", "player_data", "debug_game_events");
+        assertThat(recommendations).extracting(IndexRecommendation::getEstimatedBenefit)
+                .containsExactly(5L * (5000 - 25), 2L * (10_000 - 1000), 0L);
+        assertThat(recommendations.get(0).getExaminedRows()).isEqualTo(5000);
+        assertThat(recommendations.get(0).getEstimatedRows()).isEqualTo(25);
+        assertThat(recommendations.get(1).getDdl())
+                .isEqualTo(IndexRepository.addIndexSql("player_data", "idx_player_data_device_id", List.of("device_id")));
+    }
+
+    @Test
+    void foldsAShapeIntoTheIndexOfAShapeThatStartsWithItsColumns() {
+        // user_id, timestamp is a prefix of user_id, timestamp, event_name
+        explain(IndexAdvisor.USER_EVENT_SEQUENCE, 2000, 1.0);
+        explain(IndexAdvisor.USER_EVENT_STATISTICS, 8000, 1.0);
+        record(IndexAdvisor.USER_EVENT_SEQUENCE, 10);
+        record(IndexAdvisor.USER_EVENT_STATISTICS, 1);
+
+        List<IndexRecommendation> recommendations = advisor.recommend();
+
+        assertThat(recommendations).singleElement().satisfies(recommendation -> {
+            assertThat(recommendation.getColumns()).containsExactly("user_id", "timestamp", "event_name");
+            assertThat(recommendation.getQueryShapes()).containsExactlyInAnyOrder("userEventSequence", "userEventStatistics");
+            assertThat(recommendation.getCalls()).isEqualTo(11);
+            assertThat(recommendation.getEstimatedBenefit()).isEqualTo(10L * (2000 - 20) + (8000 - 80));
+            // The plan shown is the one of the shape that examines the most rows
+            assertThat(recommendation.getExaminedRows()).isEqualTo(8000);
+            assertThat(recommendation.getCurrentPlan()).isEqualTo("type=ALL, key=null, extra=Using where");
+        });
+    }
+
+    @Test
+    void leavesOutShapesAnExistingIndexServes() {
+        when(indexRepository.findIndexes("game_events")).thenReturn(Map.of("PRIMARY", List.of("id"),
+                "idx_user_time", List.of("USER_ID", "timestamp", "event_name")));
+        explain(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1000, 10.0);
+        record(IndexAdvisor.USER_EVENT_STATISTICS, 1);
+        // Without a range, an index on the equality and ORDER BY columns serves it
+        record(IndexAdvisor.USER_EVENT_SEQUENCE, 1);
+        record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1);
+
+        assertThat(advisor.recommend()).extracting(IndexRecommendation::getTable).containsExactly("player_data");
+        verify(indexRepository, never()).explain(eq(IndexAdvisor.USER_EVENT_STATISTICS.sql()), any());
+    }
+
+    @Test
+    void skipsTablesNotCreatedYetAndShapesThatCannotBeExplained() {
+        when(indexRepository.findIndexes("debug_game_events")).thenReturn(Map.of());
+        when(indexRepository.explain(eq(IndexAdvisor.USER_EVENT_STATISTICS.sql()), any()))
+                .thenThrow(new BadSqlGrammarException("EXPLAIN", IndexAdvisor.USER_EVENT_STATISTICS.sql(), new SQLException("syntax")));
+        when(indexRepository.explain(eq(IndexAdvisor.PLAYER_DATA_BY_DEVICE.sql()), any())).thenReturn(null);
+        explain(IndexAdvisor.EVENT_REPORTING, 1000, 10.0);
+        record(IndexAdvisor.DEBUG_EVENTS_BY_DEVICE, 1);
+        record(IndexAdvisor.USER_EVENT_STATISTICS, 1);
+        record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1);
+        record(IndexAdvisor.EVENT_REPORTING, 1);
+
+        assertThat(advisor.recommend()).extracting(IndexRecommendation::getIndexName)
+                .containsExactly("idx_game_events_timestamp_event_name");
+        verify(indexRepository, never()).explain(eq(IndexAdvisor.DEBUG_EVENTS_BY_DEVICE.sql()), any());
+    }
+
+    @Test
+    void appliesACurrentRecommendation() {
+        explain(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1000, 10.0);
+        record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1);
+
+        IndexRecommendation applied = advisor.apply("idx_player_data_device_id");
+
+        assertThat(applied.getColumns()).containsExactly("device_id");
+        verify(indexRepository).addIndex("player_data", "idx_player_data_device_id", List.of("device_id"));
+        assertThat(meterRegistry.counter("index.advisor.applied", "table", "player_data").count()).isEqualTo(1);
+    }
+
+    @Test
+    void refusesARecommendationThatIsNoLongerCurrent() {
+        explain(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1000, 10.0);
+        record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1);
+        assertThat(advisor.recommend()).extracting(IndexRecommendation::getIndexName).containsExactly("idx_player_data_device_id");
+        // Someone added the index since the recommendation was shown
+        when(indexRepository.findIndexes("player_data")).thenReturn(Map.of("PRIMARY", List.of("id"),
+                "idx_player_data_device_id", List.of("device_id")));
+
+        assertThatThrownBy(() -> advisor.apply("idx_player_data_device_id"))
+                .isInstanceOfSatisfying(ResponseStatusException.class,
+                        e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND));
+        assertThatThrownBy(() -> advisor.apply("idx_unknown"))
+                .isInstanceOfSatisfying(ResponseStatusException.class,
+                        e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND));
+        verify(indexRepository, never()).addIndex(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    void reportsAFailedIndexCreation() {
+        explain(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1000, 10.0);
+        record(IndexAdvisor.PLAYER_DATA_BY_DEVICE, 1);
+        doThrow(new QueryTimeoutException("Lock wait timeout exceeded"))
+                .when(indexRepository).addIndex(anyString(), anyString(), anyList());
+
+        assertThatThrownBy(() -> advisor.apply("idx_player_data_device_id"))
+                .isInstanceOfSatisfying(ResponseStatusException.class,
+                        e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.INTERNAL_SERVER_ERROR));
+        assertThat(meterRegistry.find("index.advisor.applied").counter()).isNull();
+    }
+
+    @Test
+    void cutsIndexNamesToTheIdentifierLimit() {
+        IndexAdvisor.QueryShape shape = new IndexAdvisor.QueryShape("wide", "game_events",
+                List.of("event_name", "user_id", "device_id", "session_id"), "received_timestamp", List.of(),
+                "SELECT * FROM game_events WHERE event_name = :e");
+        explain(shape, 1000, 10.0);
+        record(shape, 1);
+
+        assertThat(advisor.recommend()).singleElement()
+                .satisfies(recommendation -> assertThat(recommendation.getIndexName())
+                        .hasSize(64)
+                        .startsWith("idx_game_events_event_name_user_id_device_id_session_id_"));
+    }
+
+    private void explain(IndexAdvisor.QueryShape shape, long rows, double filtered) {
+        when(indexRepository.explain(eq(shape.sql()), any()))
+                .thenReturn(new IndexRepository.Explain("ALL", null, rows, filtered, "Using where"));
+    }
+
+    private void record(IndexAdvisor.QueryShape shape, int calls) {
+        for (int i = 0; i < calls; i++) {
+            advisor.record(shape, Map.of("value", i));
+        }
+    }
+}
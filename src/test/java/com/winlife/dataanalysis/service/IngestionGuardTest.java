@@ -0,0 +1,94 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.service.impl.DatabaseLatencyTracker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class IngestionGuardTest {
+
+    private final IngestionProperties properties = new IngestionProperties();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DatabaseLatencyTracker latencyTracker = new DatabaseLatencyTracker(meterRegistry);
+
+    @Test
+    void eventRefusedByItsEventNameDoesNotSpendTheDeviceBudget() {
+        properties.getRateLimit().setDeviceBurst(2);
+        properties.getRateLimit().setDevicePerSecond(0.001);
+        properties.getRateLimit().setEventNameBurst(1);
+        properties.getRateLimit().setEventNamePerSecond(0.001);
+        IngestionGuard guard = guard();
+
+        IngestionGuard.Admission admission = guard.admit(List.of(
+                event("d1", "login", 0), event("d1", "login", 0), event("d1", "logout", 0), event("d1", "purchase", 0)));
+
+        assertThat(admission.getAdmitted()).extracting(GameEventDTO::getEventName).containsExactly("login", "logout");
+        List<EventIngestResult> results = admission.mergeResults(List.of(
+                EventIngestResult.of(0, EventIngestResult.Status.ACCEPTED, null),
+                EventIngestResult.of(1, EventIngestResult.Status.ACCEPTED, null)));
+        assertThat(results).extracting(EventIngestResult::getMessage).containsExactly(
+                null, "Rate limit exceeded for event login.", null, "Rate limit exceeded for device.");
+        assertThat(admission.getRejectionStatus()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    @Test
+    void selectsTheValuesOfTheAdmittedEvents() {
+        properties.getRateLimit().setEventNameBurst(1);
+        properties.getRateLimit().setEventNamePerSecond(0.001);
+
+        IngestionGuard.Admission admission = guard().admit(List.of(event("d1", "login", 0), event("d2", "login", 0), event("d3", "logout", 0)));
+
+        assertThat(admission.selectAdmitted(List.of("a", "b", "c"))).containsExactly("a", "c");
+    }
+
+    @Test
+    void stopsSheddingOnceTheLatencyAverageDecaysWithoutWrites() {
+        IngestionGuard guard = guard();
+        latencyTracker.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(2500));
+        guard.updateShedLevel();
+        assertThat(guard.getShedLevel()).isEqualTo(IngestionGuard.ShedLevel.ALL);
+
+        // No writes are admitted, so no sample can bring the average down; idle seconds do
+        long now = System.currentTimeMillis();
+        for (int second = 1; second <= 5; second++) {
+            latencyTracker.decay(now + TimeUnit.SECONDS.toMillis(second));
+        }
+        guard.updateShedLevel();
+        assertThat(guard.getShedLevel()).isEqualTo(IngestionGuard.ShedLevel.NONE);
+    }
+
+    @Test
+    void shedsDebugEventsFirst() {
+        IngestionGuard guard = guard();
+        latencyTracker.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1500));
+        guard.updateShedLevel();
+
+        IngestionGuard.Admission admission = guard.admit(List.of(event("d1", "login", 1), event("d1", "login", 0)));
+
+        assertThat(admission.getAdmitted()).extracting(GameEventDTO::getIsDebug).containsExactly(0);
+        assertThat(admission.getRejectionStatus()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    private IngestionGuard guard() {
+        return new IngestionGuard(properties, mock(AsyncIngestionPipeline.class), latencyTracker, meterRegistry);
+    }
+
+    static GameEventDTO event(String deviceId, String eventName, int isDebug) {
+        GameEventDTO event = new GameEventDTO();
+        event.setUserId("u1");
+        event.setDeviceId(deviceId);
+        event.setEventName(eventName);
+        event.setTimestamp(1000);
+        event.setIsDebug(isDebug);
+        return event;
+    }
+}
@@ -0,0 +1,84 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.service.impl.EventBatchWriter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IngestionWalTest {
+
+    @TempDir
+    Path directory;
+
+    private final DataIngestionService dataIngestionService = mock(DataIngestionService.class);
+    private final EventBatchWriter eventBatchWriter = mock(EventBatchWriter.class);
+    private IngestionWal wal;
+
+    @AfterEach
+    void stop() {
+        if (wal != null) {
+            wal.stop();
+        }
+    }
+
+    @Test
+    void replaysEventsAppendedAfterStartingWithAnEmptyLog() {
+        when(eventBatchWriter.prepare(any(), any())).thenAnswer(invocation -> new EventBatchWriter.PreparedEvent(
+                invocation.getArgument(0), EventIngestResult.Status.ACCEPTED, null, null, null, null));
+        wal = newWal();
+        wal.start();
+
+        assertThat(wal.isRunning()).isTrue();
+        assertThat(wal.append(event("login"))).isTrue();
+
+        verify(eventBatchWriter, timeout(5000)).writeOrThrowTransient(any());
+        verify(dataIngestionService, timeout(5000)).validateGameEvent(any());
+    }
+
+    @Test
+    void rejectsEventsAfterStop() {
+        wal = newWal();
+        wal.start();
+        wal.stop();
+
+        assertThat(wal.append(event("login"))).isFalse();
+        wal = null;
+    }
+
+    private IngestionWal newWal() {
+        IngestionProperties properties = new IngestionProperties();
+        properties.getWal().setEnabled(true);
+        properties.getWal().setDirectory(directory.toString());
+        properties.getWal().setSegmentSizeBytes(64 * 1024);
+        properties.getWal().setFsync(false);
+        properties.getWal().setReplayIdleMs(10);
+        properties.getWal().setShutdownTimeoutMs(1000);
+        AtomicLong ids = new AtomicLong();
+        return new IngestionWal(dataIngestionService, eventBatchWriter, ids::incrementAndGet, new ObjectMapper(),
+                properties, new SimpleMeterRegistry(), new MockEnvironment());
+    }
+
+    private static GameEventDTO event(String eventName) {
+        GameEventDTO event = new GameEventDTO();
+        event.setEventName(eventName);
+        event.setUserId("u1");
+        event.setTimestamp(1700000000000L);
+        return event;
+    }
+}
@@ -0,0 +1,111 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.repository.NodeLeaseRepository;
+import com.winlife.dataanalysis.util.SnowflakeIdGenerator;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.QueryTimeoutException;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class NodeRegistryTest {
+
+    private final NodeLeaseRepository nodeLeaseRepository = mock(NodeLeaseRepository.class);
+    private final IngestionProperties properties = new IngestionProperties();
+    private final NodeRegistry registry = new NodeRegistry(nodeLeaseRepository, properties);
+
+    @Test
+    void leasesTheFirstFreeIdFromTheHostHashOn() {
+        when(nodeLeaseRepository.tryAcquire(anyLong(), anyString(), anyLong())).thenReturn(false, false, true);
+        when(nodeLeaseRepository.countLive()).thenReturn(1);
+
+        registry.afterPropertiesSet();
+
+        ArgumentCaptor<Long> candidates = ArgumentCaptor.forClass(Long.class);
+        verify(nodeLeaseRepository, times(3)).tryAcquire(candidates.capture(), anyString(), anyLong());
+        List<Long> tried = candidates.getAllValues();
+        assertThat(tried.get(1)).isEqualTo((tried.get(0) + 1) & SnowflakeIdGenerator.MAX_NODE_ID);
+        assertThat(tried.get(2)).isEqualTo((tried.get(0) + 2) & SnowflakeIdGenerator.MAX_NODE_ID);
+        assertThat(registry.getLeasedNodeId()).isEqualTo(tried.get(2));
+        assertThat(registry.isSingleNode()).isTrue();
+    }
+
+    @Test
+    void failsStartupWhenTheConfiguredIdIsLeasedByAnotherNode() {
+        properties.getId().setNodeId(7);
+        when(nodeLeaseRepository.tryAcquire(eq(7L), anyString(), anyLong())).thenReturn(false);
+        when(nodeLeaseRepository.findOwner(7L)).thenReturn("other-host/42/abcd1234");
+
+        assertThatThrownBy(registry::afterPropertiesSet)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("other-host/42/abcd1234");
+        assertThatThrownBy(registry::getLeasedNodeId).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void leasesAnIdAgainWhenTheRenewalFindsItTakenOver() {
+        when(nodeLeaseRepository.tryAcquire(anyLong(), anyString(), anyLong())).thenReturn(true);
+        when(nodeLeaseRepository.countLive()).thenReturn(1, 2);
+        registry.afterPropertiesSet();
+
+        when(nodeLeaseRepository.renew(anyLong(), anyString(), anyLong())).thenReturn(false);
+        registry.renew();
+
+        verify(nodeLeaseRepository, times(2)).tryAcquire(anyLong(), anyString(), anyLong());
+        assertThat(registry.getLeasedNodeId()).isNotNegative();
+        assertThat(registry.isSingleNode()).isFalse();
+    }
+
+    @Test
+    void startsANewSingleNodeTermAfterOtherNodesRan() {
+        when(nodeLeaseRepository.tryAcquire(anyLong(), anyString(), anyLong())).thenReturn(true);
+        when(nodeLeaseRepository.renew(anyLong(), anyString(), anyLong())).thenReturn(true);
+        when(nodeLeaseRepository.countLive()).thenReturn(1, 1, 2, 1);
+        registry.afterPropertiesSet();
+        long term = registry.getSingleNodeTerm();
+
+        registry.renew();
+        assertThat(registry.getSingleNodeTerm()).isEqualTo(term);
+        registry.renew();
+        assertThat(registry.getSingleNodeTerm()).isEqualTo(-1);
+        registry.renew();
+        assertThat(registry.getSingleNodeTerm()).isNotNegative().isNotEqualTo(term);
+    }
+
+    @Test
+    void keepsTheLeaseWhileMySqlIsBrieflyUnreachable() {
+        when(nodeLeaseRepository.tryAcquire(anyLong(), anyString(), anyLong())).thenReturn(true);
+        when(nodeLeaseRepository.countLive()).thenReturn(1);
+        registry.afterPropertiesSet();
+        long leased = registry.getLeasedNodeId();
+
+        when(nodeLeaseRepository.renew(anyLong(), anyString(), anyLong())).thenThrow(new QueryTimeoutException("timeout"));
+        registry.renew();
+
+        assertThat(registry.getLeasedNodeId()).isEqualTo(leased);
+    }
+
+    @Test
+    void refusesIdsOnceTheLeaseRanOutWithoutARenewal() throws InterruptedException {
+        properties.getId().setLeaseTtlMs(1);
+        when(nodeLeaseRepository.tryAcquire(anyLong(), anyString(), anyLong())).thenReturn(true);
+        when(nodeLeaseRepository.countLive()).thenReturn(1);
+        registry.afterPropertiesSet();
+
+        Thread.sleep(20);
+
+        assertThatThrownBy(registry::getLeasedNodeId).isInstanceOf(IllegalStateException.class);
+        assertThat(registry.isSingleNode()).isFalse();
+    }
+}
@@ -0,0 +1,94 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.repository.PartitionRepository;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PartitionManagerTest {
+
+    @Test
+    void startsDailyPartitionsAtMidnightInTheConfiguredZone() {
+        PartitionManager.PartitionCalendar utc = calendar(IngestionProperties.Partitioning.Granularity.DAY, "UTC", 7);
+        PartitionManager.PartitionCalendar shanghai = calendar(IngestionProperties.Partitioning.Granularity.DAY, "Asia/Shanghai", 7);
+        long lateJanuary31Utc = millis("2025-01-31T17:00:00Z");
+
+        assertThat(utc.periodStart(lateJanuary31Utc).toInstant()).isEqualTo(Instant.parse("2025-01-31T00:00:00Z"));
+        // Already February 1st, 01:00 in Shanghai
+        assertThat(shanghai.periodStart(lateJanuary31Utc).toInstant()).isEqualTo(Instant.parse("2025-01-31T16:00:00Z"));
+        assertThat(shanghai.bounds(lateJanuary31Utc, lateJanuary31Utc + 1)).containsExactly(
+                new PartitionRepository.Bound("p20250201", millis("2025-02-01T16:00:00Z")));
+    }
+
+    @Test
+    void namesDailyPartitionsAcrossAMonthBoundary() {
+        PartitionManager.PartitionCalendar calendar = calendar(IngestionProperties.Partitioning.Granularity.DAY, "UTC", 7);
+
+        // From is not on a boundary: the first partition still ends at the next midnight
+        assertThat(calendar.bounds(millis("2025-01-30T12:00:00Z"), millis("2025-02-02T00:00:00Z"))).containsExactly(
+                new PartitionRepository.Bound("p20250130", millis("2025-01-31T00:00:00Z")),
+                new PartitionRepository.Bound("p20250131", millis("2025-02-01T00:00:00Z")),
+                new PartitionRepository.Bound("p20250201", millis("2025-02-02T00:00:00Z")));
+        assertThat(calendar.bounds(millis("2025-02-02T00:00:00Z"), millis("2025-02-02T00:00:00Z"))).isEmpty();
+    }
+
+    @Test
+    void followsDaylightSavingChangesInTheZone() {
+        PartitionManager.PartitionCalendar calendar = calendar(IngestionProperties.Partitioning.Granularity.DAY, "America/New_York", 7);
+
+        // Clocks go forward on March 9th 2025: that day is 23 hours long
+        assertThat(calendar.bounds(millis("2025-03-09T05:00:00Z"), millis("2025-03-11T04:00:00Z"))).containsExactly(
+                new PartitionRepository.Bound("p20250309", millis("2025-03-10T04:00:00Z")),
+                new PartitionRepository.Bound("p20250310", millis("2025-03-11T04:00:00Z")));
+    }
+
+    @Test
+    void startsMonthlyPartitionsOnTheFirstOfTheMonthInTheConfiguredZone() {
+        PartitionManager.PartitionCalendar calendar = calendar(IngestionProperties.Partitioning.Granularity.MONTH, "Asia/Shanghai", 7);
+
+        // Still December 31st in UTC, but January 1st, 00:30 in Shanghai
+        assertThat(calendar.bounds(millis("2024-12-31T16:30:00Z"), millis("2025-03-15T00:00:00Z"))).containsExactly(
+                new PartitionRepository.Bound("p202501", millis("2025-01-31T16:00:00Z")),
+                new PartitionRepository.Bound("p202502", millis("2025-02-28T16:00:00Z")),
+                new PartitionRepository.Bound("p202503", millis("2025-03-31T16:00:00Z")));
+        assertThat(calendar.bounds(millis("2024-12-31T15:59:59.999Z"), millis("2024-12-31T16:00:00Z"))).containsExactly(
+                new PartitionRepository.Bound("p202412", millis("2024-12-31T16:00:00Z")));
+    }
+
+    @Test
+    void keepsTheConfiguredNumberOfPeriodsAheadOfTheCurrentOne() {
+        PartitionManager.PartitionCalendar daily = calendar(IngestionProperties.Partitioning.Granularity.DAY, "UTC", 7);
+        PartitionManager.PartitionCalendar monthly = calendar(IngestionProperties.Partitioning.Granularity.MONTH, "UTC", 2);
+        PartitionManager.PartitionCalendar none = calendar(IngestionProperties.Partitioning.Granularity.DAY, "UTC", 0);
+
+        assertThat(daily.horizon(millis("2025-01-31T10:00:00Z"))).isEqualTo(millis("2025-02-08T00:00:00Z"));
+        assertThat(monthly.horizon(millis("2024-12-15T10:00:00Z"))).isEqualTo(millis("2025-03-01T00:00:00Z"));
+        // At least the next period always exists
+        assertThat(none.horizon(millis("2025-01-31T10:00:00Z"))).isEqualTo(millis("2025-02-02T00:00:00Z"));
+    }
+
+    @Test
+    void keepsEveryTableByDefault() {
+        IngestionProperties.Partitioning config = new IngestionProperties().getPartitioning();
+
+        assertThat(config.getGameEventsRetentionDays()).isZero();
+        assertThat(config.getErroredEventsRetentionDays()).isZero();
+        assertThat(config.getDebugEventsRetentionDays()).isZero();
+    }
+
+    private static PartitionManager.PartitionCalendar calendar(IngestionProperties.Partitioning.Granularity granularity,
+                                                               String zone, int futurePartitions) {
+        IngestionProperties.Partitioning config = new IngestionProperties.Partitioning();
+        config.setGranularity(granularity);
+        config.setZone(zone);
+        config.setFuturePartitions(futurePartitions);
+        return new PartitionManager.PartitionCalendar(config);
+    }
+
+    private static long millis(String instant) {
+        return Instant.parse(instant).toEpochMilli();
+    }
+}
@@ -0,0 +1,65 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SchemaIdMapTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void numbersEventsByNameAndKeysInDeclarationOrder() {
+        SchemaIdMap ids = SchemaIdMap.build(Map.of(
+                "purchase", parameters("{\"sku\":\"string\",\"price\":\"float\"}"),
+                "login", parameters("{\"channel\":\"string\"}")), userProperties("{\"vip_level\":\"integer\",\"country\":\"string\"}"));
+
+        assertThat(ids.getEventId("login")).isEqualTo(1);
+        assertThat(ids.getEventId("purchase")).isEqualTo(2);
+        assertThat(ids.getEventId("logout")).isZero();
+        assertThat(ids.getEventName(2)).isEqualTo("purchase");
+        assertThat(ids.getEventName(0)).isNull();
+        assertThat(ids.getEventName(3)).isNull();
+        assertThat(ids.getParameterKey(2, 1)).isEqualTo("sku");
+        assertThat(ids.getParameterKey(2, 2)).isEqualTo("price");
+        assertThat(ids.getParameterKey(2, 3)).isNull();
+        assertThat(ids.getParameterKey(3, 1)).isNull();
+        assertThat(ids.getUserPropertyKey(1)).isEqualTo("vip_level");
+        assertThat(ids.getUserPropertyKey(2)).isEqualTo("country");
+        assertThat(ids.toDTO().getEvents().get("purchase").getParameters()).containsExactly(Map.entry("sku", 1), Map.entry("price", 2));
+    }
+
+    @Test
+    void versionOnlyChangesWithTheAssignment() {
+        SchemaIdMap ids = SchemaIdMap.build(Map.of("login", parameters("{\"channel\":\"string\"}")), null);
+
+        assertThat(ids.getVersion()).isPositive()
+                .isEqualTo(SchemaIdMap.build(Map.of("login", parameters("{\"channel\":\"string\"}")), null).getVersion())
+                // A changed type keeps the ids
+                .isEqualTo(SchemaIdMap.build(Map.of("login", parameters("{\"channel\":\"integer\"}")), null).getVersion());
+        assertThat(SchemaIdMap.build(Map.of("login", parameters("{\"channel\":\"string\",\"ad\":\"string\"}")), null).getVersion())
+                .isNotEqualTo(ids.getVersion());
+        assertThat(SchemaIdMap.build(Map.of("login", parameters("{\"channel\":\"string\"}"), "logout", parameters("{}")), null).getVersion())
+                .isNotEqualTo(ids.getVersion());
+        assertThat(SchemaIdMap.build(Map.of("login", parameters("{\"channel\":\"string\"}")), userProperties("{\"vip\":\"integer\"}")).getVersion())
+                .isNotEqualTo(ids.getVersion());
+    }
+
+    @Test
+    void noneAssignsNoIds() {
+        assertThat(SchemaIdMap.NONE.getVersion()).isPositive();
+        assertThat(SchemaIdMap.NONE.getEventName(1)).isNull();
+        assertThat(SchemaIdMap.NONE.getUserPropertyKey(1)).isNull();
+    }
+
+    static CompiledSchema parameters(String schema) {
+        return CompiledSchema.compile(schema, "Event Parameter", objectMapper);
+    }
+
+    static CompiledSchema userProperties(String schema) {
+        return CompiledSchema.compile(schema, "User Property", objectMapper);
+    }
+}
@@ -0,0 +1,66 @@
+package com.winlife.dataanalysis.service;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventIngestResult;
+import com.winlife.dataanalysis.dto.StreamIngestProgress;
+import com.winlife.dataanalysis.service.impl.DatabaseLatencyTracker;
+import com.winlife.dataanalysis.service.impl.EventStreamParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StreamingIngestionServiceTest {
+
+    @Test
+    void rejectsEventsOverTheRateLimit() throws Exception {
+        IngestionProperties properties = new IngestionProperties();
+        properties.getRateLimit().setDeviceBurst(2);
+        properties.getRateLimit().setDevicePerSecond(0.001);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        IngestionGuard guard = new IngestionGuard(properties, mock(AsyncIngestionPipeline.class),
+                new DatabaseLatencyTracker(meterRegistry), meterRegistry);
+
+        // Every line is the event's name
+        EventStreamParser parser = mock(EventStreamParser.class);
+        when(parser.parse(any(), anyInt())).thenAnswer(invocation -> {
+            EventStreamParser.ParsedEvent parsed = mock(EventStreamParser.ParsedEvent.class);
+            String name = new String(invocation.<byte[]>getArgument(0), 0, invocation.<Integer>getArgument(1), StandardCharsets.UTF_8);
+            when(parsed.getEvent()).thenReturn(IngestionGuardTest.event("d1", name, 0));
+            when(parsed.isValidated()).thenReturn(true);
+            return parsed;
+        });
+        DataIngestionService dataIngestionService = mock(DataIngestionService.class);
+        List<Integer> processed = new ArrayList<>();
+        when(dataIngestionService.processValidatedGameEvents(anyList(), anyList())).thenAnswer(invocation -> {
+            List<EventIngestResult> results = new ArrayList<>();
+            for (int i = 0; i < invocation.<List<?>>getArgument(0).size(); i++) {
+                results.add(EventIngestResult.of(i, EventIngestResult.Status.ACCEPTED, null));
+            }
+            processed.add(results.size());
+            return results;
+        });
+        StreamingIngestionService service = new StreamingIngestionService(dataIngestionService, parser, properties, guard);
+
+        StreamIngestProgress summary = service.ingest(new ByteArrayInputStream("a\nb\nc\n".getBytes(StandardCharsets.UTF_8)), progress -> {
+        });
+
+        assertThat(processed).containsExactly(2);
+        assertThat(summary.getAccepted()).isEqualTo(2);
+        assertThat(summary.getFailed()).isEqualTo(1);
+        assertThat(summary.getFailures()).singleElement().satisfies(failure -> {
+            assertThat(failure.getIndex()).isEqualTo(2);
+            assertThat(failure.getStatus()).isEqualTo(EventIngestResult.Status.REJECTED);
+        });
+    }
+}
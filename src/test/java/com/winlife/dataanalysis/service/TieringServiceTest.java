@@ -0,0 +1,106 @@
+package com.winlife.dataanalysis.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventBatchRepository;
+import com.winlife.dataanalysis.repository.PartitionRepository;
+import com.winlife.dataanalysis.service.analysis.ColdEventStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TieringServiceTest {
+
+    private static final long DAY = 86_400_000L;
+
+    @TempDir
+    Path directory;
+
+    private final PartitionRepository partitionRepository = mock(PartitionRepository.class);
+    private final EventBatchRepository eventBatchRepository = mock(EventBatchRepository.class);
+    private final AnalysisProperties analysisProperties = new AnalysisProperties();
+    private ColdEventStore coldEventStore;
+    private TieringService tieringService;
+
+    @BeforeEach
+    void setUp() {
+        analysisProperties.getTiering().setEnabled(true);
+        analysisProperties.getTiering().setDirectory(directory.toString());
+        coldEventStore = new ColdEventStore(analysisProperties, new ObjectMapper());
+        tieringService = new TieringService(partitionRepository, eventBatchRepository, coldEventStore,
+                new IngestionProperties(), analysisProperties, new SimpleMeterRegistry());
+        long old = System.currentTimeMillis() - 100 * DAY;
+        when(partitionRepository.findPartitions("game_events")).thenReturn(List.of(
+                new PartitionRepository.Partition("p1", "RANGE", "timestamp", old, 2),
+                new PartitionRepository.Partition("pmax", "RANGE", "timestamp", null, 0)));
+        when(partitionRepository.countRows("game_events", "p1")).thenReturn(2L);
+        streams("game_events", "p1", 1, 2);
+    }
+
+    @Test
+    void commitsTheExportWhenTheSwappedOutTableHoldsTheSameIds() {
+        when(partitionRepository.checksumIds(startsWith("game_events_archive_p1_")))
+                .thenReturn(new PartitionRepository.IdChecksum(2, 3, 3));
+
+        tieringService.archiveColdPartitions();
+
+        assertThat(coldEventStore.getSegments()).singleElement()
+                .satisfies(segment -> assertThat(segment.footer().rowCount()).isEqualTo(2));
+        verify(eventBatchRepository, never()).forEachGameEvent(startsWith("game_events_archive_"), any(), any());
+        verify(partitionRepository).dropTable(startsWith("game_events_archive_p1_"));
+    }
+
+    @Test
+    void exportsTheSwappedOutTableAgainWhenItsIdsDifferAtTheSameCount() {
+        // Event 2 was deleted and event 3 inserted between the export and the exchange
+        when(partitionRepository.checksumIds(startsWith("game_events_archive_p1_")))
+                .thenReturn(new PartitionRepository.IdChecksum(2, 4, 2));
+        streams(null, null, 1, 3);
+
+        tieringService.archiveColdPartitions();
+
+        verify(eventBatchRepository).forEachGameEvent(startsWith("game_events_archive_p1_"), isNull(), any());
+        assertThat(coldEventStore.getSegments()).singleElement()
+                .satisfies(segment -> assertThat(segment.footer().rowCount()).isEqualTo(2));
+        verify(partitionRepository).dropTable(startsWith("game_events_archive_p1_"));
+    }
+
+    /**
+     * Streams events with the given ids from the table and partition; null table for the swapped out tables.
+     */
+    private void streams(String table, String partition, long... ids) {
+        doAnswer(invocation -> {
+            Consumer<GameEvent> consumer = invocation.getArgument(2);
+            for (long id : ids) {
+                GameEvent event = new GameEvent();
+                event.setId(id);
+                event.setTimestamp(System.currentTimeMillis() - 100 * DAY);
+                event.setEventName("login");
+                event.setUserId("u" + id);
+                event.setParameters("{}");
+                event.setUserProperties("{}");
+                consumer.accept(event);
+            }
+            return null;
+        }).when(eventBatchRepository).forEachGameEvent(table == null ? startsWith("game_events_archive_") : eq(table),
+                partition == null ? isNull() : eq(partition), any());
+    }
+}
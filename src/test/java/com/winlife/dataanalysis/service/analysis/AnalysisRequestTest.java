@@ -0,0 +1,44 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.service.AnalysisCancelledException;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AnalysisRequestTest {
+
+    @Test
+    void roundsTheLimitUpToWholeSeconds() {
+        AnalysisRequest request = AnalysisRequest.of("u", AnalysisRequest.Priority.AD_HOC, null);
+
+        assertThat(request.statementTimeoutSeconds(60000)).isEqualTo(60);
+        assertThat(request.statementTimeoutSeconds(1)).isEqualTo(1);
+    }
+
+    @Test
+    void hasNoTimeoutWithoutALimitOrADeadline() {
+        AnalysisRequest request = AnalysisRequest.of("u", AnalysisRequest.Priority.AD_HOC, null);
+
+        assertThat(request.statementTimeoutSeconds(0)).isZero();
+        assertThat(request.statementTimeoutSeconds(-1)).isZero();
+    }
+
+    @Test
+    void stopsAtTheDeadlineWithoutALimit() {
+        AnalysisRequest request = AnalysisRequest.of("u", AnalysisRequest.Priority.AD_HOC, 30000L);
+
+        assertThat(request.statementTimeoutSeconds(0)).isBetween(1, 30);
+        assertThat(request.statementTimeoutSeconds(5000)).isEqualTo(5);
+    }
+
+    @Test
+    void failsOncePastTheDeadlineOrCancelled() {
+        AnalysisRequest expired = new AnalysisRequest("u", AnalysisRequest.Priority.AD_HOC, System.currentTimeMillis() - 1);
+        assertThatThrownBy(() -> expired.statementTimeoutSeconds(0)).isInstanceOf(AnalysisCancelledException.class);
+
+        AnalysisRequest cancelled = AnalysisRequest.of("u", AnalysisRequest.Priority.AD_HOC, null);
+        cancelled.cancel("client disconnected");
+        assertThatThrownBy(() -> cancelled.statementTimeoutSeconds(0)).isInstanceOf(AnalysisCancelledException.class);
+    }
+}
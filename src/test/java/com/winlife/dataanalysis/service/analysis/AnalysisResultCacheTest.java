@@ -0,0 +1,182 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.FilterCondition;
+import com.winlife.dataanalysis.model.GameEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AnalysisResultCacheTest {
+
+    private static final long DAY = 86400000L;
+    private static final ColumnarResult ONE_ROW = new ColumnarResult.Builder(List.of("eventCount")).addRow(new Object[]{1L}).build();
+
+    private final AnalysisProperties properties = new AnalysisProperties();
+    private final AnalysisResultCache cache = new AnalysisResultCache(properties, new SimpleMeterRegistry());
+    private final List<EventAnalysisQuery> loaded = new ArrayList<>();
+    private final Function<EventAnalysisQuery, ColumnarResult> loader = query -> {
+        loaded.add(query);
+        return ONE_ROW;
+    };
+
+    @Test
+    void sharesTheResultOfQueriesThatDifferOnlyInOrderAndRepetitions() {
+        FilterCondition level = new FilterCondition("parameter.level", "=", 5);
+        FilterCondition user = new FilterCondition("userId", "!=", "z");
+
+        cache.get(query(0, 1000, List.of("eventCount", "uniqueUserCount"), level, user), loader);
+        cache.get(query(0, 1000, List.of("uniqueUserCount", "eventCount", "eventCount"), user, level, level), loader);
+        assertThat(loaded).hasSize(1);
+
+        // Numbers and text filter differently
+        cache.get(query(0, 1000, List.of("eventCount", "uniqueUserCount"), new FilterCondition("parameter.level", "=", "5"), user), loader);
+        assertThat(loaded).hasSize(2);
+    }
+
+    @Test
+    void dropsAClosedResultWhenAnEventOfItsRangeIsStored() {
+        cache.get(query(0, 1000), loader);
+
+        cache.invalidate(List.of(event(2000, "u")));
+        cache.invalidate(List.of(event(500, null))); // Not counted by analysis
+        cache.get(query(0, 1000), loader);
+        assertThat(loaded).hasSize(1);
+
+        cache.invalidate(List.of(event(1000, "u")));
+        cache.get(query(0, 1000), loader);
+        assertThat(loaded).hasSize(2);
+    }
+
+    @Test
+    void doesNotCacheAClosedResultThatMayHaveMissedAnEvent() {
+        cache.get(query(0, 500), query -> {
+            cache.invalidate(List.of(event(100, "u")));
+            return loader.apply(query);
+        });
+        cache.get(query(0, 500), loader);
+
+        assertThat(loaded).hasSize(2);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void keepsAnOpenResultUntilItExpires() {
+        long now = System.currentTimeMillis();
+        cache.get(query(0, now + DAY), loader);
+        cache.invalidate(List.of(event(now, "u")));
+        cache.get(query(0, now + DAY), loader);
+        assertThat(loaded).hasSize(1);
+
+        properties.getResultCache().setOpenTtlMs(0);
+        cache.get(query(1, now + DAY), loader);
+        cache.get(query(1, now + DAY), loader);
+        assertThat(loaded).hasSize(3);
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedResultsBeyondMaxRows() {
+        properties.getResultCache().setMaxRows(10);
+        for (int i = 0; i < 20; i++) {
+            cache.get(query(i, 1000), loader);
+        }
+
+        assertThat(cache.rows()).isLessThanOrEqualTo(10);
+        cache.get(query(19, 1000), loader);
+        cache.get(query(0, 1000), loader);
+        assertThat(loaded).hasSize(21);
+    }
+
+    @Test
+    void cachesNothingWhenTheLoaderFails() {
+        assertThatThrownBy(() -> cache.get(query(0, 1000), query -> {
+            throw new IllegalStateException("database down");
+        })).isInstanceOf(IllegalStateException.class);
+
+        assertThat(cache.size()).isZero();
+        cache.get(query(0, 1000), loader);
+        assertThat(loaded).hasSize(1);
+    }
+
+    @Test
+    void rereadsOnlyTheBucketsThatGotLateData() {
+        Random random = new Random(7);
+        List<long[]> events = new ArrayList<>(); // timestamp, user
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5000; i++) {
+            events.add(new long[]{now - (long) (random.nextDouble() * 30 * DAY), random.nextInt(200)});
+        }
+        Function<EventAnalysisQuery, ColumnarResult> byDay = query -> {
+            loaded.add(query);
+            return countByDay(events, query);
+        };
+        EventAnalysisQuery lastWeek = new EventAnalysisQuery(now - 7 * DAY, now - 1, "login",
+                List.of("eventCount", "uniqueUserCount"), "time.day", null, null);
+
+        assertThat(cache.get(lastWeek, byDay).toRows()).isEqualTo(countByDay(events, lastWeek).toRows());
+        loaded.clear();
+        assertThat(cache.get(lastWeek, byDay).toRows()).isEqualTo(countByDay(events, lastWeek).toRows());
+        // The whole query is cached, it ended before it was computed
+        assertThat(loaded).isEmpty();
+
+        // The rolling window reaches now: only its buckets stay cached
+        properties.getResultCache().setOpenTtlMs(0);
+        EventAnalysisQuery rolling = new EventAnalysisQuery(now - 7 * DAY, now + DAY, "login",
+                List.of("eventCount", "uniqueUserCount"), "time.day", null, null);
+        cache.get(rolling, byDay);
+        long lateAt = now - 3 * DAY;
+        events.add(new long[]{lateAt, 500});
+        cache.invalidate(List.of(event(lateAt, "u500")));
+        loaded.clear();
+
+        assertThat(cache.get(rolling, byDay).toRows()).isEqualTo(countByDay(events, rolling).toRows());
+        // The partial bucket at the start, the bucket of the late event and the open bucket
+        assertThat(loaded).hasSize(3);
+        assertThat(loaded.get(1).getStartTime()).isLessThanOrEqualTo(lateAt);
+        assertThat(loaded.get(1).getEndTime()).isEqualTo(loaded.get(1).getStartTime() + DAY - 1).isGreaterThanOrEqualTo(lateAt);
+    }
+
+    private static ColumnarResult countByDay(List<long[]> events, EventAnalysisQuery query) {
+        Map<String, Long> counts = new TreeMap<>();
+        Map<String, Set<Long>> users = new TreeMap<>();
+        for (long[] event : events) {
+            if (event[0] >= query.getStartTime() && event[0] <= query.getEndTime()) {
+                String day = RowEvaluator.timeBucket(event[0], AnalysisPlan.TimeUnit.DAY, ZoneId.of("UTC"));
+                counts.merge(day, 1L, Long::sum);
+                users.computeIfAbsent(day, key -> new HashSet<>()).add(event[1]);
+            }
+        }
+        ColumnarResult.Builder builder = new ColumnarResult.Builder(List.of("time_day", "eventCount", "uniqueUserCount"));
+        counts.forEach((day, count) -> builder.addRow(new Object[]{day, count, (long) users.get(day).size()}));
+        return builder.build();
+    }
+
+    private static EventAnalysisQuery query(long startTime, long endTime) {
+        return query(startTime, endTime, List.of("eventCount"));
+    }
+
+    private static EventAnalysisQuery query(long startTime, long endTime, List<String> calculations, FilterCondition... filters) {
+        return new EventAnalysisQuery(startTime, endTime, "login", calculations, "userId", List.of(filters), null);
+    }
+
+    private static GameEvent event(long timestamp, String userId) {
+        GameEvent event = new GameEvent();
+        event.setEventName("login");
+        event.setUserId(userId);
+        event.setTimestamp(timestamp);
+        return event;
+    }
+}
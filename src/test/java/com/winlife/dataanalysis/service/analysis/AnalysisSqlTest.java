@@ -0,0 +1,106 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.FilterCondition;
+import com.winlife.dataanalysis.service.CompiledSchema;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The SQL of a plan before and after its fields were promoted: where a promoted column is used, the rows where
+ * it is NULL must still get the JSON condition, so both queries select the same rows.
+ * {@link PromotedColumnsMySqlTest} runs both against MySQL.
+ */
+class AnalysisSqlTest {
+
+    static final PromotedColumns PROMOTED = new PromotedColumns(Map.of(
+            new AnalysisPlan.Field(AnalysisPlan.FieldKind.PARAMETER, "name"),
+            new PromotedColumns.Column("jp_p_name", CompiledSchema.ValueType.STRING),
+            new AnalysisPlan.Field(AnalysisPlan.FieldKind.PARAMETER, "level"),
+            new PromotedColumns.Column("jp_p_level", CompiledSchema.ValueType.INTEGER)));
+
+    @ParameterizedTest
+    @ValueSource(strings = {"=", "!=", ">", "<", ">=", "<=", "contains", "not contains"})
+    void stringColumnFallsBackToTheJsonConditionWhereItIsNull(String operator) {
+        AnalysisPlan plan = plan(null, new FilterCondition("parameter.name", operator, "a"));
+
+        String json = condition(AnalysisSql.of(plan, PromotedColumns.NONE));
+        String promoted = condition(AnalysisSql.of(plan, PROMOTED));
+
+        assertThat(promoted).startsWith("(" + json.replace(textOf("name"), "ge.jp_p_name"))
+                .endsWith(" OR (ge.jp_p_name IS NULL AND " + json + "))");
+        assertThat(AnalysisSql.of(plan, PROMOTED).getParameters()).isEqualTo(AnalysisSql.of(plan, PromotedColumns.NONE).getParameters());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"=", "!=", ">", "<", ">=", "<="})
+    void integerColumnFallsBackToTheJsonConditionWhereItIsNull(String operator) {
+        AnalysisPlan plan = plan(null, new FilterCondition("parameter.level", operator, 5));
+
+        String json = condition(AnalysisSql.of(plan, PromotedColumns.NONE));
+        String promoted = condition(AnalysisSql.of(plan, PROMOTED));
+
+        assertThat(promoted).startsWith("(ge.jp_p_level ").endsWith(" OR (ge.jp_p_level IS NULL AND " + json + "))");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"isNull", "isNotNull"})
+    void nullChecksReadTheJson(String operator) {
+        for (String attribute : List.of("parameter.name", "parameter.level")) {
+            AnalysisPlan plan = plan(null, new FilterCondition(attribute, operator, null));
+            assertThat(AnalysisSql.of(plan, PROMOTED).getSql()).isEqualTo(AnalysisSql.of(plan, PromotedColumns.NONE).getSql());
+        }
+    }
+
+    @Test
+    void integerColumnIsNotComparedWithTexts() {
+        for (String operator : List.of("=", "!=", "contains")) {
+            AnalysisPlan plan = plan(null, new FilterCondition("parameter.level", operator, "5"));
+            assertThat(AnalysisSql.of(plan, PROMOTED).getSql()).isEqualTo(AnalysisSql.of(plan, PromotedColumns.NONE).getSql());
+        }
+        AnalysisPlan fraction = plan(null, new FilterCondition("parameter.level", "=", 5.5));
+        assertThat(AnalysisSql.of(fraction, PROMOTED).getSql()).isEqualTo(AnalysisSql.of(fraction, PromotedColumns.NONE).getSql());
+    }
+
+    @Test
+    void groupsByTheJsonTextWhereTheColumnIsNull() {
+        AnalysisPlan byName = plan("parameter.name");
+        assertThat(AnalysisSql.of(byName, PROMOTED).getSql())
+                .startsWith("SELECT COALESCE(ge.jp_p_name, " + textOf("name") + ") AS parameter_name")
+                .endsWith(" GROUP BY COALESCE(ge.jp_p_name, " + textOf("name") + ") ORDER BY COALESCE(ge.jp_p_name, "
+                        + textOf("name") + ") ASC");
+
+        AnalysisPlan byLevel = plan("parameter.level");
+        assertThat(AnalysisSql.of(byLevel, PROMOTED).getSql()).isEqualTo(AnalysisSql.of(byLevel, PromotedColumns.NONE).getSql());
+    }
+
+    static AnalysisPlan plan(String groupingAttribute, FilterCondition... filters) {
+        EventAnalysisQuery query = new EventAnalysisQuery();
+        query.setEventName("login");
+        query.setStartTime(0L);
+        query.setEndTime(Long.MAX_VALUE);
+        query.setCalculationAttributes(List.of(AnalysisPlan.EVENT_COUNT));
+        query.setGroupingAttribute(groupingAttribute == null ? "time.unknown" : groupingAttribute);
+        query.setGlobalFilters(List.of(filters));
+        return AnalysisPlan.parse(query);
+    }
+
+    private static String textOf(String parameter) {
+        return AnalysisSql.textExpression(new AnalysisPlan.Field(AnalysisPlan.FieldKind.PARAMETER, parameter));
+    }
+
+    /**
+     * @return the plan's single filter condition
+     */
+    private static String condition(AnalysisSql sql) {
+        String where = sql.getSql().substring(sql.getSql().indexOf("ge.event_name = :eventName AND ") + "ge.event_name = :eventName AND ".length());
+        int orderBy = where.indexOf(" ORDER BY ");
+        return orderBy < 0 ? where : where.substring(0, orderBy);
+    }
+}
@@ -0,0 +1,154 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.util.ColumnarSegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ColdEventStoreTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private final AnalysisProperties properties = new AnalysisProperties();
+
+    @Test
+    void showsASegmentOnlyOnceCommitted() throws IOException {
+        ColdEventStore store = store();
+        try (ColdEventStore.ArchiveWriter archive = store.startArchive("p1", Map.of())) {
+            archive.add(event(1, T0, "login", "u1"));
+            archive.add(event(2, T0 + 1, "login", "u2"));
+            archive.finish();
+            assertThat(store.getSegments()).isEmpty();
+
+            store.commit(archive);
+            assertThat(archive.getIdSum()).isEqualTo(3);
+            assertThat(archive.getIdXor()).isEqualTo(3);
+        }
+
+        assertThat(store.hasSegment("p1")).isTrue();
+        assertThat(Files.exists(directory.resolve("p1.seg"))).isTrue();
+        assertThat(Files.exists(directory.resolve("p1.seg.pending"))).isFalse();
+        // Found again after a restart
+        assertThat(store().getSegments()).extracting(ColdEventStore.Segment::name).containsExactly("p1");
+    }
+
+    @Test
+    void dropsUnfinishedExportsAndSkipsTornSegmentsAtStartup() throws IOException {
+        ColdEventStore store = store();
+        try (ColdEventStore.ArchiveWriter archive = store.startArchive("good", Map.of())) {
+            archive.add(event(1, T0, "login", "u1"));
+            archive.finish();
+            store.commit(archive);
+        }
+        ColdEventStore.ArchiveWriter unfinished = store.startArchive("unfinished", Map.of());
+        unfinished.add(event(2, T0, "login", "u1"));
+        byte[] good = Files.readAllBytes(directory.resolve("good.seg"));
+        Files.write(directory.resolve("torn.seg"), Arrays.copyOf(good, good.length - 3));
+
+        ColdEventStore restarted = store();
+
+        assertThat(restarted.getSegments()).extracting(ColdEventStore.Segment::name).containsExactly("good");
+        assertThat(Files.exists(directory.resolve("unfinished.seg.pending"))).isFalse();
+        unfinished.close();
+    }
+
+    @Test
+    void readsOnlyTheRowGroupsOfTheQueriedRangeAndEvent() throws IOException {
+        properties.getTiering().setRowGroupSize(10);
+        ColdEventStore store = store();
+        try (ColdEventStore.ArchiveWriter archive = store.startArchive("p1", Map.of())) {
+            for (int i = 0; i < 30; i++) {
+                // Row groups by time: [T0, T0 + 9], [T0 + 10, T0 + 19], [T0 + 20, T0 + 29]; only the last has pay
+                archive.add(event(i, T0 + i, i >= 25 ? "pay" : "login", "u" + (i % 4)));
+            }
+            archive.finish();
+            store.commit(archive);
+        }
+        ColdEventStore.Segment segment = store.getSegments().get(0);
+        // Make the first row group unreadable: a scan that touches it fails
+        ColumnarSegment.ColumnMeta firstUsers = segment.footer().rowGroups().get(0).columns().get("user_id");
+        try (FileChannel channel = FileChannel.open(segment.path(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(firstUsers.length()), firstUsers.offset());
+        }
+
+        assertThat(scan(store, plan("login", T0 + 10, T0 + 29))).isEqualTo(15);
+        assertThat(scan(store, plan("pay", T0, T0 + 29))).isEqualTo(5);
+        assertThat(store.findSegments(plan("logout", T0, T0 + 29))).isEmpty();
+        assertThat(store.findSegments(plan("login", T0 + 30, T0 + 100))).isEmpty();
+        assertThatThrownBy(() -> scan(store, plan("login", T0, T0 + 29))).isInstanceOf(UncheckedIOException.class);
+    }
+
+    @Test
+    void scansWithTheRowEvaluationSemantics() throws IOException {
+        ColdEventStore store = store();
+        try (ColdEventStore.ArchiveWriter archive = store.startArchive("p1", Map.of())) {
+            GameEvent big = event(1, T0, "login", "u1");
+            big.setParameters("{\"level\":3,\"score\":2.5,\"big\":123456789012345678901234567890,\"tags\":[1,2],\"none\":null}");
+            archive.add(big);
+            archive.add(event(2, T0 + 1, "login", null)); // Not counted
+            GameEvent other = event(3, T0 + 2, "login", "u2");
+            other.setParameters("{\"level\":3,\"score\":1}");
+            archive.add(other);
+            archive.finish();
+            store.commit(archive);
+        }
+
+        AnalysisPlan plan = AnalysisPlan.parse(new EventAnalysisQuery(T0, T0 + 10, "login",
+                List.of("eventCount", "uniqueUserCount", "parameter.score@sum", "parameter.big", "parameter.tags"),
+                "parameter.level", List.of(), null));
+        GroupedAggregation aggregation = new GroupedAggregation(plan);
+        store.scan(store.findSegments(plan), new RowEvaluator(plan, store.getZone()), aggregation);
+
+        // Numbers beyond long and arrays are kept as their JSON text
+        assertThat(aggregation.toColumns().toRows()).containsExactly(
+                Map.of("parameter_level", "3", "eventCount", 2L, "uniqueUserCount", 2L, "parameter_score_sum", 3.5,
+                        "parameter_big_distinctCount", 1L, "parameter_tags_distinctCount", 1L));
+    }
+
+    private long scan(ColdEventStore store, AnalysisPlan plan) {
+        GroupedAggregation aggregation = new GroupedAggregation(plan);
+        store.scan(store.findSegments(plan), new RowEvaluator(plan, store.getZone()), aggregation);
+        return (Long) aggregation.toColumns().toRows().get(0).get("eventCount");
+    }
+
+    private ColdEventStore store() {
+        properties.getTiering().setDirectory(directory.toString());
+        return new ColdEventStore(properties, new ObjectMapper());
+    }
+
+    private static AnalysisPlan plan(String eventName, long start, long end) {
+        return AnalysisPlan.parse(new EventAnalysisQuery(start, end, eventName, List.of("eventCount"), "time.unknown", List.of(), null));
+    }
+
+    private static GameEvent event(long id, long timestamp, String eventName, String userId) {
+        GameEvent event = new GameEvent();
+        event.setId(id);
+        event.setTimestamp(timestamp);
+        event.setEventName(eventName);
+        event.setUserId(userId);
+        event.setDeviceId("d1");
+        event.setParameters("{}");
+        event.setUserProperties("{}");
+        return event;
+    }
+}
@@ -0,0 +1,130 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ColumnarResultTest {
+
+    @Test
+    void typesEachColumnByItsValues() {
+        ColumnarResult result = new ColumnarResult.Builder(List.of("count", "avg", "day", "max", "none"))
+                .addRow(new Object[]{3, 1.5f, "2024-01-01", 5L, null})
+                .addRow(new Object[]{4L, 2.5, "2024-01-02", "x", null})
+                .build();
+
+        assertThat(List.of(result.getType(0), result.getType(1), result.getType(2), result.getType(3), result.getType(4))).containsExactly(
+                ColumnarResult.Type.LONG, ColumnarResult.Type.DOUBLE, ColumnarResult.Type.STRING, ColumnarResult.Type.OBJECT,
+                ColumnarResult.Type.OBJECT);
+        assertThat(result.get(0, 0)).isEqualTo(3L);
+        assertThat(result.get(0, 1)).isEqualTo(1.5);
+        // A number column that gets a text keeps its numbers
+        assertThat(result.get(0, 3)).isEqualTo(5L);
+        assertThat(result.get(1, 3)).isEqualTo("x");
+        assertThat(result.isNull(1, 4)).isTrue();
+    }
+
+    @Test
+    void keepsNullsOfNumberColumnsWhileGrowing() {
+        ColumnarResult.Builder builder = new ColumnarResult.Builder(List.of("value", "mixed"));
+        List<Object> expected = new ArrayList<>();
+        for (int row = 0; row < 100; row++) {
+            Object value = row < 20 || row % 7 == 0 ? null : (long) row;
+            expected.add(value);
+            builder.addRow(new Object[]{value, row == 90 ? "text" : row % 3 == 0 ? null : (double) row});
+        }
+
+        ColumnarResult result = builder.build();
+
+        assertThat(result.getType(0)).isEqualTo(ColumnarResult.Type.LONG);
+        assertThat(result.toRows()).extracting(row -> row.get("value")).containsExactlyElementsOf(expected);
+        assertThat(result.getDouble(0, 0)).isZero();
+        assertThat(result.getDouble(22, 0)).isEqualTo(22);
+        assertThat(result.getType(1)).isEqualTo(ColumnarResult.Type.OBJECT);
+        assertThat(result.get(3, 1)).isNull();
+        assertThat(result.get(4, 1)).isEqualTo(4.0);
+        assertThat(result.get(90, 1)).isEqualTo("text");
+        assertThat(result.getDouble(4, 1)).isEqualTo(4.0);
+    }
+
+    @Test
+    void concatenatesByColumnName() {
+        ColumnarResult first = new ColumnarResult.Builder(List.of("day", "count"))
+                .addRow(new Object[]{"2024-01-01", 1L})
+                .build();
+        ColumnarResult second = new ColumnarResult.Builder(List.of("count", "extra"))
+                .addRow(new Object[]{2L, "ignored"})
+                .addRow(new Object[]{null, "ignored"})
+                .build();
+
+        ColumnarResult joined = ColumnarResult.concat(List.of(first, second));
+
+        assertThat(joined.getColumnNames()).containsExactly("day", "count");
+        assertThat(joined.getRowCount()).isEqualTo(3);
+        assertThat(joined.getType(1)).isEqualTo(ColumnarResult.Type.LONG);
+        assertThat(joined.toRows()).containsExactly(row("2024-01-01", 1L), row(null, 2L), row(null, null));
+        assertThat(ColumnarResult.concat(List.of(first))).isSameAs(first);
+    }
+
+    @Test
+    void selectsAndReplacesColumns() {
+        ColumnarResult result = new ColumnarResult.Builder(List.of("day", "count"))
+                .addRow(new Object[]{"a", 1L})
+                .addRow(new Object[]{"b", 2L})
+                .addRow(new Object[]{"c", 3L})
+                .build();
+
+        ColumnarResult selected = result.select(new int[]{2, 0});
+        assertThat(selected.toRows()).containsExactly(row("c", 3L), row("a", 1L));
+
+        ColumnarResult replaced = result.withColumn("count", new double[]{0.5, 1.5, 2.5});
+        assertThat(replaced.getColumnNames()).containsExactly("day", "count");
+        assertThat(replaced.getType(1)).isEqualTo(ColumnarResult.Type.DOUBLE);
+        assertThat(replaced.get(2, 1)).isEqualTo(2.5);
+        assertThat(result.get(2, 1)).isEqualTo(3L);
+
+        assertThat(result.withoutColumns(List.of("count", "missing")).getColumnNames()).containsExactly("day");
+        assertThatThrownBy(() -> result.withColumn("avg", new double[2])).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void writesColumnsAsJsonArrays() throws Exception {
+        ColumnarResult result = new ColumnarResult.Builder(List.of("day", "count", "avg", "max"))
+                .addRow(new Object[]{"2024-01-01", 3L, 1.5, 7L})
+                .addRow(new Object[]{"2024-01-02", null, 2.0, "x"})
+                .build();
+
+        assertThat(new ObjectMapper().writeValueAsString(result)).isEqualTo("{\"columns\":["
+                + "{\"name\":\"day\",\"type\":\"string\"},{\"name\":\"count\",\"type\":\"long\"},"
+                + "{\"name\":\"avg\",\"type\":\"double\"},{\"name\":\"max\",\"type\":\"object\"}],\"rowCount\":2,"
+                + "\"data\":[[\"2024-01-01\",\"2024-01-02\"],[3,null],[1.5,2.0],[7,\"x\"]]}");
+    }
+
+    @Test
+    void writesRowsThroughOneArray() {
+        ColumnarResult result = new ColumnarResult.Builder(List.of("day", "count"))
+                .addRow(new Object[]{"a", 1L})
+                .addRow(new Object[]{"b", null})
+                .build();
+        List<List<Object>> written = new ArrayList<>();
+
+        result.forEachRow((names, values) -> written.add(Arrays.asList(values.clone())));
+
+        assertThat(written).containsExactly(Arrays.asList("a", 1L), Arrays.asList("b", null));
+    }
+
+    private static Map<String, Object> row(Object day, Object count) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("day", day);
+        row.put("count", count);
+        return row;
+    }
+}
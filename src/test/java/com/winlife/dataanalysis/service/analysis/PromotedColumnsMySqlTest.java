@@ -0,0 +1,93 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.winlife.dataanalysis.dto.FilterCondition;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs analysis queries before and after promotion against MySQL and compares the results. Needs an empty
+ * scratch database, where it creates and drops game_events:
+ * ANALYSIS_TEST_MYSQL_URL=jdbc:mysql://localhost:3306/scratch?user=...&amp;password=...
+ */
+@EnabledIfEnvironmentVariable(named = "ANALYSIS_TEST_MYSQL_URL", matches = ".+")
+class PromotedColumnsMySqlTest {
+
+    private static SingleConnectionDataSource dataSource;
+    private static NamedParameterJdbcTemplate jdbcTemplate;
+
+    @BeforeAll
+    static void createTable() {
+        dataSource = new SingleConnectionDataSource(System.getenv("ANALYSIS_TEST_MYSQL_URL"), true);
+        jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+        jdbcTemplate.getJdbcTemplate().execute("DROP TABLE IF EXISTS game_events");
+        jdbcTemplate.getJdbcTemplate().execute("CREATE TABLE game_events (id BIGINT PRIMARY KEY, event_id VARCHAR(64), "
+                + "user_id VARCHAR(255), device_id VARCHAR(255), timestamp BIGINT, event_name VARCHAR(255), "
+                + "parameters JSON, user_properties JSON)");
+        // The columns JsonPathPromoter adds
+        jdbcTemplate.getJdbcTemplate().execute("ALTER TABLE game_events "
+                + "ADD COLUMN jp_p_name VARCHAR(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_bin GENERATED ALWAYS AS "
+                + "(JSON_VALUE(parameters, '$.\"name\"' RETURNING CHAR(255) NULL ON ERROR)) VIRTUAL, "
+                + "ADD COLUMN jp_p_level BIGINT GENERATED ALWAYS AS "
+                + "(JSON_VALUE(parameters, '$.\"level\"' RETURNING SIGNED NULL ON ERROR)) VIRTUAL");
+        String longName = "x".repeat(300);
+        List<String> parameters = List.of(
+                "{\"name\": \"a\", \"level\": 5}",
+                "{\"name\": \"a\", \"level\": 5.0}",
+                "{\"name\": \"b\", \"level\": \"5\"}",
+                "{\"name\": null, \"level\": null}",
+                "{\"name\": \"" + longName + "\", \"level\": \"abc\"}",
+                "{\"name\": {\"nested\": 1}, \"level\": 7}",
+                "{\"name\": 5, \"level\": 0}",
+                "{}");
+        for (int i = 0; i < parameters.size(); i++) {
+            jdbcTemplate.update("INSERT INTO game_events (id, user_id, device_id, timestamp, event_name, parameters, user_properties) "
+                    + "VALUES (:id, 'u', 'd', 1000, 'login', :parameters, '{}')", Map.of("id", i, "parameters", parameters.get(i)));
+        }
+    }
+
+    @AfterAll
+    static void dropTable() {
+        jdbcTemplate.getJdbcTemplate().execute("DROP TABLE IF EXISTS game_events");
+        dataSource.destroy();
+    }
+
+    @Test
+    void filtersSelectTheSameRows() {
+        List<FilterCondition> filters = new ArrayList<>();
+        for (String operator : List.of("=", "!=", ">", "<", ">=", "<=", "contains", "not contains", "isNull", "isNotNull")) {
+            for (Object value : new Object[]{"a", "null", "5", 5, 0, 5.5}) {
+                filters.add(new FilterCondition("parameter.name", operator, value));
+                filters.add(new FilterCondition("parameter.level", operator, value));
+            }
+        }
+        for (FilterCondition filter : filters) {
+            AnalysisPlan plan = AnalysisSqlTest.plan(null, filter);
+            assertThat(run(AnalysisSql.of(plan, AnalysisSqlTest.PROMOTED)))
+                    .as("%s %s %s", filter.getAttribute(), filter.getOperator(), filter.getValue())
+                    .isEqualTo(run(AnalysisSql.of(plan, PromotedColumns.NONE)));
+        }
+    }
+
+    @Test
+    void groupingFindsTheSameGroups() {
+        for (String attribute : List.of("parameter.name", "parameter.level")) {
+            AnalysisPlan plan = AnalysisSqlTest.plan(attribute);
+            assertThat(run(AnalysisSql.of(plan, AnalysisSqlTest.PROMOTED))).as(attribute)
+                    .isEqualTo(run(AnalysisSql.of(plan, PromotedColumns.NONE)));
+        }
+    }
+
+    private static List<Map<String, Object>> run(AnalysisSql sql) {
+        return jdbcTemplate.queryForList(sql.getSql(), sql.getParameters());
+    }
+}
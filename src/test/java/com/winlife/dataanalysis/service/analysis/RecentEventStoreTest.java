@@ -0,0 +1,343 @@
+package com.winlife.dataanalysis.service.analysis;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.FilterCondition;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.service.NodeRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RecentEventStoreTest {
+
+    private static final long HOUR = 3_600_000L;
+    // 2024-01-30T00:00:00Z: three days of events cross a month and, in Asia/Shanghai, a week boundary
+    private static final long T0 = Instant.parse("2024-01-30T00:00:00Z").toEpochMilli();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final AnalysisProperties properties = new AnalysisProperties();
+    private final NodeRegistry nodeRegistry = mock(NodeRegistry.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RecentEventStore store = new RecentEventStore(properties, MAPPER, nodeRegistry, meterRegistry);
+    // Run one by one on the store's checks of the single-node term
+    private final Deque<Runnable> onTermCheck = new ArrayDeque<>();
+    private long term = 1;
+    private long nextId = 1;
+
+    RecentEventStoreTest() {
+        when(nodeRegistry.getSingleNodeTerm()).thenAnswer(invocation -> {
+            Runnable action = onTermCheck.poll();
+            if (action != null) {
+                action.run();
+            }
+            return term;
+        });
+    }
+
+    @Test
+    void keepsARowOnceWhenTheLoadAndARetriedBatchAddItAgain() {
+        load();
+        GameEvent event = event("login", T0 + 10, "u1", "d1", "{\"level\":3}");
+
+        assertThat(store.add(event)).isTrue();
+        assertThat(store.add(copy(event))).isFalse();
+        store.addAll(List.of(copy(event), copy(event)));
+        assertThat(store.getRowCount()).isEqualTo(1);
+
+        // Also once the row moved to direct memory
+        properties.getMemoryStore().setOffHeapThresholdMb(0);
+        assertThat(store.moveOffHeap(T0 + 2 * HOUR)).isEqualTo(1);
+        assertThat(store.add(copy(event))).isFalse();
+        assertThat(store.getRowCount()).isEqualTo(1);
+        assertThat(count(store.aggregate(plan("login", T0, T0 + HOUR, "time.unknown", List.of("eventCount")), T0))).isEqualTo(1);
+    }
+
+    @Test
+    void evictsWholeHoursBeforeTheCutoffAndStopsAcceptingThem() {
+        load();
+        List<GameEvent> events = new ArrayList<>();
+        for (int hour = 0; hour < 3; hour++) {
+            events.add(event("login", T0 + hour * HOUR, "u" + hour, "d", "{}"));
+            events.add(event("pay", T0 + hour * HOUR + 5, "u" + hour, "d", "{\"amount\":1}"));
+        }
+        store.addAll(events);
+        properties.getMemoryStore().setOffHeapThresholdMb(0);
+        store.moveOffHeap(T0 + HOUR); // Hour 0 moves to direct memory
+        double heapBefore = bytes("heap");
+        assertThat(bytes("direct")).isPositive();
+
+        assertThat(store.evictBefore(T0 + HOUR + 30 * 60_000)).isEqualTo(2);
+
+        assertThat(store.getRowCount()).isEqualTo(4);
+        assertThat(meterRegistry.get("memory.store.rows").gauge().value()).isEqualTo(4);
+        assertThat(bytes("direct")).isZero();
+        assertThat(bytes("heap")).isLessThanOrEqualTo(heapBefore).isPositive();
+        assertThat(store.getCoverageStart()).isEqualTo(T0 + HOUR);
+        assertThat(store.add(event("login", T0 + 10, "late", "d", "{}"))).isFalse();
+        assertThat(store.evictBefore(T0)).isZero();
+
+        AnalysisPlan plan = plan("login", T0, T0 + 3 * HOUR, "time.unknown", List.of("eventCount"));
+        assertThat(store.aggregate(plan, T0)).isNull();
+        assertThat(count(store.aggregate(plan, T0 + HOUR))).isEqualTo(2);
+    }
+
+    @Test
+    void movesClosedHoursOffHeapAndKeepsLateRowsInAnOnHeapTail() {
+        load();
+        List<GameEvent> events = new ArrayList<>(randomEvents(new Random(3), 600, 2 * HOUR));
+        store.addAll(events);
+        properties.getMemoryStore().setOffHeapThresholdMb(0);
+
+        // Only hours that ended before the given time move
+        assertThat(store.moveOffHeap(T0 + HOUR)).isEqualTo(2);
+        double heapAfterMove = bytes("heap");
+        assertThat(bytes("direct")).isPositive();
+
+        List<GameEvent> late = randomEvents(new Random(4), 100, HOUR);
+        store.addAll(late);
+        events.addAll(late);
+        assertThat(bytes("heap")).isGreaterThan(heapAfterMove);
+        assertSameAsRowEvaluation(events, "parameter.level", List.of("eventCount", "uniqueUserCount", "parameter.score@sum"));
+
+        // The tail joins the rows already in direct memory
+        assertThat(store.moveOffHeap(T0 + 2 * HOUR)).isEqualTo(4);
+        assertThat(store.getRowCount()).isEqualTo(events.stream().filter(e -> e.getUserId() != null).count());
+        assertSameAsRowEvaluation(events, "parameter.level", List.of("eventCount", "uniqueUserCount", "parameter.score@sum"));
+    }
+
+    @Test
+    void anAggregationOverlappingARenumberingGivesUp() {
+        load();
+        for (int i = 0; i < 10; i++) {
+            store.add(event("login", T0 + i, "old" + i, "d" + i, "{}"));
+        }
+        store.add(event("login", T0 + HOUR, "a", "d1", "{}"));
+        store.add(event("login", T0 + HOUR + 1, "b", "d1", "{}"));
+        AnalysisPlan plan = plan("login", T0 + HOUR, T0 + 2 * HOUR, "userId", List.of("eventCount", "uniqueUserCount", "deviceId"));
+
+        // The second check runs after the chunks were read: the expired hour's ids are numbered anew in between
+        onTermCheck.add(() -> {
+        });
+        onTermCheck.add(() -> store.evictBefore(T0 + HOUR));
+        assertThat(store.aggregate(plan, T0 + HOUR)).isNull();
+        assertThat(onTermCheck).isEmpty();
+
+        // Rows added after the renumbering get numbers of the new numbering
+        store.add(event("login", T0 + HOUR + 2, "a", "d2", "{}"));
+        store.add(event("login", T0 + HOUR + 3, "c", "d1", "{}"));
+        RecentEventAggregation aggregation = store.aggregate(plan, T0 + HOUR);
+        assertThat(aggregation).isNotNull();
+        assertThat(aggregation.toColumns().toRows()).containsExactly(
+                Map.of("userId", "a", "eventCount", 2L, "uniqueUserCount", 1L, "uniqueDeviceCount", 2L),
+                Map.of("userId", "b", "eventCount", 1L, "uniqueUserCount", 1L, "uniqueDeviceCount", 1L),
+                Map.of("userId", "c", "eventCount", 1L, "uniqueUserCount", 1L, "uniqueDeviceCount", 1L));
+    }
+
+    @Test
+    void answersOnlyWhileNoOtherNodeRanSinceTheLoad() {
+        load();
+        store.add(event("login", T0, "u1", "d1", "{}"));
+        AnalysisPlan plan = plan("login", T0, T0 + HOUR, "time.unknown", List.of("eventCount"));
+        assertThat(store.aggregate(plan, T0)).isNotNull();
+
+        term = -1; // Another node is running
+        assertThat(store.getCoverageStart()).isEqualTo(Long.MAX_VALUE);
+        assertThat(store.aggregate(plan, T0)).isNull();
+
+        term = 2; // Alone again, but the other node may have stored events meanwhile
+        assertThat(store.getCoverageStart()).isEqualTo(Long.MAX_VALUE);
+        assertThat(store.aggregate(plan, T0)).isNull();
+
+        load();
+        assertThat(store.getCoverageStart()).isEqualTo(T0);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"time.unknown", "time.hour", "time.day", "time.week", "time.month", "userId", "deviceId",
+            "parameter.level", "parameter.score", "userProperty.vip"})
+    void aggregatesLikeTheRowEvaluation(String grouping) {
+        properties.setTimeZone("Asia/Shanghai");
+        load();
+        List<GameEvent> events = randomEvents(new Random(grouping.hashCode()), 3000, 72 * HOUR);
+        store.addAll(events.subList(0, 2000));
+        properties.getMemoryStore().setOffHeapThresholdMb(0);
+        store.moveOffHeap(T0 + 48 * HOUR);
+        store.addAll(events.subList(2000, events.size()));
+
+        List<String> calculations = List.of("eventCount", "uniqueUserCount", "deviceId", "parameter.level",
+                "parameter.score@sum", "parameter.score@avg", "parameter.score@min", "parameter.score@max",
+                "userProperty.vip@max", "parameter.name@min");
+        assertSameAsRowEvaluation(events, grouping, calculations);
+        assertSameAsRowEvaluation(events, grouping, calculations,
+                new FilterCondition("parameter.level", ">", 2), new FilterCondition("userProperty.vip", "!=", "true"));
+        assertSameAsRowEvaluation(events, grouping, List.of("eventCount"),
+                new FilterCondition("parameter.name", "contains", "B"), new FilterCondition("deviceId", "isNotNull", null));
+    }
+
+    private void assertSameAsRowEvaluation(List<GameEvent> events, String grouping, List<String> calculations,
+                                           FilterCondition... filters) {
+        // From the middle of an hour, so the first chunk is only partly in range
+        AnalysisPlan plan = plan("login", T0 + HOUR / 2, T0 + 72 * HOUR, grouping, calculations, filters);
+        RowEvaluator evaluator = new RowEvaluator(plan, store.getZone());
+        GroupedAggregation expected = new GroupedAggregation(plan);
+        for (GameEvent event : events) {
+            EventRow row = new ParsedRow(event);
+            if (evaluator.matches(row)) {
+                expected.add(evaluator.groupKey(row), row);
+            }
+        }
+
+        RecentEventAggregation recent = store.aggregate(plan, plan.getStartTime());
+        assertThat(recent).isNotNull();
+        assertThat(recent.toColumns().toRows()).isEqualTo(expected.toColumns().toRows());
+        GroupedAggregation merged = new GroupedAggregation(plan);
+        recent.mergeInto(merged);
+        assertThat(merged.toColumns().toRows()).isEqualTo(expected.toColumns().toRows());
+    }
+
+    private List<GameEvent> randomEvents(Random random, int count, long span) {
+        List<String> names = List.of("\"Alpha\"", "\"beta\"", "\"B12\"", "12", "3.5", "true", "{\"a\":1}", "null");
+        List<GameEvent> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder parameters = new StringBuilder("{");
+            if (random.nextInt(10) > 0) {
+                parameters.append("\"level\":").append(random.nextInt(6)).append(',');
+            }
+            switch (random.nextInt(5)) {
+                // Not a whole number: min/max keep either of two equal values, 3 and 3.0 would depend on the order
+                case 0 -> parameters.append("\"score\":").append(random.nextInt(100) + 0.5).append(',');
+                case 1 -> parameters.append("\"score\":").append(random.nextInt(100)).append(',');
+                case 2 -> parameters.append("\"score\":\"").append(random.nextInt(50)).append("x\",");
+                default -> {
+                }
+            }
+            parameters.append("\"name\":").append(names.get(random.nextInt(names.size()))).append('}');
+            GameEvent event = event(random.nextInt(8) == 0 ? "logout" : "login", T0 + (long) (random.nextDouble() * span),
+                    random.nextInt(30) == 0 ? null : "u" + random.nextInt(40),
+                    random.nextInt(10) == 0 ? null : "d" + random.nextInt(25), parameters.toString());
+            event.setUserProperties(random.nextBoolean() ? "{\"vip\":" + random.nextBoolean() + "}" : "{}");
+            events.add(event);
+        }
+        return events;
+    }
+
+    private void load() {
+        store.finishLoading(store.startLoading(T0));
+    }
+
+    private double bytes(String area) {
+        return meterRegistry.get("memory.store.bytes").tag("area", area).gauge().value();
+    }
+
+    private static long count(RecentEventAggregation aggregation) {
+        return (Long) aggregation.toColumns().toRows().get(0).get("eventCount");
+    }
+
+    private static AnalysisPlan plan(String eventName, long start, long end, String grouping, List<String> calculations,
+                                     FilterCondition... filters) {
+        return AnalysisPlan.parse(new EventAnalysisQuery(start, end, eventName, calculations, grouping, List.of(filters), null));
+    }
+
+    private GameEvent event(String eventName, long timestamp, String userId, String deviceId, String parameters) {
+        GameEvent event = new GameEvent();
+        event.setId(nextId++);
+        event.setEventName(eventName);
+        event.setTimestamp(timestamp);
+        event.setUserId(userId);
+        event.setDeviceId(deviceId);
+        event.setParameters(parameters);
+        event.setUserProperties("{}");
+        return event;
+    }
+
+    private static GameEvent copy(GameEvent event) {
+        GameEvent copy = new GameEvent();
+        copy.setId(event.getId());
+        copy.setEventName(event.getEventName());
+        copy.setTimestamp(event.getTimestamp());
+        copy.setUserId(event.getUserId());
+        copy.setDeviceId(event.getDeviceId());
+        copy.setParameters(event.getParameters());
+        copy.setUserProperties(event.getUserProperties());
+        return copy;
+    }
+
+    /**
+     * A stored event as the archive reads it back, see {@link ColdEventStore#readValue}.
+     */
+    private static final class ParsedRow implements EventRow {
+        private final GameEvent event;
+        private final Map<String, Object> parameters;
+        private final Map<String, Object> userProperties;
+
+        private ParsedRow(GameEvent event) {
+            this.event = event;
+            this.parameters = parse(event.getParameters());
+            this.userProperties = parse(event.getUserProperties());
+        }
+
+        private static Map<String, Object> parse(String json) {
+            Map<String, Object> values = new HashMap<>();
+            try (JsonParser parser = MAPPER.getFactory().createParser(json)) {
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.currentName();
+                    values.put(key, ColdEventStore.readValue(parser, parser.nextToken()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return values;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return event.getTimestamp();
+        }
+
+        @Override
+        public String getEventName() {
+            return event.getEventName();
+        }
+
+        @Override
+        public String getUserId() {
+            return event.getUserId();
+        }
+
+        @Override
+        public String getDeviceId() {
+            return event.getDeviceId();
+        }
+
+        @Override
+        public Object getParameter(String name) {
+            return parameters.get(name);
+        }
+
+        @Override
+        public Object getUserProperty(String name) {
+            return userProperties.get(name);
+        }
+    }
+}
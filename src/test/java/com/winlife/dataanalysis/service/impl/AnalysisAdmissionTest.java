@@ -0,0 +1,90 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.service.DatabaseBusyException;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AnalysisAdmissionTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AnalysisAdmission admission;
+
+    AnalysisAdmissionTest() {
+        AnalysisProperties properties = new AnalysisProperties();
+        properties.getDbConcurrency().setMaxQueries(1);
+        properties.getDbConcurrency().setAcquireTimeoutMs(10000);
+        admission = new AnalysisAdmission(properties, meterRegistry);
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    void admitsDashboardsFirstAndUsersInTurns() throws Exception {
+        List<String> admitted = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        AnalysisAdmission.Permit held = admission.acquire(AnalysisRequest.of("z", AnalysisRequest.Priority.AD_HOC, null));
+        String[][] queries = {{"a", "AD_HOC", "A1"}, {"a", "AD_HOC", "A2"}, {"a", "AD_HOC", "A3"}, {"b", "AD_HOC", "B1"},
+                {"c", "DASHBOARD", "C1"}};
+        for (String[] query : queries) {
+            AnalysisRequest request = AnalysisRequest.of(query[0], AnalysisRequest.Priority.valueOf(query[1]), null);
+            Thread thread = new Thread(() -> {
+                try (AnalysisAdmission.Permit ignored = admission.acquire(request)) {
+                    admitted.add(query[2]);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            awaitWaiting(threads.size());
+        }
+        assertThat(waiting("ad_hoc")).isEqualTo(4);
+        assertThat(waiting("dashboard")).isEqualTo(1);
+
+        held.close();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        assertThat(admitted).containsExactly("C1", "A1", "B1", "A2", "A3");
+        assertThat(gauge("db.concurrency.available")).isEqualTo(1);
+    }
+
+    @Test
+    void givesUpAtTheRequestDeadline() {
+        AnalysisAdmission.Permit held = admission.acquire(AnalysisRequest.of("z", AnalysisRequest.Priority.AD_HOC, null));
+        long start = System.currentTimeMillis();
+
+        assertThatThrownBy(() -> admission.acquire(AnalysisRequest.of("y", AnalysisRequest.Priority.AD_HOC, 200L)))
+                .isInstanceOf(DatabaseBusyException.class);
+
+        assertThat(System.currentTimeMillis() - start).isBetween(150L, 5000L);
+        assertThat(meterRegistry.get("db.concurrency.timeouts").counter().count()).isEqualTo(1);
+        assertThat(gauge("db.concurrency.waiting")).isZero();
+        held.close();
+        held.close(); // Released once
+        assertThat(gauge("db.concurrency.available")).isEqualTo(1);
+    }
+
+    private void awaitWaiting(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (gauge("db.concurrency.waiting") < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(gauge("db.concurrency.waiting")).isEqualTo(count);
+    }
+
+    private double waiting(String priority) {
+        return meterRegistry.get("analysis.admission.waiting").tag("priority", priority).gauge().value();
+    }
+
+    private double gauge(String name) {
+        return meterRegistry.get(name).gauge().value();
+    }
+}
@@ -0,0 +1,156 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.EventAnalysisQuery;
+import com.winlife.dataanalysis.dto.FilterCondition;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.model.ErroredGameEvent;
+import com.winlife.dataanalysis.model.EventSchema;
+import com.winlife.dataanalysis.repository.AnalysisQueryRepository;
+import com.winlife.dataanalysis.repository.DebugGameEventRepository;
+import com.winlife.dataanalysis.repository.ErroredGameEventRepository;
+import com.winlife.dataanalysis.repository.EventSchemaRepository;
+import com.winlife.dataanalysis.repository.GameEventRepository;
+import com.winlife.dataanalysis.repository.PlayerDataRepository;
+import com.winlife.dataanalysis.service.EventRollupService;
+import com.winlife.dataanalysis.service.IndexAdvisor;
+import com.winlife.dataanalysis.service.JsonPathPromoter;
+import com.winlife.dataanalysis.service.SchemaRegistry;
+import com.winlife.dataanalysis.service.analysis.AnalysisPlan;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import com.winlife.dataanalysis.service.analysis.AnalysisResultCache;
+import com.winlife.dataanalysis.service.analysis.AnalysisSql;
+import com.winlife.dataanalysis.service.analysis.ColdEventStore;
+import com.winlife.dataanalysis.service.analysis.PromotedColumns;
+import com.winlife.dataanalysis.service.analysis.RecentEventStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DataIngestionServiceImplTest {
+
+    private final IngestionProperties properties = new IngestionProperties();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final EventSchemaRepository eventSchemaRepository = mock(EventSchemaRepository.class);
+    private final ErroredGameEventRepository erroredGameEventRepository = mock(ErroredGameEventRepository.class);
+    private final GameEventRecordMapper recordMapper = mock(GameEventRecordMapper.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private final JsonPathPromoter jsonPathPromoter = mock(JsonPathPromoter.class);
+    private final RecentEventStore recentEventStore = mock(RecentEventStore.class);
+    private final AnalysisResultCache analysisResultCache = mock(AnalysisResultCache.class);
+    private final AnalysisQueryRepository analysisQueryRepository = mock(AnalysisQueryRepository.class);
+    private final DataIngestionServiceImpl service = new DataIngestionServiceImpl(mock(GameEventRepository.class), eventSchemaRepository,
+            erroredGameEventRepository, mock(DebugGameEventRepository.class), mock(PlayerDataRepository.class), objectMapper,
+            recordMapper, mock(EventBatchWriter.class), mock(PlayerDataWriter.class), mock(EventDeduplicator.class),
+            mock(SchemaRegistry.class), properties, new DatabaseConcurrencyLimiter(properties, new SimpleMeterRegistry()), transactionTemplate,
+            mock(ColdEventStore.class), jsonPathPromoter, mock(IndexAdvisor.class), recentEventStore,
+            mock(EventRollupService.class), analysisResultCache, analysisQueryRepository,
+            mock(AnalysisAdmission.class));
+
+    @Test
+    void anInsertFailingAtCommitMovesTheEventToTheErroredTable() {
+        ErroredGameEvent errored = new ErroredGameEvent();
+        when(recordMapper.toErroredEvent(any(), anyString())).thenReturn(errored);
+        when(erroredGameEventRepository.save(errored)).thenReturn(errored);
+        // The save only queues the insert; it fails when the transaction flushes it
+        when(transactionTemplate.execute(any())).thenThrow(new DataIntegrityViolationException("Data too long for column 'event_name'"));
+
+        GameEventDTO event = new GameEventDTO();
+        event.setEventName("login");
+
+        assertThat(service.processGameEvent(event)).isFalse();
+        verify(recordMapper).toErroredEvent(event, "Failed to save to main game_events table: Data too long for column 'event_name'");
+        verify(erroredGameEventRepository).save(errored);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void streamsTheRowsTheEventAnalysisReturns() {
+        EventAnalysisQuery query = new EventAnalysisQuery(1_700_000_000_000L, 1_700_086_400_000L, "login",
+                List.of("eventCount", "uniqueUserCount", "averageCountPerUser", "parameter.score@sum"), "parameter.level",
+                List.of(new FilterCondition("parameter.vip", "=", true)), null);
+        List<Object[]> rows = rows(AnalysisSql.of(AnalysisPlan.parse(query), PromotedColumns.NONE).getAliases());
+        EventSchema schema = new EventSchema();
+        schema.setEventName("login");
+        when(eventSchemaRepository.findByEventName("login")).thenReturn(Optional.of(schema));
+        when(jsonPathPromoter.columnsFor(any())).thenReturn(PromotedColumns.NONE);
+        // Nothing in the memory store or the cold segments: both the query and the stream read MySQL only
+        when(recentEventStore.getCoverageStart()).thenReturn(Long.MAX_VALUE);
+        when(analysisResultCache.get(any(), any())).thenAnswer(invocation ->
+                invocation.<Function<EventAnalysisQuery, Object>>getArgument(1).apply(invocation.getArgument(0)));
+        when(analysisQueryRepository.query(anyString(), any(), any())).thenReturn(rows);
+        doAnswer(invocation -> {
+            // Like the driver's result set: one array, overwritten for every row
+            Object[] row = new Object[invocation.<Integer>getArgument(2)];
+            for (Object[] next : rows) {
+                System.arraycopy(next, 0, row, 0, row.length);
+                invocation.<Consumer<Object[]>>getArgument(4).accept(row);
+            }
+            return null;
+        }).when(analysisQueryRepository).forEachRow(anyString(), any(), anyInt(), any(), any());
+
+        List<Map<String, Object>> streamed = new ArrayList<>();
+        service.streamEventAnalysis(query, request(), (aliases, values) -> {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < aliases.size(); i++) {
+                row.put(aliases.get(i), values[i]);
+            }
+            streamed.add(row);
+        });
+        List<Map<String, Object>> returned = service.runEventAnalysis(query, request());
+
+        assertThat(returned).hasSize(rows.size());
+        assertThat(returned.get(0)).containsKey("averageCountPerUser");
+        // Compared as the JSON the client gets from either endpoint
+        assertThat(toJson(streamed)).isEqualTo(toJson(returned));
+    }
+
+    /**
+     * @return rows as MySQL returns them for the aliases: a null group, a group without users and big sums
+     */
+    private static List<Object[]> rows(List<String> aliases) {
+        List<Object[]> rows = new ArrayList<>();
+        for (int group = 0; group < 5; group++) {
+            Object[] row = new Object[aliases.size()];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = switch (aliases.get(i)) {
+                    case "eventCount" -> 10L * (group + 1);
+                    case "uniqueUserCount" -> (long) group;
+                    case "parameter_score_sum" -> new BigDecimal("12345678901234567890.5").add(BigDecimal.valueOf(group));
+                    default -> group == 0 ? null : "level" + group;
+                };
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private JsonNode toJson(List<Map<String, Object>> rows) {
+        return objectMapper.valueToTree(rows);
+    }
+
+    private static AnalysisRequest request() {
+        return AnalysisRequest.of("analyst", AnalysisRequest.Priority.AD_HOC, null);
+    }
+}
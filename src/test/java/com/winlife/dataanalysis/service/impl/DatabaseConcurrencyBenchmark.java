@@ -0,0 +1,146 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.winlife.dataanalysis.config.AnalysisProperties;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.service.DatabaseBusyException;
+import com.winlife.dataanalysis.service.analysis.AnalysisRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Ingestion and analysis throughput with 200 platform request threads and no permits, against virtual
+ * threads that take the permits of {@link DatabaseConcurrencyLimiter} and {@link AnalysisAdmission} at their
+ * default budgets. There is no MySQL here: an event write sleeps 3 ms outside the database (body, parsing,
+ * network) and 4 ms holding a connection, an analysis query (5% of the requests) 150 ms holding a connection,
+ * out of a pool of 10 fair connections. Requests arrive at a fixed rate; it only runs on request:
+ * mvn test -Dtest=DatabaseConcurrencyBenchmark -Dbenchmarks=true [-Dbenchmark.rates=600,1200,2500] [-Dbenchmark.seconds=10]
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+class DatabaseConcurrencyBenchmark {
+
+    private static final int CONNECTIONS = 10;
+    private static final int PLATFORM_THREADS = 200;
+    private static final double ANALYSIS_SHARE = 0.05;
+    private static final long INGEST_IO_MS = 3;
+    private static final long INGEST_DB_MS = 4;
+    private static final long ANALYSIS_DB_MS = 150;
+
+    @Test
+    void platformAgainstVirtualThreads() throws InterruptedException {
+        int seconds = Integer.getInteger("benchmark.seconds", 10);
+        System.out.printf("%-11s%-10s%-10s%-19s%-12s%s%n", "arrivals/s", "mode", "ingest/s", "ingest p50/p99 ms", "analysis/s", "503s");
+        long completed = 0;
+        for (String rate : System.getProperty("benchmark.rates", "600,1200,2500").split(",")) {
+            for (boolean virtual : new boolean[]{false, true}) {
+                Result result = run(Integer.parseInt(rate.trim()), seconds, virtual);
+                System.out.printf("%-11s%-10s%-10d%-19s%-12d%d%n", rate.trim(), virtual ? "virtual" : "platform",
+                        result.ingested() / seconds, Math.round(result.ingestP50()) + " / " + Math.round(result.ingestP99()),
+                        result.analyzed() / seconds, result.rejected());
+                completed += result.ingested();
+            }
+        }
+        assertThat(completed).isPositive();
+    }
+
+    private static Result run(int rate, int seconds, boolean virtual) throws InterruptedException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        DatabaseConcurrencyLimiter limiter = new DatabaseConcurrencyLimiter(new IngestionProperties(), meterRegistry);
+        AnalysisAdmission admission = new AnalysisAdmission(new AnalysisProperties(), meterRegistry);
+        Semaphore connections = new Semaphore(CONNECTIONS, true);
+        ExecutorService executor = virtual ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(PLATFORM_THREADS);
+        List<Long> ingestNanos = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong analyzed = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        Random random = new Random(1);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        int sequence = 0;
+        for (long next = start; next < end; next += interval) {
+            while (System.nanoTime() < next) {
+                Thread.onSpinWait();
+            }
+            long arrival = next;
+            boolean analysis = random.nextDouble() < ANALYSIS_SHARE;
+            String user = "u" + sequence++ % 20;
+            executor.execute(() -> {
+                try {
+                    if (analysis) {
+                        if (virtual) {
+                            try (AnalysisAdmission.Permit ignored = admission.acquire(AnalysisRequest.of(user, AnalysisRequest.Priority.AD_HOC, null))) {
+                                useConnection(connections, ANALYSIS_DB_MS);
+                            }
+                        } else {
+                            useConnection(connections, ANALYSIS_DB_MS);
+                        }
+                        if (System.nanoTime() < end) {
+                            analyzed.incrementAndGet();
+                        }
+                        return;
+                    }
+                    Thread.sleep(INGEST_IO_MS);
+                    if (virtual) {
+                        try (DatabaseConcurrencyLimiter.Permit ignored = limiter.acquire(DatabaseConcurrencyLimiter.Pool.WRITE)) {
+                            useConnection(connections, INGEST_DB_MS);
+                        }
+                    } else {
+                        useConnection(connections, INGEST_DB_MS);
+                    }
+                    if (System.nanoTime() < end) {
+                        ingestNanos.add(System.nanoTime() - arrival);
+                    }
+                } catch (DatabaseBusyException e) {
+                    if (System.nanoTime() < end) {
+                        rejected.incrementAndGet(); // Answered 503; not the waiters interrupted at the end
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        // Requests still queued at the end are not counted
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        List<Long> latencies;
+        synchronized (ingestNanos) {
+            latencies = new ArrayList<>(ingestNanos);
+        }
+        Collections.sort(latencies);
+        return new Result(latencies.size(), percentileMillis(latencies, 0.5), percentileMillis(latencies, 0.99),
+                analyzed.get(), rejected.get());
+    }
+
+    private static void useConnection(Semaphore connections, long millis) throws InterruptedException {
+        connections.acquire();
+        try {
+            Thread.sleep(millis);
+        } finally {
+            connections.release();
+        }
+    }
+
+    private static double percentileMillis(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, sorted.size() * percentile)) / 1e6;
+    }
+
+    private record Result(long ingested, double ingestP50, double ingestP99, long analyzed, long rejected) {
+    }
+}
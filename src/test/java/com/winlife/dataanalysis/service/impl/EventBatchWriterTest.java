@@ -0,0 +1,94 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.model.ErroredGameEvent;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventBatchRepository;
+import com.winlife.dataanalysis.service.EventRollupService;
+import com.winlife.dataanalysis.service.analysis.AnalysisResultCache;
+import com.winlife.dataanalysis.service.analysis.RecentEventStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class EventBatchWriterTest {
+
+    private final EventBatchRepository eventBatchRepository = mock(EventBatchRepository.class);
+    private final GameEventRecordMapper recordMapper = mock(GameEventRecordMapper.class);
+    private final PlayerDataWriter playerDataWriter = mock(PlayerDataWriter.class);
+    private final RecentEventStore recentEventStore = mock(RecentEventStore.class);
+    private final AnalysisResultCache analysisResultCache = mock(AnalysisResultCache.class);
+    private final EventBatchWriter writer;
+
+    EventBatchWriterTest() {
+        IngestionProperties properties = new IngestionProperties();
+        properties.getDedup().setEnabled(false);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        writer = new EventBatchWriter(eventBatchRepository, recordMapper, playerDataWriter,
+                new EventDeduplicator(eventBatchRepository, properties, meterRegistry),
+                mock(DatabaseLatencyTracker.class), new DatabaseConcurrencyLimiter(properties, meterRegistry),
+                recentEventStore, analysisResultCache, mock(EventRollupService.class), mock(TransactionTemplate.class));
+        when(recordMapper.toErroredEvent(any(), anyString())).thenAnswer(invocation -> new ErroredGameEvent());
+    }
+
+    @Test
+    void aFailureAfterTheInsertDoesNotReportStoredEventsAsFailed() {
+        doThrow(new IllegalStateException("store full")).when(recentEventStore).addAll(any());
+
+        assertThat(writer.write(batch())).isNull();
+
+        verify(playerDataWriter).update(eq("u1"), eq("d1"), any(String.class));
+        verify(eventBatchRepository).insertErroredEvents(List.of(), false);
+    }
+
+    @Test
+    void aFailedInsertMovesTheEventsToTheErroredTable() {
+        doThrow(new DataIntegrityViolationException("bad row")).when(eventBatchRepository).insertGameEvents(any(), anyBoolean());
+
+        assertThat(writer.write(batch())).startsWith("Failed to save to main game_events table");
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ErroredGameEvent>> errored = ArgumentCaptor.forClass(List.class);
+        verify(eventBatchRepository).insertErroredEvents(errored.capture(), eq(false));
+        assertThat(errored.getValue()).hasSize(1);
+        verify(recentEventStore, never()).addAll(any());
+    }
+
+    @Test
+    void onlyRowsReplayedFromTheWalAreInsertedIdempotently() {
+        writer.write(batch());
+        verify(eventBatchRepository).insertGameEvents(any(), eq(false));
+
+        writer.writeOrThrowTransient(batch());
+        verify(eventBatchRepository).insertGameEvents(any(), eq(true));
+    }
+
+    private static EventBatchWriter.Batch batch() {
+        GameEventDTO source = new GameEventDTO();
+        source.setEventName("login");
+        GameEvent event = new GameEvent();
+        event.setUserId("u1");
+        event.setDeviceId("d1");
+        event.setEventName("login");
+        event.setUserProperties("{}");
+        EventBatchWriter.Batch batch = new EventBatchWriter.Batch();
+        batch.addGameEvent(source, event);
+        return batch;
+    }
+}
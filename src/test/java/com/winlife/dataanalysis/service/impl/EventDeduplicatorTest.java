@@ -0,0 +1,108 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.GameEvent;
+import com.winlife.dataanalysis.repository.EventBatchRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class EventDeduplicatorTest {
+
+    private final EventBatchRepository repository = mock(EventBatchRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void newIdsCostNoDatabaseLookup() {
+        EventDeduplicator deduplicator = new EventDeduplicator(repository, new IngestionProperties(), meterRegistry);
+
+        try (EventDeduplicator.Claim claim = deduplicator.findDuplicates(events("a", "b", "a", null))) {
+            assertThat(claim.getDuplicates()).containsExactly(false, false, true, false);
+        }
+        verify(repository, never()).findExistingEventIds(any());
+    }
+
+    @Test
+    void keepsAnEventTheFilterOnlyMightHaveSeen() {
+        // A filter sized for one id per generation is saturated by the ids below and matches any other
+        IngestionProperties properties = new IngestionProperties();
+        properties.getDedup().setGenerations(2);
+        properties.getDedup().setExpectedEventsPerWindow(1);
+        EventDeduplicator deduplicator = new EventDeduplicator(repository, properties, meterRegistry);
+        for (int i = 0; i < 1000; i++) {
+            deduplicator.findDuplicates(events("seen-" + i)).close();
+        }
+        when(repository.findExistingEventIds(any())).thenReturn(Set.of());
+        double falsePositives = meterRegistry.counter("ingestion.dedup.false.positives").count();
+
+        try (EventDeduplicator.Claim claim = deduplicator.findDuplicates(events("never-stored"))) {
+            assertThat(claim.getDuplicates()).containsExactly(false);
+        }
+        verify(repository).findExistingEventIds(Set.of("never-stored"));
+        assertThat(meterRegistry.counter("ingestion.dedup.false.positives").count()).isEqualTo(falsePositives + 1);
+    }
+
+    @Test
+    void dropsARetryOfAStoredEvent() {
+        EventDeduplicator deduplicator = new EventDeduplicator(repository, new IngestionProperties(), meterRegistry);
+        deduplicator.findDuplicates(events("a")).close();
+        when(repository.findExistingEventIds(any())).thenReturn(Set.of("a"));
+
+        assertThat(deduplicator.isDuplicate("a")).isTrue();
+    }
+
+    @Test
+    void retryWaitsForTheOriginalWriteToCommit() throws Exception {
+        EventDeduplicator deduplicator = new EventDeduplicator(repository, new IngestionProperties(), meterRegistry);
+        EventDeduplicator.Claim original = deduplicator.findDuplicates(events("a"));
+        assertThat(original.getDuplicates()).containsExactly(false);
+
+        CompletableFuture<boolean[]> retry = CompletableFuture.supplyAsync(() -> {
+            try (EventDeduplicator.Claim claim = deduplicator.findDuplicates(events("a"))) {
+                return claim.getDuplicates();
+            }
+        });
+        assertThatThrownBy(() -> retry.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+        when(repository.findExistingEventIds(any())).thenReturn(Set.of("a")); // The original committed
+        original.close();
+        assertThat(retry.get(5, TimeUnit.SECONDS)).containsExactly(true);
+    }
+
+    @Test
+    void retryIsStoredWhenTheOriginalWriteFailed() throws Exception {
+        EventDeduplicator deduplicator = new EventDeduplicator(repository, new IngestionProperties(), meterRegistry);
+        EventDeduplicator.Claim original = deduplicator.findDuplicates(events("a"));
+        CompletableFuture<boolean[]> retry = CompletableFuture.supplyAsync(() -> {
+            try (EventDeduplicator.Claim claim = deduplicator.findDuplicates(events("a"))) {
+                return claim.getDuplicates();
+            }
+        });
+
+        when(repository.findExistingEventIds(any())).thenReturn(Set.of());
+        original.close();
+        assertThat(retry.get(5, TimeUnit.SECONDS)).containsExactly(false);
+    }
+
+    private static List<GameEvent> events(String... eventIds) {
+        return Arrays.stream(eventIds).map(eventId -> {
+            GameEvent event = new GameEvent();
+            event.setEventId(eventId);
+            return event;
+        }).toList();
+    }
+}
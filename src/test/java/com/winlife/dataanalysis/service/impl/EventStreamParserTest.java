@@ -0,0 +1,243 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.dto.GameEventDTO;
+import com.winlife.dataanalysis.repository.AnalysisQueryRepository;
+import com.winlife.dataanalysis.repository.DebugGameEventRepository;
+import com.winlife.dataanalysis.repository.ErroredGameEventRepository;
+import com.winlife.dataanalysis.repository.EventSchemaRepository;
+import com.winlife.dataanalysis.repository.GameEventRepository;
+import com.winlife.dataanalysis.repository.PlayerDataRepository;
+import com.winlife.dataanalysis.service.CompiledSchema;
+import com.winlife.dataanalysis.service.EventRollupService;
+import com.winlife.dataanalysis.service.IndexAdvisor;
+import com.winlife.dataanalysis.service.JsonPathPromoter;
+import com.winlife.dataanalysis.service.SchemaRegistry;
+import com.winlife.dataanalysis.service.analysis.AnalysisResultCache;
+import com.winlife.dataanalysis.service.analysis.ColdEventStore;
+import com.winlife.dataanalysis.service.analysis.RecentEventStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Lines are written with single quotes for readability and turned into JSON by {@link #json(String)}.
+ */
+class EventStreamParserTest {
+
+    // Configured like the application's mapper, which ignores unknown properties
+    private final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final SchemaRegistry schemaRegistry = mock(SchemaRegistry.class);
+    private final EventStreamParser parser = new EventStreamParser(schemaRegistry, objectMapper);
+    private DataIngestionServiceImpl service;
+
+    @BeforeEach
+    void setUp() {
+        Map<String, CompiledSchema> eventSchemas = Map.of(
+                "login", CompiledSchema.compile(json("{'level':{'type':'integer','required':true},'score':'float','name':'string',"
+                        + "'vip':'boolean','channel':{'type':'string','required':true}}"), "Event Parameter", objectMapper),
+                "logout", CompiledSchema.compile("{}", "Event Parameter", objectMapper),
+                "odd", CompiledSchema.compile(json("{'at':'date','bad':42}"), "Event Parameter", objectMapper));
+        when(schemaRegistry.getEventSchema(anyString())).thenAnswer(invocation -> eventSchemas.get(invocation.<String>getArgument(0)));
+        when(schemaRegistry.getUserPropertySchema()).thenReturn(CompiledSchema.compile(
+                json("{'country':{'type':'string','required':true},'age':'integer'}"), "User Property", objectMapper));
+
+        // The batch endpoint's validation of the data bound event is the reference
+        IngestionProperties properties = new IngestionProperties();
+        service = new DataIngestionServiceImpl(mock(GameEventRepository.class), mock(EventSchemaRepository.class),
+                mock(ErroredGameEventRepository.class), mock(DebugGameEventRepository.class), mock(PlayerDataRepository.class), objectMapper,
+                mock(GameEventRecordMapper.class), mock(EventBatchWriter.class), mock(PlayerDataWriter.class), mock(EventDeduplicator.class),
+                schemaRegistry, properties, new DatabaseConcurrencyLimiter(properties, new SimpleMeterRegistry()), mock(TransactionTemplate.class),
+                mock(ColdEventStore.class), mock(JsonPathPromoter.class), mock(IndexAdvisor.class), mock(RecentEventStore.class),
+                mock(EventRollupService.class), mock(AnalysisResultCache.class), mock(AnalysisQueryRepository.class),
+                mock(AnalysisAdmission.class));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            // Valid, then every kind of parameter error
+            "{'eventName':'login','parameters':{'level':3,'channel':'ios','score':1.5,'name':'a','vip':true},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3,'channel':'ios'},'userProperties':{'country':'CN','age':30}}",
+            "{'eventName':'login','parameters':{'channel':'ios'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':null,'channel':'ios'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3,'channel':'ios','name':null},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3.0,'channel':'ios'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3,'channel':'ios','score':2},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':12345678901,'channel':'ios'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':123456789012345678901234567890,'channel':'ios'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':'3','channel':'ios'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3,'channel':{'os':'ios'}},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3,'channel':['ios']},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3,'channel':'ios','vip':'yes'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{'level':3,'channel':'ios','extra':1},'userProperties':{'country':'CN'}}",
+            // Parameters null, empty or absent
+            "{'eventName':'login','parameters':null,'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','parameters':{},'userProperties':{'country':'CN'}}",
+            "{'eventName':'login','userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','parameters':null,'userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','parameters':{},'userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','parameters':{'level':3,'tags':[1,{'a':null}]},'userProperties':{'country':'CN'}}",
+            // Malformed definitions are reported once hit
+            "{'eventName':'odd','parameters':{'at':'2025-01-01'},'userProperties':{'country':'CN'}}",
+            "{'eventName':'odd','parameters':{'at':null,'bad':1},'userProperties':{'country':'CN'}}",
+            "{'eventName':'odd','parameters':{},'userProperties':{'country':'CN'}}",
+            // Unknown or missing event names
+            "{'eventName':'unknown','parameters':{'level':3},'userProperties':{'country':'CN'}}",
+            "{'eventName':'','parameters':{'level':3},'userProperties':{'country':'CN'}}",
+            "{'eventName':null,'parameters':{'level':3}}",
+            "{'parameters':{'level':3}}",
+            "{'eventId':'xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx','eventName':'logout'}",
+            // User properties null, absent or invalid, alone and together with a parameter error
+            "{'eventName':'logout','userProperties':null}",
+            "{'eventName':'logout'}",
+            "{'eventName':'logout','userProperties':{'country':null}}",
+            "{'eventName':'logout','userProperties':{'country':'CN','age':'30'}}",
+            "{'eventName':'logout','userProperties':{'country':'CN','age':null}}",
+            "{'eventName':'logout','userProperties':{'country':'CN','city':'x'}}",
+            "{'eventName':'login','parameters':{'level':'3'},'userProperties':{'age':30}}",
+            // Unknown top level properties are ignored
+            "{'eventName':'logout','unknown':{'a':[1,2]},'userProperties':{'country':'CN'}}"
+    })
+    void validatesLikeTheBatchEndpoint(String line) throws IOException {
+        String json = json(line);
+
+        EventStreamParser.ParsedEvent parsed = parse(json);
+
+        assertThat(parsed.isValidated()).isTrue();
+        assertThat(parsed.getValidationError()).isEqualTo(service.validateGameEvent(objectMapper.readValue(json, GameEventDTO.class)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "{'parameters':{'level':3,'channel':'ios'},'eventName':'login','userProperties':{'country':'CN'}}",
+            "{'parameters':{'channel':'ios'},'eventName':'login','userProperties':{'country':'CN'}}",
+            "{'parameters':{'level':'3','channel':'ios'},'userProperties':{'country':'CN'},'eventName':'login'}",
+            "{'parameters':{'level':3,'channel':'ios','extra':{'a':[1]}},'eventName':'login','userProperties':{'country':'CN'}}",
+            "{'parameters':null,'eventName':'login','userProperties':{'country':'CN'}}",
+            "{'parameters':{'level':3},'eventName':'logout','userProperties':{'country':'CN'}}",
+            "{'parameters':{'level':3},'eventName':'unknown','userProperties':{'country':'CN'}}"
+    })
+    void scansTheParametersAgainWhenTheEventNameComesLater(String line) throws IOException {
+        String json = json(line);
+
+        EventStreamParser.ParsedEvent parsed = parse(json);
+
+        assertThat(parsed.isValidated()).isTrue();
+        assertThat(parsed.getValidationError()).isEqualTo(service.validateGameEvent(objectMapper.readValue(json, GameEventDTO.class)));
+    }
+
+    @Test
+    void keepsTheExactBytesOfParametersAndUserProperties() throws IOException {
+        String parameters = "{ \"level\" : 3,\"channel\":\"安卓 \\\"}{\\\" \",\"name\":\"\\u00e9\" }";
+        String userProperties = "{\"country\":\"中国\",\"age\":30}";
+        // Multi-byte characters ahead of both objects: the slices are byte offsets, not char offsets
+        String line = "{\"userId\":\"玩家一\",\"parameters\":" + parameters + ",\"eventName\":\"login\",\"deviceId\":\"é\","
+                + "\"userProperties\":" + userProperties + "}";
+
+        EventStreamParser.ParsedEvent parsed = parse(line);
+
+        assertThat(parsed.getValidationError()).isNull();
+        assertThat(parsed.getEvent().getRawParameters()).isEqualTo(parameters);
+        assertThat(parsed.getEvent().getRawUserProperties()).isEqualTo(userProperties);
+        assertThat(parsed.getEvent().getUserId()).isEqualTo("玩家一");
+        assertThat(parsed.getEvent().getParameters()).isNull();
+    }
+
+    @Test
+    void parsesOnlyTheGivenLengthOfTheBuffer() throws IOException {
+        byte[] line = json("{'eventName':'logout','timestamp':1700000000000,'isDebug':1,'parameters':{},'userProperties':{'country':'CN'}}")
+                .getBytes(StandardCharsets.UTF_8);
+        // A reused read buffer: the rest is left over from a longer line
+        byte[] buffer = Arrays.copyOf(line, line.length + 64);
+        Arrays.fill(buffer, line.length, buffer.length, (byte) '}');
+
+        EventStreamParser.ParsedEvent parsed = parser.parse(buffer, line.length);
+
+        assertThat(parsed.getValidationError()).isNull();
+        assertThat(parsed.getEvent().getTimestamp()).isEqualTo(1700000000000L);
+        assertThat(parsed.getEvent().getIsDebug()).isEqualTo(1);
+        assertThat(parsed.getEvent().getRawUserProperties()).isEqualTo("{\"country\":\"CN\"}");
+    }
+
+    @Test
+    void storesNullForNullOrAbsentObjects() throws IOException {
+        EventStreamParser.ParsedEvent absent = parse(json("{'eventName':'logout'}"));
+        EventStreamParser.ParsedEvent nulls = parse(json("{'eventName':'logout','parameters':null,'userProperties':null}"));
+
+        for (EventStreamParser.ParsedEvent parsed : new EventStreamParser.ParsedEvent[]{absent, nulls}) {
+            assertThat(parsed.getEvent().getRawParameters()).isEqualTo("null");
+            assertThat(parsed.getEvent().getRawUserProperties()).isEqualTo("null");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "{'eventName':'logout','timestamp':'1700000000000','userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','timestamp':1.7E12,'userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','userId':42,'userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','isDebug':'1','userProperties':{'country':'CN'}}",
+            "{'eventName':'logout','isDebug':1.0,'userProperties':{'country':'CN'}}"
+    })
+    void bindsUnusualHeaderShapesWithTheObjectMapper(String line) throws IOException {
+        String json = json(line);
+
+        EventStreamParser.ParsedEvent parsed = parse(json);
+
+        // Bound exactly as by the batch endpoint, validation is left to the caller
+        assertThat(parsed.isValidated()).isFalse();
+        assertThat(parsed.getValidationError()).isNull();
+        assertThat(parsed.getEvent()).isEqualTo(objectMapper.readValue(json, GameEventDTO.class));
+        assertThat(parsed.getEvent().getUserProperties()).containsEntry("country", "CN");
+        assertThat(parsed.getEvent().getRawUserProperties()).isNull();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "[{'eventName':'logout'}]",
+            "{'eventName':'logout','parameters':[1,2]}",
+            "{'eventName':'logout','userProperties':'CN'}",
+            "{'eventName':'logout','timestamp':'yesterday'}",
+            "{'eventName':'logout','isDebug':true}",
+            "{'eventName':'logout'"
+    })
+    void rejectsWhatTheBatchEndpointRejects(String line) {
+        String json = json(line);
+
+        assertThatThrownBy(() -> objectMapper.readValue(json, GameEventDTO.class)).isInstanceOf(JsonProcessingException.class);
+        assertThatThrownBy(() -> parse(json)).isInstanceOf(JsonProcessingException.class);
+    }
+
+    @Test
+    void rejectsMoreThanOneEventPerLine() {
+        assertThatThrownBy(() -> parse(json("{'eventName':'logout'} {'eventName':'logout'}")))
+                .isInstanceOf(JsonProcessingException.class)
+                .hasMessageContaining("Expected a single event per line");
+    }
+
+    private EventStreamParser.ParsedEvent parse(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return parser.parse(bytes, bytes.length);
+    }
+
+    private static String json(String singleQuoted) {
+        return singleQuoted.replace('\'', '"');
+    }
+}
@@ -0,0 +1,96 @@
+package com.winlife.dataanalysis.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.winlife.dataanalysis.config.IngestionProperties;
+import com.winlife.dataanalysis.model.PlayerData;
+import com.winlife.dataanalysis.repository.PlayerDataBatchRepository;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class PlayerDataWriterTest {
+
+    private final PlayerDataBatchRepository repository = mock(PlayerDataBatchRepository.class);
+    private final PlayerDataWriter writer = new PlayerDataWriter(repository, new ObjectMapper(), new IngestionProperties());
+
+    @Test
+    void keepsTheUpdateVisibleWhileTheUpsertRuns() {
+        List<Optional<PlayerData>> seenDuringUpsert = new ArrayList<>();
+        doAnswer(invocation -> {
+            seenDuringUpsert.add(writer.getPending("u1"));
+            return null;
+        }).when(repository).upsertAll(any());
+
+        writer.update("u1", "d1", "{\"level\":2}");
+        writer.flush();
+
+        assertThat(seenDuringUpsert).hasSize(1);
+        assertThat(seenDuringUpsert.get(0)).get().extracting(PlayerData::getUserProperties).isEqualTo("{\"level\":2}");
+        assertThat(writer.getPending("u1")).isEmpty();
+    }
+
+    @Test
+    void keepsTheUpdatePendingWhenTheUpsertFails() {
+        doThrow(new IllegalStateException("database down")).when(repository).upsertAll(any());
+
+        writer.update("u1", "d1", "{\"level\":2}");
+        writer.flush();
+
+        assertThat(writer.getPending("u1")).get().extracting(PlayerData::getUserProperties).isEqualTo("{\"level\":2}");
+    }
+
+    @Test
+    void skipsUnchangedPropertiesAfterTheyWereWritten() {
+        writer.update("u1", "d1", "{\"level\":2}");
+        writer.flush();
+        writer.update("u1", "d1", "{\"level\":2}");
+        writer.flush();
+
+        verify(repository, times(1)).upsertAll(any());
+    }
+
+    @Test
+    void keepsTheLatestReceivedUpdateAndWritesItsReceiveTime() throws InterruptedException {
+        List<PlayerData> written = new ArrayList<>();
+        doAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return null;
+        }).when(repository).upsertAll(any());
+
+        long before = System.currentTimeMillis();
+        writer.update("u1", "d1", "{\"level\":2}");
+        Thread.sleep(2);
+        writer.update("u1", "d1", "{\"level\":3}");
+        writer.flush();
+
+        // The upsert compares last_updated_timestamp, so it must be the same clock that picked the winner
+        assertThat(written).singleElement().satisfies(row -> {
+            assertThat(row.getUserProperties()).isEqualTo("{\"level\":3}");
+            assertThat(row.getLastUpdatedTimestamp()).isBetween(before, System.currentTimeMillis());
+        });
+    }
+
+    @Test
+    void doesNotPutAFailedUpdateBackOverANewerOne() throws InterruptedException {
+        doAnswer(invocation -> {
+            Thread.sleep(2);
+            writer.update("u1", "d1", "{\"level\":3}");
+            throw new IllegalStateException("database down");
+        }).when(repository).upsertAll(any());
+
+        writer.update("u1", "d1", "{\"level\":2}");
+        writer.flush();
+
+        assertThat(writer.getPending("u1")).get().extracting(PlayerData::getUserProperties).isEqualTo("{\"level\":3}");
+    }
+}
@@ -0,0 +1,81 @@
+package com.winlife.dataanalysis.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BoundedRingBufferTest {
+
+    @Test
+    void failsFastWhenFullAndKeepsTheOrderAcrossTheWrapAround() throws InterruptedException {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(3);
+        List<Integer> drained = new ArrayList<>();
+
+        for (int round = 0; round < 4; round++) {
+            assertThat(buffer.offer(round * 3)).isTrue();
+            assertThat(buffer.offer(round * 3 + 1)).isTrue();
+            assertThat(buffer.offer(round * 3 + 2)).isTrue();
+            assertThat(buffer.offer(-1)).isFalse();
+            assertThat(buffer.size()).isEqualTo(3);
+            // Drain in uneven chunks so head and tail wrap at different slots
+            assertThat(buffer.drainTo(drained, 2, 0, TimeUnit.MILLISECONDS)).isEqualTo(2);
+            assertThat(buffer.drainTo(drained, 5, 0, TimeUnit.MILLISECONDS)).isEqualTo(1);
+        }
+
+        assertThat(drained).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+        assertThat(buffer.isEmpty()).isTrue();
+    }
+
+    @Test
+    void waitsForSpaceOnlyUpToTheTimeout() throws Exception {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(1);
+        buffer.offer(1);
+
+        assertThat(buffer.offer(2, 20, TimeUnit.MILLISECONDS)).isFalse();
+
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return buffer.offer(3, 5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        List<Integer> drained = new ArrayList<>();
+        buffer.drainTo(drained, 1, 0, TimeUnit.MILLISECONDS);
+
+        assertThat(waiting.get(5, TimeUnit.SECONDS)).isTrue();
+        buffer.drainTo(drained, 1, 0, TimeUnit.MILLISECONDS);
+        assertThat(drained).containsExactly(1, 3);
+    }
+
+    @Test
+    void waitsForTheFirstElementOnlyUpToTheTimeout() throws Exception {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(4);
+        List<Integer> drained = new ArrayList<>();
+
+        assertThat(buffer.drainTo(drained, 4, 20, TimeUnit.MILLISECONDS)).isZero();
+
+        CompletableFuture<Integer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return buffer.drainTo(drained, 4, 5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        buffer.offer(7);
+
+        assertThat(waiting.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(drained).containsExactly(7);
+    }
+
+    @Test
+    void rejectsANonPositiveCapacity() {
+        assertThatThrownBy(() -> new BoundedRingBuffer<>(0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,176 @@
+package com.winlife.dataanalysis.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ColumnarSegmentTest {
+
+    private static final int ROWS = 250;
+    private static final int ROW_GROUP_SIZE = 100;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasWritten() throws IOException {
+        Path file = directory.resolve("a.seg");
+        List<Object[]> rows = write(file);
+
+        ColumnarSegment.Footer footer = ColumnarSegment.readFooter(file);
+        assertThat(footer.metadata()).containsEntry("source", "test").containsEntry("rows", "250");
+        assertThat(footer.rowCount()).isEqualTo(ROWS);
+        assertThat(footer.rowGroups()).extracting(ColumnarSegment.RowGroup::rowCount).containsExactly(100, 100, 50);
+
+        try (ColumnarSegment.Reader reader = ColumnarSegment.Reader.open(file, footer)) {
+            int row = 0;
+            for (ColumnarSegment.RowGroup rowGroup : footer.rowGroups()) {
+                long[] ids = reader.readLongs(rowGroup, "id");
+                long[] timestamps = reader.readLongs(rowGroup, "timestamp");
+                ColumnarSegment.ValueColumn names = reader.readValues(rowGroup, "name");
+                ColumnarSegment.ValueColumn values = reader.readValues(rowGroup, "value");
+                for (int i = 0; i < rowGroup.rowCount(); i++, row++) {
+                    assertThat(new Object[]{ids[i], timestamps[i], names.get(i), values.get(i)}).isEqualTo(rows.get(row));
+                }
+            }
+        }
+    }
+
+    @Test
+    void deltaEncodesLongsAndDictionaryEncodesValues() throws IOException {
+        Path file = directory.resolve("a.seg");
+        write(file);
+
+        ColumnarSegment.RowGroup first = ColumnarSegment.readFooter(file).rowGroups().get(0);
+        // Ascending ids: one byte per row instead of eight
+        assertThat(first.columns().get("id").rawLength()).isEqualTo(ROW_GROUP_SIZE);
+        // Three names: the dictionary once, then a one byte index per row
+        ColumnarSegment.ColumnMeta names = first.columns().get("name");
+        assertThat(names.dictionarySize()).isEqualTo(3);
+        assertThat(names.dictionary()).containsExactly("login", "pay", "logout");
+        assertThat(names.rawLength()).isLessThan(ROW_GROUP_SIZE + 32);
+    }
+
+    @Test
+    void keepsMinMaxAndSmallDictionariesInTheFooter() throws IOException {
+        Path file = directory.resolve("a.seg");
+        write(file);
+
+        List<ColumnarSegment.RowGroup> rowGroups = ColumnarSegment.readFooter(file).rowGroups();
+        ColumnarSegment.ColumnMeta timestamps = rowGroups.get(1).columns().get("timestamp");
+        assertThat(timestamps.minLong()).isEqualTo(timestamp(100));
+        assertThat(timestamps.maxLong()).isEqualTo(timestamp(199));
+        assertThat(rowGroups.get(0).columns().get("id").minLong()).isEqualTo(-50);
+
+        // Numbers of mixed types; texts, booleans and JSON do not count
+        ColumnarSegment.ColumnMeta values = rowGroups.get(0).columns().get("value");
+        assertThat(values.minNumber()).isEqualTo(-0.5);
+        assertThat(values.maxNumber()).isEqualTo(96.0);
+        // 64 distinct values at most are repeated in the footer
+        assertThat(values.dictionarySize()).isGreaterThan(64);
+        assertThat(values.dictionary()).isNull();
+        // A column no row of the row group has is not stored
+        assertThat(rowGroups.get(2).columns()).doesNotContainKey("rare");
+        assertThat(rowGroups.get(0).columns()).containsKey("rare");
+    }
+
+    @Test
+    void rejectsATornFile() throws IOException {
+        Path file = directory.resolve("a.seg");
+        write(file);
+        byte[] bytes = Files.readAllBytes(file);
+
+        for (int length : new int[]{0, 3, bytes.length / 2, bytes.length - 4, bytes.length - 1}) {
+            Path torn = directory.resolve("torn-" + length + ".seg");
+            Files.write(torn, Arrays.copyOf(bytes, length));
+            assertThatThrownBy(() -> ColumnarSegment.readFooter(torn)).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    void rejectsATruncatedOrCorruptChunk() throws IOException {
+        Path file = directory.resolve("a.seg");
+        write(file);
+        ColumnarSegment.Footer footer = ColumnarSegment.readFooter(file);
+        ColumnarSegment.RowGroup last = footer.rowGroups().get(2);
+        ColumnarSegment.ColumnMeta names = footer.rowGroups().get(0).columns().get("name");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(names.length()), names.offset());
+        }
+        try (ColumnarSegment.Reader reader = ColumnarSegment.Reader.open(file, footer)) {
+            assertThatThrownBy(() -> reader.readValues(footer.rowGroups().get(0), "name")).isInstanceOf(IOException.class);
+            assertThat(reader.readLongs(footer.rowGroups().get(0), "id")).hasSize(ROW_GROUP_SIZE);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(last.columns().get("timestamp").offset() + 1);
+        }
+        try (ColumnarSegment.Reader reader = ColumnarSegment.Reader.open(file, footer)) {
+            assertThatThrownBy(() -> reader.readLongs(last, "timestamp")).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    void requiresLongColumnsInEveryRow() throws IOException {
+        try (ColumnarSegment.Writer writer = new ColumnarSegment.Writer(directory.resolve("a.seg"), 10, Map.of())) {
+            writer.setLong("id", 1);
+            writer.endRow();
+            writer.setValue("name", "x");
+            writer.endRow();
+
+            assertThatThrownBy(writer::finish).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    /**
+     * @return the rows written: id, timestamp, name, value
+     */
+    private static List<Object[]> write(Path file) throws IOException {
+        List<Object[]> rows = new ArrayList<>();
+        List<String> names = List.of("login", "pay", "logout");
+        try (ColumnarSegment.Writer writer = new ColumnarSegment.Writer(file, ROW_GROUP_SIZE, Map.of("source", "test"))) {
+            for (int i = 0; i < ROWS; i++) {
+                long id = i - 50L;
+                Object value = switch (i % 6) {
+                    case 0 -> (long) i;
+                    case 1 -> i / 2.0 - 1;
+                    case 2 -> "text" + i;
+                    case 3 -> i % 4 == 1;
+                    case 4 -> new ColumnarSegment.RawJson("{\"a\":" + i + "}");
+                    default -> null;
+                };
+                writer.setLong("id", id);
+                writer.setLong("timestamp", timestamp(i));
+                writer.setValue("name", names.get(i % 3));
+                writer.setValue("value", value);
+                if (i < 150) {
+                    writer.setValue("rare", "r");
+                }
+                writer.endRow();
+                rows.add(new Object[]{id, timestamp(i), names.get(i % 3), value});
+            }
+            writer.putMetadata("rows", Long.toString(writer.getRowCount()));
+            writer.finish();
+        }
+        return rows;
+    }
+
+    private static long timestamp(int row) {
+        // Roughly ascending, with jumps back
+        return 1_700_000_000_000L + row * 1000L - (row % 7 == 0 ? 5000 : 0);
+    }
+}
@@ -0,0 +1,106 @@
+package com.winlife.dataanalysis.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HyperLogLogTest {
+
+    private static final int RANK_BITS = 64 - HyperLogLog.PRECISION;
+
+    @Test
+    void hashIsTheUnsignedBigintMySqlComputes() throws Exception {
+        for (String text : new String[]{"", "u1", "玩家-42", "user-1234567890"}) {
+            // CAST(CONV(LEFT(MD5(text), 16), 16, 10) AS UNSIGNED)
+            String md5 = HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8)));
+            assertThat(HyperLogLog.hash(text)).isEqualTo(new BigInteger(md5.substring(0, 16), 16).longValue());
+        }
+        assertThat(HyperLogLog.sqlHash("ge.user_id")).isEqualTo("CAST(CONV(LEFT(MD5(ge.user_id), 16), 16, 10) AS UNSIGNED)");
+    }
+
+    @Test
+    void sqlRegisterAndRankMatchTheSketch() {
+        assertThat(HyperLogLog.sqlRegister("h")).isEqualTo("(h >> " + RANK_BITS + ")");
+        assertThat(HyperLogLog.sqlRank("h")).isEqualTo("IF((h & " + ((1L << RANK_BITS) - 1) + ") = 0, " + (RANK_BITS + 1) + ", "
+                + (RANK_BITS + 1) + " - LENGTH(BIN((h & " + ((1L << RANK_BITS) - 1) + "))))");
+
+        Random random = new Random(1);
+        for (int i = 0; i < 20_000; i++) {
+            long hash = i == 0 ? 1L << RANK_BITS : random.nextLong() >>> random.nextInt(64);
+            // What MySQL evaluates over the unsigned hash
+            BigInteger unsigned = new BigInteger(Long.toUnsignedString(hash));
+            int register = unsigned.shiftRight(RANK_BITS).intValue();
+            BigInteger rest = unsigned.and(BigInteger.ONE.shiftLeft(RANK_BITS).subtract(BigInteger.ONE));
+            int rank = rest.signum() == 0 ? RANK_BITS + 1 : RANK_BITS + 1 - rest.toString(2).length();
+
+            HyperLogLog fromSql = new HyperLogLog();
+            fromSql.addRegister(register, rank);
+            HyperLogLog fromHash = new HyperLogLog();
+            fromHash.addRegister(0, 0); // Dense, so the hash goes straight to its register
+            fromHash.addHash(hash);
+            assertThat(fromHash.toBytes()).as("hash %x", hash).isEqualTo(fromSql.toBytes());
+        }
+    }
+
+    @Test
+    void countsExactlyWhileSparse() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("u" + (i % 700));
+        }
+
+        assertThat(sketch.estimate()).isEqualTo(700);
+        assertThat(sketch.errorBound()).isZero();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2000, 10_000, 100_000, 1_000_000})
+    void estimatesWithinTheErrorBound(int count) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < count; i++) {
+            sketch.add("user-" + i);
+        }
+
+        assertThat(sketch.errorBound()).isPositive();
+        assertThat(sketch.estimate()).isCloseTo((long) count, within(sketch.errorBound()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 50, 5000, 50_000})
+    void mergesAndSerializesWithoutChangingTheEstimate(int count) {
+        HyperLogLog all = new HyperLogLog();
+        HyperLogLog even = new HyperLogLog();
+        HyperLogLog odd = new HyperLogLog();
+        for (int i = 0; i < count; i++) {
+            all.add("user-" + i);
+            (i % 2 == 0 ? even : odd).add("user-" + i);
+        }
+
+        even.merge(HyperLogLog.fromBytes(odd.toBytes()));
+
+        assertThat(even.estimate()).isEqualTo(all.estimate());
+        assertThat(HyperLogLog.fromBytes(all.toBytes()).estimate()).isEqualTo(all.estimate());
+    }
+
+    @Test
+    void smallSetsAggregatedInSqlStayAccurate() {
+        // Registers from a query are dense from the start, however few users they hold
+        for (int count : new int[]{1, 5, 50, 500}) {
+            HyperLogLog sketch = new HyperLogLog();
+            sketch.addRegister(0, 0);
+            for (int i = 0; i < count; i++) {
+                sketch.addHash(HyperLogLog.hash("user-" + i));
+            }
+            assertThat(sketch.estimate()).as("%d users", count).isCloseTo((long) count, within(Math.max(1L, sketch.errorBound())));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.winlife.dataanalysis.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RotatingBloomFilterTest {
+
+    @Test
+    void remembersKeysUntilTheirGenerationIsDropped() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(3, 1000, 0.01);
+        filter.put("event-1");
+
+        filter.rotate();
+        filter.rotate();
+        assertThat(filter.mightContain("event-1")).isTrue();
+
+        filter.rotate();
+        assertThat(filter.mightContain("event-1")).isFalse();
+    }
+
+    @Test
+    void staysNearTheFalsePositiveRateAtTheExpectedLoad() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(2, 10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("stored-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertThat(filter.mightContain("stored-" + i)).isTrue();
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertThat(falsePositives).isLessThan(300);
+    }
+}
@@ -0,0 +1,82 @@
+package com.winlife.dataanalysis.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class VarintReaderTest {
+
+    @ParameterizedTest
+    @ValueSource(longs = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE})
+    void readsTheVarintsWritten(long value) throws IOException {
+        byte[] bytes = new VarintWriter(16).writeVarint(value).writeZigZag(value).toByteArray();
+
+        VarintReader reader = new VarintReader(bytes, 0, bytes.length);
+        assertThat(reader.readVarint()).isEqualTo(value);
+        assertThat(reader.readZigZag()).isEqualTo(value);
+        assertThat(reader.hasRemaining()).isFalse();
+    }
+
+    @Test
+    void usesSevenBitsPerByte() {
+        assertThat(new VarintWriter(16).writeVarint(127).size()).isEqualTo(1);
+        assertThat(new VarintWriter(16).writeVarint(128).size()).isEqualTo(2);
+        assertThat(new VarintWriter(16).writeVarint(16_384).size()).isEqualTo(3);
+        // Negative numbers take all 10 bytes unless zigzag encoded
+        assertThat(new VarintWriter(16).writeVarint(-1).size()).isEqualTo(10);
+        assertThat(new VarintWriter(16).writeZigZag(-1).size()).isEqualTo(1);
+        assertThat(new VarintWriter(16).writeZigZag(-64).size()).isEqualTo(1);
+        assertThat(new VarintWriter(16).writeZigZag(64).size()).isEqualTo(2);
+    }
+
+    @Test
+    void rejectsVarintsOutOfIntRange() {
+        byte[] bytes = new VarintWriter(16).writeVarint(Integer.MAX_VALUE + 1L).toByteArray();
+
+        assertThatThrownBy(() -> new VarintReader(bytes, 0, bytes.length).readVarint32()).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void rejectsVarintsLongerThanTenBytes() {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+
+        assertThatThrownBy(() -> new VarintReader(bytes, 0, bytes.length).readVarint()).hasMessageStartingWith("Malformed varint");
+    }
+
+    @Test
+    void stopsAtTheLimit() throws IOException {
+        byte[] bytes = new VarintWriter(16).writeString("héllo").writeVarint(300).toByteArray();
+        VarintReader reader = new VarintReader(bytes, 0, bytes.length);
+
+        reader.setLimit(bytes.length - 1);
+        assertThat(reader.readString()).isEqualTo("héllo");
+        assertThatThrownBy(reader::readVarint).isInstanceOf(EOFException.class);
+
+        reader.setLimit(bytes.length);
+        reader.seek(bytes.length - 2);
+        assertThat(reader.readVarint()).isEqualTo(300);
+    }
+
+    @Test
+    void rejectsAStringLongerThanTheData() {
+        byte[] bytes = new VarintWriter(16).writeVarint(5).writeByte('a').toByteArray();
+
+        assertThatThrownBy(() -> new VarintReader(bytes, 0, bytes.length).readString()).isInstanceOf(EOFException.class);
+    }
+
+    @Test
+    void readsDoublesBigEndian() throws IOException {
+        byte[] bytes = new VarintWriter(16).writeDouble(-2.5).toByteArray();
+
+        assertThat(bytes[0] & 0xff).isEqualTo(0xc0);
+        assertThat(new VarintReader(bytes, 0, bytes.length).readDouble()).isEqualTo(-2.5);
+    }
+}
@@ -0,0 +1,114 @@
+package com.winlife.dataanalysis.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WriteAheadLogTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsDurableRecordsInOrder() throws Exception {
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, true)) {
+            long start = log.readCheckpoint();
+            log.append(bytes("a"));
+            long end = log.append(bytes("b"));
+            assertThat(log.read(start, 10)).isEmpty(); // Not forced yet
+
+            log.awaitDurable(end);
+            List<WriteAheadLog.Record> records = log.read(start, 10);
+            assertThat(records).extracting(record -> text(record.payload())).containsExactly("a", "b");
+            assertThat(records.get(1).nextLsn()).isEqualTo(end);
+            assertThat(log.read(records.get(0).nextLsn(), 10)).extracting(record -> text(record.payload())).containsExactly("b");
+        }
+    }
+
+    @Test
+    void replaysFromTheCheckpointAfterReopening() throws Exception {
+        long checkpoint;
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            long start = log.readCheckpoint();
+            log.append(bytes("a"));
+            log.append(bytes("b"));
+            checkpoint = log.read(start, 1).get(0).nextLsn();
+            log.writeCheckpoint(checkpoint);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            assertThat(log.readCheckpoint()).isEqualTo(checkpoint);
+            assertThat(log.read(checkpoint, 10)).extracting(record -> text(record.payload())).containsExactly("b");
+            long end = log.append(bytes("c"));
+            assertThat(log.read(checkpoint, 10)).extracting(record -> text(record.payload())).containsExactly("b", "c");
+            assertThat(log.getDurableLsn()).isEqualTo(end);
+        }
+    }
+
+    @Test
+    void readsAcrossSegmentsAndTruncatesReplayedOnes() throws Exception {
+        byte[] payload = new byte[1500];
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            long start = log.readCheckpoint();
+            for (int i = 0; i < 5; i++) {
+                payload[0] = (byte) i;
+                log.append(payload);
+            }
+            assertThat(segmentFiles()).hasSize(3); // Two records fit in a segment
+
+            List<WriteAheadLog.Record> records = log.read(start, 10);
+            assertThat(records).hasSize(5);
+            assertThat(records).extracting(record -> (int) record.payload()[0]).containsExactly(0, 1, 2, 3, 4);
+
+            long next = records.get(3).nextLsn();
+            log.writeCheckpoint(next);
+            log.deleteSegmentsBefore(next);
+            assertThat(segmentFiles()).hasSize(2);
+            assertThat(log.read(next, 10)).extracting(record -> (int) record.payload()[0]).containsExactly(4);
+        }
+    }
+
+    @Test
+    void discardsATornTailOnOpen() throws Exception {
+        long start;
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            start = log.readCheckpoint();
+            log.append(bytes("a"));
+            log.append(bytes("b"));
+        }
+        // Corrupt the payload of the second record, as if the write was interrupted
+        Path segment = segmentFiles().get(0);
+        byte[] content = Files.readAllBytes(segment);
+        content[8 + 1 + 8] ^= 0x7f;
+        Files.write(segment, content);
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            assertThat(log.read(start, 10)).extracting(record -> text(record.payload())).containsExactly("a");
+            log.append(bytes("c"));
+            assertThat(log.read(start, 10)).extracting(record -> text(record.payload())).containsExactly("a", "c");
+        }
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".wal")).sorted().toList();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}